@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static android.app.AlarmManager.ELAPSED_REALTIME_WAKEUP;
+import static android.app.AlarmManager.FLAG_ALLOW_WHILE_IDLE_UNRESTRICTED;
+
+import android.app.IAlarmCompleteListener;
+import android.app.IAlarmListener;
+import android.content.Context;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules, cancels and re-batches alarms in an AlarmManagerService that holds 10k alarms from
+ * 500 uids, as on a device with many messaging and sync apps.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AlarmManagerServicePerfTest {
+    private static final int NUM_ALARMS = 10_000;
+    private static final int NUM_UIDS = 500;
+    private static final long NOW_ELAPSED = TimeUnit.DAYS.toMillis(1);
+    private static final long NOW_RTC = 1_577_836_800_000L; // 2020-01-01
+    private static final int DAY_MS = (int) TimeUnit.DAYS.toMillis(1);
+    private static final int HOUR_MS = (int) TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final Random mRandom = new Random(1);
+    private final IAlarmListener[] mListeners = new IAlarmListener[NUM_ALARMS];
+    private AlarmManagerService mService;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getContext();
+        mService = new AlarmManagerService(context, new AlarmManagerService.Injector(context) {
+            @Override
+            boolean isAlarmDriverPresent() {
+                return true;
+            }
+
+            @Override
+            void setAlarm(int type, long millis) {
+            }
+
+            @Override
+            long getElapsedRealtime() {
+                return NOW_ELAPSED;
+            }
+
+            @Override
+            long getCurrentTimeMillis() {
+                return NOW_RTC;
+            }
+        });
+        synchronized (mService.mLock) {
+            for (int i = 0; i < NUM_ALARMS; i++) {
+                mListeners[i] = new IAlarmListener.Stub() {
+                    @Override
+                    public void doAlarm(IAlarmCompleteListener callback) {
+                    }
+                };
+                mService.setImplLocked(createAlarm(i), false);
+            }
+        }
+    }
+
+    @Test
+    public void timeRebatchAllAlarms() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            synchronized (mService.mLock) {
+                mService.rebatchAllAlarmsLocked(true);
+            }
+        }
+    }
+
+    @Test
+    public void timeRescheduleAlarm() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            synchronized (mService.mLock) {
+                // Replaces the alarm previously set with the same listener
+                mService.setImplLocked(createAlarm(i), false);
+            }
+            i = (i + 1) % NUM_ALARMS;
+        }
+    }
+
+    @Test
+    public void timeCancelAlarm() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            synchronized (mService.mLock) {
+                mService.removeLocked(null, mListeners[i]);
+
+                state.pauseTiming();
+                mService.setImplLocked(createAlarm(i), false);
+                state.resumeTiming();
+            }
+            i = (i + 1) % NUM_ALARMS;
+        }
+    }
+
+    @Test
+    public void timeRemoveAlarmsForUid() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int uidIndex = 0;
+        while (state.keepRunning()) {
+            synchronized (mService.mLock) {
+                mService.removeLocked(Process.FIRST_APPLICATION_UID + uidIndex);
+
+                state.pauseTiming();
+                for (int i = uidIndex; i < NUM_ALARMS; i += NUM_UIDS) {
+                    mService.setImplLocked(createAlarm(i), false);
+                }
+                state.resumeTiming();
+            }
+            uidIndex = (uidIndex + 1) % NUM_UIDS;
+        }
+    }
+
+    /**
+     * Creates alarm {@code index} of {@link #NUM_ALARMS}: one in four is exact and the others have
+     * windows of up to an hour, over the next day. They are exempt from app standby, which would
+     * need the rest of system server.
+     */
+    private AlarmManagerService.Alarm createAlarm(int index) {
+        final int uid = Process.FIRST_APPLICATION_UID + index % NUM_UIDS;
+        final long whenElapsed = NOW_ELAPSED + mRandom.nextInt(DAY_MS);
+        final long windowLength = (index % 4 == 0) ? 0 : mRandom.nextInt(HOUR_MS);
+        return new AlarmManagerService.Alarm(ELAPSED_REALTIME_WAKEUP, whenElapsed, whenElapsed,
+                windowLength, whenElapsed + windowLength, 0, null, mListeners[index], "perftest",
+                null, FLAG_ALLOW_WHILE_IDLE_UNRESTRICTED, null, uid, "com.example.app" + uid);
+    }
+}
@@ -16,6 +16,7 @@
 
 package android.database;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
@@ -46,6 +47,9 @@ public class CursorWindowPerfTest {
 
     private static final String DB_NAME = CursorWindowPerfTest.class.toString();
 
+    private static final int SCAN_ROWS = 100_000;
+    private static final String SCAN_SQL = "SELECT a, b, c FROM Scan ORDER BY a";
+
     private static SQLiteDatabase sDatabase;
 
     @BeforeClass
@@ -61,6 +65,15 @@ public class CursorWindowPerfTest {
             sDatabase.execSQL(insert, helper.createItem(0));
         }
 
+        // Scans need a result several windows long, with fixed-width numeric columns
+        sDatabase.execSQL("CREATE TABLE Scan (a INTEGER PRIMARY KEY, b INTEGER, c REAL)");
+        sDatabase.beginTransaction();
+        for (int i = 0; i < SCAN_ROWS; i++) {
+            sDatabase.execSQL("INSERT INTO Scan VALUES (?, ?, ?)",
+                    new Object[] {i, i * 31L, i * 0.5});
+        }
+        sDatabase.setTransactionSuccessful();
+        sDatabase.endTransaction();
     }
 
     @AfterClass
@@ -121,4 +134,74 @@ public class CursorWindowPerfTest {
             }
         }
     }
+
+    @Test
+    public void scan100kRows() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            try (Cursor cursor = sDatabase.rawQuery(SCAN_SQL, null)) {
+                scanRows(cursor);
+            }
+        }
+    }
+
+    @Test
+    public void scan100kRows_fixedSizeWindow() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            try (Cursor cursor = sDatabase.rawQuery(SCAN_SQL, null)) {
+                // A window set by the caller is never replaced by a bigger one
+                ((SQLiteCursor) cursor).setWindow(new CursorWindow(null));
+                scanRows(cursor);
+            }
+        }
+    }
+
+    @Test
+    public void scan100kRows_columnCopy() {
+        final long[] a = new long[SCAN_ROWS];
+        final long[] b = new long[SCAN_ROWS];
+        final double[] c = new double[SCAN_ROWS];
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            try (Cursor cursor = sDatabase.rawQuery(SCAN_SQL, null)) {
+                SQLiteCursor sqLiteCursor = (SQLiteCursor) cursor;
+                int row = 0;
+                while (cursor.moveToPosition(row)) {
+                    CursorWindow window = sqLiteCursor.getWindow();
+                    window.copyLongColumn(row, 0, a, row, SCAN_ROWS - row);
+                    window.copyLongColumn(row, 1, b, row, SCAN_ROWS - row);
+                    row += window.copyDoubleColumn(row, 2, c, row, SCAN_ROWS - row);
+                }
+                assertEquals(SCAN_ROWS, row);
+            }
+        }
+    }
+
+    /** Scans the rows through a bulk cursor, the way a ContentProvider client reads them. */
+    @Test
+    public void scan100kRows_bulkCursor() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            CursorToBulkCursorAdaptor adaptor = new CursorToBulkCursorAdaptor(
+                    sDatabase.rawQuery(SCAN_SQL, null), null, "CursorWindowPerfTest");
+            try (BulkCursorToCursorAdaptor cursor = new BulkCursorToCursorAdaptor()) {
+                cursor.initialize(adaptor.getBulkCursorDescriptor());
+                scanRows(cursor);
+            }
+        }
+    }
+
+    private static void scanRows(Cursor cursor) {
+        int rows = 0;
+        long sum = 0;
+        double sumDouble = 0;
+        while (cursor.moveToNext()) {
+            sum += cursor.getLong(0) + cursor.getLong(1);
+            sumDouble += cursor.getDouble(2);
+            rows++;
+        }
+        assertEquals(SCAN_ROWS, rows);
+        assertTrue(sum > 0 && sumDouble > 0);
+    }
 }
@@ -35,7 +35,9 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Performance tests for typical CRUD operations and loading rows into the Cursor
@@ -45,9 +47,9 @@ import java.util.Random;
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class SQLiteDatabasePerfTest {
-    // TODO b/64262688 Add Concurrency tests to compare WAL vs DELETE read/write
     private static final String DB_NAME = "dbperftest";
     private static final int DEFAULT_DATASET_SIZE = 1000;
+    private static final int CONCURRENT_READERS = 3;
 
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
@@ -247,6 +249,71 @@ public class SQLiteDatabasePerfTest {
         }
     }
 
+    @Test
+    public void testSelectWithConcurrentReadersAndWriter_Wal() throws InterruptedException {
+        mDatabase.enableWriteAheadLogging();
+        selectWithConcurrentReadersAndWriter();
+    }
+
+    @Test
+    public void testSelectWithConcurrentReadersAndWriter_Delete() throws InterruptedException {
+        selectWithConcurrentReadersAndWriter();
+    }
+
+    /**
+     * Times single row selects while {@link #CONCURRENT_READERS} other threads run the same
+     * query and one thread keeps updating rows.
+     */
+    private void selectWithConcurrentReadersAndWriter() throws InterruptedException {
+        insertT1TestDataSet();
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_READERS; i++) {
+            final Random rnd = new Random(i + 1);
+            threads.add(new Thread(() -> {
+                while (!done.get()) {
+                    selectT1Row(rnd.nextInt(DEFAULT_DATASET_SIZE));
+                }
+            }, "reader-" + i));
+        }
+        threads.add(new Thread(() -> {
+            final Random rnd = new Random(CONCURRENT_READERS + 1);
+            final ContentValues cv = new ContentValues();
+            final String[] argArray = new String[1];
+            for (int i = 0; !done.get(); i++) {
+                cv.put("COL_B", "UpdatedValue" + i);
+                argArray[0] = String.valueOf(rnd.nextInt(DEFAULT_DATASET_SIZE));
+                mDatabase.update("T1", cv, "_ID=?", argArray);
+            }
+        }, "writer"));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        try {
+            BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            Random rnd = new Random(0);
+            while (state.keepRunning()) {
+                int index = rnd.nextInt(DEFAULT_DATASET_SIZE);
+                assertEquals(index, selectT1Row(index));
+            }
+        } finally {
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    private int selectT1Row(int index) {
+        try (Cursor cursor = mDatabase.rawQuery("SELECT _ID, COL_A, COL_B, COL_C FROM T1 "
+                + "WHERE _ID=?", new String[]{String.valueOf(index)})) {
+            assertTrue(cursor.moveToNext());
+            return cursor.getInt(0);
+        }
+    }
+
     private void insertT1TestDataSet() {
         insertT1TestDataSet(DEFAULT_DATASET_SIZE);
     }
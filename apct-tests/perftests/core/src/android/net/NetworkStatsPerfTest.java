@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Debug;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.util.ArrayMap;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+
+/**
+ * Measures the {@link NetworkStats} work done by NetworkStatsFactory on each poll of 2000-row
+ * uid snapshots: computing the delta from the previous snapshot, applying 464xlat adjustments
+ * and folding the delta into the adjusted stats.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NetworkStatsPerfTest {
+    private static final int ROWS = 2000;
+    private static final int POLLS = 100;
+    private static final String BASE_IFACE = "rmnet0";
+    private static final String STACKED_IFACE = "v4-rmnet0";
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final Map<String, String> mStackedIfaces = new ArrayMap<>();
+    /** Stands for the kernel counters, increasing on each poll. */
+    private NetworkStats mKernelStats;
+
+    // State kept across polls when buffers are reused.
+    private NetworkStats mPersistSnapshot;
+    private NetworkStats mPrevSnapshot;
+    private NetworkStats mDelta;
+    private NetworkStats mAdjustedStats;
+
+    @Before
+    public void setUp() {
+        mStackedIfaces.put(STACKED_IFACE, BASE_IFACE);
+        mKernelStats = new NetworkStats(0L, ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            mKernelStats.insertEntry(i % 4 == 0 ? STACKED_IFACE : BASE_IFACE, 10000 + i / 2,
+                    i % 2 == 0 ? SET_DEFAULT : SET_FOREGROUND, TAG_NONE, 1024L, 8L, 512L, 4L, 0L);
+        }
+        mPersistSnapshot = new NetworkStats(0L, -1);
+        mPrevSnapshot = new NetworkStats(0L, -1);
+        mDelta = new NetworkStats(0L, -1);
+        mAdjustedStats = new NetworkStats(0L, -1);
+    }
+
+    @Test
+    public void timePoll_ReusingBuffers() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            advanceKernelStats();
+            state.resumeTiming();
+
+            pollReusingBuffers();
+        }
+    }
+
+    @Test
+    public void timePoll_Allocating() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            advanceKernelStats();
+            state.resumeTiming();
+
+            pollAllocating();
+        }
+    }
+
+    /**
+     * Reports the bytes allocated by a poll, once buffers have grown to the snapshot size.
+     */
+    @Test
+    public void testAllocationPerPoll() {
+        pollReusingBuffers();
+        pollAllocating();
+
+        final Bundle status = new Bundle();
+        status.putLong("reusing_buffers_bytes_per_poll", measureAllocation(true));
+        status.putLong("allocating_bytes_per_poll", measureAllocation(false));
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private long measureAllocation(boolean reuseBuffers) {
+        long allocated = 0;
+        for (int i = 0; i < POLLS; i++) {
+            advanceKernelStats();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            if (reuseBuffers) {
+                pollReusingBuffers();
+            } else {
+                pollAllocating();
+            }
+            Debug.stopAllocCounting();
+            allocated += Debug.getThreadAllocSize();
+        }
+        return allocated / POLLS;
+    }
+
+    private void advanceKernelStats() {
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < ROWS; i += 7) {
+            mKernelStats.getValues(i, entry);
+            entry.rxBytes = 1024L;
+            entry.rxPackets = 8L;
+            entry.txBytes = 0L;
+            entry.txPackets = 0L;
+            entry.operations = 0L;
+            mKernelStats.combineValues(entry);
+        }
+        mKernelStats.setElapsedRealtime(mKernelStats.getElapsedRealtime() + 1000L);
+    }
+
+    /** Polls the way NetworkStatsFactory does, swapping and reusing snapshot buffers. */
+    private NetworkStats pollReusingBuffers() {
+        // Stands for nativeReadNetworkStatsDetail filling the spare buffer.
+        final NetworkStats stats = mPrevSnapshot;
+        stats.copyFrom(mKernelStats);
+        mPrevSnapshot = mPersistSnapshot;
+        mPersistSnapshot = stats;
+
+        mDelta = NetworkStats.subtract(mPersistSnapshot, mPrevSnapshot, null, null, mDelta);
+        mDelta.apply464xlatAdjustments(mStackedIfaces);
+        mAdjustedStats.combineAllValues(mDelta);
+        mAdjustedStats.setElapsedRealtime(mPersistSnapshot.getElapsedRealtime());
+        return mAdjustedStats.clone();
+    }
+
+    /** Polls allocating a new snapshot, previous snapshot copy and delta each time. */
+    private NetworkStats pollAllocating() {
+        final NetworkStats prev = mPersistSnapshot.clone();
+        mPersistSnapshot = mKernelStats.clone();
+
+        final NetworkStats delta = mPersistSnapshot.subtract(prev);
+        delta.apply464xlatAdjustments(mStackedIfaces);
+        mAdjustedStats.combineAllValues(delta);
+        mAdjustedStats.setElapsedRealtime(mPersistSnapshot.getElapsedRealtime());
+        return mAdjustedStats.clone();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.util.AtomicFile;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.BatteryStatsHistory;
+import com.android.internal.os.BatteryStatsImpl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes and reads 48 hours of synthetic battery history, one record every five seconds, spread
+ * over history files the way BatteryStatsImpl rolls them.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BatteryStatsHistoryPerfTest {
+    private static final long HISTORY_DURATION_MS = 48 * 60 * 60 * 1000L;
+    private static final long RECORD_INTERVAL_MS = 5000;
+    /** Smaller than the default so the history is spread over more files. */
+    private static final int MAX_FILE_SIZE = 32 * 1024;
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final BatteryStatsImpl mStats = new BatteryStatsImpl();
+    private final Parcel mHistoryBuffer = Parcel.obtain();
+    private File mSystemDir;
+    private BatteryStatsHistory mHistory;
+
+    @Before
+    public void setUp() throws Exception {
+        mSystemDir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "BatteryStatsHistoryPerfTest");
+        mHistory = new BatteryStatsHistory(mStats, mSystemDir, mHistoryBuffer);
+        writeHistory();
+    }
+
+    @After
+    public void tearDown() {
+        mHistory.resetAllFiles();
+        mHistoryBuffer.recycle();
+    }
+
+    @Test
+    public void timeWriteHistory() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            mHistory.resetAllFiles();
+            state.resumeTiming();
+
+            writeHistory();
+        }
+    }
+
+    @Test
+    public void timeReadHistory() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final BatteryStats.HistoryItem item = new BatteryStats.HistoryItem();
+        while (state.keepRunning()) {
+            readHistory(-1, item);
+        }
+    }
+
+    @Test
+    public void timeReadLastHourOfHistory() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final BatteryStats.HistoryItem item = new BatteryStats.HistoryItem();
+        final long startTime = HISTORY_DURATION_MS - 60 * 60 * 1000L;
+        while (state.keepRunning()) {
+            readHistory(startTime, item);
+        }
+    }
+
+    @Test
+    public void timeWriteToParcel() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final Parcel p = Parcel.obtain();
+            mHistory.writeToParcel(p);
+            p.recycle();
+        }
+    }
+
+    private void readHistory(long startTime, BatteryStats.HistoryItem item) {
+        mHistory.startIteratingHistory(startTime);
+        Parcel p;
+        while ((p = mHistory.getNextParcel(item)) != null) {
+            mStats.readHistoryDelta(p, item);
+        }
+        mHistory.finishIteratingHistory();
+    }
+
+    /**
+     * Appends deltas to the history buffer, and closes the active file each time the buffer
+     * reaches {@link #MAX_FILE_SIZE}, as BatteryStatsImpl does.
+     */
+    private void writeHistory() throws IOException {
+        final BatteryStats.HistoryItem last = new BatteryStats.HistoryItem();
+        final BatteryStats.HistoryItem cur = new BatteryStats.HistoryItem();
+        mHistoryBuffer.setDataSize(0);
+        mHistoryBuffer.setDataPosition(0);
+        for (long time = 0; time < HISTORY_DURATION_MS; time += RECORD_INTERVAL_MS) {
+            if (mHistoryBuffer.dataSize() >= MAX_FILE_SIZE) {
+                writeActiveFile(last.time);
+                mHistory.startNextFile();
+                mHistoryBuffer.setDataSize(0);
+                mHistoryBuffer.setDataPosition(0);
+            }
+            final int step = (int) (time / RECORD_INTERVAL_MS);
+            cur.time = time;
+            cur.cmd = BatteryStats.HistoryItem.CMD_UPDATE;
+            cur.batteryLevel = (byte) (100 - (time * 100 / HISTORY_DURATION_MS));
+            cur.batteryTemperature = (short) (250 + step % 50);
+            cur.batteryVoltage = (char) (3800 + step % 400);
+            cur.states = (step / 60) % 2 == 0
+                    ? BatteryStats.HistoryItem.STATE_SCREEN_ON_FLAG : 0;
+            if (mHistoryBuffer.dataPosition() == 0) {
+                mHistory.noteActiveFileStarted(last, time);
+            }
+            mStats.writeHistoryDelta(mHistoryBuffer, cur, last);
+            last.setTo(cur);
+        }
+        writeActiveFile(last.time);
+    }
+
+    private void writeActiveFile(long lastTime) throws IOException {
+        final Parcel p = Parcel.obtain();
+        p.writeInt(mStats.getParcelVersion());
+        p.writeLong(lastTime);
+        p.writeInt(mHistoryBuffer.dataSize());
+        p.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        final AtomicFile file = mHistory.getActiveFile();
+        final FileOutputStream fos = file.startWrite();
+        fos.write(p.marshall());
+        file.finishWrite(fos);
+        p.recycle();
+    }
+}
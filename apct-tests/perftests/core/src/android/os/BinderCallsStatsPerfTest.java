@@ -18,6 +18,7 @@ package android.os;
 
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
+import android.util.ArrayMap;
 
 import androidx.test.filters.LargeTest;
 import androidx.test.runner.AndroidJUnit4;
@@ -57,6 +58,27 @@ public class BinderCallsStatsPerfTest {
         }
     }
 
+    /** Each call is slower than the one before, so each one is kept as a slow call. */
+    static class IncreasingLatencyBinderCallsStats extends BinderCallsStats {
+        private long mTimeMicros;
+        private long mLatencyMicros;
+
+        IncreasingLatencyBinderCallsStats() {
+            super(new BinderCallsStats.Injector());
+            setDeviceState(new CachedDeviceState(false, false).getReadonlyClient());
+        }
+
+        protected long getThreadTimeMicro() {
+            return 0;
+        }
+
+        protected long getElapsedRealtimeMicro() {
+            mLatencyMicros++;
+            mTimeMicros += mLatencyMicros;
+            return mTimeMicros;
+        }
+    }
+
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
     private BinderCallsStats mBinderCallsStats;
@@ -85,6 +107,33 @@ public class BinderCallsStatsPerfTest {
         runScenario(DEFAULT_BUCKET_SIZE);
     }
 
+    @Test
+    public void timeCallSession_latencyHistogramsDisabled() {
+        mBinderCallsStats.setDetailedTracking(true);
+        mBinderCallsStats.setCollectLatencyHistograms(false);
+        runScenario(DEFAULT_BUCKET_SIZE);
+    }
+
+    @Test
+    public void timeCallSession_allSlowCalls() {
+        mBinderCallsStats = new IncreasingLatencyBinderCallsStats();
+        mBinderCallsStats.setDetailedTracking(true);
+        mBinderCallsStats.setSamplingInterval(1);
+        runScenario(DEFAULT_BUCKET_SIZE);
+    }
+
+    @Test
+    public void timeCallSessionOnePercentSampling_classSamplingIntervals() {
+        mBinderCallsStats.setDetailedTracking(false);
+        mBinderCallsStats.setSamplingInterval(100);
+        final ArrayMap<String, Integer> intervals = new ArrayMap<>();
+        for (int i = 0; i < 10; i++) {
+            intervals.put("com.example.IService" + i + "$Stub", 1);
+        }
+        mBinderCallsStats.setClassSamplingIntervals(intervals);
+        runScenario(DEFAULT_BUCKET_SIZE);
+    }
+
     @Test
     public void timeCallSessionTrackingDisabled() {
         mBinderCallsStats.setDetailedTracking(false);
@@ -32,6 +32,9 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+
 /**
  * Performance tests for {@link LooperStats}.
  */
@@ -39,6 +42,9 @@ import org.junit.runner.RunWith;
 @LargeTest
 public class LooperStatsPerfTest {
     private static final int DISTINCT_MESSAGE_COUNT = 1000;
+    private static final int PRODUCER_COUNT = 4;
+    private static final int MESSAGES_PER_PRODUCER = 250;
+    private static final int DELAYED_MESSAGE_COUNT = 1000;
 
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
@@ -84,6 +90,81 @@ public class LooperStatsPerfTest {
         runScenario();
     }
 
+    @Test
+    public void timeMultiProducer() {
+        runMultiProducerScenario(false /* lockFree */, 0 /* delayedMessages */);
+    }
+
+    @Test
+    public void timeMultiProducer_LockFree() {
+        runMultiProducerScenario(true /* lockFree */, 0 /* delayedMessages */);
+    }
+
+    @Test
+    public void timeMultiProducer_DelayedBacklog() {
+        runMultiProducerScenario(false /* lockFree */, DELAYED_MESSAGE_COUNT);
+    }
+
+    @Test
+    public void timeMultiProducer_DelayedBacklog_LockFree() {
+        runMultiProducerScenario(true /* lockFree */, DELAYED_MESSAGE_COUNT);
+    }
+
+    /**
+     * Has several threads post messages to one looper at once, with the stats observer
+     * installed, and waits for the looper to dispatch them all. The delayed messages are
+     * queued far in the future so every post has to get past them.
+     */
+    private void runMultiProducerScenario(boolean lockFree, int delayedMessages) {
+        mStats.setSamplingInterval(1);
+        final HandlerThread target = new HandlerThread("MultiProducerTarget");
+        target.start();
+        target.getLooper().setLockFreeEnqueueEnabled(lockFree);
+        final Handler handler = new Handler(target.getLooper());
+        for (int i = 0; i < delayedMessages; i++) {
+            handler.sendEmptyMessageAtTime(DISTINCT_MESSAGE_COUNT + i,
+                    SystemClock.uptimeMillis() + 3_600_000L + i);
+        }
+
+        final CyclicBarrier start = new CyclicBarrier(PRODUCER_COUNT + 1);
+        final CountDownLatch[] done = new CountDownLatch[1];
+        final Runnable dispatched = () -> done[0].countDown();
+        final Thread[] producers = new Thread[PRODUCER_COUNT];
+        for (int i = 0; i < PRODUCER_COUNT; i++) {
+            producers[i] = new Thread(() -> {
+                try {
+                    while (true) {
+                        start.await();
+                        for (int j = 0; j < MESSAGES_PER_PRODUCER; j++) {
+                            handler.post(dispatched);
+                        }
+                    }
+                } catch (Exception e) {
+                    // Interrupted once the scenario is over.
+                }
+            }, "Producer" + i);
+            producers[i].start();
+        }
+
+        Looper.setObserver(mStats);
+        try {
+            final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                done[0] = new CountDownLatch(PRODUCER_COUNT * MESSAGES_PER_PRODUCER);
+                start.await();
+                done[0].await();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            Looper.setObserver(null);
+            for (Thread producer : producers) {
+                producer.interrupt();
+            }
+            target.quit();
+        }
+    }
+
     private void runScenario() {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
         while (state.keepRunning()) {
@@ -16,9 +16,11 @@
 
 package android.os;
 
+import android.app.Activity;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 
+import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.LargeTest;
 
 import org.junit.After;
@@ -29,6 +31,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 
@@ -40,7 +43,7 @@ public class ParcelArrayPerfTest {
 
     @Parameters(name = "size={0}")
     public static Collection<Object[]> data() {
-        return Arrays.asList(new Object[][] { {1}, {10}, {100}, {1000} });
+        return Arrays.asList(new Object[][] { {1}, {10}, {100}, {1000}, {1 << 20} });
     }
 
     private final int mSize;
@@ -48,6 +51,7 @@ public class ParcelArrayPerfTest {
     private Parcel mWriteParcel;
 
     private byte[] mByteArray;
+    private ByteBuffer mByteBuffer;
     private int[] mIntArray;
     private long[] mLongArray;
 
@@ -64,6 +68,7 @@ public class ParcelArrayPerfTest {
         mWriteParcel = Parcel.obtain();
 
         mByteArray = new byte[mSize];
+        mByteBuffer = ByteBuffer.wrap(mByteArray);
         mIntArray = new int[mSize];
         mLongArray = new long[mSize];
 
@@ -161,4 +166,61 @@ public class ParcelArrayPerfTest {
             mLongParcel.readLongArray(mLongArray);
         }
     }
+
+    @Test
+    public void timeByteArrayRoundTrip() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final Parcel p = Parcel.obtain();
+            p.writeByteArray(mByteArray);
+            p.setDataPosition(0);
+            p.createByteArray();
+            p.recycle();
+        }
+    }
+
+    @Test
+    public void timeSharedBlobRoundTrip() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final Parcel p = Parcel.obtain();
+            p.writeSharedBlob(mByteBuffer);
+            p.setDataPosition(0);
+            p.readSharedBlob();
+            p.recycle();
+        }
+    }
+
+    /**
+     * Reports the Java heap allocated to read back a byte array and a shared blob.
+     */
+    @Test
+    public void testReadAllocation() {
+        final Parcel byteArrayParcel = Parcel.obtain();
+        byteArrayParcel.writeByteArray(mByteArray);
+        final Parcel sharedBlobParcel = Parcel.obtain();
+        sharedBlobParcel.writeSharedBlob(mByteBuffer);
+
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        byteArrayParcel.setDataPosition(0);
+        byteArrayParcel.createByteArray();
+        Debug.stopAllocCounting();
+        final long byteArrayBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        sharedBlobParcel.setDataPosition(0);
+        sharedBlobParcel.readSharedBlob();
+        Debug.stopAllocCounting();
+        final long sharedBlobBytes = Debug.getThreadAllocSize();
+
+        final Bundle status = new Bundle();
+        status.putLong("byte_array_read_alloc_bytes", byteArrayBytes);
+        status.putLong("shared_blob_read_alloc_bytes", sharedBlobBytes);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+
+        byteArrayParcel.recycle();
+        sharedBlobParcel.recycle();
+    }
 }
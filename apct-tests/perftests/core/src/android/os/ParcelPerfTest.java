@@ -32,6 +32,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class ParcelPerfTest {
@@ -173,6 +175,58 @@ public class ParcelPerfTest {
         }
     }
 
+    @Test
+    public void timeObtainRecycle_Pooled() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            Parcel.obtain().recycle();
+        }
+    }
+
+    @Test
+    public void timeObtainRecycle_Nested() {
+        // Stands for a binder call making another call while handling it, which needs a data
+        // and reply parcel at each level.
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final Parcel data = Parcel.obtain();
+            final Parcel reply = Parcel.obtain();
+            final Parcel nestedData = Parcel.obtain();
+            final Parcel nestedReply = Parcel.obtain();
+            nestedReply.recycle();
+            nestedData.recycle();
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    @Test
+    public void timeObtainRecycle_Contended() throws Exception {
+        // Other threads marshalling at the same time, as binder threads do.
+        final int threadCount = 3;
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(() -> {
+                while (!done.get()) {
+                    Parcel.obtain().recycle();
+                }
+            });
+            threads[i].start();
+        }
+        try {
+            final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                Parcel.obtain().recycle();
+            }
+        } finally {
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
     @Test
     public void timeWriteException() {
         timeWriteException(false);
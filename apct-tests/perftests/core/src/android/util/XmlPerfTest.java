@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import static org.junit.Assert.assertEquals;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.XmlUtils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares {@link FastXmlSerializer} text XML against {@link BinaryXmlSerializer}
+ * for a document shaped like a typical packages.xml.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class XmlPerfTest {
+    private static final String TAG = "XmlPerfTest";
+
+    /** Roughly the number of packages installed for a single user. */
+    private static final int PACKAGE_COUNT = 400;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Test
+    public void timeWrite_Fast() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            writePackages(new FastXmlSerializer());
+        }
+    }
+
+    @Test
+    public void timeWrite_Binary() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            writePackages(new BinaryXmlSerializer());
+        }
+    }
+
+    @Test
+    public void timeParse_Fast() throws Exception {
+        final byte[] raw = writePackages(new FastXmlSerializer());
+        Log.i(TAG, "Text packages.xml size " + raw.length + " bytes");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            assertEquals(PACKAGE_COUNT, readPackages(raw));
+        }
+    }
+
+    @Test
+    public void timeParse_Binary() throws Exception {
+        final byte[] raw = writePackages(new BinaryXmlSerializer());
+        Log.i(TAG, "Binary packages.xml size " + raw.length + " bytes");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            assertEquals(PACKAGE_COUNT, readPackages(raw));
+        }
+    }
+
+    private static byte[] writePackages(XmlSerializer out) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        out.startTag(null, "packages");
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            final String name = "com.example.package" + i;
+            out.startTag(null, "package");
+            out.attribute(null, "name", name);
+            out.attribute(null, "codePath", "/data/app/" + name + "-Qx8a2Lw3pUv1==");
+            out.attribute(null, "nativeLibraryPath",
+                    "/data/app/" + name + "-Qx8a2Lw3pUv1==/lib");
+            out.attribute(null, "primaryCpuAbi", "arm64-v8a");
+            XmlUtils.writeIntAttribute(out, "publicFlags", 0x3898be44);
+            XmlUtils.writeIntAttribute(out, "privateFlags", 0);
+            XmlUtils.writeLongAttribute(out, "ft", 1600000000000L + i);
+            XmlUtils.writeLongAttribute(out, "it", 1600000000000L);
+            XmlUtils.writeLongAttribute(out, "ut", 1600000000000L + i);
+            XmlUtils.writeIntAttribute(out, "version", 1000 + i);
+            XmlUtils.writeIntAttribute(out, "userId", 10000 + i);
+            out.attribute(null, "installer", "com.android.vending");
+            XmlUtils.writeBooleanAttribute(out, "isOrphaned", false);
+
+            out.startTag(null, "sigs");
+            XmlUtils.writeIntAttribute(out, "count", 1);
+            XmlUtils.writeIntAttribute(out, "schemeVersion", 3);
+            out.startTag(null, "cert");
+            XmlUtils.writeIntAttribute(out, "index", i);
+            out.endTag(null, "cert");
+            out.endTag(null, "sigs");
+
+            out.startTag(null, "perms");
+            for (int j = 0; j < 8; j++) {
+                out.startTag(null, "item");
+                out.attribute(null, "name", "android.permission.PERMISSION_" + j);
+                XmlUtils.writeBooleanAttribute(out, "granted", true);
+                XmlUtils.writeIntAttribute(out, "flags", 0);
+                out.endTag(null, "item");
+            }
+            out.endTag(null, "perms");
+            out.endTag(null, "package");
+        }
+        out.endTag(null, "packages");
+        out.endDocument();
+        return os.toByteArray();
+    }
+
+    private static int readPackages(byte[] raw) throws Exception {
+        final XmlPullParser in = XmlUtils.resolvePullParser(new ByteArrayInputStream(raw));
+        XmlUtils.beginDocument(in, "packages");
+        final int outerDepth = in.getDepth();
+        int count = 0;
+        while (XmlUtils.nextElementWithin(in, outerDepth)) {
+            if ("package".equals(in.getName())) {
+                in.getAttributeValue(null, "name");
+                in.getAttributeValue(null, "codePath");
+                XmlUtils.readIntAttribute(in, "publicFlags", 0);
+                XmlUtils.readLongAttribute(in, "ft", 0);
+                XmlUtils.readIntAttribute(in, "userId", 0);
+                XmlUtils.readBooleanAttribute(in, "isOrphaned", false);
+                count++;
+            }
+        }
+        return count;
+    }
+}
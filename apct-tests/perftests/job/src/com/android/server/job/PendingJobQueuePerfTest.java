@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.job;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.job.controllers.JobStatus;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Queues 5k ready jobs from 200 apps, as after connectivity comes back, and walks the pending
+ * queue the way JobConcurrencyManager assigns jobs to contexts.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PendingJobQueuePerfTest {
+    private static final int NUM_JOBS = 5000;
+    private static final int NUM_APPS = 200;
+    /** As JobConcurrencyManager.MAX_JOB_CONTEXTS_COUNT. */
+    private static final int NUM_CONTEXTS = 16;
+
+    /** Same ordering as JobSchedulerService's pending job comparator. */
+    private static final Comparator<JobStatus> sPendingJobComparator = (o1, o2) -> {
+        if (o1.overrideState != o2.overrideState) {
+            return o2.overrideState - o1.overrideState;
+        }
+        return Long.compare(o1.enqueueTime, o2.enqueueTime);
+    };
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final ArrayList<JobStatus> mJobs = new ArrayList<>();
+    private final PendingJobQueue mPendingJobs = new PendingJobQueue(sPendingJobComparator);
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getContext();
+        final ComponentName component = new ComponentName(context, PendingJobQueuePerfTest.class);
+        final Random random = new Random(1);
+        for (int i = 0; i < NUM_JOBS; i++) {
+            final JobInfo jobInfo = new JobInfo.Builder(i, component).build();
+            final int uid = Process.FIRST_APPLICATION_UID + random.nextInt(NUM_APPS);
+            final JobStatus job = JobStatus.createFromJobInfo(jobInfo, uid,
+                    "com.example.app" + uid, 0, "perftest");
+            job.enqueueTime = random.nextInt(60 * 60 * 1000);
+            mJobs.add(job);
+        }
+        mPendingJobs.addAll(mJobs);
+    }
+
+    @Test
+    public void timeQueueReadyJobs() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            mPendingJobs.clear();
+            state.resumeTiming();
+
+            mPendingJobs.addAll(mJobs);
+        }
+    }
+
+    @Test
+    public void timeAssignJobs() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final JobStatus[] started = new JobStatus[NUM_CONTEXTS];
+        while (state.keepRunning()) {
+            // Evaluate and count every pending job, then look for a context for each.
+            JobStatus job;
+            mPendingJobs.resetIterator();
+            while ((job = mPendingJobs.next()) != null) {
+                job.lastEvaluatedPriority = job.getPriority();
+            }
+            int numStarted = 0;
+            mPendingJobs.resetIterator();
+            while ((job = mPendingJobs.next()) != null) {
+                if (numStarted < NUM_CONTEXTS) {
+                    started[numStarted++] = job;
+                }
+            }
+            for (int i = 0; i < numStarted; i++) {
+                mPendingJobs.remove(started[i]);
+            }
+
+            state.pauseTiming();
+            // These finish and are rescheduled, so that the queue keeps its size.
+            for (int i = 0; i < numStarted; i++) {
+                mPendingJobs.add(started[i]);
+            }
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void timeContains() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mPendingJobs.contains(mJobs.get(i));
+            i = (i + 1) % NUM_JOBS;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.NetworkStats.SET_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStatsHistory.FIELD_ALL;
+import static android.net.NetworkTemplate.buildTemplateMobileAll;
+
+import android.app.Activity;
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.Bundle;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.telephony.TelephonyManager;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares answering summary and single uid detail queries from a uid stats file holding a month
+ * of history for 1000 uids, by decoding the whole file as before and by mapping it.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NetworkStatsCollectionPerfTest {
+    private static final String TEST_IMSI = "310260000000000";
+    private static final int UIDS = 1000;
+    private static final int FIRST_UID = Process.FIRST_APPLICATION_UID;
+    private static final long BUCKET_DURATION = TimeUnit.HOURS.toMillis(2);
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+    private static final int DAYS = 30;
+    private static final long START_TIME = 1_577_836_800_000L; // 2020-01-01
+    private static final long END_TIME = START_TIME + DAYS * DAY_MS;
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final NetworkTemplate mTemplate = buildTemplateMobileAll(TEST_IMSI);
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        NetworkTemplate.forceAllNetworkTypes();
+        mFile = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "NetworkStatsCollectionPerfTest");
+
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+        final NetworkStatsCollection collection = new NetworkStatsCollection(BUCKET_DURATION);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < UIDS; i++) {
+            final int uid = FIRST_UID + i;
+            for (long time = START_TIME; time < END_TIME; time += BUCKET_DURATION) {
+                entry.rxBytes = 1024 + i;
+                entry.rxPackets = 8;
+                entry.txBytes = 512 + i;
+                entry.txPackets = 4;
+                collection.recordData(ident, uid, SET_DEFAULT, TAG_NONE, time,
+                        time + BUCKET_DURATION, entry);
+                if (i % 4 == 0) {
+                    collection.recordData(ident, uid, SET_FOREGROUND, TAG_NONE, time,
+                            time + BUCKET_DURATION, entry);
+                }
+            }
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(mFile))) {
+            collection.write(out);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void timeSummary_Loaded() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            loadCollection().getSummary(mTemplate, END_TIME - 7 * DAY_MS, END_TIME,
+                    NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+        }
+    }
+
+    @Test
+    public void timeSummary_Mapped() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final MappedNetworkStatsFile file = MappedNetworkStatsFile.open(mFile);
+            final NetworkStats stats = new NetworkStats(7 * DAY_MS, UIDS);
+            file.getSummary(mTemplate, END_TIME - 7 * DAY_MS, END_TIME, Long.MAX_VALUE,
+                    NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID, stats);
+            file.close();
+        }
+    }
+
+    @Test
+    public void timeDetail_Loaded() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            loadCollection().getHistory(mTemplate, null, FIRST_UID + UIDS / 2, SET_ALL,
+                    TAG_NONE, FIELD_ALL, START_TIME, END_TIME,
+                    NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+        }
+    }
+
+    @Test
+    public void timeDetail_Mapped() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final MappedNetworkStatsFile file = MappedNetworkStatsFile.open(mFile);
+            final NetworkStatsHistory history = new NetworkStatsHistory(BUCKET_DURATION);
+            file.recordHistory(mTemplate, FIRST_UID + UIDS / 2, SET_ALL, TAG_NONE, START_TIME,
+                    END_TIME, history);
+            file.close();
+        }
+    }
+
+    /**
+     * Reports the heap retained while the file is held open to answer queries.
+     */
+    @Test
+    public void testHeapUsage() throws Exception {
+        final long baseline = usedHeap();
+        final NetworkStatsCollection collection = loadCollection();
+        final long loaded = usedHeap() - baseline;
+
+        final MappedNetworkStatsFile file = MappedNetworkStatsFile.open(mFile);
+        final long mapped = usedHeap() - baseline - loaded;
+
+        final Bundle status = new Bundle();
+        status.putLong("heap_loaded_bytes", loaded);
+        status.putLong("heap_mapped_bytes", mapped);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+
+        // Keep both alive until measured.
+        collection.isEmpty();
+        file.close();
+    }
+
+    private NetworkStatsCollection loadCollection() throws IOException {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(BUCKET_DURATION);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(mFile))) {
+            collection.read(in);
+        }
+        return collection;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.notification;
+
+import android.app.NotificationHistory;
+import android.app.NotificationHistory.HistoricalNotification;
+import android.content.Context;
+import android.graphics.drawable.Icon;
+import android.os.Handler;
+import android.os.Looper;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.util.AtomicFile;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and compacts notification history holding 30 days of 5000 notifications a day, written
+ * the way the database flushes its buffer every 20 minutes.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NotificationHistoryDatabasePerfTest {
+    private static final int DAYS = 30;
+    private static final int NOTIFICATIONS_PER_DAY = 5000;
+    private static final long FLUSH_INTERVAL_MS = TimeUnit.MINUTES.toMillis(20);
+    private static final int FLUSHES_PER_DAY =
+            (int) (TimeUnit.DAYS.toMillis(1) / FLUSH_INTERVAL_MS);
+    private static final int NOTIFICATIONS_PER_FLUSH = NOTIFICATIONS_PER_DAY / FLUSHES_PER_DAY;
+    private static final int PACKAGES = 50;
+    private static final int CHANNELS = 4;
+    private static final long START_TIME = 1_577_836_800_000L; // 2020-01-01
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Context mContext;
+    private File mDir;
+    private NotificationHistoryDatabase mDatabase;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getContext();
+        mDir = new File(mContext.getCacheDir(), "NotificationHistoryDatabasePerfTest");
+        mDatabase = new NotificationHistoryDatabase(mContext,
+                new Handler(Looper.getMainLooper()), mDir);
+        final File historyDir = new File(mDir, "history");
+        deleteContents(historyDir);
+        historyDir.mkdirs();
+        writeHistory(historyDir);
+    }
+
+    @After
+    public void tearDown() {
+        deleteContents(new File(mDir, "history"));
+    }
+
+    @Test
+    public void timeReadAll() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mDatabase.readNotificationHistory();
+        }
+    }
+
+    @Test
+    public void timeReadPackage_Max50() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mDatabase.readNotificationHistory("com.example.app7", null, 50);
+        }
+    }
+
+    @Test
+    public void timeReadChannel_Max50() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mDatabase.readNotificationHistory("com.example.app7", "channel3", 50);
+        }
+    }
+
+    @Test
+    public void timeReadPackage_Max50_Compacted() {
+        mDatabase.compact();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mDatabase.readNotificationHistory("com.example.app7", null, 50);
+        }
+    }
+
+    @Test
+    public void timeReadAll_Compacted() {
+        mDatabase.compact();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mDatabase.readNotificationHistory();
+        }
+    }
+
+    @Test
+    public void timeCompact() throws Exception {
+        final File historyDir = new File(mDir, "history");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            deleteContents(historyDir);
+            writeHistory(historyDir);
+            state.resumeTiming();
+
+            mDatabase.compact();
+        }
+    }
+
+    private void writeHistory(File historyDir) throws Exception {
+        mDatabase.mHistoryFiles.clear();
+        int index = 0;
+        for (int flush = 0; flush < DAYS * FLUSHES_PER_DAY; flush++) {
+            final NotificationHistory history = new NotificationHistory();
+            for (int i = 0; i < NOTIFICATIONS_PER_FLUSH; i++) {
+                history.addNewNotificationToWrite(createNotification(index++,
+                        START_TIME + flush * FLUSH_INTERVAL_MS + i));
+            }
+            history.poolStringsFromNotifications();
+            final AtomicFile file = new AtomicFile(new File(historyDir,
+                    String.valueOf(START_TIME + (flush + 1) * FLUSH_INTERVAL_MS)));
+            final FileOutputStream fos = file.startWrite();
+            NotificationHistoryProtoHelper.write(fos, history, 1);
+            file.finishWrite(fos);
+            mDatabase.mHistoryFiles.addFirst(file);
+        }
+    }
+
+    private HistoricalNotification createNotification(int index, long postedTime) {
+        final String pkg = "com.example.app" + (index % PACKAGES);
+        final int channel = (index / PACKAGES) % CHANNELS;
+        return new HistoricalNotification.Builder()
+                .setPackage(pkg)
+                .setChannelName("Channel " + channel)
+                .setChannelId("channel" + channel)
+                .setUid(10000 + index % PACKAGES)
+                .setUserId(0)
+                .setPostedTimeMs(postedTime)
+                .setTitle("Title " + index)
+                .setText("Message text for notification " + index)
+                .setIcon(Icon.createWithResource(pkg, 0x7f010000 + channel))
+                .build();
+    }
+
+    private static void deleteContents(File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.notification;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.UserHandle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.service.notification.StatusBarNotification;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Ranks notifications the way NotificationManagerService does when they are posted, with 1000
+ * notifications from a chatty messaging workload.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class RankingHelperPerfTest {
+    private static final int NOTIFICATIONS = 1000;
+    private static final int PACKAGES = 20;
+    private static final String[] EXTRACTORS = {
+            NotificationChannelExtractor.class.getName(),
+            PriorityExtractor.class.getName(),
+            ImportanceExtractor.class.getName(),
+            NotificationIntrusivenessExtractor.class.getName(),
+            CriticalNotificationExtractor.class.getName(),
+    };
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Context mContext;
+    private RankingHelper mHelper;
+    private final NotificationChannel mChannel =
+            new NotificationChannel("messages", "Messages", NotificationManager.IMPORTANCE_HIGH);
+    private final Random mRandom = new Random(1);
+
+    /** Two versions of each notification, to alternate between when updating. */
+    private final NotificationRecord[][] mRecords = new NotificationRecord[2][NOTIFICATIONS];
+    private final ArrayList<NotificationRecord> mNotificationList = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getContext();
+        mHelper = new RankingHelper(mContext, new RankingHandler() {
+            @Override
+            public void requestSort() {
+            }
+
+            @Override
+            public void requestSortForStaleRecords() {
+            }
+
+            @Override
+            public void requestReconsideration(RankingReconsideration recon) {
+            }
+        }, null /* config */, null /* zenHelper */, null /* usageStats */, EXTRACTORS);
+        for (int version = 0; version < 2; version++) {
+            for (int i = 0; i < NOTIFICATIONS; i++) {
+                mRecords[version][i] = createRecord(i, version);
+            }
+        }
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            mNotificationList.add(mRecords[0][i]);
+            mHelper.extractSignals(mRecords[0][i]);
+        }
+        mHelper.sort(mNotificationList);
+    }
+
+    @Test
+    public void timePost1000() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            mNotificationList.clear();
+            state.resumeTiming();
+
+            for (int i = 0; i < NOTIFICATIONS; i++) {
+                final NotificationRecord r = mRecords[0][i];
+                mNotificationList.add(r);
+                mHelper.extractSignals(r);
+                mHelper.sort(mNotificationList, r);
+            }
+        }
+    }
+
+    @Test
+    public void timeUpdate_FullSort() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final NotificationRecord r = update();
+            mHelper.extractSignals(r);
+            mHelper.sort(mNotificationList);
+            mHelper.indexOf(mNotificationList, r);
+        }
+    }
+
+    @Test
+    public void timeUpdate_IncrementalSort() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final NotificationRecord r = update();
+            mHelper.extractSignals(r);
+            mHelper.sort(mNotificationList, r);
+            mHelper.indexOf(mNotificationList, r);
+        }
+    }
+
+    /** Replaces a random notification with its other version, as an app update would. */
+    private NotificationRecord update() {
+        final int i = mRandom.nextInt(NOTIFICATIONS);
+        final NotificationRecord old = mRecords[0][i];
+        final NotificationRecord r = mRecords[1][i];
+        mRecords[0][i] = r;
+        mRecords[1][i] = old;
+        mNotificationList.set(mNotificationList.indexOf(old), r);
+        return r;
+    }
+
+    private NotificationRecord createRecord(int i, int version) {
+        final String pkg = "com.example.chat" + (i % PACKAGES);
+        final Notification n = new Notification.Builder(mContext, mChannel.getId())
+                .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                .setContentTitle("Conversation " + i)
+                .setContentText("Message " + version)
+                .setGroup(i % 4 == 0 ? "group" + (i % PACKAGES) : null)
+                .setWhen(i)
+                .build();
+        final StatusBarNotification sbn = new StatusBarNotification(pkg, pkg, i, null,
+                10000 + i % PACKAGES, 0, n, UserHandle.SYSTEM, null, i * 1000L);
+        return new NotificationRecord(mContext, sbn, mChannel);
+    }
+}
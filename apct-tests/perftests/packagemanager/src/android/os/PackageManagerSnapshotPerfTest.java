@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.content.ComponentName;
+import android.content.pm.PackageManager;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures package queries answered from the package manager's query snapshots, and queries
+ * that have to rebuild them after the package state changed.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PackageManagerSnapshotPerfTest {
+    private static final ComponentName TEST_ACTIVITY =
+            new ComponentName("com.android.perftests.packagemanager",
+                    "android.perftests.utils.PerfTestActivity");
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private PackageManager mPm;
+    private boolean mEnabled;
+
+    @Before
+    public void setup() {
+        // Measure the service side, not the client-side caches.
+        PackageManager.disableApplicationInfoCache();
+        PackageManager.disablePackageInfoCache();
+        mPm = InstrumentationRegistry.getInstrumentation().getTargetContext().getPackageManager();
+    }
+
+    @After
+    public void tearDown() {
+        mPm.setComponentEnabledSetting(TEST_ACTIVITY,
+                PackageManager.COMPONENT_ENABLED_STATE_DEFAULT, PackageManager.DONT_KILL_APP);
+    }
+
+    /**
+     * Changes the enabled state of a component, which takes the package manager lock, schedules
+     * a package restrictions write and invalidates the query snapshots, in the same way an
+     * install does.
+     */
+    private void changePackageState() {
+        mPm.setComponentEnabledSetting(TEST_ACTIVITY, mEnabled
+                        ? PackageManager.COMPONENT_ENABLED_STATE_DEFAULT
+                        : PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
+                PackageManager.DONT_KILL_APP);
+        mEnabled = !mEnabled;
+    }
+
+    @Test
+    public void testGetPackageInfo() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final String packageName = TEST_ACTIVITY.getPackageName();
+        while (state.keepRunning()) {
+            mPm.getPackageInfo(packageName, 0);
+        }
+    }
+
+    @Test
+    public void testGetPackageInfoAfterStateChange() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final String packageName = TEST_ACTIVITY.getPackageName();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            changePackageState();
+            state.resumeTiming();
+
+            mPm.getPackageInfo(packageName, 0);
+        }
+    }
+
+    @Test
+    public void testGetApplicationInfo() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final String packageName = TEST_ACTIVITY.getPackageName();
+        while (state.keepRunning()) {
+            mPm.getApplicationInfo(packageName, 0);
+        }
+    }
+
+    @Test
+    public void testGetApplicationInfoAfterStateChange() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final String packageName = TEST_ACTIVITY.getPackageName();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            changePackageState();
+            state.resumeTiming();
+
+            mPm.getApplicationInfo(packageName, 0);
+        }
+    }
+
+    @Test
+    public void testGetPackageUid() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final String packageName = TEST_ACTIVITY.getPackageName();
+        while (state.keepRunning()) {
+            mPm.getPackageUid(packageName, 0);
+        }
+    }
+
+    @Test
+    public void testGetPackageUidAfterStateChange() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final String packageName = TEST_ACTIVITY.getPackageName();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            changePackageState();
+            state.resumeTiming();
+
+            mPm.getPackageUid(packageName, 0);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.annotation.NonNull;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.PatternMatcher;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Resolves typical web intents against a resolver holding as many filters as a device with
+ * many browsers and deep-link apps installed.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class IntentResolverPerfTest {
+    /** Apps with deep links into their own domains. */
+    private static final int DEEP_LINK_APPS = 500;
+    /** Browsers, which accept every http(s) URI. */
+    private static final int BROWSERS = 10;
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private TestResolver mResolver;
+    private TestResolver mCachingResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        mResolver = new TestResolver(false);
+        mCachingResolver = new TestResolver(true);
+        for (int i = 0; i < DEEP_LINK_APPS; i++) {
+            final IntentFilter filter = createWebFilter();
+            filter.addDataAuthority("www.app" + i + ".com", null);
+            filter.addDataAuthority("*.app" + i + ".net", null);
+            filter.addDataPath("/item/", PatternMatcher.PATTERN_PREFIX);
+            mResolver.addFilter(filter);
+            mCachingResolver.addFilter(filter);
+        }
+        for (int i = 0; i < BROWSERS; i++) {
+            final IntentFilter filter = createWebFilter();
+            mResolver.addFilter(filter);
+            mCachingResolver.addFilter(filter);
+        }
+    }
+
+    private static IntentFilter createWebFilter() {
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_VIEW);
+        filter.addCategory(Intent.CATEGORY_DEFAULT);
+        filter.addCategory(Intent.CATEGORY_BROWSABLE);
+        filter.addDataScheme("http");
+        filter.addDataScheme("https");
+        return filter;
+    }
+
+    private static Intent createWebIntent(String url) {
+        return new Intent(Intent.ACTION_VIEW, Uri.parse(url))
+                .addCategory(Intent.CATEGORY_BROWSABLE);
+    }
+
+    @Test
+    public void timeQueryDeepLink() {
+        final Intent intent = createWebIntent("https://www.app250.com/item/42");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mResolver.queryIntent(intent, null, true, 0);
+        }
+    }
+
+    @Test
+    public void timeQueryWildcardDeepLink() {
+        final Intent intent = createWebIntent("https://m.app250.net/item/42");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mResolver.queryIntent(intent, null, true, 0);
+        }
+    }
+
+    @Test
+    public void timeQueryUnknownHost() {
+        final Intent intent = createWebIntent("https://www.example.com/");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mResolver.queryIntent(intent, null, true, 0);
+        }
+    }
+
+    @Test
+    public void timeQueryDeepLink_Cached() {
+        final Intent intent = createWebIntent("https://www.app250.com/item/42");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mCachingResolver.queryIntent(intent, null, true, 0);
+        }
+    }
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        private final boolean mMatchCacheEnabled;
+
+        TestResolver(boolean matchCacheEnabled) {
+            mMatchCacheEnabled = matchCacheEnabled;
+        }
+
+        @Override
+        protected boolean isMatchCacheEnabled() {
+            return mMatchCacheEnabled;
+        }
+
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+
+        @Override
+        protected IntentFilter getIntentFilter(@NonNull IntentFilter input) {
+            return input;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.UsageEvents.Event;
+import android.app.usage.UsageStatsManager;
+import android.os.FileUtils;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries a month of synthetic daily usage stats the way digital wellbeing style clients do: the
+ * events of the last few days, and of a few minutes. Three daily files of this size fit in the
+ * cache of decoded stats.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class UsageStatsDatabasePerfTest {
+    private static final int DAYS = 30;
+    private static final int EVENTS_PER_DAY = 3000;
+    private static final int PACKAGES = 60;
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+    private static final long START_TIME = 1_577_836_800_000L; // 2020-01-01
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mDir;
+    private UsageStatsDatabase mDatabase;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "UsageStatsDatabasePerfTest");
+        FileUtils.deleteContentsAndDir(mDir);
+        mDatabase = openDatabase();
+        for (int day = 0; day < DAYS; day++) {
+            mDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY,
+                    createDailyStats(START_TIME + day * DAY_MS));
+        }
+        mDatabase.writeMappingsLocked();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void timeQueryLastThreeDaysOfEvents() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final long endTime = START_TIME + DAYS * DAY_MS;
+        while (state.keepRunning()) {
+            queryEvents(endTime - 3 * DAY_MS, endTime);
+        }
+    }
+
+    @Test
+    public void timeQueryLastThreeDaysOfEvents_Uncached() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final long endTime = START_TIME + DAYS * DAY_MS;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            mDatabase = openDatabase();
+            state.resumeTiming();
+
+            queryEvents(endTime - 3 * DAY_MS, endTime);
+        }
+    }
+
+    @Test
+    public void timeQueryFiveMinutesOfEvents() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final long beginTime = START_TIME + (DAYS - 1) * DAY_MS + DAY_MS / 2;
+        while (state.keepRunning()) {
+            queryEvents(beginTime, beginTime + TimeUnit.MINUTES.toMillis(5));
+        }
+    }
+
+    @Test
+    public void timeQueryMonthOfUsageStats() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final long endTime = START_TIME + DAYS * DAY_MS;
+        while (state.keepRunning()) {
+            mDatabase.queryUsageStats(UsageStatsManager.INTERVAL_DAILY, START_TIME, endTime,
+                    (stats, mutable, accumulatedResult) ->
+                            accumulatedResult.addAll(stats.packageStats.values()));
+        }
+    }
+
+    private UsageStatsDatabase openDatabase() {
+        final UsageStatsDatabase database = new UsageStatsDatabase(mDir);
+        database.readMappingsLocked();
+        database.init(START_TIME + DAYS * DAY_MS);
+        return database;
+    }
+
+    /** Collects the events in range, as UserUsageStatsService#queryEvents does. */
+    private List<Event> queryEvents(long beginTime, long endTime) {
+        return mDatabase.queryUsageStats(UsageStatsManager.INTERVAL_DAILY, beginTime, endTime,
+                (stats, mutable, accumulatedResult) -> {
+                    final int size = stats.events.size();
+                    for (int i = stats.events.firstIndexOnOrAfter(beginTime); i < size; i++) {
+                        final Event event = stats.events.get(i);
+                        if (event.mTimeStamp >= endTime) {
+                            return;
+                        }
+                        accumulatedResult.add(event);
+                    }
+                });
+    }
+
+    private static IntervalStats createDailyStats(long beginTime) {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = beginTime;
+        final long interval = DAY_MS / EVENTS_PER_DAY;
+        for (int i = 0; i < EVENTS_PER_DAY; i++) {
+            final Event event = new Event();
+            // Foreground/background pairs, clustered by app
+            final int packageInt = (i / 6) % PACKAGES;
+            event.mPackage = "com.example.app" + packageInt;
+            event.mClass = event.mPackage + ".MainActivity";
+            event.mTaskRootPackage = event.mPackage;
+            event.mTaskRootClass = event.mClass;
+            event.mInstanceId = i / 2;
+            event.mEventType = i % 2 == 0 ? Event.ACTIVITY_RESUMED : Event.ACTIVITY_PAUSED;
+            event.mTimeStamp = beginTime + i * interval;
+            stats.addEvent(event);
+            stats.update(event.mPackage, event.mClass, event.mTimeStamp, event.mEventType,
+                    event.mInstanceId);
+        }
+        stats.endTime = beginTime + DAY_MS;
+        return stats;
+    }
+}
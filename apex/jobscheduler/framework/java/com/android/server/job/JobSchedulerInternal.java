@@ -60,7 +60,7 @@ public interface JobSchedulerInternal {
     JobStorePersistStats getPersistStats();
 
     /**
-     * Stats about the first load after boot and the most recent save.
+     * Stats about the first load after boot and the most recent save, and what saving costs.
      */
     public class JobStorePersistStats {
         public int countAllJobsLoaded = -1;
@@ -71,6 +71,15 @@ public interface JobSchedulerInternal {
         public int countSystemServerJobsSaved = -1;
         public int countSystemSyncManagerJobsSaved = -1;
 
+        public long bytesWrittenLastSave = -1;
+        public long bytesWrittenTotal = 0;
+        public long writeLatencyMillisLastSave = -1;
+        public long writeLatencyMillisMax = 0;
+        /** Saves that rewrote all persisted jobs. */
+        public int countCompactions = 0;
+        /** Saves that only appended the jobs that changed. */
+        public int countAppends = 0;
+
         public JobStorePersistStats() {
         }
 
@@ -82,6 +91,13 @@ public interface JobSchedulerInternal {
             countAllJobsSaved = source.countAllJobsSaved;
             countSystemServerJobsSaved = source.countSystemServerJobsSaved;
             countSystemSyncManagerJobsSaved = source.countSystemSyncManagerJobsSaved;
+
+            bytesWrittenLastSave = source.bytesWrittenLastSave;
+            bytesWrittenTotal = source.bytesWrittenTotal;
+            writeLatencyMillisLastSave = source.writeLatencyMillisLastSave;
+            writeLatencyMillisMax = source.writeLatencyMillisMax;
+            countCompactions = source.countCompactions;
+            countAppends = source.countAppends;
         }
 
         @Override
@@ -93,7 +109,16 @@ public interface JobSchedulerInternal {
                     + " LastSave: "
                     + countAllJobsSaved + "/"
                     + countSystemServerJobsSaved + "/"
-                    + countSystemSyncManagerJobsSaved;
+                    + countSystemSyncManagerJobsSaved
+                    + " Bytes: "
+                    + bytesWrittenLastSave + "/"
+                    + bytesWrittenTotal
+                    + " WriteMs: "
+                    + writeLatencyMillisLastSave + "/"
+                    + writeLatencyMillisMax
+                    + " Compactions/Appends: "
+                    + countCompactions + "/"
+                    + countAppends;
         }
 
         /**
@@ -40,7 +40,6 @@ import com.android.server.job.JobSchedulerService.MaxJobCountsPerMemoryTrimLevel
 import com.android.server.job.controllers.JobStatus;
 import com.android.server.job.controllers.StateController;
 
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -276,7 +275,7 @@ class JobConcurrencyManager {
         }
 
         final JobPackageTracker tracker = mService.mJobPackageTracker;
-        final List<JobStatus> pendingJobs = mService.mPendingJobs;
+        final PendingJobQueue pendingJobs = mService.mPendingJobs;
         final List<JobServiceContext> activeServices = mService.mActiveServices;
         final List<StateController> controllers = mService.mControllers;
 
@@ -310,8 +309,9 @@ class JobConcurrencyManager {
         }
 
         // Next, update the job priorities, and also count the pending FG / BG jobs.
-        for (int i = 0; i < pendingJobs.size(); i++) {
-            final JobStatus pending = pendingJobs.get(i);
+        JobStatus pending;
+        pendingJobs.resetIterator();
+        while ((pending = pendingJobs.next()) != null) {
 
             // If job is already running, go to next job.
             int jobRunningContext = findJobContextIdFromMap(pending, contextIdToJobMap);
@@ -327,8 +327,9 @@ class JobConcurrencyManager {
 
         mJobCountTracker.onCountDone();
 
-        for (int i = 0; i < pendingJobs.size(); i++) {
-            final JobStatus nextPending = pendingJobs.get(i);
+        JobStatus nextPending;
+        pendingJobs.resetIterator();
+        while ((nextPending = pendingJobs.next()) != null) {
 
             // Unfortunately we need to repeat this relatively expensive check.
             int jobRunningContext = findJobContextIdFromMap(nextPending, contextIdToJobMap);
@@ -446,9 +447,10 @@ class JobConcurrencyManager {
     @GuardedBy("mLock")
     private String printPendingQueueLocked() {
         StringBuilder s = new StringBuilder("Pending queue: ");
-        Iterator<JobStatus> it = mService.mPendingJobs.iterator();
-        while (it.hasNext()) {
-            JobStatus js = it.next();
+        final PendingJobQueue pendingJobs = mService.mPendingJobs;
+        pendingJobs.resetIterator();
+        JobStatus js;
+        while ((js = pendingJobs.next()) != null) {
             s.append("(")
                     .append(js.getJob().getId())
                     .append(", ")
@@ -21,6 +21,7 @@ import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DISABLED
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.annotation.UserIdInt;
 import android.app.Activity;
 import android.app.ActivityManager;
@@ -70,6 +71,7 @@ import android.os.WorkSource;
 import android.provider.Settings;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.KeyValueListParser;
 import android.util.Log;
 import android.util.Slog;
@@ -79,6 +81,7 @@ import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.R;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.app.IBatteryStats;
 import com.android.internal.util.ArrayUtils;
@@ -221,6 +224,7 @@ public class JobSchedulerService extends com.android.server.SystemService
     static final int MSG_UID_GONE = 5;
     static final int MSG_UID_ACTIVE = 6;
     static final int MSG_UID_IDLE = 7;
+    static final int MSG_CHECK_CHANGED_JOB_LIST = 8;
 
     /**
      * Track Services that have currently active or pending jobs. The index is provided by
@@ -272,7 +276,30 @@ public class JobSchedulerService extends com.android.server.SystemService
      * Queue of pending jobs. The JobServiceContext class will receive jobs from this list
      * when ready to execute them.
      */
-    final ArrayList<JobStatus> mPendingJobs = new ArrayList<>();
+    final PendingJobQueue mPendingJobs = new PendingJobQueue(sPendingJobComparator);
+
+    /**
+     * Jobs whose constraints controllers changed since the last check. Only these need to be
+     * looked at, unless a check of all jobs is already scheduled.
+     */
+    @GuardedBy("mLock")
+    private final ArraySet<JobStatus> mChangedJobList = new ArraySet<>();
+
+    /** Whether any job of {@link #mChangedJobList} was reported through {@link #onRunJobsNow}. */
+    @GuardedBy("mLock")
+    private boolean mRunChangedJobsNow;
+
+    /** Number of checks that went through all jobs, and the number of jobs they evaluated. */
+    @GuardedBy("mLock")
+    private long mFullJobChecks;
+    @GuardedBy("mLock")
+    private long mFullJobCheckJobsEvaluated;
+
+    /** Number of checks of {@link #mChangedJobList}, and the number of jobs they evaluated. */
+    @GuardedBy("mLock")
+    private long mChangedJobListChecks;
+    @GuardedBy("mLock")
+    private long mChangedJobListJobsEvaluated;
 
     int[] mStartedUsers = EmptyArray.INT;
 
@@ -793,14 +820,6 @@ public class JobSchedulerService extends com.android.server.SystemService
         return o1.enqueueTime > o2.enqueueTime ? 1 : 0;
     };
 
-    static <T> void addOrderedItem(ArrayList<T> array, T newItem, Comparator<T> comparator) {
-        int where = Collections.binarySearch(array, newItem, comparator);
-        if (where < 0) {
-            where = ~where;
-        }
-        array.add(where, newItem);
-    }
-
     /**
      * Cleans up outstanding jobs when a package is removed. Even if it's being replaced later we
      * still clean up. On reinstall the package will have a new uid.
@@ -1146,7 +1165,7 @@ public class JobSchedulerService extends com.android.server.SystemService
                 // This is a new job, we can just immediately put it on the pending
                 // list and try to run it.
                 mJobPackageTracker.notePending(jobStatus);
-                addOrderedItem(mPendingJobs, jobStatus, sPendingJobComparator);
+                mPendingJobs.add(jobStatus);
                 maybeRunPendingJobsLocked();
             } else {
                 evaluateControllerStatesLocked(jobStatus);
@@ -1659,9 +1678,10 @@ public class JobSchedulerService extends com.android.server.SystemService
         }
     }
 
-    void noteJobsNonpending(List<JobStatus> jobs) {
-        for (int i = jobs.size() - 1; i >= 0; i--) {
-            JobStatus job = jobs.get(i);
+    void noteJobsNonpending(PendingJobQueue jobs) {
+        jobs.resetIterator();
+        JobStatus job;
+        while ((job = jobs.next()) != null) {
             mJobPackageTracker.noteNonpending(job);
         }
     }
@@ -1881,8 +1901,15 @@ public class JobSchedulerService extends com.android.server.SystemService
      * any that are eligible.
      */
     @Override
-    public void onControllerStateChanged() {
-        mHandler.obtainMessage(MSG_CHECK_JOB).sendToTarget();
+    public void onControllerStateChanged(@Nullable ArraySet<JobStatus> changedJobs) {
+        if (changedJobs == null) {
+            mHandler.obtainMessage(MSG_CHECK_JOB).sendToTarget();
+        } else if (changedJobs.size() > 0) {
+            synchronized (mLock) {
+                mChangedJobList.addAll(changedJobs);
+            }
+            mHandler.obtainMessage(MSG_CHECK_CHANGED_JOB_LIST).sendToTarget();
+        }
     }
 
     @Override
@@ -1890,6 +1917,18 @@ public class JobSchedulerService extends com.android.server.SystemService
         mHandler.obtainMessage(MSG_JOB_EXPIRED, jobStatus).sendToTarget();
     }
 
+    @Override
+    public void onRunJobsNow(@NonNull ArraySet<JobStatus> jobs) {
+        if (jobs.size() == 0) {
+            return;
+        }
+        synchronized (mLock) {
+            mChangedJobList.addAll(jobs);
+            mRunChangedJobsNow = true;
+        }
+        mHandler.obtainMessage(MSG_CHECK_CHANGED_JOB_LIST).sendToTarget();
+    }
+
     final private class JobHandler extends Handler {
 
         public JobHandler(Looper looper) {
@@ -1909,7 +1948,7 @@ public class JobSchedulerService extends com.android.server.SystemService
                         // state is such that all ready jobs should be run immediately.
                         if (runNow != null && isReadyToBeExecutedLocked(runNow)) {
                             mJobPackageTracker.notePending(runNow);
-                            addOrderedItem(mPendingJobs, runNow, sPendingJobComparator);
+                            mPendingJobs.add(runNow);
                         } else {
                             queueReadyJobsForExecutionLocked();
                         }
@@ -1933,6 +1972,13 @@ public class JobSchedulerService extends com.android.server.SystemService
                         }
                         queueReadyJobsForExecutionLocked();
                         break;
+                    case MSG_CHECK_CHANGED_JOB_LIST:
+                        if (DEBUG) {
+                            Slog.d(TAG, "MSG_CHECK_CHANGED_JOB_LIST");
+                        }
+                        removeMessages(MSG_CHECK_CHANGED_JOB_LIST);
+                        checkChangedJobListLocked();
+                        break;
                     case MSG_STOP_JOB:
                         cancelJobImplLocked((JobStatus) message.obj, null,
                                 "app no longer allowed to run");
@@ -2049,6 +2095,7 @@ public class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
+        clearChangedJobListLocked();
         mJobs.forEachJob(mReadyQueueFunctor);
         mReadyQueueFunctor.postProcess();
 
@@ -2080,9 +2127,6 @@ public class JobSchedulerService extends com.android.server.SystemService
         public void postProcess() {
             noteJobsPending(newReadyJobs);
             mPendingJobs.addAll(newReadyJobs);
-            if (mPendingJobs.size() > 1) {
-                mPendingJobs.sort(sPendingJobComparator);
-            }
 
             newReadyJobs.clear();
         }
@@ -2157,9 +2201,6 @@ public class JobSchedulerService extends com.android.server.SystemService
                 }
                 noteJobsPending(runnableJobs);
                 mPendingJobs.addAll(runnableJobs);
-                if (mPendingJobs.size() > 1) {
-                    mPendingJobs.sort(sPendingJobComparator);
-                }
             } else {
                 if (DEBUG) {
                     Slog.d(TAG, "maybeQueueReadyJobsForExecutionLocked: Not running anything.");
@@ -2185,10 +2226,70 @@ public class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
+        clearChangedJobListLocked();
         mJobs.forEachJob(mMaybeQueueFunctor);
         mMaybeQueueFunctor.postProcess();
     }
 
+    /**
+     * Called when every job is about to be checked, which covers any job that controllers
+     * reported as changed.
+     */
+    private void clearChangedJobListLocked() {
+        mHandler.removeMessages(MSG_CHECK_CHANGED_JOB_LIST);
+        mChangedJobList.clear();
+        mRunChangedJobsNow = false;
+        mFullJobChecks++;
+        mFullJobCheckJobsEvaluated += mJobs.size();
+    }
+
+    /**
+     * Check only the jobs whose constraints changed since the last check. Jobs that are no
+     * longer ready are dropped from the pending queue. Jobs that became ready are queued right
+     * away if we're running jobs greedily; otherwise, whether to run them depends on how many
+     * other jobs are ready, so all jobs are checked as in
+     * {@link #maybeQueueReadyJobsForExecutionLocked()}.
+     */
+    @VisibleForTesting
+    void checkChangedJobListLocked() {
+        if (mChangedJobList.size() == 0) {
+            return;
+        }
+        final boolean greedy = mRunChangedJobsNow || mReportedActive;
+        mRunChangedJobsNow = false;
+        mChangedJobListChecks++;
+        mChangedJobListJobsEvaluated += mChangedJobList.size();
+        if (DEBUG) {
+            Slog.d(TAG, "Checking " + mChangedJobList.size() + " changed jobs, greedy=" + greedy);
+        }
+
+        stopNonReadyActiveJobsLocked();
+        boolean anyReady = false;
+        for (int i = mChangedJobList.size() - 1; i >= 0; --i) {
+            final JobStatus job = mChangedJobList.valueAt(i);
+            if (mPendingJobs.remove(job)) {
+                mJobPackageTracker.noteNonpending(job);
+            }
+            if (!mJobs.containsJob(job)) {
+                // Cancelled or finished since the controller reported it.
+                continue;
+            }
+            if (greedy) {
+                mReadyQueueFunctor.accept(job);
+            } else if (isReadyToBeExecutedLocked(job)) {
+                anyReady = true;
+            } else {
+                evaluateControllerStatesLocked(job);
+            }
+        }
+        mChangedJobList.clear();
+        if (greedy) {
+            mReadyQueueFunctor.postProcess();
+        } else if (anyReady) {
+            maybeQueueReadyJobsForExecutionLocked();
+        }
+    }
+
     /** Returns true if both the calling and source users for the job are started. */
     private boolean areUsersStartedLocked(final JobStatus job) {
         boolean sourceStarted = ArrayUtils.contains(mStartedUsers, job.getSourceUserId());
@@ -2884,6 +2985,9 @@ public class JobSchedulerService extends com.android.server.SystemService
                     return JobSchedulerShellCommand.CMD_ERR_NO_JOB;
                 }
 
+                // The pending queue is sorted by override state, so take the job out while
+                // changing it.
+                final boolean wasPending = mPendingJobs.remove(js);
                 js.overrideState = (force) ? JobStatus.OVERRIDE_FULL
                         : (satisfied ? JobStatus.OVERRIDE_SORTING : JobStatus.OVERRIDE_SOFT);
 
@@ -2893,8 +2997,14 @@ public class JobSchedulerService extends com.android.server.SystemService
                     mControllers.get(c).reevaluateStateLocked(uid);
                 }
 
-                if (!js.isConstraintsSatisfied()) {
+                final boolean constraintsSatisfied = js.isConstraintsSatisfied();
+                if (!constraintsSatisfied) {
                     js.overrideState = JobStatus.OVERRIDE_NONE;
+                }
+                if (wasPending) {
+                    mPendingJobs.add(js);
+                }
+                if (!constraintsSatisfied) {
                     return JobSchedulerShellCommand.CMD_ERR_CONSTRAINTS;
                 }
 
@@ -3262,18 +3372,19 @@ public class JobSchedulerService extends com.android.server.SystemService
                 pw.println();
             }
             pw.println("Pending queue:");
-            for (int i=0; i<mPendingJobs.size(); i++) {
-                JobStatus job = mPendingJobs.get(i);
+            mPendingJobs.resetIterator();
+            JobStatus pendingJob;
+            for (int i = 0; (pendingJob = mPendingJobs.next()) != null; i++) {
                 pw.print("  Pending #"); pw.print(i); pw.print(": ");
-                pw.println(job.toShortString());
-                job.dump(pw, "    ", false, nowElapsed);
-                int priority = evaluateJobPriorityLocked(job);
+                pw.println(pendingJob.toShortString());
+                pendingJob.dump(pw, "    ", false, nowElapsed);
+                int priority = evaluateJobPriorityLocked(pendingJob);
                 pw.print("    Evaluated priority: ");
                 pw.println(JobInfo.getPriorityString(priority));
 
-                pw.print("    Tag: "); pw.println(job.getTag());
+                pw.print("    Tag: "); pw.println(pendingJob.getTag());
                 pw.print("    Enq: ");
-                TimeUtils.formatDuration(job.madePending - nowUptime, pw);
+                TimeUtils.formatDuration(pendingJob.madePending - nowUptime, pw);
                 pw.println();
             }
             pw.println();
@@ -3323,6 +3434,12 @@ public class JobSchedulerService extends com.android.server.SystemService
             pw.println();
             pw.print("PersistStats: ");
             pw.println(mJobs.getPersistStats());
+
+            pw.print("Job checks: full="); pw.print(mFullJobChecks);
+            pw.print(" ("); pw.print(mFullJobCheckJobsEvaluated); pw.print(" jobs evaluated)");
+            pw.print(", changed="); pw.print(mChangedJobListChecks);
+            pw.print(" ("); pw.print(mChangedJobListJobsEvaluated);
+            pw.println(" jobs evaluated)");
         }
         pw.println();
     }
@@ -3428,13 +3545,15 @@ public class JobSchedulerService extends com.android.server.SystemService
             mJobPackageTracker.dumpHistory(proto, JobSchedulerServiceDumpProto.HISTORY,
                     filterUidFinal);
 
-            for (JobStatus job : mPendingJobs) {
+            mPendingJobs.resetIterator();
+            JobStatus pendingJob;
+            while ((pendingJob = mPendingJobs.next()) != null) {
                 final long pjToken = proto.start(JobSchedulerServiceDumpProto.PENDING_JOBS);
 
-                job.writeToShortProto(proto, PendingJob.INFO);
-                job.dump(proto, PendingJob.DUMP, false, nowElapsed);
-                proto.write(PendingJob.EVALUATED_PRIORITY, evaluateJobPriorityLocked(job));
-                proto.write(PendingJob.PENDING_DURATION_MS, nowUptime - job.madePending);
+                pendingJob.writeToShortProto(proto, PendingJob.INFO);
+                pendingJob.dump(proto, PendingJob.DUMP, false, nowElapsed);
+                proto.write(PendingJob.EVALUATED_PRIORITY, evaluateJobPriorityLocked(pendingJob));
+                proto.write(PendingJob.PENDING_DURATION_MS, nowUptime - pendingJob.madePending);
 
                 proto.end(pjToken);
             }
@@ -25,6 +25,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.net.NetworkRequest;
 import android.os.Environment;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
@@ -33,18 +34,21 @@ import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.util.ArraySet;
 import android.util.AtomicFile;
+import android.util.IntArray;
+import android.util.LongSparseArray;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
-import android.util.Xml;
+import android.util.SparseSetArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
 import com.android.internal.util.BitUtils;
-import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.XmlUtils;
 import com.android.server.IoThread;
-import com.android.server.LocalServices;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
 import com.android.server.job.controllers.JobStatus;
 
@@ -52,23 +56,32 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.zip.CRC32;
 
 /**
  * Maintains the master list of jobs that the job scheduler is tracking. These jobs are compared by
  * reference, so none of the functions in this class should make a copy.
- * Also handles read/write of persisted jobs.
+ * Also handles read/write of persisted jobs. Persisted jobs are kept in an append-only log of
+ * binary records: each write appends the jobs that changed since the previous one, and the log is
+ * rewritten with only the live jobs once it holds mostly stale records.
  *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
@@ -92,9 +105,21 @@ public final class JobStore {
     final Context mContext;
 
     // Bookkeeping around incorrect boot-time system clock
-    private final long mXmlTimestamp;
+    private final long mJobsFileTimestamp;
     private boolean mRtcGood;
 
+    /** Persisted jobs that changed since the last write, by calling uid and then job id. */
+    @GuardedBy("mLock")
+    private final SparseSetArray<Integer> mDirtyJobs = new SparseSetArray<>();
+
+    /** Whether the next write should rewrite the log from scratch instead of appending. */
+    @GuardedBy("mLock")
+    private boolean mCompactionRequested = true;
+
+    /** Number of records in the log, including the ones superseded by later records. */
+    @GuardedBy("mLock")
+    private int mLogRecordCount;
+
     @GuardedBy("mWriteScheduleLock")
     private boolean mWriteScheduled;
 
@@ -102,7 +127,9 @@ public final class JobStore {
     private boolean mWriteInProgress;
 
     private static final Object sSingletonLock = new Object();
-    private final AtomicFile mJobsFile;
+    private final AtomicFile mJobsLogFile;
+    /** Jobs file written by earlier releases, only read to migrate it to the log. */
+    private final AtomicFile mLegacyJobsFile;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -130,6 +157,14 @@ public final class JobStore {
         return jobStoreUnderTest;
     }
 
+    /**
+     * @return A freshly initialized job store object, with the jobs read from disk as at boot.
+     */
+    @VisibleForTesting
+    public static JobStore initAndReadForTesting(Context context, File dataDir) {
+        return new JobStore(context, new Object(), dataDir);
+    }
+
     /**
      * Construct the instance of the job store. This results in a blocking read from disk.
      */
@@ -141,7 +176,8 @@ public final class JobStore {
         File systemDir = new File(dataDir, "system");
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
-        mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), "jobs");
+        mJobsLogFile = new AtomicFile(new File(jobDir, "jobs.log"), "jobs");
+        mLegacyJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), "jobs");
 
         mJobSet = new JobSet();
 
@@ -156,10 +192,20 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
-        mRtcGood = (sSystemClock.millis() > mXmlTimestamp);
+        mJobsFileTimestamp = mJobsLogFile.exists()
+                ? mJobsLogFile.getLastModifiedTime() : mLegacyJobsFile.getLastModifiedTime();
+        mRtcGood = (sSystemClock.millis() > mJobsFileTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
+
+        if (mLegacyJobsFile.exists()) {
+            // Either the jobs were just read from the legacy file, or the migration was
+            // interrupted before it could be deleted. The next full write finishes it.
+            synchronized (mLock) {
+                mCompactionRequested = true;
+            }
+            maybeWriteStatusToDiskAsync();
+        }
     }
 
     public boolean jobTimesInflatedValid() {
@@ -167,7 +213,7 @@ public final class JobStore {
     }
 
     public boolean clockNowValidToInflate(long now) {
-        return now >= mXmlTimestamp;
+        return now >= mJobsFileTimestamp;
     }
 
     /**
@@ -206,6 +252,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mDirtyJobs.add(jobStatus.getUid(), jobStatus.getJobId());
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -245,6 +292,7 @@ public final class JobStore {
             return false;
         }
         if (removeFromPersisted && jobStatus.isPersisted()) {
+            mDirtyJobs.add(jobStatus.getUid(), jobStatus.getJobId());
             maybeWriteStatusToDiskAsync();
         }
         return removed;
@@ -256,11 +304,15 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        // Drop their records the next time the jobs are written.
+        mCompactionRequested = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mDirtyJobs.clear();
+        mCompactionRequested = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -312,7 +364,7 @@ public final class JobStore {
         mJobSet.forEachJobForSourceUid(sourceUid, functor);
     }
 
-    /** Version of the db schema. */
+    /** Version of the legacy xml db schema. */
     private static final int JOBS_FILE_VERSION = 0;
     /** Tag corresponds to constraints this job needs. */
     private static final String XML_TAG_PARAMS_CONSTRAINTS = "constraints";
@@ -321,9 +373,38 @@ public final class JobStore {
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
 
+    /** Magic number at the start of the jobs log, "JOBL". */
+    private static final int JOBS_LOG_MAGIC = 0x4a4f424c;
+    /** Version of the jobs log format. */
+    private static final int JOBS_LOG_VERSION = 1;
+
+    /** Record holding the full state of a persisted job, replacing any earlier one. */
+    private static final byte RECORD_JOB = 1;
+    /** Record holding the uid and id of a job that is no longer persisted. */
+    private static final byte RECORD_REMOVE = 2;
+    /** Records are never larger than this; a larger length means the log is corrupt. */
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    // Which optional fields follow the fixed part of a RECORD_JOB.
+    private static final int FIELD_NETWORK = 1 << 0;
+    private static final int FIELD_IDLE = 1 << 1;
+    private static final int FIELD_CHARGING = 1 << 2;
+    private static final int FIELD_BATTERY_NOT_LOW = 1 << 3;
+    private static final int FIELD_STORAGE_NOT_LOW = 1 << 4;
+    private static final int FIELD_DELAY = 1 << 5;
+    private static final int FIELD_DEADLINE = 1 << 6;
+    private static final int FIELD_PERIODIC = 1 << 7;
+    private static final int FIELD_BACKOFF = 1 << 8;
+
+    /**
+     * The log is rewritten once it would hold more than this many records and more than twice
+     * as many records as there are persisted jobs.
+     */
+    private static final int COMPACT_MIN_RECORDS = 100;
+
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Writes are batched: every time the state changes we note which job changed and schedule a
+     * write, which then appends the latest state of all the jobs noted since the last one.
      */
     private void maybeWriteStatusToDiskAsync() {
         synchronized (mWriteScheduleLock) {
@@ -384,14 +465,20 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes the persisted jobs in {@link #mJobSet} out to the jobs log.
      * NOTE: This Runnable locks on mLock
      */
     private final Runnable mWriteRunnable = new Runnable() {
+        private final CRC32 mCrc = new CRC32();
+
         @Override
         public void run() {
-            final long startElapsed = sElapsedRealtimeClock.millis();
+            final long startTime = SystemClock.uptimeMillis();
+            final List<JobStatus> persistedJobs = new ArrayList<JobStatus>();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final IntArray removedUids = new IntArray();
+            final IntArray removedJobIds = new IntArray();
+            final boolean compact;
             // Intentionally allow new scheduling of a write operation *before* we clone
             // the job set.  If we reset it to false after cloning, there's a window in
             // which no new write will be scheduled but mLock is not held, i.e. a new
@@ -403,17 +490,48 @@ public final class JobStore {
                 mWriteScheduled = false;
             }
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
                 mJobSet.forEachJob(null, (job) -> {
                     if (job.isPersisted()) {
-                        storeCopy.add(new JobStatus(job));
+                        persistedJobs.add(job);
                     }
                 });
+                int numDirty = 0;
+                for (int i = mDirtyJobs.size() - 1; i >= 0; i--) {
+                    numDirty += mDirtyJobs.sizeAt(i);
+                }
+                compact = mCompactionRequested || mLogRecordCount + numDirty
+                        > Math.max(COMPACT_MIN_RECORDS, 2 * persistedJobs.size());
+                // Clone the jobs so we can release the lock before writing.
+                if (compact) {
+                    for (int i = 0; i < persistedJobs.size(); i++) {
+                        storeCopy.add(new JobStatus(persistedJobs.get(i)));
+                    }
+                    mCompactionRequested = false;
+                } else {
+                    // Write whatever now has the uid and job id of each changed job.
+                    for (int i = mDirtyJobs.size() - 1; i >= 0; i--) {
+                        final int uid = mDirtyJobs.keyAt(i);
+                        for (int j = mDirtyJobs.sizeAt(i) - 1; j >= 0; j--) {
+                            final int jobId = mDirtyJobs.valueAt(i, j);
+                            final JobStatus job = mJobSet.get(uid, jobId);
+                            if (job != null && job.isPersisted()) {
+                                storeCopy.add(new JobStatus(job));
+                            } else {
+                                removedUids.add(uid);
+                                removedJobIds.add(jobId);
+                            }
+                        }
+                    }
+                }
+                mDirtyJobs.clear();
+            }
+            if (compact || storeCopy.size() > 0 || removedUids.size() > 0) {
+                writeJobsImpl(compact, storeCopy, removedUids, removedJobIds, startTime);
             }
-            writeJobsMapImpl(storeCopy);
+            countSavedJobs(persistedJobs);
             if (DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (sElapsedRealtimeClock.millis()
-                        - startElapsed) + "ms");
+                Slog.v(TAG, "Finished writing, took " + (SystemClock.uptimeMillis()
+                        - startTime) + "ms");
             }
             synchronized (mWriteScheduleLock) {
                 mWriteInProgress = false;
@@ -421,193 +539,256 @@ public final class JobStore {
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
-            int numJobs = 0;
-            int numSystemJobs = 0;
-            int numSyncJobs = 0;
+        private void writeJobsImpl(boolean compact, List<JobStatus> jobList,
+                IntArray removedUids, IntArray removedJobIds, long startTime) {
             try {
-                final long startTime = SystemClock.uptimeMillis();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(baos, StandardCharsets.UTF_8.name());
-                out.startDocument(null, true);
-                out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-
-                out.startTag(null, "job-info");
-                out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
-                for (int i=0; i<jobList.size(); i++) {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream(baos);
+                if (compact) {
+                    out.writeInt(JOBS_LOG_MAGIC);
+                    out.writeInt(JOBS_LOG_VERSION);
+                }
+                final ByteArrayOutputStream record = new ByteArrayOutputStream();
+                final DataOutputStream recordOut = new DataOutputStream(record);
+                for (int i = 0; i < jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
                     if (DEBUG) {
                         Slog.d(TAG, "Saving job " + jobStatus.getJobId());
                     }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
-
-                    numJobs++;
-                    if (jobStatus.getUid() == Process.SYSTEM_UID) {
-                        numSystemJobs++;
-                        if (isSyncJob(jobStatus)) {
-                            numSyncJobs++;
-                        }
+                    writeJobRecord(recordOut, jobStatus);
+                    writeRecord(out, record);
+                }
+                for (int i = 0; i < removedUids.size(); i++) {
+                    recordOut.writeByte(RECORD_REMOVE);
+                    recordOut.writeInt(removedUids.get(i));
+                    recordOut.writeInt(removedJobIds.get(i));
+                    writeRecord(out, record);
+                }
+                out.flush();
+
+                if (compact) {
+                    // Write out to disk in one fell swoop.
+                    final FileOutputStream fos = mJobsLogFile.startWrite(startTime);
+                    try {
+                        baos.writeTo(fos);
+                        mJobsLogFile.finishWrite(fos);
+                    } catch (IOException e) {
+                        mJobsLogFile.failWrite(fos);
+                        throw e;
+                    }
+                    if (mLegacyJobsFile.exists()) {
+                        mLegacyJobsFile.delete();
                     }
+                } else {
+                    // A crash while appending leaves a partial record at the end, which the
+                    // checksum catches when reading it back.
+                    try (FileOutputStream fos =
+                            new FileOutputStream(mJobsLogFile.getBaseFile(), true)) {
+                        baos.writeTo(fos);
+                        FileUtils.sync(fos);
+                    }
+                }
+                final int numRecords = jobList.size() + removedUids.size();
+                synchronized (mLock) {
+                    mLogRecordCount = compact ? numRecords : mLogRecordCount + numRecords;
                 }
-                out.endTag(null, "job-info");
-                out.endDocument();
 
-                // Write out to disk in one fell swoop.
-                FileOutputStream fos = mJobsFile.startWrite(startTime);
-                fos.write(baos.toByteArray());
-                mJobsFile.finishWrite(fos);
+                final long duration = SystemClock.uptimeMillis() - startTime;
+                mPersistInfo.bytesWrittenLastSave = baos.size();
+                mPersistInfo.bytesWrittenTotal += baos.size();
+                mPersistInfo.writeLatencyMillisLastSave = duration;
+                mPersistInfo.writeLatencyMillisMax =
+                        Math.max(mPersistInfo.writeLatencyMillisMax, duration);
+                if (compact) {
+                    mPersistInfo.countCompactions++;
+                } else {
+                    mPersistInfo.countAppends++;
+                }
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
                 }
+                onWriteFailed();
             } catch (XmlPullParserException e) {
                 if (DEBUG) {
                     Slog.d(TAG, "Error persisting bundle.", e);
                 }
-            } finally {
-                mPersistInfo.countAllJobsSaved = numJobs;
-                mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
-                mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
+                onWriteFailed();
             }
         }
 
-        /** Write out a tag with data comprising the required fields and priority of this job and
-         * its client.
+        /**
+         * The changes that failed to be written are no longer tracked, and an append may have
+         * been cut short; rewrite everything next time.
          */
-        private void addAttributesToJobTag(XmlSerializer out, JobStatus jobStatus)
-                throws IOException {
-            out.attribute(null, "jobid", Integer.toString(jobStatus.getJobId()));
-            out.attribute(null, "package", jobStatus.getServiceComponent().getPackageName());
-            out.attribute(null, "class", jobStatus.getServiceComponent().getClassName());
-            if (jobStatus.getSourcePackageName() != null) {
-                out.attribute(null, "sourcePackageName", jobStatus.getSourcePackageName());
-            }
-            if (jobStatus.getSourceTag() != null) {
-                out.attribute(null, "sourceTag", jobStatus.getSourceTag());
-            }
-            out.attribute(null, "sourceUserId", String.valueOf(jobStatus.getSourceUserId()));
-            out.attribute(null, "uid", Integer.toString(jobStatus.getUid()));
-            out.attribute(null, "priority", String.valueOf(jobStatus.getPriority()));
-            out.attribute(null, "flags", String.valueOf(jobStatus.getFlags()));
-            if (jobStatus.getInternalFlags() != 0) {
-                out.attribute(null, "internalFlags", String.valueOf(jobStatus.getInternalFlags()));
-            }
-
-            out.attribute(null, "lastSuccessfulRunTime",
-                    String.valueOf(jobStatus.getLastSuccessfulRunTime()));
-            out.attribute(null, "lastFailedRunTime",
-                    String.valueOf(jobStatus.getLastFailedRunTime()));
-        }
-
-        private void writeBundleToXml(PersistableBundle extras, XmlSerializer out)
-                throws IOException, XmlPullParserException {
-            out.startTag(null, XML_TAG_EXTRAS);
-            PersistableBundle extrasCopy = deepCopyBundle(extras, 10);
-            extrasCopy.saveToXml(out);
-            out.endTag(null, XML_TAG_EXTRAS);
+        private void onWriteFailed() {
+            synchronized (mLock) {
+                mCompactionRequested = true;
+            }
         }
 
-        private PersistableBundle deepCopyBundle(PersistableBundle bundle, int maxDepth) {
-            if (maxDepth <= 0) {
-                return null;
-            }
-            PersistableBundle copy = (PersistableBundle) bundle.clone();
-            Set<String> keySet = bundle.keySet();
-            for (String key: keySet) {
-                Object o = copy.get(key);
-                if (o instanceof PersistableBundle) {
-                    PersistableBundle bCopy = deepCopyBundle((PersistableBundle) o, maxDepth-1);
-                    copy.putPersistableBundle(key, bCopy);
+        private void countSavedJobs(List<JobStatus> persistedJobs) {
+            int numSystemJobs = 0;
+            int numSyncJobs = 0;
+            for (int i = 0; i < persistedJobs.size(); i++) {
+                final JobStatus jobStatus = persistedJobs.get(i);
+                if (jobStatus.getUid() == Process.SYSTEM_UID) {
+                    numSystemJobs++;
+                    if (isSyncJob(jobStatus)) {
+                        numSyncJobs++;
+                    }
                 }
             }
-            return copy;
+            mPersistInfo.countAllJobsSaved = persistedJobs.size();
+            mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
+            mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
         }
 
         /**
-         * Write out a tag with data identifying this job's constraints. If the constraint isn't here
-         * it doesn't apply.
+         * Frames the record accumulated in {@code record} with its length and checksum, and
+         * resets {@code record} for the next one.
          */
-        private void writeConstraintsToXml(XmlSerializer out, JobStatus jobStatus) throws IOException {
-            out.startTag(null, XML_TAG_PARAMS_CONSTRAINTS);
-            if (jobStatus.hasConnectivityConstraint()) {
-                final NetworkRequest network = jobStatus.getJob().getRequiredNetwork();
-                out.attribute(null, "net-capabilities", Long.toString(
-                        BitUtils.packBits(network.networkCapabilities.getCapabilities())));
-                out.attribute(null, "net-unwanted-capabilities", Long.toString(
-                        BitUtils.packBits(network.networkCapabilities.getUnwantedCapabilities())));
+        private void writeRecord(DataOutputStream out, ByteArrayOutputStream record)
+                throws IOException {
+            final byte[] bytes = record.toByteArray();
+            mCrc.reset();
+            mCrc.update(bytes);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeInt((int) mCrc.getValue());
+            record.reset();
+        }
 
-                out.attribute(null, "net-transport-types", Long.toString(
-                        BitUtils.packBits(network.networkCapabilities.getTransportTypes())));
+        /**
+         * Write out the job's identifiers, constraints, execution criteria and extras. Only the
+         * fields that are set follow the fixed part; {@code FIELD_*} bits say which.
+         */
+        private void writeJobRecord(DataOutputStream out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            final JobInfo job = jobStatus.getJob();
+            out.writeByte(RECORD_JOB);
+            out.writeInt(jobStatus.getUid());
+            out.writeInt(jobStatus.getJobId());
+            out.writeUTF(jobStatus.getServiceComponent().getPackageName());
+            out.writeUTF(jobStatus.getServiceComponent().getClassName());
+            writeNullableString(out, jobStatus.getSourcePackageName());
+            writeNullableString(out, jobStatus.getSourceTag());
+            out.writeInt(jobStatus.getSourceUserId());
+            out.writeInt(jobStatus.getPriority());
+            out.writeInt(jobStatus.getFlags());
+            out.writeInt(jobStatus.getInternalFlags());
+            out.writeLong(jobStatus.getLastSuccessfulRunTime());
+            out.writeLong(jobStatus.getLastFailedRunTime());
+
+            int fields = 0;
+            if (jobStatus.hasConnectivityConstraint()) {
+                fields |= FIELD_NETWORK;
             }
             if (jobStatus.hasIdleConstraint()) {
-                out.attribute(null, "idle", Boolean.toString(true));
+                fields |= FIELD_IDLE;
             }
             if (jobStatus.hasChargingConstraint()) {
-                out.attribute(null, "charging", Boolean.toString(true));
+                fields |= FIELD_CHARGING;
             }
             if (jobStatus.hasBatteryNotLowConstraint()) {
-                out.attribute(null, "battery-not-low", Boolean.toString(true));
+                fields |= FIELD_BATTERY_NOT_LOW;
             }
             if (jobStatus.hasStorageNotLowConstraint()) {
-                out.attribute(null, "storage-not-low", Boolean.toString(true));
+                fields |= FIELD_STORAGE_NOT_LOW;
             }
-            out.endTag(null, XML_TAG_PARAMS_CONSTRAINTS);
-        }
-
-        private void writeExecutionCriteriaToXml(XmlSerializer out, JobStatus jobStatus)
-                throws IOException {
-            final JobInfo job = jobStatus.getJob();
-            if (jobStatus.getJob().isPeriodic()) {
-                out.startTag(null, XML_TAG_PERIODIC);
-                out.attribute(null, "period", Long.toString(job.getIntervalMillis()));
-                out.attribute(null, "flex", Long.toString(job.getFlexMillis()));
-            } else {
-                out.startTag(null, XML_TAG_ONEOFF);
+            if (jobStatus.hasTimingDelayConstraint()) {
+                fields |= FIELD_DELAY;
+            }
+            if (jobStatus.hasDeadlineConstraint()) {
+                fields |= FIELD_DEADLINE;
+            }
+            if (job.isPeriodic()) {
+                fields |= FIELD_PERIODIC;
+            }
+            // Only write out back-off policy if it differs from the default.
+            if (job.getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
+                    || job.getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY) {
+                fields |= FIELD_BACKOFF;
+            }
+            out.writeInt(fields);
+
+            if ((fields & FIELD_NETWORK) != 0) {
+                final NetworkRequest network = job.getRequiredNetwork();
+                out.writeLong(BitUtils.packBits(network.networkCapabilities.getCapabilities()));
+                out.writeLong(BitUtils.packBits(
+                        network.networkCapabilities.getUnwantedCapabilities()));
+                out.writeLong(BitUtils.packBits(network.networkCapabilities.getTransportTypes()));
             }
 
             // If we still have the persisted times, we need to record those directly because
             // we haven't yet been able to calculate the usual elapsed-timebase bounds
             // correctly due to wall-clock uncertainty.
-            Pair <Long, Long> utcJobTimes = jobStatus.getPersistedUtcTimes();
+            final Pair<Long, Long> utcJobTimes = jobStatus.getPersistedUtcTimes();
             if (DEBUG && utcJobTimes != null) {
                 Slog.i(TAG, "storing original UTC timestamps for " + jobStatus);
             }
-
             final long nowRTC = sSystemClock.millis();
             final long nowElapsed = sElapsedRealtimeClock.millis();
-            if (jobStatus.hasDeadlineConstraint()) {
-                // Wall clock deadline.
-                final long deadlineWallclock = (utcJobTimes == null)
+            if ((fields & FIELD_DELAY) != 0) {
+                out.writeLong((utcJobTimes == null)
+                        ? nowRTC + (jobStatus.getEarliestRunTime() - nowElapsed)
+                        : utcJobTimes.first);
+            }
+            if ((fields & FIELD_DEADLINE) != 0) {
+                out.writeLong((utcJobTimes == null)
                         ? nowRTC + (jobStatus.getLatestRunTimeElapsed() - nowElapsed)
-                        : utcJobTimes.second;
-                out.attribute(null, "deadline", Long.toString(deadlineWallclock));
+                        : utcJobTimes.second);
             }
-            if (jobStatus.hasTimingDelayConstraint()) {
-                final long delayWallclock = (utcJobTimes == null)
-                        ? nowRTC + (jobStatus.getEarliestRunTime() - nowElapsed)
-                        : utcJobTimes.first;
-                out.attribute(null, "delay", Long.toString(delayWallclock));
+            if ((fields & FIELD_PERIODIC) != 0) {
+                out.writeLong(job.getIntervalMillis());
+                out.writeLong(job.getFlexMillis());
+            }
+            if ((fields & FIELD_BACKOFF) != 0) {
+                out.writeInt(job.getBackoffPolicy());
+                out.writeLong(job.getInitialBackoffMillis());
             }
 
-            // Only write out back-off policy if it differs from the default.
-            // This also helps the case where the job is idle -> these aren't allowed to specify
-            // back-off.
-            if (jobStatus.getJob().getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
-                    || jobStatus.getJob().getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY) {
-                out.attribute(null, "backoff-policy", Integer.toString(job.getBackoffPolicy()));
-                out.attribute(null, "initial-backoff", Long.toString(job.getInitialBackoffMillis()));
+            final byte[] extras = writeBundleToBinaryXml(job.getExtras());
+            out.writeInt(extras.length);
+            out.write(extras);
+        }
+
+        private void writeNullableString(DataOutputStream out, @Nullable String value)
+                throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
             }
-            if (job.isPeriodic()) {
-                out.endTag(null, XML_TAG_PERIODIC);
-            } else {
-                out.endTag(null, XML_TAG_ONEOFF);
+        }
+
+        private byte[] writeBundleToBinaryXml(PersistableBundle extras)
+                throws IOException, XmlPullParserException {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final XmlSerializer out = new BinaryXmlSerializer();
+            out.setOutput(baos, StandardCharsets.UTF_8.name());
+            out.startDocument(null, true);
+            out.startTag(null, XML_TAG_EXTRAS);
+            PersistableBundle extrasCopy = deepCopyBundle(extras, 10);
+            extrasCopy.saveToXml(out);
+            out.endTag(null, XML_TAG_EXTRAS);
+            out.endDocument();
+            return baos.toByteArray();
+        }
+
+        private PersistableBundle deepCopyBundle(PersistableBundle bundle, int maxDepth) {
+            if (maxDepth <= 0) {
+                return null;
+            }
+            PersistableBundle copy = (PersistableBundle) bundle.clone();
+            Set<String> keySet = bundle.keySet();
+            for (String key: keySet) {
+                Object o = copy.get(key);
+                if (o instanceof PersistableBundle) {
+                    PersistableBundle bCopy = deepCopyBundle((PersistableBundle) o, maxDepth-1);
+                    copy.putPersistableBundle(key, bCopy);
+                }
             }
+            return copy;
         }
     };
 
@@ -636,7 +817,8 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that reads list of persisted job from xml. This is run once at start up, so doesn't
+     * Runnable that reads list of persisted job from the jobs log, or from the legacy xml file if
+     * there is no log yet. This is run once at start up, so doesn't
      * need to go through {@link JobStore#add(com.android.server.job.controllers.JobStatus)}.
      */
     private final class ReadJobMapFromDiskRunnable implements Runnable {
@@ -659,9 +841,14 @@ public final class JobStore {
             int numSyncJobs = 0;
             try {
                 List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                final boolean readLog = mJobsLogFile.exists();
+                FileInputStream fis = readLog
+                        ? mJobsLogFile.openRead() : mLegacyJobsFile.openRead();
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
+                    // Unless the log is read back cleanly, it is rewritten before appending to it.
+                    mCompactionRequested = true;
+                    mLogRecordCount = 0;
+                    jobs = readLog ? readJobsLogImpl(fis, rtcGood) : readJobMapImpl(fis, rtcGood);
                     if (jobs != null) {
                         long now = sElapsedRealtimeClock.millis();
                         for (int i=0; i<jobs.size(); i++) {
@@ -686,7 +873,7 @@ public final class JobStore {
                     Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
                 }
             } catch (XmlPullParserException | IOException e) {
-                Slog.wtf(TAG, "Error jobstore xml.", e);
+                Slog.wtf(TAG, "Error reading jobstore.", e);
             } finally {
                 if (mPersistInfo.countAllJobsLoaded < 0) { // Only set them once.
                     mPersistInfo.countAllJobsLoaded = numJobs;
@@ -697,10 +884,186 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
+        /**
+         * Replays the jobs log. Only the last record of each job is decoded; the log is read up
+         * to the first record that is incomplete or fails its checksum, which is where a write
+         * was cut short.
+         */
+        private List<JobStatus> readJobsLogImpl(FileInputStream fis, boolean rtcIsGood)
+                throws IOException {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            try {
+                if (in.readInt() != JOBS_LOG_MAGIC || in.readInt() != JOBS_LOG_VERSION) {
+                    Slog.d(TAG, "Invalid jobs log header, aborting jobs file read.");
+                    return null;
+                }
+            } catch (EOFException e) {
+                Slog.d(TAG, "Truncated jobs log header, aborting jobs file read.");
+                return null;
+            }
+
+            // Latest RECORD_JOB of each job, keyed by uid in the upper half and job id in the
+            // lower half.
+            final LongSparseArray<byte[]> jobRecords = new LongSparseArray<>();
+            final CRC32 crc = new CRC32();
+            int numRecords = 0;
+            boolean corrupt = false;
+            while (true) {
+                final int first = in.read();
+                if (first < 0) {
+                    break;
+                }
+                try {
+                    final int length = (first << 24) | (in.readUnsignedByte() << 16)
+                            | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                    if (length < 9 || length > MAX_RECORD_LENGTH) {
+                        corrupt = true;
+                        break;
+                    }
+                    final byte[] record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        corrupt = true;
+                        break;
+                    }
+                    final ByteBuffer header = ByteBuffer.wrap(record);
+                    final byte type = header.get();
+                    final long key = ((long) header.getInt() << 32)
+                            | (header.getInt() & 0xffffffffL);
+                    if (type == RECORD_JOB) {
+                        jobRecords.put(key, record);
+                    } else if (type == RECORD_REMOVE) {
+                        jobRecords.delete(key);
+                    } else {
+                        corrupt = true;
+                        break;
+                    }
+                    numRecords++;
+                } catch (EOFException e) {
+                    corrupt = true;
+                    break;
+                }
+            }
+            if (corrupt) {
+                Slog.w(TAG, "Ignoring jobs log past record " + numRecords);
+            }
+            mCompactionRequested = corrupt;
+            mLogRecordCount = numRecords;
+
+            final List<JobStatus> jobs = new ArrayList<JobStatus>(jobRecords.size());
+            for (int i = 0; i < jobRecords.size(); i++) {
+                JobStatus persistedJob;
+                try {
+                    persistedJob = restoreJobFromRecord(rtcIsGood, jobRecords.valueAt(i));
+                } catch (IOException | XmlPullParserException | RuntimeException e) {
+                    Slog.d(TAG, "Error reading job record, skipping.", e);
+                    persistedJob = null;
+                }
+                if (persistedJob != null) {
+                    if (DEBUG) {
+                        Slog.d(TAG, "Read out " + persistedJob);
+                    }
+                    jobs.add(persistedJob);
+                }
+            }
+            return jobs;
+        }
+
+        /**
+         * @param record A RECORD_JOB, as written by the write runnable's writeJobRecord().
+         * @return Newly instantiated job holding all the information in the record.
+         */
+        private JobStatus restoreJobFromRecord(boolean rtcIsGood, byte[] record)
+                throws IOException, XmlPullParserException {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            in.readByte(); // RECORD_JOB
+            final int uid = in.readInt();
+            final int jobId = in.readInt();
+            final ComponentName cname = new ComponentName(in.readUTF(), in.readUTF());
+            final JobInfo.Builder jobBuilder = new JobInfo.Builder(jobId, cname);
+            jobBuilder.setPersisted(true);
+            final String sourcePackageName = readNullableString(in);
+            final String sourceTag = readNullableString(in);
+            final int sourceUserId = in.readInt();
+            jobBuilder.setPriority(in.readInt());
+            jobBuilder.setFlags(in.readInt());
+            final int internalFlags = in.readInt();
+            final long lastSuccessfulRunTime = in.readLong();
+            final long lastFailedRunTime = in.readLong();
+
+            final int fields = in.readInt();
+            if ((fields & FIELD_NETWORK) != 0) {
+                final NetworkRequest request = new NetworkRequest.Builder().build();
+                final long capabilities = in.readLong();
+                final long unwantedCapabilities = in.readLong();
+                request.networkCapabilities.setCapabilities(
+                        BitUtils.unpackBits(capabilities),
+                        BitUtils.unpackBits(unwantedCapabilities));
+                request.networkCapabilities.setTransportTypes(
+                        BitUtils.unpackBits(in.readLong()));
+                jobBuilder.setRequiredNetwork(request);
+            }
+            if ((fields & FIELD_IDLE) != 0) {
+                jobBuilder.setRequiresDeviceIdle(true);
+            }
+            if ((fields & FIELD_CHARGING) != 0) {
+                jobBuilder.setRequiresCharging(true);
+            }
+            if ((fields & FIELD_BATTERY_NOT_LOW) != 0) {
+                jobBuilder.setRequiresBatteryNotLow(true);
+            }
+            if ((fields & FIELD_STORAGE_NOT_LOW) != 0) {
+                jobBuilder.setRequiresStorageNotLow(true);
+            }
+
+            final long earliestRunTimeRtc = (fields & FIELD_DELAY) != 0
+                    ? in.readLong() : JobStatus.NO_EARLIEST_RUNTIME;
+            final long latestRunTimeRtc = (fields & FIELD_DEADLINE) != 0
+                    ? in.readLong() : JobStatus.NO_LATEST_RUNTIME;
+            final boolean periodic = (fields & FIELD_PERIODIC) != 0;
+            final long periodMillis = periodic ? in.readLong() : 0;
+            final long flexMillis = periodic ? in.readLong() : 0;
+            if ((fields & FIELD_BACKOFF) != 0) {
+                final int backoffPolicy = in.readInt();
+                jobBuilder.setBackoffCriteria(in.readLong(), backoffPolicy);
+            }
+
+            final byte[] extras = new byte[in.readInt()];
+            in.readFully(extras);
+            jobBuilder.setExtras(readBundleFromBinaryXml(extras));
+
+            return restoreJob(jobBuilder, uid, sourcePackageName, sourceUserId, sourceTag,
+                    internalFlags, lastSuccessfulRunTime, lastFailedRunTime,
+                    Pair.create(earliestRunTimeRtc, latestRunTimeRtc),
+                    periodic, periodMillis, flexMillis, rtcIsGood);
+        }
+
+        @Nullable
+        private String readNullableString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        private PersistableBundle readBundleFromBinaryXml(byte[] extras)
+                throws IOException, XmlPullParserException {
+            final XmlPullParser parser = new BinaryXmlPullParser();
+            parser.setInput(new ByteArrayInputStream(extras), StandardCharsets.UTF_8.name());
+            int eventType;
+            do {
+                eventType = parser.next();
+            } while (eventType != XmlPullParser.START_TAG
+                    && eventType != XmlPullParser.END_DOCUMENT);
+            if (eventType != XmlPullParser.START_TAG
+                    || !XML_TAG_EXTRAS.equals(parser.getName())) {
+                throw new XmlPullParserException("Expected <" + XML_TAG_EXTRAS + ">");
+            }
+            return PersistableBundle.restoreFromXml(parser);
+        }
+
         private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(fis, StandardCharsets.UTF_8.name());
+            XmlPullParser parser = XmlUtils.resolvePullParser(fis);
 
             int eventType = parser.getEventType();
             while (eventType != XmlPullParser.START_TAG &&
@@ -839,56 +1202,22 @@ public final class JobStore {
                 return null;
             }
 
-            final long elapsedNow = sElapsedRealtimeClock.millis();
-            Pair<Long, Long> elapsedRuntimes = convertRtcBoundsToElapsed(rtcRuntimes, elapsedNow);
-
+            final boolean periodic;
+            long periodMillis = 0;
+            long flexMillis = 0;
             if (XML_TAG_PERIODIC.equals(parser.getName())) {
                 try {
                     String val = parser.getAttributeValue(null, "period");
-                    final long periodMillis = Long.parseLong(val);
+                    periodMillis = Long.parseLong(val);
                     val = parser.getAttributeValue(null, "flex");
-                    final long flexMillis = (val != null) ? Long.valueOf(val) : periodMillis;
-                    jobBuilder.setPeriodic(periodMillis, flexMillis);
-                    // As a sanity check, cap the recreated run time to be no later than flex+period
-                    // from now. This is the latest the periodic could be pushed out. This could
-                    // happen if the periodic ran early (at flex time before period), and then the
-                    // device rebooted.
-                    if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
-                        final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
-                                + periodMillis;
-                        final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
-                                - flexMillis;
-                        Slog.w(TAG,
-                                String.format("Periodic job for uid='%d' persisted run-time is" +
-                                                " too big [%s, %s]. Clamping to [%s,%s]",
-                                        uid,
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedEarlyRuntimeElapsed / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedLateRuntimeElapsed / 1000))
-                        );
-                        elapsedRuntimes =
-                                Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
-                    }
+                    flexMillis = (val != null) ? Long.valueOf(val) : periodMillis;
+                    periodic = true;
                 } catch (NumberFormatException e) {
                     Slog.d(TAG, "Error reading periodic execution criteria, skipping.");
                     return null;
                 }
             } else if (XML_TAG_ONEOFF.equals(parser.getName())) {
-                try {
-                    if (elapsedRuntimes.first != JobStatus.NO_EARLIEST_RUNTIME) {
-                        jobBuilder.setMinimumLatency(elapsedRuntimes.first - elapsedNow);
-                    }
-                    if (elapsedRuntimes.second != JobStatus.NO_LATEST_RUNTIME) {
-                        jobBuilder.setOverrideDeadline(
-                                elapsedRuntimes.second - elapsedNow);
-                    }
-                } catch (NumberFormatException e) {
-                    Slog.d(TAG, "Error reading job execution criteria, skipping.");
-                    return null;
-                }
+                periodic = false;
             } else {
                 if (DEBUG) {
                     Slog.d(TAG, "Invalid parameter tag, skipping - " + parser.getName());
@@ -916,16 +1245,71 @@ public final class JobStore {
             jobBuilder.setExtras(extras);
             parser.nextTag(); // Consume </extras>
 
+            return restoreJob(jobBuilder, uid, sourcePackageName, sourceUserId, sourceTag,
+                    internalFlags, lastSuccessfulRunTime, lastFailedRunTime, rtcRuntimes,
+                    periodic, periodMillis, flexMillis, rtcIsGood);
+        }
+
+        /**
+         * Finish restoring a job once all its fields have been read, from either file format.
+         *
+         * @param rtcRuntimes A Pair of the job's earliest and latest runtimes, in UTC wall-clock
+         *     time.
+         * @return Newly instantiated job, or null if the fields don't make up a valid job.
+         */
+        private JobStatus restoreJob(JobInfo.Builder jobBuilder, int uid,
+                String sourcePackageName, int sourceUserId, String sourceTag, int internalFlags,
+                long lastSuccessfulRunTime, long lastFailedRunTime, Pair<Long, Long> rtcRuntimes,
+                boolean periodic, long periodMillis, long flexMillis, boolean rtcIsGood) {
+            final long elapsedNow = sElapsedRealtimeClock.millis();
+            Pair<Long, Long> elapsedRuntimes = convertRtcBoundsToElapsed(rtcRuntimes, elapsedNow);
+
+            if (periodic) {
+                jobBuilder.setPeriodic(periodMillis, flexMillis);
+                // As a sanity check, cap the recreated run time to be no later than flex+period
+                // from now. This is the latest the periodic could be pushed out. This could
+                // happen if the periodic ran early (at flex time before period), and then the
+                // device rebooted.
+                if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
+                    final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
+                            + periodMillis;
+                    final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
+                            - flexMillis;
+                    Slog.w(TAG,
+                            String.format("Periodic job for uid='%d' persisted run-time is" +
+                                            " too big [%s, %s]. Clamping to [%s,%s]",
+                                    uid,
+                                    DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
+                                    DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
+                                    DateUtils.formatElapsedTime(
+                                            clampedEarlyRuntimeElapsed / 1000),
+                                    DateUtils.formatElapsedTime(
+                                            clampedLateRuntimeElapsed / 1000))
+                    );
+                    elapsedRuntimes =
+                            Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
+                }
+            } else {
+                if (elapsedRuntimes.first != JobStatus.NO_EARLIEST_RUNTIME) {
+                    jobBuilder.setMinimumLatency(elapsedRuntimes.first - elapsedNow);
+                }
+                if (elapsedRuntimes.second != JobStatus.NO_LATEST_RUNTIME) {
+                    jobBuilder.setOverrideDeadline(
+                            elapsedRuntimes.second - elapsedNow);
+                }
+            }
+
             final JobInfo builtJob;
             try {
                 builtJob = jobBuilder.build();
             } catch (Exception e) {
-                Slog.w(TAG, "Unable to build job from XML, ignoring: "
+                Slog.w(TAG, "Unable to build persisted job, ignoring: "
                         + jobBuilder.summarize());
                 return null;
             }
 
             // Migrate sync jobs forward from earlier, incomplete representation
+            final PersistableBundle extras = builtJob.getExtras();
             if ("android".equals(sourcePackageName)
                     && extras != null
                     && extras.getBoolean("SyncManagerJob", false)) {
@@ -937,11 +1321,10 @@ public final class JobStore {
             }
 
             // And now we're done
-            JobSchedulerInternal service = LocalServices.getService(JobSchedulerInternal.class);
             final int appBucket = JobSchedulerService.standbyBucketForPackage(sourcePackageName,
                     sourceUserId, elapsedNow);
             JobStatus js = new JobStatus(
-                    jobBuilder.build(), uid, sourcePackageName, sourceUserId,
+                    builtJob, uid, sourcePackageName, sourceUserId,
                     appBucket, sourceTag,
                     elapsedRuntimes.first, elapsedRuntimes.second,
                     lastSuccessfulRunTime, lastFailedRunTime,
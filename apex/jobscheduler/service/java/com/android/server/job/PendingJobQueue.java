@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.SparseArray;
+
+import com.android.server.job.controllers.JobStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The jobs that are ready to be run, kept in one sorted queue per uid. Iterating merges the uid
+ * queues through a heap, so jobs come out in the same order a single list sorted with the same
+ * comparator would give them, while adding, removing or looking up a job only searches the
+ * queue of the job's uid.
+ *
+ * <p>The comparator's view of a job must not change while the job is queued, and the queue must
+ * not be modified while it is being iterated.
+ */
+class PendingJobQueue {
+    private final Comparator<JobStatus> mComparator;
+
+    /** Queued jobs by uid. Uids without queued jobs are removed. */
+    private final SparseArray<AppJobQueue> mAppQueues = new SparseArray<>();
+
+    /**
+     * Heap of the uid queues that have jobs left to iterate over, ordered by the next job to
+     * iterate in each.
+     */
+    private AppJobQueue[] mIterationHeap = new AppJobQueue[16];
+    private int mIterationHeapSize;
+
+    private int mSize;
+
+    PendingJobQueue(@NonNull Comparator<JobStatus> comparator) {
+        mComparator = comparator;
+    }
+
+    void add(@NonNull JobStatus job) {
+        AppJobQueue queue = mAppQueues.get(job.getUid());
+        if (queue == null) {
+            queue = new AppJobQueue();
+            mAppQueues.put(job.getUid(), queue);
+        }
+        int where = Collections.binarySearch(queue.jobs, job, mComparator);
+        if (where < 0) {
+            where = ~where;
+        } else {
+            // Keep jobs that compare equal in the order they were added.
+            final int size = queue.jobs.size();
+            while (where < size && mComparator.compare(queue.jobs.get(where), job) == 0) {
+                where++;
+            }
+        }
+        queue.jobs.add(where, job);
+        mSize++;
+    }
+
+    void addAll(@NonNull List<JobStatus> jobs) {
+        for (int i = 0; i < jobs.size(); i++) {
+            add(jobs.get(i));
+        }
+    }
+
+    /** @return whether the job was queued. */
+    boolean remove(@NonNull JobStatus job) {
+        final int uidIndex = mAppQueues.indexOfKey(job.getUid());
+        if (uidIndex < 0) {
+            return false;
+        }
+        final AppJobQueue queue = mAppQueues.valueAt(uidIndex);
+        final int index = indexOf(queue, job);
+        if (index < 0) {
+            return false;
+        }
+        queue.jobs.remove(index);
+        mSize--;
+        if (queue.jobs.isEmpty()) {
+            mAppQueues.removeAt(uidIndex);
+        }
+        return true;
+    }
+
+    boolean contains(@NonNull JobStatus job) {
+        final AppJobQueue queue = mAppQueues.get(job.getUid());
+        return queue != null && indexOf(queue, job) >= 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        mAppQueues.clear();
+        mSize = 0;
+        mIterationHeapSize = 0;
+    }
+
+    /**
+     * Puts every queued job in {@code out}, in iteration order.
+     */
+    void getAll(@NonNull List<JobStatus> out) {
+        resetIterator();
+        JobStatus job;
+        while ((job = next()) != null) {
+            out.add(job);
+        }
+    }
+
+    /**
+     * Restarts iterating from the first job; see {@link #next()}.
+     */
+    void resetIterator() {
+        final int numQueues = mAppQueues.size();
+        if (mIterationHeap.length < numQueues) {
+            mIterationHeap = new AppJobQueue[Math.max(numQueues, mIterationHeap.length * 2)];
+        }
+        for (int i = 0; i < numQueues; i++) {
+            final AppJobQueue queue = mAppQueues.valueAt(i);
+            queue.cursor = 0;
+            mIterationHeap[i] = queue;
+        }
+        for (int i = numQueues; i < mIterationHeapSize; i++) {
+            mIterationHeap[i] = null;
+        }
+        mIterationHeapSize = numQueues;
+        for (int i = numQueues / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * @return the next job in comparator order, or null once all jobs have been iterated over.
+     */
+    @Nullable
+    JobStatus next() {
+        if (mIterationHeapSize == 0) {
+            return null;
+        }
+        final AppJobQueue queue = mIterationHeap[0];
+        final JobStatus job = queue.jobs.get(queue.cursor++);
+        if (queue.cursor == queue.jobs.size()) {
+            mIterationHeapSize--;
+            mIterationHeap[0] = mIterationHeap[mIterationHeapSize];
+            mIterationHeap[mIterationHeapSize] = null;
+        }
+        if (mIterationHeapSize > 0) {
+            siftDown(0);
+        }
+        return job;
+    }
+
+    private int indexOf(AppJobQueue queue, JobStatus job) {
+        final ArrayList<JobStatus> jobs = queue.jobs;
+        final int index = Collections.binarySearch(jobs, job, mComparator);
+        if (index < 0) {
+            return -1;
+        }
+        // Several jobs can compare equal; look around the match for this one.
+        for (int i = index; i >= 0 && mComparator.compare(jobs.get(i), job) == 0; i--) {
+            if (jobs.get(i) == job) {
+                return i;
+            }
+        }
+        final int size = jobs.size();
+        for (int i = index + 1; i < size && mComparator.compare(jobs.get(i), job) == 0; i++) {
+            if (jobs.get(i) == job) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int compareNext(AppJobQueue q1, AppJobQueue q2) {
+        return mComparator.compare(q1.jobs.get(q1.cursor), q2.jobs.get(q2.cursor));
+    }
+
+    private void siftDown(int index) {
+        final AppJobQueue queue = mIterationHeap[index];
+        final int half = mIterationHeapSize / 2;
+        while (index < half) {
+            int child = 2 * index + 1;
+            final int right = child + 1;
+            if (right < mIterationHeapSize
+                    && compareNext(mIterationHeap[right], mIterationHeap[child]) < 0) {
+                child = right;
+            }
+            if (compareNext(queue, mIterationHeap[child]) <= 0) {
+                break;
+            }
+            mIterationHeap[index] = mIterationHeap[child];
+            index = child;
+        }
+        mIterationHeap[index] = queue;
+    }
+
+    private static final class AppJobQueue {
+        final ArrayList<JobStatus> jobs = new ArrayList<>();
+        /** Index of the next job to iterate over. */
+        int cursor;
+    }
+}
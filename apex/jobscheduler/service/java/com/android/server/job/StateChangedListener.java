@@ -17,6 +17,8 @@
 package com.android.server.job;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.ArraySet;
 
 import com.android.server.job.controllers.JobStatus;
 
@@ -31,8 +33,11 @@ public interface StateChangedListener {
     /**
      * Called by the controller to notify the JobManager that it should check on the state of a
      * task.
+     * @param changedJobs The jobs whose constraints the controller changed. <strong>null
+     *                    indicates to the scheduler that all jobs should be checked.</strong>
+     *                    The set is copied, so the controller may reuse it after this returns.
      */
-    public void onControllerStateChanged();
+    public void onControllerStateChanged(@Nullable ArraySet<JobStatus> changedJobs);
 
     /**
      * Called by the controller to notify the JobManager that regardless of the state of the task,
@@ -42,6 +47,14 @@ public interface StateChangedListener {
      */
     public void onRunJobNow(JobStatus jobStatus);
 
+    /**
+     * Called by the controller to notify the JobManager that these jobs had their constraints
+     * changed such that any of them that are ready must be run immediately, without waiting to
+     * be batched with other jobs. The set is copied, so the controller may reuse it after this
+     * returns.
+     */
+    public void onRunJobsNow(@NonNull ArraySet<JobStatus> jobs);
+
     public void onDeviceIdleStateChanged(boolean deviceIdle);
 
     /**
@@ -179,7 +179,7 @@ public final class BackgroundJobsController extends StateController {
         }
 
         if (updateTrackedJobs.mChanged) {
-            mStateChangedListener.onControllerStateChanged();
+            mStateChangedListener.onControllerStateChanged(null);
         }
     }
 
@@ -49,6 +49,8 @@ public final class BatteryController extends RestrictingController {
             || Log.isLoggable(TAG, Log.DEBUG);
 
     private final ArraySet<JobStatus> mTrackedTasks = new ArraySet<>();
+    /** Scratch set of the jobs whose constraints were changed by the latest state change. */
+    private final ArraySet<JobStatus> mChangedJobs = new ArraySet<>();
     private ChargingTracker mChargeTracker;
 
     @VisibleForTesting
@@ -97,26 +99,23 @@ public final class BatteryController extends RestrictingController {
         if (DEBUG) {
             Slog.d(TAG, "maybeReportNewChargingStateLocked: " + stablePower);
         }
-        boolean reportChange = false;
         for (int i = mTrackedTasks.size() - 1; i >= 0; i--) {
             final JobStatus ts = mTrackedTasks.valueAt(i);
-            boolean previous = ts.setChargingConstraintSatisfied(stablePower);
-            if (previous != stablePower) {
-                reportChange = true;
-            }
-            previous = ts.setBatteryNotLowConstraintSatisfied(batteryNotLow);
-            if (previous != batteryNotLow) {
-                reportChange = true;
+            boolean changed = ts.setChargingConstraintSatisfied(stablePower);
+            changed |= ts.setBatteryNotLowConstraintSatisfied(batteryNotLow);
+            if (changed) {
+                mChangedJobs.add(ts);
             }
         }
         if (stablePower || batteryNotLow) {
             // If one of our conditions has been satisfied, always schedule any newly ready jobs.
-            mStateChangedListener.onRunJobNow(null);
-        } else if (reportChange) {
+            mStateChangedListener.onRunJobsNow(mChangedJobs);
+        } else {
             // Otherwise, just let the job scheduler know the state has changed and take care of it
             // as it thinks is best.
-            mStateChangedListener.onControllerStateChanged();
+            mStateChangedListener.onControllerStateChanged(mChangedJobs);
         }
+        mChangedJobs.clear();
     }
 
     public final class ChargingTracker extends BroadcastReceiver {
@@ -79,6 +79,10 @@ public final class ConnectivityController extends RestrictingController implemen
     @GuardedBy("mLock")
     private final SparseArray<ArraySet<JobStatus>> mTrackedJobs = new SparseArray<>();
 
+    /** Scratch set of the jobs whose constraint was changed by the latest network update. */
+    @GuardedBy("mLock")
+    private final ArraySet<JobStatus> mChangedJobs = new ArraySet<>();
+
     /**
      * Keep track of all the UID's jobs that the controller has requested that NetworkPolicyManager
      * grant an exception to in the app standby chain.
@@ -474,26 +478,27 @@ public final class ConnectivityController extends RestrictingController implemen
             // answers that we get from ConnectivityManager.
             final ArrayMap<Network, NetworkCapabilities> networkToCapabilities = new ArrayMap<>();
 
-            boolean changed = false;
             if (filterUid == -1) {
                 for (int i = mTrackedJobs.size() - 1; i >= 0; i--) {
-                    changed |= updateTrackedJobsLocked(mTrackedJobs.valueAt(i),
+                    updateTrackedJobsLocked(mTrackedJobs.valueAt(i),
                             filterNetwork, networkToCapabilities);
                 }
             } else {
-                changed = updateTrackedJobsLocked(mTrackedJobs.get(filterUid),
+                updateTrackedJobsLocked(mTrackedJobs.get(filterUid),
                         filterNetwork, networkToCapabilities);
             }
-            if (changed) {
-                mStateChangedListener.onControllerStateChanged();
-            }
+            mStateChangedListener.onControllerStateChanged(mChangedJobs);
+            mChangedJobs.clear();
         }
     }
 
-    private boolean updateTrackedJobsLocked(ArraySet<JobStatus> jobs, Network filterNetwork,
+    /**
+     * Update the given jobs, adding the ones whose constraint changed to {@link #mChangedJobs}.
+     */
+    private void updateTrackedJobsLocked(ArraySet<JobStatus> jobs, Network filterNetwork,
             ArrayMap<Network, NetworkCapabilities> networkToCapabilities) {
         if (jobs == null || jobs.size() == 0) {
-            return false;
+            return;
         }
 
         final Network network = mConnManager.getActiveNetworkForUid(jobs.valueAt(0).getSourceUid());
@@ -505,18 +510,17 @@ public final class ConnectivityController extends RestrictingController implemen
         final boolean networkMatch = (filterNetwork == null
                 || Objects.equals(filterNetwork, network));
 
-        boolean changed = false;
         for (int i = jobs.size() - 1; i >= 0; i--) {
             final JobStatus js = jobs.valueAt(i);
 
             // Update either when we have a network match, or when the
             // job hasn't yet been evaluated against the currently
             // active network; typically when we just lost a network.
-            if (networkMatch || !Objects.equals(js.network, network)) {
-                changed |= updateConstraintsSatisfied(js, network, capabilities);
+            if ((networkMatch || !Objects.equals(js.network, network))
+                    && updateConstraintsSatisfied(js, network, capabilities)) {
+                mChangedJobs.add(js);
             }
         }
-        return changed;
     }
 
     /**
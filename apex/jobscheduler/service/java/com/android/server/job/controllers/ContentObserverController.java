@@ -306,7 +306,7 @@ public final class ContentObserverController extends StateController {
             // Let the scheduler know that state has changed. This may or may not result in an
             // execution.
             if (reportChange) {
-                mStateChangedListener.onControllerStateChanged();
+                mStateChangedListener.onControllerStateChanged(null);
             }
         }
 
@@ -108,7 +108,7 @@ public final class DeviceIdleJobsController extends StateController {
                             changed |= updateTaskStateLocked(mAllowInIdleJobs.valueAt(i));
                         }
                         if (changed) {
-                            mStateChangedListener.onControllerStateChanged();
+                            mStateChangedListener.onControllerStateChanged(null);
                         }
                     }
                     break;
@@ -183,7 +183,7 @@ public final class DeviceIdleJobsController extends StateController {
         mDeviceIdleUpdateFunctor.mChanged = false;
         mService.getJobStore().forEachJobForSourceUid(uid, mDeviceIdleUpdateFunctor);
         if (mDeviceIdleUpdateFunctor.mChanged) {
-            mStateChangedListener.onControllerStateChanged();
+            mStateChangedListener.onControllerStateChanged(null);
         }
     }
 
@@ -303,7 +303,7 @@ public final class DeviceIdleJobsController extends StateController {
                         mDeviceIdleUpdateFunctor.mChanged = false;
                         mService.getJobStore().forEachJob(mDeviceIdleUpdateFunctor);
                         if (mDeviceIdleUpdateFunctor.mChanged) {
-                            mStateChangedListener.onControllerStateChanged();
+                            mStateChangedListener.onControllerStateChanged(null);
                         }
                     }
                     break;
@@ -298,6 +298,9 @@ public final class QuotaController extends StateController {
     /** List of all tracked jobs keyed by source package-userId combo. */
     private final SparseArrayMap<ArraySet<JobStatus>> mTrackedJobs = new SparseArrayMap<>();
 
+    /** Scratch set of the jobs whose constraint was changed by the latest update. */
+    private final ArraySet<JobStatus> mChangedJobs = new ArraySet<>();
+
     /** Timer for each package-userId combo. */
     private final SparseArrayMap<Timer> mPkgTimers = new SparseArrayMap<>();
 
@@ -1176,12 +1179,14 @@ public final class QuotaController extends StateController {
             }
         }
         if (changed) {
-            mStateChangedListener.onControllerStateChanged();
+            mStateChangedListener.onControllerStateChanged(mChangedJobs);
+            mChangedJobs.clear();
         }
     }
 
     /**
-     * Update the CONSTRAINT_WITHIN_QUOTA bit for all of the Jobs for a given package.
+     * Update the CONSTRAINT_WITHIN_QUOTA bit for all of the Jobs for a given package. Jobs that
+     * had their bit changed are added to {@link #mChangedJobs}.
      *
      * @return true if at least one job had its bit changed
      */
@@ -1198,19 +1203,24 @@ public final class QuotaController extends StateController {
         boolean changed = false;
         for (int i = jobs.size() - 1; i >= 0; --i) {
             final JobStatus js = jobs.valueAt(i);
+            final boolean jobChanged;
             if (isTopStartedJobLocked(js)) {
                 // Job was started while the app was in the TOP state so we should allow it to
                 // finish.
-                changed |= js.setQuotaConstraintSatisfied(true);
+                jobChanged = js.setQuotaConstraintSatisfied(true);
             } else if (realStandbyBucket != ACTIVE_INDEX
                     && realStandbyBucket == js.getEffectiveStandbyBucket()) {
                 // An app in the ACTIVE bucket may be out of quota while the job could be in quota
                 // for some reason. Therefore, avoid setting the real value here and check each job
                 // individually.
-                changed |= setConstraintSatisfied(js, realInQuota);
+                jobChanged = setConstraintSatisfied(js, realInQuota);
             } else {
                 // This job is somehow exempted. Need to determine its own quota status.
-                changed |= setConstraintSatisfied(js, isWithinQuotaLocked(js));
+                jobChanged = setConstraintSatisfied(js, isWithinQuotaLocked(js));
+            }
+            if (jobChanged) {
+                mChangedJobs.add(js);
+                changed = true;
             }
         }
         if (!realInQuota) {
@@ -1230,7 +1240,10 @@ public final class QuotaController extends StateController {
 
         @Override
         public void accept(JobStatus jobStatus) {
-            wasJobChanged |= setConstraintSatisfied(jobStatus, isWithinQuotaLocked(jobStatus));
+            if (setConstraintSatisfied(jobStatus, isWithinQuotaLocked(jobStatus))) {
+                mChangedJobs.add(jobStatus);
+                wasJobChanged = true;
+            }
             final int userId = jobStatus.getSourceUserId();
             final String packageName = jobStatus.getSourcePackageName();
             final int realStandbyBucket = jobStatus.getStandbyBucket();
@@ -1710,7 +1723,8 @@ public final class QuotaController extends StateController {
                         timer.rescheduleCutoff();
                     }
                     if (maybeUpdateConstraintForPkgLocked(userId, packageName)) {
-                        mStateChangedListener.onControllerStateChanged();
+                        mStateChangedListener.onControllerStateChanged(mChangedJobs);
+                        mChangedJobs.clear();
                     }
                 }
                 if (restrictedChanges.size() > 0) {
@@ -1765,7 +1779,8 @@ public final class QuotaController extends StateController {
                             // Less than 50 milliseconds left. Start process of shutting down jobs.
                             if (DEBUG) Slog.d(TAG, pkg + " has reached its quota.");
                             if (maybeUpdateConstraintForPkgLocked(pkg.userId, pkg.packageName)) {
-                                mStateChangedListener.onControllerStateChanged();
+                                mStateChangedListener.onControllerStateChanged(mChangedJobs);
+                                mChangedJobs.clear();
                             }
                         } else {
                             // This could potentially happen if an old session phases out while a
@@ -1796,7 +1811,8 @@ public final class QuotaController extends StateController {
                             Slog.d(TAG, "Checking pkg " + string(userId, packageName));
                         }
                         if (maybeUpdateConstraintForPkgLocked(userId, packageName)) {
-                            mStateChangedListener.onControllerStateChanged();
+                            mStateChangedListener.onControllerStateChanged(mChangedJobs);
+                            mChangedJobs.clear();
                         }
                         break;
                     }
@@ -1842,7 +1858,8 @@ public final class QuotaController extends StateController {
                                 }
                             }
                             if (maybeUpdateConstraintForUidLocked(uid)) {
-                                mStateChangedListener.onControllerStateChanged();
+                                mStateChangedListener.onControllerStateChanged(mChangedJobs);
+                                mChangedJobs.clear();
                             }
                         }
                         break;
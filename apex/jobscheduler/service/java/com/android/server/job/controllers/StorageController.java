@@ -45,6 +45,8 @@ public final class StorageController extends StateController {
             || Log.isLoggable(TAG, Log.DEBUG);
 
     private final ArraySet<JobStatus> mTrackedTasks = new ArraySet<JobStatus>();
+    /** Scratch set of the jobs whose constraints were changed by the latest state change. */
+    private final ArraySet<JobStatus> mChangedJobs = new ArraySet<>();
     private final StorageTracker mStorageTracker;
 
     @VisibleForTesting
@@ -77,20 +79,22 @@ public final class StorageController extends StateController {
 
     private void maybeReportNewStorageState() {
         final boolean storageNotLow = mStorageTracker.isStorageNotLow();
-        boolean reportChange = false;
         synchronized (mLock) {
             for (int i = mTrackedTasks.size() - 1; i >= 0; i--) {
                 final JobStatus ts = mTrackedTasks.valueAt(i);
-                reportChange |= ts.setStorageNotLowConstraintSatisfied(storageNotLow);
+                if (ts.setStorageNotLowConstraintSatisfied(storageNotLow)) {
+                    mChangedJobs.add(ts);
+                }
             }
-        }
-        if (storageNotLow) {
-            // Tell the scheduler that any ready jobs should be flushed.
-            mStateChangedListener.onRunJobNow(null);
-        } else if (reportChange) {
-            // Let the scheduler know that state has changed. This may or may not result in an
-            // execution.
-            mStateChangedListener.onControllerStateChanged();
+            if (storageNotLow) {
+                // Tell the scheduler that any newly ready jobs should be flushed.
+                mStateChangedListener.onRunJobsNow(mChangedJobs);
+            } else {
+                // Let the scheduler know that state has changed. This may or may not result in an
+                // execution.
+                mStateChangedListener.onControllerStateChanged(mChangedJobs);
+            }
+            mChangedJobs.clear();
         }
     }
 
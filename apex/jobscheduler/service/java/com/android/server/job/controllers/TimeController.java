@@ -328,7 +328,7 @@ public final class TimeController extends StateController {
                 }
             }
             if (ready) {
-                mStateChangedListener.onControllerStateChanged();
+                mStateChangedListener.onControllerStateChanged(null);
             }
             setDelayExpiredAlarmLocked(nextDelayTime,
                     deriveWorkSource(nextDelayUid, nextDelayPackageName));
@@ -45,13 +45,13 @@ public class ThermalStatusRestriction extends JobRestriction {
             @Override
             public void onThermalStatusChanged(int status) {
                 // This is called on the main thread. Do not do any slow operations in it.
-                // mService.onControllerStateChanged() will just post a message, which is okay.
+                // mService.onControllerStateChanged(null) will just post a message, which is okay.
                 final boolean shouldBeActive = status >= PowerManager.THERMAL_STATUS_SEVERE;
                 if (mIsThermalRestricted == shouldBeActive) {
                     return;
                 }
                 mIsThermalRestricted = shouldBeActive;
-                mService.onControllerStateChanged();
+                mService.onControllerStateChanged(null);
             }
         });
     }
@@ -947,6 +947,7 @@ public final class ActivityThread extends ClientTransactionHandler {
 
     private class ApplicationThread extends IApplicationThread.Stub {
         private static final String DB_INFO_FORMAT = "  %8s %8s %14s %14s  %s";
+        private static final String DB_POOL_INFO_FORMAT = "  %40s %6s %11s  %s";
 
         public final void scheduleReceiver(Intent intent, ActivityInfo info,
                 CompatibilityInfo compatInfo, int resultCode, String data, Bundle extras,
@@ -1384,6 +1385,20 @@ public final class ActivityThread extends ClientTransactionHandler {
                             (dbStats.lookaside > 0) ? String.valueOf(dbStats.lookaside) : " ",
                             dbStats.cache, dbStats.dbName);
                 }
+                pw.println(" ");
+                pw.println(" CONNECTION POOLS");
+                printRow(pw, DB_POOL_INFO_FORMAT, "waits(ms: 0/<1/<4/<16/<64/<256/<1024/+)",
+                        "hit%", "compile(ms)", "Dbname");
+                for (int i = 0; i < N; i++) {
+                    DbStats dbStats = stats.dbStats.get(i);
+                    if (dbStats.waits == null) {
+                        continue;
+                    }
+                    printRow(pw, DB_POOL_INFO_FORMAT, dbStats.waits,
+                            (dbStats.cacheHitPercent >= 0)
+                                    ? String.valueOf(dbStats.cacheHitPercent) : " ",
+                            String.valueOf(dbStats.compileTimeMs), dbStats.dbName);
+                }
             }
 
             // Asset details.
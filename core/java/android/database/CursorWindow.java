@@ -546,6 +546,60 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
         }
     }
 
+    /**
+     * Copies the values of a column in consecutive rows as <code>long</code>s, converting
+     * them the way {@link #getLong} does.  The window is referenced once for the whole copy
+     * rather than once per value, which makes reading a fixed-width numeric column of many
+     * rows cheaper.
+     *
+     * @param row The first row to copy, relative to the cursor (not the window).
+     * @param column The zero-based column index.
+     * @param dest The array to copy the values into.
+     * @param destPos The index in dest of the first value.
+     * @param count The maximum number of values to copy.
+     * @return The number of values copied, less than count if the window ends first.
+     * @hide
+     */
+    public int copyLongColumn(int row, int column, long[] dest, int destPos, int count) {
+        acquireReference();
+        try {
+            final int windowRow = row - mStartPos;
+            count = Math.min(count, nativeGetNumRows(mWindowPtr) - windowRow);
+            for (int i = 0; i < count; i++) {
+                dest[destPos + i] = nativeGetLong(mWindowPtr, windowRow + i, column);
+            }
+            return Math.max(count, 0);
+        } finally {
+            releaseReference();
+        }
+    }
+
+    /**
+     * Copies the values of a column in consecutive rows as <code>double</code>s, converting
+     * them the way {@link #getDouble} does.  See {@link #copyLongColumn}.
+     *
+     * @param row The first row to copy, relative to the cursor (not the window).
+     * @param column The zero-based column index.
+     * @param dest The array to copy the values into.
+     * @param destPos The index in dest of the first value.
+     * @param count The maximum number of values to copy.
+     * @return The number of values copied, less than count if the window ends first.
+     * @hide
+     */
+    public int copyDoubleColumn(int row, int column, double[] dest, int destPos, int count) {
+        acquireReference();
+        try {
+            final int windowRow = row - mStartPos;
+            count = Math.min(count, nativeGetNumRows(mWindowPtr) - windowRow);
+            for (int i = 0; i < count; i++) {
+                dest[destPos + i] = nativeGetDouble(mWindowPtr, windowRow + i, column);
+            }
+            return Math.max(count, 0);
+        } finally {
+            releaseReference();
+        }
+    }
+
     /**
      * Gets the value of the field at the specified row and column index as a
      * <code>double</code>.
@@ -807,6 +861,15 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
         return "# Open Cursors=" + total + s;
     }
 
+    /**
+     * Returns the size of windows created without an explicit size, in bytes.
+     *
+     * @hide
+     */
+    public static int getDefaultCursorWindowSize() {
+        return getCursorWindowSize();
+    }
+
     private static int getCursorWindowSize() {
         if (sCursorWindowSize < 0) {
             // The cursor window size. resource xml file specifies the value in kB.
@@ -111,6 +111,11 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private final PreparedStatementCache mPreparedStatementCache;
     private PreparedStatement mPreparedStatementPool;
 
+    // Cache misses and evictions since the prepared statement cache size was last checked.
+    // When most misses evict a statement, the working set doesn't fit and the cache grows.
+    private int mCacheMissesSinceResize;
+    private int mCacheEvictionsSinceResize;
+
     // The recent operations log.
     private final OperationLog mRecentOperations;
 
@@ -571,6 +576,8 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
 
         // Update prepared statement cache size.
         mPreparedStatementCache.resize(configuration.maxSqlCacheSize);
+        mCacheMissesSinceResize = 0;
+        mCacheEvictionsSinceResize = 0;
 
         if (foreignKeyModeChanged) {
             setForeignKeyModeFromConfiguration();
@@ -1040,9 +1047,15 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             // to be not only re-entrant but recursive!).  So prepare a new copy of the
             // statement but do not cache it.
             skipCache = true;
+        } else {
+            maybeGrowPreparedStatementCache();
         }
 
+        final long prepareStartTime = System.nanoTime();
         final long statementPtr = nativePrepareStatement(mConnectionPtr, sql);
+        if (mPool != null) {
+            mPool.onStatementCompiled(System.nanoTime() - prepareStartTime);
+        }
         try {
             final int numParameters = nativeGetParameterCount(mConnectionPtr, statementPtr);
             final int type = DatabaseUtils.getSqlStatementType(sql);
@@ -1064,6 +1077,22 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         return statement;
     }
 
+    // Doubles the prepared statement cache, up to SQLiteDatabase.MAX_SQL_CACHE_SIZE, once
+    // a cache's worth of misses has seen at least half as many evictions.
+    private void maybeGrowPreparedStatementCache() {
+        final int maxSize = mPreparedStatementCache.maxSize();
+        if (++mCacheMissesSinceResize < maxSize) {
+            return;
+        }
+        if (mCacheEvictionsSinceResize * 2 >= mCacheMissesSinceResize
+                && maxSize < SQLiteDatabase.MAX_SQL_CACHE_SIZE) {
+            mPreparedStatementCache.resize(
+                    Math.min(maxSize * 2, SQLiteDatabase.MAX_SQL_CACHE_SIZE));
+        }
+        mCacheMissesSinceResize = 0;
+        mCacheEvictionsSinceResize = 0;
+    }
+
     private void releasePreparedStatement(PreparedStatement statement) {
         statement.mInUse = false;
         if (statement.mInCache) {
@@ -1329,6 +1358,29 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
                 mPreparedStatementCache.size());
     }
 
+    /**
+     * Returns the number of statements found in the prepared statement cache.  Safe to call
+     * from any thread.
+     */
+    int getPreparedStatementCacheHitCount() {
+        return mPreparedStatementCache.hitCount();
+    }
+
+    /**
+     * Returns the number of statements not found in the prepared statement cache.  Safe to
+     * call from any thread.
+     */
+    int getPreparedStatementCacheMissCount() {
+        return mPreparedStatementCache.missCount();
+    }
+
+    /**
+     * Returns the current size limit of the prepared statement cache.
+     */
+    int getPreparedStatementCacheMaxSize() {
+        return mPreparedStatementCache.maxSize();
+    }
+
     @Override
     public String toString() {
         return "SQLiteConnection: " + mConfiguration.path + " (" + mConnectionId + ")";
@@ -1415,6 +1467,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         @Override
         protected void entryRemoved(boolean evicted, String key,
                 PreparedStatement oldValue, PreparedStatement newValue) {
+            if (evicted) {
+                mCacheEvictionsSinceResize += 1;
+            }
             oldValue.mInCache = false;
             if (!oldValue.mInUse) {
                 finalizePreparedStatement(oldValue);
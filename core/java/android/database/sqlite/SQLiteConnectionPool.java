@@ -86,12 +86,29 @@ public final class SQLiteConnectionPool implements Closeable {
     // and logging a message about the connection pool being busy.
     private static final long CONNECTION_POOL_BUSY_MILLIS = 30 * 1000; // 30 seconds
 
+    // Number of times a reader has to queue for a connection while the pool is at its
+    // size limit before the limit is raised by one connection.
+    private static final int POOL_GROWTH_CONTENTION_THRESHOLD = 4;
+
+    // Interval at which non-primary connections that were not needed are closed, when no
+    // idle connection timeout is configured.
+    private static final long IDLE_TRIM_INTERVAL_MILLIS = 30 * 1000; // 30 seconds
+
+    // Upper bounds of the connection wait time histogram buckets.  The histogram has one
+    // more bucket at each end: acquisitions that did not wait, and waits of a second or more.
+    private static final long[] WAIT_TIME_BUCKET_MILLIS = {1, 4, 16, 64, 256, 1024};
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final Object mLock = new Object();
     private final AtomicBoolean mConnectionLeaked = new AtomicBoolean();
     private final SQLiteDatabaseConfiguration mConfiguration;
     private int mMaxConnectionPoolSize;
+    // The number of connections the pool may currently open.  This starts at the configured
+    // maximum, grows (up to twice that) while readers keep queueing for connections, and
+    // shrinks back when idle connections are trimmed.
+    @GuardedBy("mLock")
+    private int mConnectionPoolSizeLimit;
     private boolean mIsOpen;
     private int mNextConnectionId;
 
@@ -106,7 +123,30 @@ public final class SQLiteConnectionPool implements Closeable {
     @GuardedBy("mLock")
     private IdleConnectionHandler mIdleConnectionHandler;
 
+    // Trims non-primary connections when no idle connection handler is set up.
+    @GuardedBy("mLock")
+    private Handler mIdleTrimHandler;
+    @GuardedBy("mLock")
+    private boolean mIdleTrimScheduled;
+    private final Runnable mIdleTrimRunnable = this::trimIdleConnections;
+
+    // Non-primary connections currently acquired, and the most that were acquired at once
+    // since the last trim.
+    @GuardedBy("mLock")
+    private int mAcquiredNonPrimaryConnectionCount;
+    @GuardedBy("mLock")
+    private int mPeakNonPrimaryConnectionCount;
+    @GuardedBy("mLock")
+    private int mContendedAcquisitionCount;
+
+    @GuardedBy("mLock")
+    private final int[] mWaitTimeHistogram = new int[WAIT_TIME_BUCKET_MILLIS.length + 2];
+    @GuardedBy("mLock")
+    private long mTotalWaitTimeMillis;
+
     private final AtomicLong mTotalExecutionTimeCounter = new AtomicLong(0);
+    private final AtomicLong mStatementCompileTimeNanos = new AtomicLong(0);
+    private final AtomicLong mStatementCompileCount = new AtomicLong(0);
 
     // Describes what should happen to an acquired connection when it is returned to the pool.
     enum AcquiredConnectionStatus {
@@ -168,6 +208,9 @@ public final class SQLiteConnectionPool implements Closeable {
         if (mConfiguration.idleConnectionTimeoutMs != Long.MAX_VALUE) {
             setupIdleConnectionHandler(Looper.getMainLooper(),
                     mConfiguration.idleConnectionTimeoutMs);
+        } else if (Looper.getMainLooper() != null) {
+            // Otherwise only trim the non-primary connections a burst of readers left behind.
+            mIdleTrimHandler = new Handler(Looper.getMainLooper());
         }
     }
 
@@ -250,6 +293,9 @@ public final class SQLiteConnectionPool implements Closeable {
 
                 mIsOpen = false;
 
+                if (mIdleTrimHandler != null) {
+                    mIdleTrimHandler.removeCallbacks(mIdleTrimRunnable);
+                }
                 closeAvailableConnectionsAndLogExceptionsLocked();
 
                 final int pendingCount = mAcquiredConnections.size();
@@ -409,6 +455,9 @@ public final class SQLiteConnectionPool implements Closeable {
                         + "because the specified connection was not acquired "
                         + "from this pool or has already been released.");
             }
+            if (!connection.isPrimaryConnection()) {
+                mAcquiredNonPrimaryConnectionCount -= 1;
+            }
 
             if (!mIsOpen) {
                 closeConnectionAndLogExceptionsLocked(connection);
@@ -418,11 +467,12 @@ public final class SQLiteConnectionPool implements Closeable {
                     mAvailablePrimaryConnection = connection;
                 }
                 wakeConnectionWaitersLocked();
-            } else if (mAvailableNonPrimaryConnections.size() >= mMaxConnectionPoolSize - 1) {
+            } else if (mAvailableNonPrimaryConnections.size() >= mConnectionPoolSizeLimit - 1) {
                 closeConnectionAndLogExceptionsLocked(connection);
             } else {
                 if (recycleConnectionLocked(connection, status)) {
                     mAvailableNonPrimaryConnections.add(connection);
+                    scheduleIdleTrimLocked();
                 }
                 wakeConnectionWaitersLocked();
             }
@@ -484,6 +534,7 @@ public final class SQLiteConnectionPool implements Closeable {
      */
     public void collectDbStats(ArrayList<DbStats> dbStatsList) {
         synchronized (mLock) {
+            final int first = dbStatsList.size();
             if (mAvailablePrimaryConnection != null) {
                 mAvailablePrimaryConnection.collectDbStats(dbStatsList);
             }
@@ -495,9 +546,43 @@ public final class SQLiteConnectionPool implements Closeable {
             for (SQLiteConnection connection : mAcquiredConnections.keySet()) {
                 connection.collectDbStatsUnsafe(dbStatsList);
             }
+
+            // The pool wide statistics go on the first row of the pool.
+            if (dbStatsList.size() > first) {
+                collectPoolStatsLocked(dbStatsList.get(first));
+            }
         }
     }
 
+    @GuardedBy("mLock")
+    private void collectPoolStatsLocked(DbStats dbStats) {
+        long hits = 0;
+        long misses = 0;
+        if (mAvailablePrimaryConnection != null) {
+            hits += mAvailablePrimaryConnection.getPreparedStatementCacheHitCount();
+            misses += mAvailablePrimaryConnection.getPreparedStatementCacheMissCount();
+        }
+        for (SQLiteConnection connection : mAvailableNonPrimaryConnections) {
+            hits += connection.getPreparedStatementCacheHitCount();
+            misses += connection.getPreparedStatementCacheMissCount();
+        }
+        for (SQLiteConnection connection : mAcquiredConnections.keySet()) {
+            hits += connection.getPreparedStatementCacheHitCount();
+            misses += connection.getPreparedStatementCacheMissCount();
+        }
+        dbStats.cacheHitPercent = hits + misses > 0 ? (int) (hits * 100 / (hits + misses)) : -1;
+        dbStats.compileTimeMs = mStatementCompileTimeNanos.get() / 1000000;
+
+        final StringBuilder waits = new StringBuilder();
+        for (int i = 0; i < mWaitTimeHistogram.length; i++) {
+            if (i > 0) {
+                waits.append('/');
+            }
+            waits.append(mWaitTimeHistogram[i]);
+        }
+        dbStats.waits = waits.toString();
+    }
+
     // Might throw.
     private SQLiteConnection openConnectionLocked(SQLiteDatabaseConfiguration configuration,
             boolean primaryConnection) {
@@ -539,6 +624,11 @@ public final class SQLiteConnectionPool implements Closeable {
         mTotalExecutionTimeCounter.addAndGet(executionTimeMs);
     }
 
+    void onStatementCompiled(long compileTimeNanos) {
+        mStatementCompileTimeNanos.addAndGet(compileTimeNanos);
+        mStatementCompileCount.incrementAndGet();
+    }
+
     // Can't throw.
     @GuardedBy("mLock")
     private void closeAvailableConnectionsAndLogExceptionsLocked() {
@@ -596,7 +686,7 @@ public final class SQLiteConnectionPool implements Closeable {
     @GuardedBy("mLock")
     private void closeExcessConnectionsAndLogExceptionsLocked() {
         int availableCount = mAvailableNonPrimaryConnections.size();
-        while (availableCount-- > mMaxConnectionPoolSize - 1) {
+        while (availableCount-- > mConnectionPoolSizeLimit - 1) {
             SQLiteConnection connection =
                     mAvailableNonPrimaryConnections.remove(availableCount);
             closeConnectionAndLogExceptionsLocked(connection);
@@ -698,7 +788,11 @@ public final class SQLiteConnectionPool implements Closeable {
             if (connection == null) {
                 connection = tryAcquirePrimaryConnectionLocked(connectionFlags); // might throw
             }
+            if (connection == null && !wantPrimaryConnection) {
+                connection = tryGrowPoolLocked(sql, connectionFlags); // might throw
+            }
             if (connection != null) {
+                mWaitTimeHistogram[0] += 1;
                 return connection;
             }
 
@@ -765,8 +859,10 @@ public final class SQLiteConnectionPool implements Closeable {
                     final SQLiteConnection connection = waiter.mAssignedConnection;
                     final RuntimeException ex = waiter.mException;
                     if (connection != null || ex != null) {
+                        final long startTime = waiter.mStartTime;
                         recycleConnectionWaiterLocked(waiter);
                         if (connection != null) {
+                            recordWaitTimeLocked(SystemClock.uptimeMillis() - startTime);
                             return connection;
                         }
                         throw ex; // rethrow!
@@ -790,6 +886,18 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    // Can't throw.
+    @GuardedBy("mLock")
+    private void recordWaitTimeLocked(long waitMillis) {
+        mTotalWaitTimeMillis += waitMillis;
+        int bucket = 1;
+        while (bucket <= WAIT_TIME_BUCKET_MILLIS.length
+                && waitMillis >= WAIT_TIME_BUCKET_MILLIS[bucket - 1]) {
+            bucket++;
+        }
+        mWaitTimeHistogram[bucket] += 1;
+    }
+
     // Can't throw.
     @GuardedBy("mLock")
     private void cancelConnectionWaiterLocked(ConnectionWaiter waiter) {
@@ -983,7 +1091,7 @@ public final class SQLiteConnectionPool implements Closeable {
         if (mAvailablePrimaryConnection != null) {
             openConnections += 1;
         }
-        if (openConnections >= mMaxConnectionPoolSize) {
+        if (openConnections >= mConnectionPoolSizeLimit) {
             return null;
         }
         connection = openConnectionLocked(mConfiguration,
@@ -1000,6 +1108,11 @@ public final class SQLiteConnectionPool implements Closeable {
             connection.setOnlyAllowReadOnlyOperations(readOnly);
 
             mAcquiredConnections.put(connection, AcquiredConnectionStatus.NORMAL);
+            if (!connection.isPrimaryConnection()) {
+                mAcquiredNonPrimaryConnectionCount += 1;
+                mPeakNonPrimaryConnectionCount = Math.max(mPeakNonPrimaryConnectionCount,
+                        mAcquiredNonPrimaryConnectionCount);
+            }
         } catch (RuntimeException ex) {
             Log.e(TAG, "Failed to prepare acquired connection for session, closing it: "
                     + connection +", connectionFlags=" + connectionFlags);
@@ -1008,6 +1121,94 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    // Might throw.
+    @GuardedBy("mLock")
+    private SQLiteConnection tryGrowPoolLocked(String sql, int connectionFlags) {
+        // Only pools that allow several connections grow, at most to twice their size, and
+        // only when idle trimming can bring them back down.
+        if (mIdleTrimHandler == null || mMaxConnectionPoolSize <= 1
+                || mConnectionPoolSizeLimit >= mMaxConnectionPoolSize * 2) {
+            return null;
+        }
+        // Grow when readers keep queueing, not on the first collision.
+        if (++mContendedAcquisitionCount < POOL_GROWTH_CONTENTION_THRESHOLD) {
+            return null;
+        }
+        mContendedAcquisitionCount = 0;
+        mConnectionPoolSizeLimit += 1;
+        return tryAcquireNonPrimaryConnectionLocked(sql, connectionFlags); // might throw
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleIdleTrimLocked() {
+        if (mIdleTrimHandler != null && !mIdleTrimScheduled) {
+            mIdleTrimScheduled = true;
+            mIdleTrimHandler.postDelayed(mIdleTrimRunnable, IDLE_TRIM_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Closes the available non-primary connections beyond the most that were in use at once
+     * since the last trim, and lowers the pool size limit back towards the configured
+     * maximum.  Runs every {@link #IDLE_TRIM_INTERVAL_MILLIS} while the pool has non-primary
+     * connections open, so a pool that stays idle for two intervals keeps only its primary
+     * connection.
+     */
+    @VisibleForTesting
+    public void trimIdleConnections() {
+        synchronized (mLock) {
+            mIdleTrimScheduled = false;
+            if (!mIsOpen) {
+                return;
+            }
+
+            // Recount, in case acquired connections were leaked.
+            int acquired = 0;
+            for (SQLiteConnection connection : mAcquiredConnections.keySet()) {
+                if (!connection.isPrimaryConnection()) {
+                    acquired += 1;
+                }
+            }
+            mAcquiredNonPrimaryConnectionCount = acquired;
+
+            // Connections are acquired from the end of the list, so the ones at the start
+            // have been idle the longest.
+            int excess = acquired + mAvailableNonPrimaryConnections.size()
+                    - mPeakNonPrimaryConnectionCount;
+            while (excess-- > 0 && !mAvailableNonPrimaryConnections.isEmpty()) {
+                closeConnectionAndLogExceptionsLocked(mAvailableNonPrimaryConnections.remove(0));
+            }
+
+            mConnectionPoolSizeLimit = Math.max(mMaxConnectionPoolSize,
+                    Math.min(mConnectionPoolSizeLimit, mPeakNonPrimaryConnectionCount + 1));
+            mPeakNonPrimaryConnectionCount = acquired;
+            mContendedAcquisitionCount = 0;
+            if (acquired > 0 || !mAvailableNonPrimaryConnections.isEmpty()) {
+                scheduleIdleTrimLocked();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of connections the pool may currently open.
+     */
+    @VisibleForTesting
+    public int getConnectionPoolSizeLimit() {
+        synchronized (mLock) {
+            return mConnectionPoolSizeLimit;
+        }
+    }
+
+    /**
+     * Returns the number of non-primary connections waiting in the pool.
+     */
+    @VisibleForTesting
+    public int getAvailableNonPrimaryConnectionCount() {
+        synchronized (mLock) {
+            return mAvailableNonPrimaryConnections.size();
+        }
+    }
+
     private boolean isSessionBlockingImportantConnectionWaitersLocked(
             boolean holdingPrimaryConnection, int connectionFlags) {
         ConnectionWaiter waiter = mConnectionWaiterQueue;
@@ -1048,6 +1249,7 @@ public final class SQLiteConnectionPool implements Closeable {
             // For now, enabling connection pooling and using WAL are the same thing in the API.
             mMaxConnectionPoolSize = 1;
         }
+        mConnectionPoolSizeLimit = mMaxConnectionPoolSize;
     }
 
     /**
@@ -1063,6 +1265,10 @@ public final class SQLiteConnectionPool implements Closeable {
     void disableIdleConnectionHandler() {
         synchronized (mLock) {
             mIdleConnectionHandler = null;
+            if (mIdleTrimHandler != null) {
+                mIdleTrimHandler.removeCallbacks(mIdleTrimRunnable);
+                mIdleTrimHandler = null;
+            }
         }
     }
 
@@ -1117,7 +1323,14 @@ public final class SQLiteConnectionPool implements Closeable {
             printer.println("Connection pool for " + mConfiguration.path + ":");
             printer.println("  Open: " + mIsOpen);
             printer.println("  Max connections: " + mMaxConnectionPoolSize);
+            if (mConnectionPoolSizeLimit != mMaxConnectionPoolSize) {
+                printer.println("  Grown to: " + mConnectionPoolSizeLimit);
+            }
             printer.println("  Total execution time: " + mTotalExecutionTimeCounter);
+            printer.println("  Statements compiled: " + mStatementCompileCount + " in "
+                    + (mStatementCompileTimeNanos.get() / 1000000) + " ms");
+            printer.println("  Connection waits: " + dumpWaitTimeHistogramLocked()
+                    + ", total " + mTotalWaitTimeMillis + " ms");
             printer.println("  Configuration: openFlags=" + mConfiguration.openFlags
                     + ", isLegacyCompatibilityWalEnabled=" + isCompatibilityWalEnabled
                     + ", journalMode=" + TextUtils.emptyIfNull(mConfiguration.journalMode)
@@ -1182,6 +1395,19 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    @GuardedBy("mLock")
+    private String dumpWaitTimeHistogramLocked() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("none=").append(mWaitTimeHistogram[0]);
+        for (int i = 0; i < WAIT_TIME_BUCKET_MILLIS.length; i++) {
+            sb.append(", <").append(WAIT_TIME_BUCKET_MILLIS[i]).append("ms=")
+                    .append(mWaitTimeHistogram[i + 1]);
+        }
+        sb.append(", >=").append(WAIT_TIME_BUCKET_MILLIS[WAIT_TIME_BUCKET_MILLIS.length - 1])
+                .append("ms=").append(mWaitTimeHistogram[mWaitTimeHistogram.length - 1]);
+        return sb.toString();
+    }
+
     @Override
     public String toString() {
         return "SQLiteConnectionPool: " + mConfiguration.path;
@@ -39,6 +39,9 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     static final String TAG = "SQLiteCursor";
     static final int NO_COUNT = -1;
 
+    /** The largest window a forward scan grows to, as a multiple of the default window size */
+    private static final int MAX_STREAMING_WINDOW_SIZE_FACTOR = 4;
+
     /** The name of the table to edit */
     @UnsupportedAppUsage
     private final String mEditTable;
@@ -68,6 +71,12 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     /** Controls fetching of rows relative to requested position **/
     private boolean mFillWindowForwardOnly;
 
+    /** True if the window was set by the caller, in which case it is never replaced */
+    private boolean mWindowSetByCaller;
+
+    /** Size of the window grown for a forward scan, 0 if the window was never grown */
+    private long mStreamingWindowSize;
+
     /**
      * Execute a query and provide access to its result set through a Cursor
      * interface. For a query such as: {@code SELECT name, birth, phone FROM
@@ -144,6 +153,20 @@ public class SQLiteCursor extends AbstractWindowedCursor {
 
     @UnsupportedAppUsage
     private void fillWindow(int requiredPos) {
+        // A forward scan asks for the row right after the window.  Start the next window at
+        // that row instead of keeping the last third of the previous one, and give the scan a
+        // bigger window each time, so that scanning a large result re-executes the query (and
+        // skips the rows before the window) fewer times.
+        if (mWindow == null) {
+            mWindowSetByCaller = false;
+            mStreamingWindowSize = 0;
+        }
+        final boolean streaming = mCount != NO_COUNT && mWindow != null
+                && mWindow.getNumRows() > 0
+                && requiredPos == mWindow.getStartPosition() + mWindow.getNumRows();
+        if (streaming && !mWindowSetByCaller) {
+            growStreamingWindow();
+        }
         clearOrCreateWindow(getDatabase().getPath());
         try {
             Preconditions.checkArgumentNonnegative(requiredPos,
@@ -156,7 +179,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
                     Log.d(TAG, "received count(*) from native_fill_window: " + mCount);
                 }
             } else {
-                int startPos = mFillWindowForwardOnly ? requiredPos : DatabaseUtils
+                int startPos = mFillWindowForwardOnly || streaming ? requiredPos : DatabaseUtils
                         .cursorPickFillWindowStartPosition(requiredPos, mCursorWindowCapacity);
                 mQuery.fillWindow(mWindow, startPos, requiredPos, false);
             }
@@ -170,6 +193,19 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         }
     }
 
+    private void growStreamingWindow() {
+        final long defaultSize = CursorWindow.getDefaultCursorWindowSize();
+        if (mStreamingWindowSize == 0) {
+            mStreamingWindowSize = defaultSize;
+        }
+        if (mStreamingWindowSize >= defaultSize * MAX_STREAMING_WINDOW_SIZE_FACTOR) {
+            return;
+        }
+        mStreamingWindowSize *= 2;
+        // Bypass setWindow() below, which would forget the row count.
+        super.setWindow(new CursorWindow(getDatabase().getPath(), mStreamingWindowSize));
+    }
+
     @Override
     public int getColumnIndex(String columnName) {
         // Create mColumnNameMap on demand
@@ -252,6 +288,8 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     public void setWindow(CursorWindow window) {
         super.setWindow(window);
         mCount = NO_COUNT;
+        mWindowSetByCaller = window != null;
+        mStreamingWindowSize = 0;
     }
 
     /**
@@ -175,6 +175,18 @@ public final class SQLiteDebug {
         /** statement cache stats: hits/misses/cachesize */
         public String cache;
 
+        /**
+         * connection wait counts, only set on the first row of each connection pool:
+         * no wait/&lt;1ms/&lt;4ms/&lt;16ms/&lt;64ms/&lt;256ms/&lt;1024ms/longer
+         */
+        public String waits;
+
+        /** statement cache hit percentage over all connections of the pool, or -1 if unused */
+        public int cacheHitPercent = -1;
+
+        /** total time spent compiling statements for the pool, in ms */
+        public long compileTimeMs;
+
         public DbStats(String dbName, long pageCount, long pageSize, int lookaside,
             int hits, int misses, int cachesize) {
             this.dbName = dbName;
@@ -499,14 +499,48 @@ public final class NetworkStats implements Parcelable {
     @Override
     public NetworkStats clone() {
         final NetworkStats clone = new NetworkStats(elapsedRealtime, size);
-        NetworkStats.Entry entry = null;
-        for (int i = 0; i < size; i++) {
-            entry = getValues(i, entry);
-            clone.insertEntry(entry);
-        }
+        clone.copyFrom(this);
         return clone;
     }
 
+    /**
+     * Replace all rows of this object with the rows of {@code other}, reusing the arrays of this
+     * object when they are large enough.
+     * @hide
+     */
+    public void copyFrom(@NonNull NetworkStats other) {
+        final int newSize = other.size;
+        if (capacity < newSize) {
+            iface = new String[newSize];
+            uid = new int[newSize];
+            set = new int[newSize];
+            tag = new int[newSize];
+            metered = new int[newSize];
+            roaming = new int[newSize];
+            defaultNetwork = new int[newSize];
+            rxBytes = new long[newSize];
+            rxPackets = new long[newSize];
+            txBytes = new long[newSize];
+            txPackets = new long[newSize];
+            operations = new long[newSize];
+            capacity = newSize;
+        }
+        System.arraycopy(other.iface, 0, iface, 0, newSize);
+        System.arraycopy(other.uid, 0, uid, 0, newSize);
+        System.arraycopy(other.set, 0, set, 0, newSize);
+        System.arraycopy(other.tag, 0, tag, 0, newSize);
+        System.arraycopy(other.metered, 0, metered, 0, newSize);
+        System.arraycopy(other.roaming, 0, roaming, 0, newSize);
+        System.arraycopy(other.defaultNetwork, 0, defaultNetwork, 0, newSize);
+        System.arraycopy(other.rxBytes, 0, rxBytes, 0, newSize);
+        System.arraycopy(other.rxPackets, 0, rxPackets, 0, newSize);
+        System.arraycopy(other.txBytes, 0, txBytes, 0, newSize);
+        System.arraycopy(other.txPackets, 0, txPackets, 0, newSize);
+        System.arraycopy(other.operations, 0, operations, 0, newSize);
+        size = newSize;
+        elapsedRealtime = other.elapsedRealtime;
+    }
+
     /**
      * Clear all data stored in this object.
      * @hide
@@ -741,9 +775,25 @@ public final class NetworkStats implements Parcelable {
      */
     public void combineAllValues(@NonNull NetworkStats another) {
         NetworkStats.Entry entry = null;
+        // Rows of successive snapshots usually come in the same order, so look for each row
+        // right after the row matched before it.
+        int hint = 0;
         for (int i = 0; i < another.size; i++) {
-            entry = another.getValues(i, entry);
-            combineValues(entry);
+            final int j = findIndexHinted(another.iface[i], another.uid[i], another.set[i],
+                    another.tag[i], another.metered[i], another.roaming[i],
+                    another.defaultNetwork[i], hint);
+            if (j == -1) {
+                entry = another.getValues(i, entry);
+                insertEntry(entry);
+                hint = size;
+            } else {
+                rxBytes[j] += another.rxBytes[i];
+                rxPackets[j] += another.rxPackets[i];
+                txBytes[j] += another.txBytes[i];
+                txPackets[j] += another.txPackets[i];
+                operations[j] += another.operations[i];
+                hint = j + 1;
+            }
         }
     }
 
@@ -1072,13 +1122,10 @@ public final class NetworkStats implements Parcelable {
      */
     public static void apply464xlatAdjustments(NetworkStats baseTraffic,
             NetworkStats stackedTraffic, Map<String, String> stackedIfaces) {
-        // For recycling
-        Entry entry = null;
         for (int i = 0; i < stackedTraffic.size; i++) {
-            entry = stackedTraffic.getValues(i, entry);
-            if (entry == null) continue;
-            if (entry.iface == null) continue;
-            if (!entry.iface.startsWith(CLATD_INTERFACE_PREFIX)) continue;
+            final String iface = stackedTraffic.iface[i];
+            if (iface == null) continue;
+            if (!iface.startsWith(CLATD_INTERFACE_PREFIX)) continue;
 
             // For 464xlat traffic, per uid stats only counts the bytes of the native IPv4 packet
             // sent on the stacked interface with prefix "v4-" and drops the IPv6 header size after
@@ -1090,9 +1137,8 @@ public final class NetworkStats implements Parcelable {
             //
             // While the ebpf code path does try to simulate proper post segmentation packet
             // counts, we have nothing of the sort of xt_qtaguid stats.
-            entry.rxBytes += entry.rxPackets * IPV4V6_HEADER_DELTA;
-            entry.txBytes += entry.txPackets * IPV4V6_HEADER_DELTA;
-            stackedTraffic.setValues(i, entry);
+            stackedTraffic.rxBytes[i] += stackedTraffic.rxPackets[i] * IPV4V6_HEADER_DELTA;
+            stackedTraffic.txBytes[i] += stackedTraffic.txPackets[i] * IPV4V6_HEADER_DELTA;
         }
     }
 
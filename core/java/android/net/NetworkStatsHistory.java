@@ -135,6 +135,25 @@ public class NetworkStatsHistory implements Parcelable {
         recordEntireHistory(existing);
     }
 
+    /**
+     * Create a history holding the given series, which are used as-is and must all be of the same
+     * length, with {@code bucketStart} sorted.
+     */
+    public NetworkStatsHistory(long bucketDuration, long[] bucketStart, long[] activeTime,
+            long[] rxBytes, long[] rxPackets, long[] txBytes, long[] txPackets,
+            long[] operations) {
+        this.bucketDuration = bucketDuration;
+        this.bucketStart = bucketStart;
+        this.activeTime = activeTime;
+        this.rxBytes = rxBytes;
+        this.rxPackets = rxPackets;
+        this.txBytes = txBytes;
+        this.txPackets = txPackets;
+        this.operations = operations;
+        bucketCount = bucketStart.length;
+        totalBytes = total(rxBytes) + total(txBytes);
+    }
+
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     public NetworkStatsHistory(Parcel in) {
         bucketDuration = in.readLong();
@@ -2139,6 +2139,22 @@ public abstract class BatteryStats implements Parcelable {
     @UnsupportedAppUsage
     public abstract boolean startIteratingHistoryLocked();
 
+    /**
+     * Like {@link #startIteratingHistoryLocked()}, but the implementation may skip history that
+     * ends before {@code startTime} instead of decoding it.
+     */
+    public boolean startIteratingHistoryLocked(long startTime) {
+        return startIteratingHistoryLocked();
+    }
+
+    /**
+     * Returns the time of the oldest history record if the current iteration skipped it,
+     * -1 otherwise.
+     */
+    public long getHistoryIterationBaseTimeLocked() {
+        return -1;
+    }
+
     public abstract int getHistoryStringPoolSize();
 
     public abstract int getHistoryStringPoolBytes();
@@ -6814,7 +6830,7 @@ public abstract class BatteryStats implements Parcelable {
         final HistoryPrinter hprinter = new HistoryPrinter();
         final HistoryItem rec = new HistoryItem();
         long lastTime = -1;
-        long baseTime = -1;
+        long baseTime = getHistoryIterationBaseTimeLocked();
         boolean printed = false;
         HistoryEventTracker tracker = null;
         while (getNextHistoryLocked(rec)) {
@@ -6956,7 +6972,7 @@ public abstract class BatteryStats implements Parcelable {
         if ((flags&DUMP_HISTORY_ONLY) != 0 || !filtering) {
             final long historyTotalSize = getHistoryTotalSize();
             final long historyUsedSize = getHistoryUsedSize();
-            if (startIteratingHistoryLocked()) {
+            if (startIteratingHistoryLocked(histStart)) {
                 try {
                     pw.print("Battery History (");
                     pw.print((100*historyUsedSize)/historyTotalSize);
@@ -7151,7 +7167,7 @@ public abstract class BatteryStats implements Parcelable {
         long now = getHistoryBaseTime() + SystemClock.elapsedRealtime();
 
         if ((flags & (DUMP_INCLUDE_HISTORY | DUMP_HISTORY_ONLY)) != 0) {
-            if (startIteratingHistoryLocked()) {
+            if (startIteratingHistoryLocked(histStart)) {
                 try {
                     for (int i=0; i<getHistoryStringPoolSize(); i++) {
                         pw.print(BATTERY_STATS_CHECKIN_VERSION); pw.print(',');
@@ -7715,7 +7731,7 @@ public abstract class BatteryStats implements Parcelable {
     }
 
     private void dumpProtoHistoryLocked(ProtoOutputStream proto, int flags, long histStart) {
-        if (!startIteratingHistoryLocked()) {
+        if (!startIteratingHistoryLocked(histStart)) {
             return;
         }
 
@@ -7741,7 +7757,7 @@ public abstract class BatteryStats implements Parcelable {
             final HistoryPrinter hprinter = new HistoryPrinter();
             final HistoryItem rec = new HistoryItem();
             long lastTime = -1;
-            long baseTime = -1;
+            long baseTime = getHistoryIterationBaseTimeLocked();
             boolean printed = false;
             HistoryEventTracker tracker = null;
             while (getNextHistoryLocked(rec)) {
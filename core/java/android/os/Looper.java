@@ -343,6 +343,15 @@ public final class Looper {
         mSlowDeliveryThresholdMs = slowDeliveryThresholdMs;
     }
 
+    /**
+     * Lets other threads post messages due immediately to this looper without contending on
+     * its queue lock. Meant for loopers that many threads post to at once.
+     * {@hide}
+     */
+    public void setLockFreeEnqueueEnabled(boolean enabled) {
+        mQueue.setLockFreeEnqueueEnabled(enabled);
+    }
+
     /**
      * Quits the looper.
      * <p>
@@ -29,6 +29,7 @@ import java.io.FileDescriptor;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Low-level class holding the list of messages to be dispatched by a
@@ -56,10 +57,24 @@ public final class MessageQueue {
     private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
     private SparseArray<FileDescriptorRecord> mFileDescriptorRecords;
     private IdleHandler[] mPendingIdleHandlers;
-    private boolean mQuitting;
+    private volatile boolean mQuitting;
 
     // Indicates whether next() is blocked waiting in pollOnce() with a non-zero timeout.
-    private boolean mBlocked;
+    // Read without the lock by lock-free enqueues.
+    private volatile boolean mBlocked;
+
+    // The last message in mMessages, or null if not known.  Messages due no earlier than it
+    // are appended without walking the list.
+    private Message mLast;
+
+    // Messages that were already due when another thread posted them without taking the
+    // lock, most recent first and linked through Message.next.  They are moved to mMessages,
+    // under the lock, before mMessages is read or changed.  Set to PENDING_CLOSED once the
+    // queue quits, so that later posts take the lock and are refused there.
+    private final AtomicReference<Message> mPendingMessages = new AtomicReference<>();
+    private static final Message PENDING_CLOSED = new Message();
+    private volatile boolean mLockFreeEnqueueEnabled;
+    private long mLockFreeEnqueueCount;
 
     // The next barrier token.
     // Barriers are indicated by messages with a null target whose arg1 field carries the token.
@@ -106,6 +121,7 @@ public final class MessageQueue {
      */
     public boolean isIdle() {
         synchronized (this) {
+            drainPendingMessagesLocked();
             final long now = SystemClock.uptimeMillis();
             return mMessages == null || now < mMessages.when;
         }
@@ -335,6 +351,8 @@ public final class MessageQueue {
             nativePollOnce(ptr, nextPollTimeoutMillis);
 
             synchronized (this) {
+                drainPendingMessagesLocked();
+
                 // Try to retrieve the next message.  Return if found.
                 final long now = SystemClock.uptimeMillis();
                 Message prevMsg = null;
@@ -358,6 +376,9 @@ public final class MessageQueue {
                         } else {
                             mMessages = msg.next;
                         }
+                        if (msg == mLast) {
+                            mLast = prevMsg;
+                        }
                         msg.next = null;
                         if (DEBUG) Log.v(TAG, "Returning message: " + msg);
                         msg.markInUse();
@@ -384,6 +405,11 @@ public final class MessageQueue {
                 if (pendingIdleHandlerCount <= 0) {
                     // No idle handlers to run.  Loop and wait some more.
                     mBlocked = true;
+                    // A lock-free enqueue that didn't see mBlocked set won't wake us, so
+                    // look for one after setting it.
+                    if (hasPendingMessages()) {
+                        nextPollTimeoutMillis = 0;
+                    }
                     continue;
                 }
 
@@ -431,6 +457,9 @@ public final class MessageQueue {
             if (mQuitting) {
                 return;
             }
+            // Posts that made it onto the stack were made before the quit, and are dropped
+            // or kept below like any other message.
+            insertPendingMessagesLocked(mPendingMessages.getAndSet(PENDING_CLOSED));
             mQuitting = true;
 
             if (safe) {
@@ -477,6 +506,7 @@ public final class MessageQueue {
         // Enqueue a new sync barrier token.
         // We don't need to wake the queue because the purpose of a barrier is to stall it.
         synchronized (this) {
+            drainPendingMessagesLocked();
             final int token = mNextBarrierToken++;
             final Message msg = Message.obtain();
             msg.markInUse();
@@ -498,6 +528,9 @@ public final class MessageQueue {
                 msg.next = p;
                 mMessages = msg;
             }
+            if (p == null) {
+                mLast = msg;
+            }
             return token;
         }
     }
@@ -518,6 +551,7 @@ public final class MessageQueue {
         // Remove a sync barrier token from the queue.
         // If the queue is no longer stalled by a barrier then wake it.
         synchronized (this) {
+            drainPendingMessagesLocked();
             Message prev = null;
             Message p = mMessages;
             while (p != null && (p.target != null || p.arg1 != token)) {
@@ -536,6 +570,9 @@ public final class MessageQueue {
                 mMessages = p.next;
                 needWake = mMessages == null || mMessages.target != null;
             }
+            if (p == mLast) {
+                mLast = prev;
+            }
             p.recycleUnchecked();
 
             // If the loop is quitting then it is already awake.
@@ -551,6 +588,10 @@ public final class MessageQueue {
             throw new IllegalArgumentException("Message must have a target.");
         }
 
+        if (mLockFreeEnqueueEnabled && enqueueMessageLockFree(msg, when)) {
+            return true;
+        }
+
         synchronized (this) {
             if (msg.isInUse()) {
                 throw new IllegalStateException(msg + " This message is already in use.");
@@ -564,34 +605,12 @@ public final class MessageQueue {
                 return false;
             }
 
+            // Keep the messages posted earlier without the lock ahead of this one.
+            drainPendingMessagesLocked();
+
             msg.markInUse();
             msg.when = when;
-            Message p = mMessages;
-            boolean needWake;
-            if (p == null || when == 0 || when < p.when) {
-                // New head, wake up the event queue if blocked.
-                msg.next = p;
-                mMessages = msg;
-                needWake = mBlocked;
-            } else {
-                // Inserted within the middle of the queue.  Usually we don't have to wake
-                // up the event queue unless there is a barrier at the head of the queue
-                // and the message is the earliest asynchronous message in the queue.
-                needWake = mBlocked && p.target == null && msg.isAsynchronous();
-                Message prev;
-                for (;;) {
-                    prev = p;
-                    p = p.next;
-                    if (p == null || when < p.when) {
-                        break;
-                    }
-                    if (needWake && p.isAsynchronous()) {
-                        needWake = false;
-                    }
-                }
-                msg.next = p; // invariant: p == prev.next
-                prev.next = msg;
-            }
+            final boolean needWake = insertMessageLocked(msg);
 
             // We can assume mPtr != 0 because mQuitting is false.
             if (needWake) {
@@ -601,12 +620,137 @@ public final class MessageQueue {
         return true;
     }
 
+    // Pushes a synchronous message that is already due onto mPendingMessages without taking
+    // the lock.  Returns false if the message must go through the locked path instead.
+    private boolean enqueueMessageLockFree(Message msg, long when) {
+        if (when == 0 || msg.isAsynchronous() || msg.isInUse() || mQuitting
+                || when > SystemClock.uptimeMillis()) {
+            return false;
+        }
+
+        msg.markInUse();
+        msg.when = when;
+        Message head;
+        do {
+            head = mPendingMessages.get();
+            if (head == PENDING_CLOSED) {
+                // Quit after the check above; let the locked path refuse the message.
+                msg.next = null;
+                msg.flags &= ~Message.FLAG_IN_USE;
+                return false;
+            }
+            msg.next = head;
+        } while (!mPendingMessages.compareAndSet(head, msg));
+
+        // next() checks mPendingMessages after setting mBlocked, so if it is not set yet the
+        // looper will see the message without being woken.  The lock makes sure the queue
+        // has not been disposed of by the time we wake it.
+        if (mBlocked) {
+            synchronized (this) {
+                if (mBlocked && !mQuitting) {
+                    nativeWake(mPtr);
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean hasPendingMessages() {
+        final Message head = mPendingMessages.get();
+        return head != null && head != PENDING_CLOSED;
+    }
+
+    // Moves the messages posted without the lock into mMessages, in the order they were
+    // posted.
+    private void drainPendingMessagesLocked() {
+        // Only quit() closes the stack, and it holds the lock, so the stack can't be closed
+        // between the check and the swap.
+        if (hasPendingMessages()) {
+            insertPendingMessagesLocked(mPendingMessages.getAndSet(null));
+        }
+    }
+
+    private void insertPendingMessagesLocked(Message msg) {
+        Message reversed = null;
+        while (msg != null) {
+            final Message next = msg.next;
+            msg.next = reversed;
+            reversed = msg;
+            msg = next;
+        }
+        while (reversed != null) {
+            final Message next = reversed.next;
+            reversed.next = null;
+            insertMessageLocked(reversed);
+            mLockFreeEnqueueCount++;
+            reversed = next;
+        }
+    }
+
+    // Inserts a message after all the messages due at or before the same time.  Returns true
+    // if the looper has to be woken up for it.
+    private boolean insertMessageLocked(Message msg) {
+        final long when = msg.when;
+        Message p = mMessages;
+        boolean needWake;
+        if (p == null || when == 0 || when < p.when) {
+            // New head, wake up the event queue if blocked.
+            msg.next = p;
+            mMessages = msg;
+            if (p == null) {
+                mLast = msg;
+            }
+            needWake = mBlocked;
+        } else if (mLast != null && when >= mLast.when) {
+            // Due no earlier than every queued message, so it goes at the end.  We don't know
+            // whether an earlier asynchronous message is queued, so we may wake the queue
+            // for nothing if there is a barrier at the head.
+            msg.next = null;
+            mLast.next = msg;
+            mLast = msg;
+            needWake = mBlocked && p.target == null && msg.isAsynchronous();
+        } else {
+            // Inserted within the middle of the queue.  Usually we don't have to wake
+            // up the event queue unless there is a barrier at the head of the queue
+            // and the message is the earliest asynchronous message in the queue.
+            needWake = mBlocked && p.target == null && msg.isAsynchronous();
+            Message prev;
+            for (;;) {
+                prev = p;
+                p = p.next;
+                if (p == null || when < p.when) {
+                    break;
+                }
+                if (needWake && p.isAsynchronous()) {
+                    needWake = false;
+                }
+            }
+            msg.next = p; // invariant: p == prev.next
+            prev.next = msg;
+            if (p == null) {
+                mLast = msg;
+            }
+        }
+        return needWake;
+    }
+
+    /**
+     * Lets other threads post messages that are due immediately without taking the queue
+     * lock.  Such messages are moved into the queue, in the order they were posted, the next
+     * time the queue is read or changed.  Messages posted for later, posted at the front of
+     * the queue, or asynchronous still take the lock.
+     */
+    void setLockFreeEnqueueEnabled(boolean enabled) {
+        mLockFreeEnqueueEnabled = enabled;
+    }
+
     boolean hasMessages(Handler h, int what, Object object) {
         if (h == null) {
             return false;
         }
 
         synchronized (this) {
+            drainPendingMessagesLocked();
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.what == what && (object == null || p.obj == object)) {
@@ -624,6 +768,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainPendingMessagesLocked();
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.what == what && (object == null || object.equals(p.obj))) {
@@ -642,6 +787,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainPendingMessagesLocked();
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.callback == r && (object == null || p.obj == object)) {
@@ -659,6 +805,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainPendingMessagesLocked();
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h) {
@@ -676,6 +823,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainPendingMessagesLocked();
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -699,8 +847,14 @@ public final class MessageQueue {
                         continue;
                     }
                 }
+                if (n == null) {
+                    mLast = p;
+                }
                 p = n;
             }
+            if (mMessages == null) {
+                mLast = null;
+            }
         }
     }
 
@@ -710,6 +864,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainPendingMessagesLocked();
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -733,8 +888,14 @@ public final class MessageQueue {
                         continue;
                     }
                 }
+                if (n == null) {
+                    mLast = p;
+                }
                 p = n;
             }
+            if (mMessages == null) {
+                mLast = null;
+            }
         }
     }
 
@@ -744,6 +905,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainPendingMessagesLocked();
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -767,8 +929,14 @@ public final class MessageQueue {
                         continue;
                     }
                 }
+                if (n == null) {
+                    mLast = p;
+                }
                 p = n;
             }
+            if (mMessages == null) {
+                mLast = null;
+            }
         }
     }
 
@@ -778,6 +946,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainPendingMessagesLocked();
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -801,8 +970,14 @@ public final class MessageQueue {
                         continue;
                     }
                 }
+                if (n == null) {
+                    mLast = p;
+                }
                 p = n;
             }
+            if (mMessages == null) {
+                mLast = null;
+            }
         }
     }
 
@@ -813,6 +988,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainPendingMessagesLocked();
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -835,8 +1011,14 @@ public final class MessageQueue {
                         continue;
                     }
                 }
+                if (n == null) {
+                    mLast = p;
+                }
                 p = n;
             }
+            if (mMessages == null) {
+                mLast = null;
+            }
         }
     }
 
@@ -846,6 +1028,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            drainPendingMessagesLocked();
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -868,8 +1051,14 @@ public final class MessageQueue {
                         continue;
                     }
                 }
+                if (n == null) {
+                    mLast = p;
+                }
                 p = n;
             }
+            if (mMessages == null) {
+                mLast = null;
+            }
         }
     }
 
@@ -881,6 +1070,7 @@ public final class MessageQueue {
             p = n;
         }
         mMessages = null;
+        mLast = null;
     }
 
     private void removeAllFutureMessagesLocked() {
@@ -902,6 +1092,7 @@ public final class MessageQueue {
                     p = n;
                 }
                 p.next = null;
+                mLast = p;
                 do {
                     p = n;
                     n = p.next;
@@ -913,6 +1104,7 @@ public final class MessageQueue {
 
     void dump(Printer pw, String prefix, Handler h) {
         synchronized (this) {
+            drainPendingMessagesLocked();
             long now = SystemClock.uptimeMillis();
             int n = 0;
             for (Message msg = mMessages; msg != null; msg = msg.next) {
@@ -922,13 +1114,17 @@ public final class MessageQueue {
                 n++;
             }
             pw.println(prefix + "(Total messages: " + n + ", polling=" + isPollingLocked()
-                    + ", quitting=" + mQuitting + ")");
+                    + ", quitting=" + mQuitting
+                    + (mLockFreeEnqueueEnabled
+                            ? ", lockFreeEnqueues=" + mLockFreeEnqueueCount : "")
+                    + ")");
         }
     }
 
     void dumpDebug(ProtoOutputStream proto, long fieldId) {
         final long messageQueueToken = proto.start(fieldId);
         synchronized (this) {
+            drainPendingMessagesLocked();
             for (Message msg = mMessages; msg != null; msg = msg.next) {
                 msg.dumpDebug(proto, MessageQueueProto.MESSAGES);
             }
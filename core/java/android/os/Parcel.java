@@ -21,6 +21,8 @@ import android.annotation.Nullable;
 import android.annotation.TestApi;
 import android.app.AppOpsManager;
 import android.compat.annotation.UnsupportedAppUsage;
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
@@ -52,6 +54,7 @@ import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -227,6 +230,22 @@ public final class Parcel {
     private static final Parcel[] sOwnedPool = new Parcel[POOL_SIZE];
     private static final Parcel[] sHolderPool = new Parcel[POOL_SIZE];
 
+    // Each thread first reuses the parcels it recycled itself, without taking the shared pool
+    // locks that every binder thread would otherwise contend on for each transaction.
+    private static final int THREAD_POOL_SIZE = 2;
+    private static final ThreadLocal<Parcel[]> sThreadOwnedPool =
+            ThreadLocal.withInitial(() -> new Parcel[THREAD_POOL_SIZE]);
+    private static final ThreadLocal<Parcel[]> sThreadHolderPool =
+            ThreadLocal.withInitial(() -> new Parcel[THREAD_POOL_SIZE]);
+
+    /**
+     * Payloads of at least this many bytes are sent by {@link #writeSharedBlob} in shared memory.
+     * @hide
+     */
+    public static final int SHARED_BLOB_THRESHOLD = 64 * 1024;
+    private static final int SHARED_BLOB_IN_PLACE = 0;
+    private static final int SHARED_BLOB_SHARED_MEMORY = 1;
+
     // Keep in sync with frameworks/native/include/private/binder/ParcelValTypes.h.
     private static final int VAL_NULL = -1;
     private static final int VAL_STRING = 0;
@@ -422,9 +441,13 @@ public final class Parcel {
      */
     @NonNull
     public static Parcel obtain() {
+        Parcel p = takeFromThreadPool(sThreadOwnedPool.get());
+        if (p != null) {
+            p.mReadWriteHelper = ReadWriteHelper.DEFAULT;
+            return p;
+        }
         final Parcel[] pool = sOwnedPool;
         synchronized (pool) {
-            Parcel p;
             for (int i=0; i<POOL_SIZE; i++) {
                 p = pool[i];
                 if (p != null) {
@@ -440,6 +463,21 @@ public final class Parcel {
         return new Parcel(0);
     }
 
+    @Nullable
+    private static Parcel takeFromThreadPool(@NonNull Parcel[] threadPool) {
+        for (int i = 0; i < THREAD_POOL_SIZE; i++) {
+            final Parcel p = threadPool[i];
+            if (p != null) {
+                threadPool[i] = null;
+                if (DEBUG_RECYCLE) {
+                    p.mStack = new RuntimeException();
+                }
+                return p;
+            }
+        }
+        return null;
+    }
+
     /**
      * Put a Parcel object back into the pool.  You must not touch
      * the object after this call.
@@ -448,14 +486,23 @@ public final class Parcel {
         if (DEBUG_RECYCLE) mStack = null;
         freeBuffer();
 
+        final Parcel[] threadPool;
         final Parcel[] pool;
         if (mOwnsNativeParcelObject) {
+            threadPool = sThreadOwnedPool.get();
             pool = sOwnedPool;
         } else {
             mNativePtr = 0;
+            threadPool = sThreadHolderPool.get();
             pool = sHolderPool;
         }
 
+        for (int i = 0; i < THREAD_POOL_SIZE; i++) {
+            if (threadPool[i] == null) {
+                threadPool[i] = this;
+                return;
+            }
+        }
         synchronized (pool) {
             for (int i=0; i<POOL_SIZE; i++) {
                 if (pool[i] == null) {
@@ -745,6 +792,58 @@ public final class Parcel {
         nativeWriteBlob(mNativePtr, b, offset, len);
     }
 
+    /**
+     * Write the remaining bytes of a buffer into the parcel at the current
+     * {@link #dataPosition}, to be read back with {@link #readSharedBlob}. Payloads of at least
+     * {@link #SHARED_BLOB_THRESHOLD} bytes are copied once into a read-only {@link SharedMemory}
+     * region sent by file descriptor, so they don't take up space in the binder transaction
+     * buffer and the reader maps them instead of copying them again. Smaller payloads, and all
+     * payloads when the parcel doesn't allow file descriptors, are written in place.
+     * <p>A parcel holding a shared blob carries a file descriptor and so can't be
+     * {@link #marshall marshalled}; call {@link #pushAllowFds pushAllowFds(false)} first when it
+     * may be. Callers that need the data as a {@code byte[]} gain nothing over
+     * {@link #writeBlob(byte[], int, int)}, which already moves large blobs through ashmem.
+     * @param data Bytes to place into the parcel; its position is not changed.
+     * {@hide}
+     */
+    public final void writeSharedBlob(@NonNull ByteBuffer data) {
+        final int len = data.remaining();
+        if (len >= SHARED_BLOB_THRESHOLD && allowsFileDescriptors()) {
+            SharedMemory shared = null;
+            try {
+                shared = SharedMemory.create("Parcel blob", len);
+                final ByteBuffer mapping = shared.mapReadWrite();
+                mapping.put(data.duplicate());
+                SharedMemory.unmap(mapping);
+                shared.setProtect(OsConstants.PROT_READ);
+                writeInt(SHARED_BLOB_SHARED_MEMORY);
+                shared.writeToParcel(this, 0);
+                return;
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Unable to allocate shared memory for blob, writing in place", e);
+            } finally {
+                if (shared != null) {
+                    shared.close();
+                }
+            }
+        }
+        writeInt(SHARED_BLOB_IN_PLACE);
+        if (data.hasArray()) {
+            writeByteArray(data.array(), data.arrayOffset() + data.position(), len);
+        } else {
+            final byte[] bytes = new byte[len];
+            data.duplicate().get(bytes);
+            writeByteArray(bytes);
+        }
+    }
+
+    private boolean allowsFileDescriptors() {
+        // Pushing true never changes the current setting, only returns it.
+        final boolean allowFds = pushAllowFds(true);
+        restoreAllowFds(allowFds);
+        return allowFds;
+    }
+
     /**
      * Write an integer value into the parcel at the current dataPosition(),
      * growing dataCapacity() if needed.
@@ -2701,6 +2800,34 @@ public final class Parcel {
         return nativeReadBlob(mNativePtr);
     }
 
+    /**
+     * Read a blob written with {@link #writeSharedBlob}. A blob sent in shared memory is returned
+     * as a read-only mapping of the region, without copying it; the mapping is released when the
+     * buffer is garbage collected, or earlier with {@link SharedMemory#unmap}.
+     * {@hide}
+     */
+    @NonNull
+    public final ByteBuffer readSharedBlob() {
+        final int kind = readInt();
+        if (kind == SHARED_BLOB_SHARED_MEMORY) {
+            final SharedMemory shared = SharedMemory.CREATOR.createFromParcel(this);
+            try {
+                return shared.mapReadOnly();
+            } catch (ErrnoException e) {
+                throw new BadParcelableException("Unable to map shared blob: " + e);
+            } finally {
+                shared.close();
+            }
+        } else if (kind != SHARED_BLOB_IN_PLACE) {
+            throw new BadParcelableException("Unknown shared blob type " + kind);
+        }
+        final byte[] bytes = createByteArray();
+        if (bytes == null) {
+            throw new BadParcelableException("Missing shared blob data");
+        }
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
     /**
      * Read and return a String[] object from the parcel.
      * {@hide}
@@ -3489,9 +3616,13 @@ public final class Parcel {
 
     /** @hide */
     static protected final Parcel obtain(long obj) {
+        Parcel p = takeFromThreadPool(sThreadHolderPool.get());
+        if (p != null) {
+            p.init(obj);
+            return p;
+        }
         final Parcel[] pool = sHolderPool;
         synchronized (pool) {
-            Parcel p;
             for (int i=0; i<POOL_SIZE; i++) {
                 p = pool[i];
                 if (p != null) {
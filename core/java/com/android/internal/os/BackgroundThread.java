@@ -46,6 +46,7 @@ public final class BackgroundThread extends HandlerThread {
             looper.setTraceTag(Trace.TRACE_TAG_SYSTEM_SERVER);
             looper.setSlowLogThresholdMs(
                     SLOW_DISPATCH_THRESHOLD_MS, SLOW_DELIVERY_THRESHOLD_MS);
+            looper.setLockFreeEnqueueEnabled(true);
             sHandler = new Handler(sInstance.getLooper());
             sHandlerExecutor = new HandlerExecutor(sHandler);
         }
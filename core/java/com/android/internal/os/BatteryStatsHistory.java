@@ -23,12 +23,16 @@ import android.os.SystemClock;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Slog;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ParseUtils;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -49,6 +53,9 @@ import java.util.Set;
  * The file number grows sequentially and we never skip number.
  * When count of history files exceeds {@link BatteryStatsImpl.Constants#MAX_HISTORY_FILES},
  * the lowest numbered file is deleted and a new file is open.
+ * The index file, {@link #INDEX_FILE}, records for each history file the time of its first record
+ * and the state its first delta was encoded against, so that iteration can start at any file
+ * without decoding the ones before it.
  *
  * All interfaces in BatteryStatsHistory should only be called by BatteryStatsImpl and protected by
  * locks on BatteryStatsImpl object.
@@ -59,6 +66,7 @@ public class BatteryStatsHistory {
     private static final String TAG = "BatteryStatsHistory";
     public static final String HISTORY_DIR = "battery-history";
     public static final String FILE_SUFFIX = ".bin";
+    public static final String INDEX_FILE = "index";
     private static final int MIN_FREE_SPACE = 100 * 1024 * 1024;
 
     private final BatteryStatsImpl mStats;
@@ -72,6 +80,12 @@ public class BatteryStatsHistory {
      * A list of history files with incremental indexes.
      */
     private final List<Integer> mFileNumbers = new ArrayList<>();
+    /**
+     * Where each history file starts, keyed by file number. Files written before the index
+     * existed have no entry.
+     */
+    private final SparseArray<FileStart> mFileStarts = new SparseArray<>();
+    private final AtomicFile mIndexFile;
 
     /**
      * A list of small history parcels, used when BatteryStatsImpl object is created from
@@ -100,6 +114,18 @@ public class BatteryStatsHistory {
      * such as Settings app or checkin file, to iterate over history parcels.
      */
     private int mParcelIndex = 0;
+    /**
+     * When iterating history after skipping files, the state the first record is a delta of.
+     */
+    private BatteryStats.HistoryItem mSeekState;
+    /**
+     * When iterating history after skipping files, the time of the oldest record, or -1.
+     */
+    private long mIterationBaseTime = -1;
+    /**
+     * Reused to read history files, so iterating does not allocate a buffer per file.
+     */
+    private byte[] mReadBuffer;
 
     /**
      * Constructor
@@ -144,6 +170,8 @@ public class BatteryStatsHistory {
             mFileNumbers.add(0);
             setActiveFile(0);
         }
+        mIndexFile = new AtomicFile(new File(mHistoryDir, INDEX_FILE));
+        readIndex();
     }
 
     /**
@@ -155,6 +183,7 @@ public class BatteryStatsHistory {
     public BatteryStatsHistory(BatteryStatsImpl stats, Parcel historyBuffer) {
         mStats = stats;
         mHistoryDir = null;
+        mIndexFile = null;
         mHistoryBuffer = historyBuffer;
     }
     /**
@@ -198,6 +227,7 @@ public class BatteryStatsHistory {
         if (!hasFreeDiskSpace()) {
             int oldest = mFileNumbers.remove(0);
             getFile(oldest).delete();
+            mFileStarts.delete(oldest);
         }
 
         // if there are more history files than allowed, delete oldest history files.
@@ -206,7 +236,24 @@ public class BatteryStatsHistory {
             int oldest = mFileNumbers.get(0);
             getFile(oldest).delete();
             mFileNumbers.remove(0);
+            mFileStarts.delete(oldest);
+        }
+    }
+
+    /**
+     * Called when the first record is about to be appended to the history buffer, to index
+     * where the active file starts.
+     * @param previous the last record written before it, which its delta is encoded against.
+     * @param time the time of the first record.
+     */
+    public void noteActiveFileStarted(BatteryStats.HistoryItem previous, long time) {
+        if (mIndexFile == null || mFileNumbers.isEmpty()) {
+            return;
         }
+        final BatteryStats.HistoryItem state = new BatteryStats.HistoryItem();
+        state.setTo(previous);
+        mFileStarts.put(mFileNumbers.get(mFileNumbers.size() - 1), new FileStart(time, state));
+        writeIndex();
     }
 
     /**
@@ -219,6 +266,10 @@ public class BatteryStatsHistory {
         mFileNumbers.clear();
         mFileNumbers.add(0);
         setActiveFile(0);
+        mFileStarts.clear();
+        if (mIndexFile != null) {
+            mIndexFile.delete();
+        }
     }
 
     /**
@@ -231,9 +282,55 @@ public class BatteryStatsHistory {
         mCurrentParcel = null;
         mCurrentParcelEnd = 0;
         mParcelIndex = 0;
+        mSeekState = null;
+        mIterationBaseTime = -1;
         return true;
     }
 
+    /**
+     * Start iterating history files and history buffer, skipping the history files whose
+     * records all precede {@code startTime}. Files are only skipped when the index covers them
+     * and the oldest file, see {@link #getIterationBaseTime()}.
+     * @param startTime the history time of the first record the caller is interested in.
+     * @return always return true.
+     */
+    public boolean startIteratingHistory(long startTime) {
+        startIteratingHistory();
+        if (startTime <= 0 || mHistoryParcels != null || mFileNumbers.isEmpty()) {
+            return true;
+        }
+        final FileStart oldest = mFileStarts.get(mFileNumbers.get(0));
+        if (oldest == null) {
+            return true;
+        }
+        int first = 0;
+        while (first < mFileNumbers.size() - 1) {
+            // The state the next file starts from is the last record of this one.
+            final FileStart next = mFileStarts.get(mFileNumbers.get(first + 1));
+            if (next == null || next.state.time >= startTime) {
+                break;
+            }
+            first++;
+        }
+        if (first > 0) {
+            mCurrentFileIndex = first;
+            mSeekState = mFileStarts.get(mFileNumbers.get(first)).state;
+            mIterationBaseTime = oldest.time;
+            if (DEBUG) {
+                Slog.d(TAG, "Skipped " + first + " history files before " + startTime);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the time of the oldest history record if {@link #startIteratingHistory(long)}
+     *         skipped any records, -1 otherwise.
+     */
+    public long getIterationBaseTime() {
+        return mIterationBaseTime;
+    }
+
     /**
      * Finish iterating history files and history buffer.
      */
@@ -255,8 +352,13 @@ public class BatteryStatsHistory {
      */
     public Parcel getNextParcel(BatteryStats.HistoryItem out) {
         if (mRecordCount == 0) {
-            // reset out if it is the first record.
-            out.clear();
+            // reset out if it is the first record, or restore the state the first record of the
+            // file iteration starts from was written against.
+            if (mSeekState != null) {
+                out.setTo(mSeekState);
+            } else {
+                out.clear();
+            }
         }
         ++mRecordCount;
 
@@ -332,10 +434,10 @@ public class BatteryStatsHistory {
      * @return true if success, false otherwise.
      */
     public boolean readFileToParcel(Parcel out, AtomicFile file) {
-        byte[] raw = null;
+        final int length;
         try {
             final long start = SystemClock.uptimeMillis();
-            raw = file.readFully();
+            length = readFileToBuffer(file);
             if (DEBUG) {
                 Slog.d(TAG, "readFileToParcel:" + file.getBaseFile().getPath()
                         + " duration ms:" + (SystemClock.uptimeMillis() - start));
@@ -344,11 +446,39 @@ public class BatteryStatsHistory {
             Slog.e(TAG, "Error reading file "+ file.getBaseFile().getPath(), e);
             return false;
         }
-        out.unmarshall(raw, 0, raw.length);
+        out.unmarshall(mReadBuffer, 0, length);
         out.setDataPosition(0);
         return skipHead(out);
     }
 
+    /**
+     * Read a history file into {@link #mReadBuffer}, which only grows as needed. Unlike
+     * {@link AtomicFile#readFully()}, this does not allocate a new, repeatedly grown array for
+     * every file.
+     * @return the number of bytes read.
+     */
+    private int readFileToBuffer(AtomicFile file) throws IOException {
+        try (FileInputStream in = file.openRead()) {
+            final long size = in.getChannel().size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("History file too large: " + size);
+            }
+            final int length = (int) size;
+            if (mReadBuffer == null || mReadBuffer.length < length) {
+                mReadBuffer = new byte[length];
+            }
+            int pos = 0;
+            while (pos < length) {
+                final int amt = in.read(mReadBuffer, pos, length - pos);
+                if (amt < 0) {
+                    break;
+                }
+                pos += amt;
+            }
+            return pos;
+        }
+    }
+
     /**
      * Skip the header part of history parcel.
      * @param p history parcel to skip head.
@@ -376,13 +506,17 @@ public class BatteryStatsHistory {
         out.writeInt(mFileNumbers.size() - 1);
         for(int i = 0;  i < mFileNumbers.size() - 1; i++) {
             AtomicFile file = getFile(mFileNumbers.get(i));
-            byte[] raw = new byte[0];
+            int length = 0;
             try {
-                raw = file.readFully();
+                length = readFileToBuffer(file);
             } catch(Exception e) {
                 Slog.e(TAG, "Error reading file "+ file.getBaseFile().getPath(), e);
             }
-            out.writeByteArray(raw);
+            if (length > 0) {
+                out.writeByteArray(mReadBuffer, 0, length);
+            } else {
+                out.writeByteArray(new byte[0]);
+            }
         }
         if (DEBUG) {
             Slog.d(TAG, "writeToParcel duration ms:" + (SystemClock.uptimeMillis() - start));
@@ -414,6 +548,66 @@ public class BatteryStatsHistory {
         }
     }
 
+    /**
+     * Read {@link #mFileStarts} back from the index file, dropping entries of files that no
+     * longer exist.
+     */
+    private void readIndex() {
+        if (!mIndexFile.exists()) {
+            return;
+        }
+        final Parcel p = Parcel.obtain();
+        try {
+            final byte[] raw = mIndexFile.readFully();
+            p.unmarshall(raw, 0, raw.length);
+            p.setDataPosition(0);
+            if (p.readInt() != mStats.VERSION) {
+                return;
+            }
+            final int count = p.readInt();
+            for (int i = 0; i < count; i++) {
+                final int fileNumber = p.readInt();
+                final long time = p.readLong();
+                final BatteryStats.HistoryItem state = new BatteryStats.HistoryItem(p);
+                if (mFileNumbers.contains(fileNumber)) {
+                    mFileStarts.put(fileNumber, new FileStart(time, state));
+                }
+            }
+        } catch (Exception e) {
+            Slog.e(TAG, "Error reading file " + mIndexFile.getBaseFile().getPath(), e);
+            mFileStarts.clear();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    /**
+     * Write {@link #mFileStarts} to the index file. It holds one small entry per history file,
+     * and is only written when a new file starts.
+     */
+    private void writeIndex() {
+        final Parcel p = Parcel.obtain();
+        FileOutputStream fos = null;
+        try {
+            p.writeInt(mStats.VERSION);
+            p.writeInt(mFileStarts.size());
+            for (int i = 0; i < mFileStarts.size(); i++) {
+                final FileStart start = mFileStarts.valueAt(i);
+                p.writeInt(mFileStarts.keyAt(i));
+                p.writeLong(start.time);
+                start.state.writeToParcel(p, 0);
+            }
+            fos = mIndexFile.startWrite();
+            fos.write(p.marshall());
+            mIndexFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.e(TAG, "Error writing file " + mIndexFile.getBaseFile().getPath(), e);
+            mIndexFile.failWrite(fos);
+        } finally {
+            p.recycle();
+        }
+    }
+
     /**
      * @return true if there is more than 100MB free disk space left.
      */
@@ -446,4 +640,19 @@ public class BatteryStatsHistory {
         }
         return ret;
     }
+
+    /**
+     * Where a history file starts.
+     */
+    private static final class FileStart {
+        /** The time of the first record in the file. */
+        final long time;
+        /** The last record of the previous file, which the first record's delta is against. */
+        final BatteryStats.HistoryItem state;
+
+        FileStart(long time, BatteryStats.HistoryItem state) {
+            this.time = time;
+            this.state = state;
+        }
+    }
 }
@@ -3718,6 +3718,11 @@ public class BatteryStatsImpl extends BatteryStats {
             throw new IllegalStateException("Can't do this while iterating history!");
         }
         mHistoryBufferLastPos = mHistoryBuffer.dataPosition();
+        if (mHistoryBufferLastPos == 0 && mBatteryStatsHistory != null) {
+            // The first delta in the active file is against mHistoryLastWritten.
+            mBatteryStatsHistory.noteActiveFileStarted(mHistoryLastWritten,
+                    mHistoryBaseTime + elapsedRealtimeMs);
+        }
         mHistoryLastLastWritten.setTo(mHistoryLastWritten);
         mHistoryLastWritten.setTo(mHistoryBaseTime + elapsedRealtimeMs, cmd, cur);
         mHistoryLastWritten.states &= mActiveHistoryStates;
@@ -10326,7 +10331,12 @@ public class BatteryStatsImpl extends BatteryStats {
     @Override
     @UnsupportedAppUsage
     public boolean startIteratingHistoryLocked() {
-        mBatteryStatsHistory.startIteratingHistory();
+        return startIteratingHistoryLocked(-1);
+    }
+
+    @Override
+    public boolean startIteratingHistoryLocked(long startTime) {
+        mBatteryStatsHistory.startIteratingHistory(startTime);
         mReadOverflow = false;
         mIteratingHistory = true;
         mReadHistoryStrings = new String[mHistoryTagPool.size()];
@@ -10381,6 +10391,11 @@ public class BatteryStatsImpl extends BatteryStats {
         return true;
     }
 
+    @Override
+    public long getHistoryIterationBaseTimeLocked() {
+        return mBatteryStatsHistory.getIterationBaseTime();
+    }
+
     @Override
     public void finishIteratingHistoryLocked() {
         mBatteryStatsHistory.finishIteratingHistory();
@@ -55,6 +55,7 @@ public class BinderCallsStats implements BinderInternal.Observer {
     public static final boolean DEFAULT_TRACK_SCREEN_INTERACTIVE = false;
     public static final boolean DEFAULT_TRACK_DIRECT_CALLING_UID = true;
     public static final int MAX_BINDER_CALL_STATS_COUNT_DEFAULT = 1500;
+    public static final boolean DEFAULT_COLLECT_LATENCY_HISTOGRAMS = true;
     private static final String DEBUG_ENTRY_PREFIX = "__DEBUG_";
 
     private static class OverflowBinder extends Binder {}
@@ -69,13 +70,23 @@ public class BinderCallsStats implements BinderInternal.Observer {
     private static final boolean OVERFLOW_SCREEN_INTERACTIVE = false;
     private static final int OVERFLOW_DIRECT_CALLING_UID = -1;
     private static final int OVERFLOW_TRANSACTION_CODE = -1;
+    // Number of slowest calls kept as examples of tail latency.
+    private static final int MAX_SLOW_CALLS = 10;
 
     // Whether to collect all the data: cpu + exceptions + reply/request sizes.
     private boolean mDetailedTracking = DETAILED_TRACKING_DEFAULT;
     // Sampling period to control how often to track CPU usage. 1 means all calls, 100 means ~1 out
     // of 100 requests.
     private int mPeriodicSamplingInterval = PERIODIC_SAMPLING_INTERVAL_DEFAULT;
+    // Sampling periods overriding mPeriodicSamplingInterval for calls to some binder classes,
+    // keyed by class name. Replaced rather than modified, as it's read without the lock.
+    private volatile ArrayMap<String, Integer> mClassSamplingIntervals = new ArrayMap<>();
     private int mMaxBinderCallStatsCount = MAX_BINDER_CALL_STATS_COUNT_DEFAULT;
+    // Whether to keep a histogram of the latency of each call, not only its total and max.
+    private boolean mCollectLatencyHistograms = DEFAULT_COLLECT_LATENCY_HISTOGRAMS;
+    // Slowest recorded calls since the last reset, slowest first.
+    @GuardedBy("mLock")
+    private final ArrayList<SlowCall> mSlowCalls = new ArrayList<>();
     @GuardedBy("mLock")
     private final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
     @GuardedBy("mLock")
@@ -125,7 +136,7 @@ public class BinderCallsStats implements BinderInternal.Observer {
         s.exceptionThrown = false;
         s.cpuTimeStarted = -1;
         s.timeStarted = -1;
-        if (shouldRecordDetailedData()) {
+        if (shouldRecordDetailedData(s.binderClass)) {
             s.cpuTimeStarted = getThreadTimeMicro();
             s.timeStarted = getElapsedRealtimeMicro();
         }
@@ -200,6 +211,16 @@ public class BinderCallsStats implements BinderInternal.Observer {
                 callStat.latencyMicros += latencyDuration;
                 callStat.maxLatencyMicros =
                         Math.max(callStat.maxLatencyMicros, latencyDuration);
+                if (mCollectLatencyHistograms) {
+                    if (callStat.latencyHistogram == null) {
+                        callStat.latencyHistogram = new LatencyHistogram();
+                    }
+                    callStat.latencyHistogram.add(latencyDuration);
+                }
+                if (mSlowCalls.size() < MAX_SLOW_CALLS || latencyDuration
+                        > mSlowCalls.get(mSlowCalls.size() - 1).latencyMicros) {
+                    addSlowCallLocked(s, callingUid, workSourceUid, duration, latencyDuration);
+                }
                 if (mDetailedTracking) {
                     callStat.exceptionCount += s.exceptionThrown ? 1 : 0;
                     callStat.maxRequestSizeBytes =
@@ -220,6 +241,29 @@ public class BinderCallsStats implements BinderInternal.Observer {
         }
     }
 
+    @GuardedBy("mLock")
+    private void addSlowCallLocked(CallSession s, int callingUid, int workSourceUid,
+            long cpuTimeMicros, long latencyMicros) {
+        final SlowCall call = new SlowCall();
+        call.callingUid = callingUid;
+        call.workSourceUid = workSourceUid;
+        call.binderClass = s.binderClass;
+        call.transactionCode = s.transactionCode;
+        call.cpuTimeMicros = cpuTimeMicros;
+        call.latencyMicros = latencyMicros;
+        call.threadName = Thread.currentThread().getName();
+        call.timeMillis = System.currentTimeMillis();
+
+        int index = mSlowCalls.size();
+        while (index > 0 && mSlowCalls.get(index - 1).latencyMicros < latencyMicros) {
+            index--;
+        }
+        mSlowCalls.add(index, call);
+        if (mSlowCalls.size() > MAX_SLOW_CALLS) {
+            mSlowCalls.remove(MAX_SLOW_CALLS);
+        }
+    }
+
     private UidEntry getUidEntry(int uid) {
         UidEntry uidEntry = mUidEntries.get(uid);
         if (uidEntry == null) {
@@ -304,6 +348,9 @@ public class BinderCallsStats implements BinderInternal.Observer {
                     exported.maxRequestSizeBytes = stat.maxRequestSizeBytes;
                     exported.maxReplySizeBytes = stat.maxReplySizeBytes;
                     exported.exceptionCount = stat.exceptionCount;
+                    if (stat.latencyHistogram != null) {
+                        exported.latencyHistogram = stat.latencyHistogram.getCounts();
+                    }
                     resultCallStats.add(exported);
                 }
             }
@@ -350,6 +397,28 @@ public class BinderCallsStats implements BinderInternal.Observer {
         return resultCallStats;
     }
 
+    /**
+     * Returns the slowest recorded calls since the last reset, slowest first.
+     */
+    public ArrayList<SlowCall> getSlowCalls() {
+        final ArrayList<SlowCall> slowCalls;
+        synchronized (mLock) {
+            slowCalls = new ArrayList<>(mSlowCalls);
+        }
+        // Resolve codes outside of the lock since it can be slow.
+        for (int i = 0; i < slowCalls.size(); i++) {
+            final SlowCall call = slowCalls.get(i);
+            if (call.methodName == null) {
+                final String resolvedCode = resolveTransactionCode(
+                        getDefaultTransactionNameMethod(call.binderClass), call.transactionCode);
+                call.methodName = resolvedCode == null
+                        ? String.valueOf(call.transactionCode)
+                        : resolvedCode;
+            }
+        }
+        return slowCalls;
+    }
+
     private ExportedCallStat createDebugEntry(String variableName, long value) {
         final int uid = Process.myUid();
         final ExportedCallStat callStat = new ExportedCallStat();
@@ -386,6 +455,11 @@ public class BinderCallsStats implements BinderInternal.Observer {
         pw.print("On battery time (ms): ");
         pw.println(mBatteryStopwatch != null ? mBatteryStopwatch.getMillis() : 0);
         pw.println("Sampling interval period: " + mPeriodicSamplingInterval);
+        final ArrayMap<String, Integer> classSamplingIntervals = mClassSamplingIntervals;
+        for (int i = 0; i < classSamplingIntervals.size(); i++) {
+            pw.println("  " + classSamplingIntervals.keyAt(i) + ": "
+                    + classSamplingIntervals.valueAt(i));
+        }
         final List<UidEntry> entries = new ArrayList<>();
 
         final int uidEntriesSize = mUidEntries.size();
@@ -460,12 +534,58 @@ public class BinderCallsStats implements BinderInternal.Observer {
             pw.println(String.format("  %6d %s", entry.second, entry.first));
         }
 
+        if (mCollectLatencyHistograms) {
+            dumpLatencyPercentilesLocked(pw, packageMap, exportedCallStats, verbose);
+        }
+        pw.println();
+        pw.println("Slowest calls (latency_micros, cpu_time_micros, package/uid, worksource, "
+                + "call_desc, thread, time):");
+        for (SlowCall call : getSlowCalls()) {
+            pw.println(String.format("  %10d %10d %s %s %s#%s %s %s",
+                    call.latencyMicros, call.cpuTimeMicros,
+                    packageMap.mapUid(call.callingUid), packageMap.mapUid(call.workSourceUid),
+                    call.binderClass.getName(), call.methodName, call.threadName,
+                    DateFormat.format("yyyy-MM-dd HH:mm:ss", call.timeMillis)));
+        }
+
         if (mPeriodicSamplingInterval != 1) {
             pw.println("");
             pw.println("/!\\ Displayed data is sampled. See sampling interval at the top.");
         }
     }
 
+    private void dumpLatencyPercentilesLocked(PrintWriter pw, AppIdToPackageMap packageMap,
+            List<ExportedCallStat> exportedCallStats, boolean verbose) {
+        final List<ExportedCallStat> withHistograms = new ArrayList<>();
+        for (ExportedCallStat e : exportedCallStats) {
+            if (e.latencyHistogram != null) {
+                withHistograms.add(e);
+            }
+        }
+        withHistograms.sort(Comparator.<ExportedCallStat>comparingLong(
+                e -> LatencyHistogram.getPercentile(e.latencyHistogram, 0.99)).reversed());
+        final String datasetSizeDesc = verbose ? "" : "(top 20 by p99) ";
+        pw.println();
+        pw.println("Latency percentiles " + datasetSizeDesc
+                + "(package/uid, worksource, call_desc, recorded_call_count, p50_micros, "
+                + "p90_micros, p99_micros, max_latency_micros):");
+        final int count = verbose ? withHistograms.size() : Math.min(20, withHistograms.size());
+        for (int i = 0; i < count; i++) {
+            final ExportedCallStat e = withHistograms.get(i);
+            // Bucket bounds can exceed the largest value seen.
+            pw.println(String.format("  %s,%s,%s#%s,%d,%d,%d,%d,%d",
+                    packageMap.mapUid(e.callingUid), packageMap.mapUid(e.workSourceUid),
+                    e.className, e.methodName, e.recordedCallCount,
+                    Math.min(LatencyHistogram.getPercentile(e.latencyHistogram, 0.5),
+                            e.maxLatencyMicros),
+                    Math.min(LatencyHistogram.getPercentile(e.latencyHistogram, 0.9),
+                            e.maxLatencyMicros),
+                    Math.min(LatencyHistogram.getPercentile(e.latencyHistogram, 0.99),
+                            e.maxLatencyMicros),
+                    e.maxLatencyMicros));
+        }
+    }
+
     protected long getThreadTimeMicro() {
         return SystemClock.currentThreadTimeMicro();
     }
@@ -478,8 +598,17 @@ public class BinderCallsStats implements BinderInternal.Observer {
         return SystemClock.elapsedRealtimeNanos() / 1000;
     }
 
-    protected boolean shouldRecordDetailedData() {
-        return mRandom.nextInt() % mPeriodicSamplingInterval == 0;
+    protected boolean shouldRecordDetailedData(Class<? extends Binder> binderClass) {
+        int samplingInterval = mPeriodicSamplingInterval;
+        final ArrayMap<String, Integer> classSamplingIntervals = mClassSamplingIntervals;
+        if (!classSamplingIntervals.isEmpty()) {
+            final Integer classSamplingInterval =
+                    classSamplingIntervals.get(binderClass.getName());
+            if (classSamplingInterval != null) {
+                samplingInterval = classSamplingInterval;
+            }
+        }
+        return mRandom.nextInt() % samplingInterval == 0;
     }
 
     /**
@@ -555,11 +684,47 @@ public class BinderCallsStats implements BinderInternal.Observer {
         }
     }
 
+    /**
+     * Sets sampling periods for calls to specific binder classes, by class name, overriding the
+     * sampling interval for those classes.
+     */
+    public void setClassSamplingIntervals(@NonNull Map<String, Integer> samplingIntervals) {
+        final ArrayMap<String, Integer> classSamplingIntervals = new ArrayMap<>();
+        for (Map.Entry<String, Integer> entry : samplingIntervals.entrySet()) {
+            if (entry.getValue() <= 0) {
+                Slog.w(TAG, "Ignored invalid sampling interval for " + entry.getKey()
+                        + " (value must be positive): " + entry.getValue());
+                continue;
+            }
+            classSamplingIntervals.put(entry.getKey(), entry.getValue());
+        }
+
+        synchronized (mLock) {
+            if (!classSamplingIntervals.equals(mClassSamplingIntervals)) {
+                mClassSamplingIntervals = classSamplingIntervals;
+                reset();
+            }
+        }
+    }
+
+    /**
+     * Whether to keep a latency histogram for each call.
+     */
+    public void setCollectLatencyHistograms(boolean enabled) {
+        synchronized (mLock) {
+            if (enabled != mCollectLatencyHistograms) {
+                mCollectLatencyHistograms = enabled;
+                reset();
+            }
+        }
+    }
+
     public void reset() {
         synchronized (mLock) {
             mCallStatsCount = 0;
             mUidEntries.clear();
             mExceptionCounts.clear();
+            mSlowCalls.clear();
             mStartCurrentTime = System.currentTimeMillis();
             mStartElapsedTime = SystemClock.elapsedRealtime();
             if (mBatteryStopwatch != null) {
@@ -586,12 +751,106 @@ public class BinderCallsStats implements BinderInternal.Observer {
         public long maxRequestSizeBytes;
         public long maxReplySizeBytes;
         public long exceptionCount;
+        // Bucket counts of a LatencyHistogram, or null if histograms aren't collected.
+        @Nullable
+        public int[] latencyHistogram;
 
         // Used internally.
         Class<? extends Binder> binderClass;
         int transactionCode;
     }
 
+    /**
+     * One of the slowest recorded calls, kept as an example of tail latency.
+     */
+    public static class SlowCall {
+        public int callingUid;
+        public int workSourceUid;
+        public Class<? extends Binder> binderClass;
+        public int transactionCode;
+        // Resolved by getSlowCalls().
+        public String methodName;
+        public long cpuTimeMicros;
+        public long latencyMicros;
+        // Binder thread the call ran on.
+        public String threadName;
+        // Wall clock time the call ended.
+        public long timeMillis;
+    }
+
+    /**
+     * Histogram of latencies in microseconds with log-linear buckets, as in HdrHistogram: each
+     * power of two is split into {@code 1 << SUB_BUCKET_BITS} equal buckets, so any value is
+     * within 25% of the bounds of its bucket, in a fixed 84 buckets.
+     */
+    public static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        // Values of 2^MAX_EXPONENT micros (about 4s) and more are counted in the last bucket.
+        private static final int MAX_EXPONENT = 22;
+        public static final int BUCKET_COUNT =
+                (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+        private final int[] mCounts = new int[BUCKET_COUNT];
+
+        /** Counts a latency. */
+        public void add(long latencyMicros) {
+            mCounts[getBucket(latencyMicros)]++;
+        }
+
+        /** Returns a copy of the bucket counts. */
+        public int[] getCounts() {
+            return mCounts.clone();
+        }
+
+        /** Returns the bucket that counts the given latency. */
+        public static int getBucket(long latencyMicros) {
+            if (latencyMicros < SUB_BUCKET_COUNT) {
+                return latencyMicros <= 0 ? 0 : (int) latencyMicros;
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(latencyMicros);
+            if (exponent >= MAX_EXPONENT) {
+                return BUCKET_COUNT - 1;
+            }
+            final int subBucket = (int) (latencyMicros >>> (exponent - SUB_BUCKET_BITS))
+                    & (SUB_BUCKET_COUNT - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+        }
+
+        /** Returns the smallest latency counted in the given bucket. */
+        public static long getBucketLowerBound(int bucket) {
+            if (bucket < SUB_BUCKET_COUNT) {
+                return bucket;
+            }
+            final int exponent = bucket / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+            final int subBucket = bucket % SUB_BUCKET_COUNT;
+            return (long) (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        /**
+         * Returns the highest latency in the bucket holding the given percentile of the counts,
+         * or the lower bound of the last bucket if it's in there.
+         */
+        public static long getPercentile(@NonNull int[] counts, double percentile) {
+            long total = 0;
+            for (int count : counts) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long target = Math.max(1, (long) Math.ceil(percentile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length - 1; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return getBucketLowerBound(i + 1) - 1;
+                }
+            }
+            return getBucketLowerBound(counts.length - 1);
+        }
+    }
+
     @VisibleForTesting
     public static class CallStat {
         // The UID who executed the transaction (i.e. Binder#getCallingUid).
@@ -620,6 +879,9 @@ public class BinderCallsStats implements BinderInternal.Observer {
         public long maxRequestSizeBytes;
         public long maxReplySizeBytes;
         public long exceptionCount;
+        // Only kept if latency histograms are collected.
+        @Nullable
+        public LatencyHistogram latencyHistogram;
 
         CallStat(int callingUid, Class<? extends Binder> binderClass, int transactionCode,
                 boolean screenInteractive) {
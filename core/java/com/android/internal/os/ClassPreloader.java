@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Trace;
+import android.util.Log;
+import android.util.TimingsTraceLog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads and initializes the classes preloaded by {@link ZygoteInit}, optionally spreading the
+ * work over a few short-lived worker threads.
+ *
+ * <p>Preloading runs in two phases. Classes in the main thread set, whose static initializers
+ * have side effects that must not race with other initializers, are initialized first on the
+ * calling thread, in list order. The remaining classes are then taken in list order by the
+ * calling thread and the workers; the runtime serializes initialization of any one class, so a
+ * class needed by several initializers is only initialized once. Initializers that depend on
+ * each other in a cycle can deadlock when started on different threads, so such classes also
+ * belong in the main thread set. All workers are joined before {@link #preload} returns, so the
+ * caller is single threaded again afterwards.
+ *
+ * @hide
+ */
+public final class ClassPreloader {
+    private static final String TAG = "Zygote";
+
+    /** Prefix of the durations logged for slow classes, read back by the preload-ordering tool. */
+    public static final String DURATION_PREFIX = "PreloadClass ";
+
+    /** Classes that take at least this long have their initialization time logged. */
+    private static final long SLOW_CLASS_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final List<String> mClasses;
+    private final Set<String> mMainThreadClasses;
+    private final ClassLoader mClassLoader;
+    private final int mThreads;
+    private final boolean mLogMissingLambdas;
+
+    /** Time spent loading and initializing each class, indexed like {@link #mClasses}. */
+    private final long[] mDurationNanos;
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final AtomicInteger mCount = new AtomicInteger();
+    private final AtomicInteger mMissingLambdaCount = new AtomicInteger();
+    private volatile Throwable mFailure;
+
+    /**
+     * @param classes the classes to preload, in order
+     * @param mainThreadClasses the classes that must be initialized on the calling thread
+     * @param classLoader the loader to use, or {@code null} for the boot class loader
+     * @param threads the number of worker threads to start, or 0 to preload serially
+     * @param logMissingLambdas whether to count lambda classes that couldn't be found
+     */
+    public ClassPreloader(List<String> classes, Set<String> mainThreadClasses,
+            ClassLoader classLoader, int threads, boolean logMissingLambdas) {
+        mClasses = classes;
+        mMainThreadClasses = mainThreadClasses;
+        mClassLoader = classLoader;
+        mThreads = threads;
+        mLogMissingLambdas = logMissingLambdas;
+        mDurationNanos = new long[classes.size()];
+    }
+
+    /**
+     * Preloads the classes, returning the number that were found. Errors thrown by static
+     * initializers are rethrown on the calling thread once all workers have stopped.
+     */
+    public int preload() {
+        if (mThreads <= 0) {
+            for (int i = 0; i < mClasses.size(); i++) {
+                preloadClass(i);
+                rethrowFailure();
+            }
+            return mCount.get();
+        }
+
+        for (int i = 0; i < mClasses.size(); i++) {
+            if (mMainThreadClasses.contains(mClasses.get(i))) {
+                preloadClass(i);
+                rethrowFailure();
+            }
+        }
+
+        final Thread[] workers = new Thread[mThreads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::preloadShared, "ClassPreloader-" + i);
+            workers[i].start();
+        }
+        preloadShared();
+        for (Thread worker : workers) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        rethrowFailure();
+        return mCount.get();
+    }
+
+    private void preloadShared() {
+        int i;
+        while (mFailure == null && (i = mNext.getAndIncrement()) < mClasses.size()) {
+            if (!mMainThreadClasses.contains(mClasses.get(i))) {
+                preloadClass(i);
+            }
+        }
+    }
+
+    private void preloadClass(int index) {
+        final String name = mClasses.get(index);
+        Trace.traceBegin(Trace.TRACE_TAG_DALVIK, name);
+        final long start = System.nanoTime();
+        try {
+            // Load and explicitly initialize the given class. Use
+            // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
+            // (to derive the caller's class-loader). Use true to force initialization.
+            Class.forName(name, true, mClassLoader);
+            mCount.incrementAndGet();
+        } catch (ClassNotFoundException e) {
+            if (name.contains("$$Lambda$")) {
+                if (mLogMissingLambdas) {
+                    mMissingLambdaCount.incrementAndGet();
+                }
+            } else {
+                Log.w(TAG, "Class not found for preloading: " + name);
+            }
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Problem preloading " + name + ": " + e);
+        } catch (Throwable t) {
+            Log.e(TAG, "Error preloading " + name + ".", t);
+            if (mFailure == null) {
+                mFailure = t;
+            }
+        } finally {
+            mDurationNanos[index] = System.nanoTime() - start;
+            Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+        }
+    }
+
+    private void rethrowFailure() {
+        final Throwable t = mFailure;
+        if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /** Returns the number of lambda classes that couldn't be found. */
+    public int getMissingLambdaCount() {
+        return mMissingLambdaCount.get();
+    }
+
+    /** Returns the time spent loading and initializing the class at the given index. */
+    @VisibleForTesting
+    public long getDurationNanos(int index) {
+        return mDurationNanos[index];
+    }
+
+    /**
+     * Logs the time taken by each slow class to the given log, where the preload-ordering tool
+     * can pick it up. Must be called on the thread that created {@code log}.
+     */
+    public void logSlowClasses(TimingsTraceLog log) {
+        for (int i = 0; i < mClasses.size(); i++) {
+            if (mDurationNanos[i] >= SLOW_CLASS_NANOS) {
+                log.logDuration(DURATION_PREFIX + mClasses.get(i),
+                        TimeUnit.NANOSECONDS.toMillis(mDurationNanos[i]));
+            }
+        }
+    }
+}
@@ -113,6 +113,10 @@ public class LooperStats implements Looper.Observer {
                         entry.delayMillis += delay;
                         entry.maxDelayMillis = Math.max(entry.maxDelayMillis, delay);
                         entry.recordedDelayMessageCount++;
+                        if (entry.delayHistogram == null) {
+                            entry.delayHistogram = new BinderCallsStats.LatencyHistogram();
+                        }
+                        entry.delayHistogram.add(delay * 1000);
                     }
                 }
             }
@@ -301,6 +305,8 @@ public class LooperStats implements Looper.Observer {
         public long recordedDelayMessageCount;
         public long delayMillis;
         public long maxDelayMillis;
+        // Delays in micros, created with the first recorded delay.
+        public BinderCallsStats.LatencyHistogram delayHistogram;
 
         Entry(Message msg, boolean isInteractive) {
             this.workSourceUid = msg.workSourceUid;
@@ -327,6 +333,7 @@ public class LooperStats implements Looper.Observer {
             delayMillis = 0;
             maxDelayMillis = 0;
             recordedDelayMessageCount = 0;
+            delayHistogram = null;
         }
 
         static int idFor(Message msg, boolean isInteractive) {
@@ -360,6 +367,10 @@ public class LooperStats implements Looper.Observer {
         public final long maxDelayMillis;
         public final long delayMillis;
         public final long recordedDelayMessageCount;
+        // Bucket counts of a BinderCallsStats.LatencyHistogram of the delays in micros, or null
+        // if no delay was recorded.
+        @Nullable
+        public final int[] delayHistogram;
 
         ExportedEntry(Entry entry) {
             this.workSourceUid = entry.workSourceUid;
@@ -383,6 +394,8 @@ public class LooperStats implements Looper.Observer {
             this.delayMillis = entry.delayMillis;
             this.maxDelayMillis = entry.maxDelayMillis;
             this.recordedDelayMessageCount = entry.recordedDelayMessageCount;
+            this.delayHistogram =
+                    entry.delayHistogram != null ? entry.delayHistogram.getCounts() : null;
         }
     }
 }
@@ -49,6 +49,7 @@ import android.system.StructCapUserData;
 import android.system.StructCapUserHeader;
 import android.text.Hyphenator;
 import android.util.EventLog;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Slog;
 import android.util.TimingsTraceLog;
@@ -73,6 +74,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.Provider;
 import java.security.Security;
+import java.util.ArrayList;
 import java.util.Optional;
 
 /**
@@ -114,6 +116,25 @@ public class ZygoteInit {
      */
     private static final String PRELOADED_CLASSES = "/system/etc/preloaded-classes";
 
+    /**
+     * Number of extra threads used to preload classes, capped at one less than the number of
+     * processors. 0, the default, preloads classes serially.
+     */
+    private static final String PROPERTY_PRELOAD_THREADS = "ro.zygote.preload_threads";
+
+    /**
+     * Preloaded classes that are always initialized on the main thread, before any other class,
+     * when classes are preloaded in parallel. Their static initializers have side effects that
+     * other initializers depend on or that must not race with them.
+     */
+    private static final String[] MAIN_THREAD_PRELOADED_CLASSES = {
+            // Registers the JCA providers, whose order matters.
+            "java.security.Security",
+            "sun.security.jca.Providers",
+            // Loads the system fonts and sets the default typefaces.
+            "android.graphics.Typeface",
+    };
+
     /**
      * Controls whether we should preload resources during zygote init.
      */
@@ -127,13 +148,16 @@ public class ZygoteInit {
 
     private static boolean sPreloadComplete;
 
+    /** Whether the runtime refuses to start threads, as it does until the zygote forks. */
+    private static boolean sNoThreadCreation;
+
     static void preload(TimingsTraceLog bootTimingsTraceLog) {
         Log.d(TAG, "begin preload");
         bootTimingsTraceLog.traceBegin("BeginPreload");
         beginPreload();
         bootTimingsTraceLog.traceEnd(); // BeginPreload
         bootTimingsTraceLog.traceBegin("PreloadClasses");
-        preloadClasses();
+        preloadClasses(bootTimingsTraceLog);
         bootTimingsTraceLog.traceEnd(); // PreloadClasses
         bootTimingsTraceLog.traceBegin("CacheNonBootClasspathClassLoaders");
         cacheNonBootClasspathClassLoaders();
@@ -258,7 +282,7 @@ public class ZygoteInit {
      * Most classes only cause a few hundred bytes to be allocated, but a few will allocate a dozen
      * Kbytes (in one case, 500+K).
      */
-    private static void preloadClasses() {
+    private static void preloadClasses(TimingsTraceLog bootTimingsTraceLog) {
         final VMRuntime runtime = VMRuntime.getRuntime();
 
         InputStream is;
@@ -295,8 +319,7 @@ public class ZygoteInit {
             BufferedReader br =
                     new BufferedReader(new InputStreamReader(is), Zygote.SOCKET_BUFFER_SIZE);
 
-            int count = 0;
-            int missingLambdaCount = 0;
+            final ArrayList<String> classes = new ArrayList<>();
             String line;
             while ((line = br.readLine()) != null) {
                 // Skip comments and blank lines.
@@ -304,43 +327,34 @@ public class ZygoteInit {
                 if (line.startsWith("#") || line.equals("")) {
                     continue;
                 }
+                classes.add(line);
+            }
 
-                Trace.traceBegin(Trace.TRACE_TAG_DALVIK, line);
-                try {
-                    // Load and explicitly initialize the given class. Use
-                    // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
-                    // (to derive the caller's class-loader). Use true to force initialization, and
-                    // null for the boot classpath class-loader (could as well cache the
-                    // class-loader of this class in a variable).
-                    Class.forName(line, true, null);
-                    count++;
-                } catch (ClassNotFoundException e) {
-                    if (line.contains("$$Lambda$")) {
-                        if (LOGGING_DEBUG) {
-                            missingLambdaCount++;
-                        }
-                    } else {
-                        Log.w(TAG, "Class not found for preloading: " + line);
-                    }
-                } catch (UnsatisfiedLinkError e) {
-                    Log.w(TAG, "Problem preloading " + line + ": " + e);
-                } catch (Throwable t) {
-                    Log.e(TAG, "Error preloading " + line + ".", t);
-                    if (t instanceof Error) {
-                        throw (Error) t;
-                    } else if (t instanceof RuntimeException) {
-                        throw (RuntimeException) t;
-                    } else {
-                        throw new RuntimeException(t);
-                    }
+            final int threads = getPreloadThreads();
+            final ClassPreloader preloader = new ClassPreloader(classes,
+                    new ArraySet<>(MAIN_THREAD_PRELOADED_CLASSES), null /* classLoader */,
+                    threads, LOGGING_DEBUG);
+            // The zygote may not start threads before it first forks, except here where they
+            // are all joined again before preloading goes on.
+            final boolean allowThreads = threads > 0 && sNoThreadCreation;
+            if (allowThreads) {
+                ZygoteHooks.stopZygoteNoThreadCreation();
+            }
+            final int count;
+            try {
+                count = preloader.preload();
+            } finally {
+                if (allowThreads) {
+                    ZygoteHooks.startZygoteNoThreadCreation();
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
             }
+            preloader.logSlowClasses(bootTimingsTraceLog);
 
             Log.i(TAG, "...preloaded " + count + " classes in "
-                    + (SystemClock.uptimeMillis() - startTime) + "ms.");
-            if (LOGGING_DEBUG && missingLambdaCount != 0) {
-                Log.i(TAG, "Unresolved lambda preloads: " + missingLambdaCount);
+                    + (SystemClock.uptimeMillis() - startTime) + "ms"
+                    + (threads > 0 ? " on " + (threads + 1) + " threads." : "."));
+            if (LOGGING_DEBUG && preloader.getMissingLambdaCount() != 0) {
+                Log.i(TAG, "Unresolved lambda preloads: " + preloader.getMissingLambdaCount());
             }
         } catch (IOException e) {
             Log.e(TAG, "Error reading " + PRELOADED_CLASSES + ".", e);
@@ -380,6 +394,11 @@ public class ZygoteInit {
         }
     }
 
+    private static int getPreloadThreads() {
+        final int threads = SystemProperties.getInt(PROPERTY_PRELOAD_THREADS, 0);
+        return Math.max(0, Math.min(threads, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
     /**
      * Load in things which are used by many apps but which cannot be put in the boot
      * classpath.
@@ -866,6 +885,7 @@ public class ZygoteInit {
         // Mark zygote start. This ensures that thread creation will throw
         // an error.
         ZygoteHooks.startZygoteNoThreadCreation();
+        sNoThreadCreation = true;
 
         // Zygote goes into its own process group.
         try {
@@ -944,6 +964,7 @@ public class ZygoteInit {
             Zygote.initNativeState(isPrimaryZygote);
 
             ZygoteHooks.stopZygoteNoThreadCreation();
+            sNoThreadCreation = false;
 
             zygoteServer = new ZygoteServer(isPrimaryZygote);
 
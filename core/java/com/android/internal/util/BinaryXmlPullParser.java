@@ -0,0 +1,771 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.ATTRIBUTE;
+import static com.android.internal.util.BinaryXmlSerializer.INTERNED_NEW;
+import static com.android.internal.util.BinaryXmlSerializer.PROTOCOL_MAGIC_VERSION_0;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BOOLEAN_FALSE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BOOLEAN_TRUE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BYTES_BASE64;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BYTES_HEX;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_DOUBLE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_FLOAT;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_INT;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_INT_HEX;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_LONG;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_LONG_HEX;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_NULL;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING_INTERNED;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.Base64;
+
+import libcore.util.HexEncoding;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Parser that reads XML documents written by {@link BinaryXmlSerializer}.
+ * <p>
+ * Attribute values written with one of the typed {@code attribute*()} methods
+ * can be read back without any string conversion using the matching typed
+ * {@code getAttribute*()} method; they are also available as strings through
+ * {@link #getAttributeValue}, formatted the same way {@link XmlUtils} would
+ * have written them as text.
+ */
+public final class BinaryXmlPullParser implements XmlPullParser {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private DataInputStream mIn;
+
+    private final ArrayList<String> mInterned = new ArrayList<>();
+
+    /** Token read ahead of the current event, or -1 if none. */
+    private int mPeekedToken = -1;
+
+    private int mCurrentToken = START_DOCUMENT;
+    private int mCurrentDepth = 0;
+    private String mCurrentName;
+    private String mCurrentText;
+
+    private int mAttributeCount = 0;
+    private String[] mAttributeNames = new String[8];
+    private int[] mAttributeTypes = new int[8];
+    private String[] mAttributeStrings = new String[8];
+    private long[] mAttributeLongs = new long[8];
+    private double[] mAttributeDoubles = new double[8];
+    private byte[][] mAttributeBytes = new byte[8][];
+
+    /**
+     * Return whether the given stream, positioned at its start, contains a
+     * binary XML document. The stream must support {@link InputStream#mark}.
+     */
+    public static boolean isBinaryXml(@NonNull InputStream is) throws IOException {
+        final byte[] magic = new byte[PROTOCOL_MAGIC_VERSION_0.length];
+        is.mark(magic.length);
+        try {
+            int read = 0;
+            while (read < magic.length) {
+                final int n = is.read(magic, read, magic.length - read);
+                if (n <= 0) return false;
+                read += n;
+            }
+            return Arrays.equals(magic, PROTOCOL_MAGIC_VERSION_0);
+        } finally {
+            is.reset();
+        }
+    }
+
+    @Override
+    public void setInput(@NonNull InputStream is, @Nullable String encoding)
+            throws XmlPullParserException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException();
+        }
+        mIn = new DataInputStream(new BufferedInputStream(is, BUFFER_SIZE));
+        mInterned.clear();
+        mPeekedToken = -1;
+        mCurrentToken = START_DOCUMENT;
+        mCurrentDepth = 0;
+        mCurrentName = null;
+        mCurrentText = null;
+        mAttributeCount = 0;
+
+        try {
+            final byte[] magic = new byte[PROTOCOL_MAGIC_VERSION_0.length];
+            mIn.readFully(magic);
+            if (!Arrays.equals(magic, PROTOCOL_MAGIC_VERSION_0)) {
+                throw new IOException("Unexpected magic " + Arrays.toString(magic));
+            }
+        } catch (IOException e) {
+            throw new XmlPullParserException(e.toString());
+        }
+    }
+
+    @Override
+    public void setInput(Reader in) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        while (true) {
+            final int token = nextToken();
+            switch (token) {
+                case START_TAG:
+                case END_TAG:
+                case END_DOCUMENT:
+                    return token;
+                case TEXT:
+                case CDSECT:
+                case ENTITY_REF:
+                    // Merge any adjacent text so callers see a single event
+                    consumeAdditionalText();
+                    mCurrentToken = TEXT;
+                    return TEXT;
+                default:
+                    // Skip comments, whitespace and other non-content events
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        if (mCurrentToken == END_TAG) {
+            mCurrentDepth--;
+        }
+
+        int token;
+        try {
+            token = peekNextToken();
+            mPeekedToken = -1;
+        } catch (EOFException e) {
+            token = END_DOCUMENT | TYPE_NULL;
+        }
+
+        mCurrentName = null;
+        mCurrentText = null;
+        mAttributeCount = 0;
+
+        switch (token & 0x0f) {
+            case START_DOCUMENT:
+                // Nothing interesting to report; move on to the first real event
+                mCurrentToken = START_DOCUMENT;
+                return nextToken();
+            case END_DOCUMENT:
+                mCurrentToken = END_DOCUMENT;
+                return END_DOCUMENT;
+            case START_TAG:
+                mCurrentToken = START_TAG;
+                mCurrentName = readInternedUTF();
+                mCurrentDepth++;
+                consumeAttributes();
+                return START_TAG;
+            case END_TAG:
+                mCurrentToken = END_TAG;
+                mCurrentName = readInternedUTF();
+                return END_TAG;
+            case TEXT:
+            case CDSECT:
+            case ENTITY_REF:
+            case PROCESSING_INSTRUCTION:
+            case COMMENT:
+            case DOCDECL:
+            case IGNORABLE_WHITESPACE:
+                mCurrentToken = token & 0x0f;
+                mCurrentText = readUTF();
+                return mCurrentToken;
+            default:
+                throw new XmlPullParserException("Unexpected token " + token);
+        }
+    }
+
+    private int peekNextToken() throws IOException {
+        if (mPeekedToken == -1) {
+            mPeekedToken = mIn.readUnsignedByte();
+        }
+        return mPeekedToken;
+    }
+
+    private void consumeAttributes() throws IOException, XmlPullParserException {
+        while (true) {
+            final int token;
+            try {
+                token = peekNextToken();
+            } catch (EOFException e) {
+                return;
+            }
+            if ((token & 0x0f) != ATTRIBUTE) {
+                return;
+            }
+            mPeekedToken = -1;
+
+            final int i = mAttributeCount++;
+            if (i == mAttributeNames.length) {
+                final int size = i + (i >> 1);
+                mAttributeNames = Arrays.copyOf(mAttributeNames, size);
+                mAttributeTypes = Arrays.copyOf(mAttributeTypes, size);
+                mAttributeStrings = Arrays.copyOf(mAttributeStrings, size);
+                mAttributeLongs = Arrays.copyOf(mAttributeLongs, size);
+                mAttributeDoubles = Arrays.copyOf(mAttributeDoubles, size);
+                mAttributeBytes = Arrays.copyOf(mAttributeBytes, size);
+            }
+
+            final int type = token & 0xf0;
+            mAttributeNames[i] = readInternedUTF();
+            mAttributeTypes[i] = type;
+            mAttributeStrings[i] = null;
+            mAttributeBytes[i] = null;
+            switch (type) {
+                case TYPE_NULL:
+                case TYPE_BOOLEAN_TRUE:
+                case TYPE_BOOLEAN_FALSE:
+                    break;
+                case TYPE_STRING:
+                    mAttributeStrings[i] = readUTF();
+                    break;
+                case TYPE_STRING_INTERNED:
+                    mAttributeStrings[i] = readInternedUTF();
+                    break;
+                case TYPE_BYTES_HEX:
+                case TYPE_BYTES_BASE64: {
+                    final byte[] bytes = new byte[mIn.readInt()];
+                    mIn.readFully(bytes);
+                    mAttributeBytes[i] = bytes;
+                    break;
+                }
+                case TYPE_INT:
+                case TYPE_INT_HEX:
+                    mAttributeLongs[i] = mIn.readInt();
+                    break;
+                case TYPE_LONG:
+                case TYPE_LONG_HEX:
+                    mAttributeLongs[i] = mIn.readLong();
+                    break;
+                case TYPE_FLOAT:
+                    mAttributeDoubles[i] = mIn.readFloat();
+                    break;
+                case TYPE_DOUBLE:
+                    mAttributeDoubles[i] = mIn.readDouble();
+                    break;
+                default:
+                    throw new XmlPullParserException("Unexpected attribute type " + type);
+            }
+        }
+    }
+
+    /**
+     * Consume any text events immediately following the current one, appending
+     * them to the current text.
+     */
+    private void consumeAdditionalText() throws IOException {
+        while (true) {
+            final int token;
+            try {
+                token = peekNextToken();
+            } catch (EOFException e) {
+                return;
+            }
+            switch (token & 0x0f) {
+                case TEXT:
+                case CDSECT:
+                case ENTITY_REF:
+                    mPeekedToken = -1;
+                    mCurrentText += readUTF();
+                    break;
+                case COMMENT:
+                case PROCESSING_INSTRUCTION:
+                case IGNORABLE_WHITESPACE:
+                    mPeekedToken = -1;
+                    readUTF();
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    private String readUTF() throws IOException {
+        final byte[] bytes = new byte[mIn.readInt()];
+        mIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String readInternedUTF() throws IOException {
+        final int index = mIn.readUnsignedShort();
+        if (index != INTERNED_NEW) {
+            return mInterned.get(index);
+        }
+        final String s = mIn.readUTF();
+        if (mInterned.size() < INTERNED_NEW) {
+            mInterned.add(s);
+        }
+        return s;
+    }
+
+    /**
+     * Return the index of the attribute with the given name on the current
+     * tag, or -1 if it's not present.
+     */
+    public int getAttributeIndex(@Nullable String namespace, @NonNull String name) {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (mAttributeNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int getAttributeIndexOrThrow(@Nullable String namespace, @NonNull String name)
+            throws XmlPullParserException {
+        final int index = getAttributeIndex(namespace, name);
+        if (index == -1) {
+            throw new XmlPullParserException("Missing attribute " + name);
+        }
+        return index;
+    }
+
+    /** Read the given attribute as an {@code int}. */
+    public int getAttributeInt(@Nullable String namespace, @NonNull String name)
+            throws XmlPullParserException {
+        final int i = getAttributeIndexOrThrow(namespace, name);
+        switch (mAttributeTypes[i]) {
+            case TYPE_INT:
+            case TYPE_INT_HEX:
+                return (int) mAttributeLongs[i];
+            default:
+                try {
+                    return Integer.parseInt(getAttributeValue(i));
+                } catch (NumberFormatException e) {
+                    throw new XmlPullParserException("Invalid int for " + name);
+                }
+        }
+    }
+
+    /** Read the given attribute as an {@code int} written in hexadecimal. */
+    public int getAttributeIntHex(@Nullable String namespace, @NonNull String name)
+            throws XmlPullParserException {
+        final int i = getAttributeIndexOrThrow(namespace, name);
+        switch (mAttributeTypes[i]) {
+            case TYPE_INT:
+            case TYPE_INT_HEX:
+                return (int) mAttributeLongs[i];
+            default:
+                try {
+                    return Integer.parseInt(getAttributeValue(i), 16);
+                } catch (NumberFormatException e) {
+                    throw new XmlPullParserException("Invalid int for " + name);
+                }
+        }
+    }
+
+    /** Read the given attribute as a {@code long}. */
+    public long getAttributeLong(@Nullable String namespace, @NonNull String name)
+            throws XmlPullParserException {
+        final int i = getAttributeIndexOrThrow(namespace, name);
+        switch (mAttributeTypes[i]) {
+            case TYPE_INT:
+            case TYPE_INT_HEX:
+            case TYPE_LONG:
+            case TYPE_LONG_HEX:
+                return mAttributeLongs[i];
+            default:
+                try {
+                    return Long.parseLong(getAttributeValue(i));
+                } catch (NumberFormatException e) {
+                    throw new XmlPullParserException("Invalid long for " + name);
+                }
+        }
+    }
+
+    /** Read the given attribute as a {@code long} written in hexadecimal. */
+    public long getAttributeLongHex(@Nullable String namespace, @NonNull String name)
+            throws XmlPullParserException {
+        final int i = getAttributeIndexOrThrow(namespace, name);
+        switch (mAttributeTypes[i]) {
+            case TYPE_INT:
+            case TYPE_INT_HEX:
+            case TYPE_LONG:
+            case TYPE_LONG_HEX:
+                return mAttributeLongs[i];
+            default:
+                try {
+                    return Long.parseLong(getAttributeValue(i), 16);
+                } catch (NumberFormatException e) {
+                    throw new XmlPullParserException("Invalid long for " + name);
+                }
+        }
+    }
+
+    /** Read the given attribute as a {@code float}. */
+    public float getAttributeFloat(@Nullable String namespace, @NonNull String name)
+            throws XmlPullParserException {
+        final int i = getAttributeIndexOrThrow(namespace, name);
+        switch (mAttributeTypes[i]) {
+            case TYPE_FLOAT:
+            case TYPE_DOUBLE:
+                return (float) mAttributeDoubles[i];
+            default:
+                try {
+                    return Float.parseFloat(getAttributeValue(i));
+                } catch (NumberFormatException e) {
+                    throw new XmlPullParserException("Invalid float for " + name);
+                }
+        }
+    }
+
+    /** Read the given attribute as a {@code double}. */
+    public double getAttributeDouble(@Nullable String namespace, @NonNull String name)
+            throws XmlPullParserException {
+        final int i = getAttributeIndexOrThrow(namespace, name);
+        switch (mAttributeTypes[i]) {
+            case TYPE_FLOAT:
+            case TYPE_DOUBLE:
+                return mAttributeDoubles[i];
+            default:
+                try {
+                    return Double.parseDouble(getAttributeValue(i));
+                } catch (NumberFormatException e) {
+                    throw new XmlPullParserException("Invalid double for " + name);
+                }
+        }
+    }
+
+    /** Read the given attribute as a {@code boolean}. */
+    public boolean getAttributeBoolean(@Nullable String namespace, @NonNull String name)
+            throws XmlPullParserException {
+        final int i = getAttributeIndexOrThrow(namespace, name);
+        switch (mAttributeTypes[i]) {
+            case TYPE_BOOLEAN_TRUE:
+                return true;
+            case TYPE_BOOLEAN_FALSE:
+                return false;
+            default:
+                return Boolean.parseBoolean(getAttributeValue(i));
+        }
+    }
+
+    /** Read the given attribute as raw bytes. */
+    public byte[] getAttributeBytes(@Nullable String namespace, @NonNull String name)
+            throws XmlPullParserException {
+        final int i = getAttributeIndexOrThrow(namespace, name);
+        switch (mAttributeTypes[i]) {
+            case TYPE_BYTES_HEX:
+            case TYPE_BYTES_BASE64:
+                return mAttributeBytes[i];
+            default:
+                throw new XmlPullParserException("Invalid bytes for " + name);
+        }
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        final String cached = mAttributeStrings[index];
+        if (cached != null) {
+            return cached;
+        }
+        final String value;
+        switch (mAttributeTypes[index]) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_BYTES_HEX:
+                value = HexEncoding.encodeToString(mAttributeBytes[index]);
+                break;
+            case TYPE_BYTES_BASE64:
+                value = Base64.encodeToString(mAttributeBytes[index], Base64.NO_WRAP);
+                break;
+            case TYPE_INT:
+                value = Integer.toString((int) mAttributeLongs[index]);
+                break;
+            case TYPE_INT_HEX:
+                value = Integer.toString((int) mAttributeLongs[index], 16);
+                break;
+            case TYPE_LONG:
+                value = Long.toString(mAttributeLongs[index]);
+                break;
+            case TYPE_LONG_HEX:
+                value = Long.toString(mAttributeLongs[index], 16);
+                break;
+            case TYPE_FLOAT:
+                value = Float.toString((float) mAttributeDoubles[index]);
+                break;
+            case TYPE_DOUBLE:
+                value = Double.toString(mAttributeDoubles[index]);
+                break;
+            case TYPE_BOOLEAN_TRUE:
+                value = "true";
+                break;
+            case TYPE_BOOLEAN_FALSE:
+                value = "false";
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        mAttributeStrings[index] = value;
+        return value;
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        final int index = getAttributeIndex(namespace, name);
+        return (index != -1) ? getAttributeValue(index) : null;
+    }
+
+    @Override
+    public String getText() {
+        return mCurrentText;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        final char[] chars = mCurrentText.toCharArray();
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = chars.length;
+        return chars;
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public int getDepth() {
+        return mCurrentDepth;
+    }
+
+    @Override
+    public String getPositionDescription() {
+        // Not very helpful, but it's the best information we have
+        return "Token " + mCurrentToken + " at depth " + mCurrentDepth;
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        switch (mCurrentToken) {
+            case IGNORABLE_WHITESPACE:
+                return true;
+            case TEXT:
+            case CDSECT:
+                return mCurrentText.trim().isEmpty();
+            default:
+                throw new XmlPullParserException("Not applicable for token " + mCurrentToken);
+        }
+    }
+
+    @Override
+    public String getNamespace() {
+        switch (mCurrentToken) {
+            case START_TAG:
+            case END_TAG:
+                // Namespaces are unsupported
+                return NO_NAMESPACE;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mCurrentName;
+    }
+
+    @Override
+    public String getPrefix() {
+        // Prefixes are not supported
+        return null;
+    }
+
+    @Override
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        switch (mCurrentToken) {
+            case START_TAG:
+                try {
+                    return (peekNextToken() == (END_TAG | TYPE_STRING_INTERNED));
+                } catch (IOException e) {
+                    throw new XmlPullParserException(e.toString());
+                }
+            default:
+                throw new XmlPullParserException("Not at START_TAG");
+        }
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return mAttributeCount;
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        // Namespaces are unsupported
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        return mAttributeNames[index];
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        // Prefixes are not supported
+        return null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        // Validation is not supported
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        // Validation is not supported
+        return false;
+    }
+
+    @Override
+    public int getEventType() throws XmlPullParserException {
+        return mCurrentToken;
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) throws XmlPullParserException {
+        // Namespaces are unsupported
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) throws XmlPullParserException {
+        // Namespaces are unsupported
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) throws XmlPullParserException {
+        // Namespaces are unsupported
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        // Namespaces are unsupported
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText)
+            throws XmlPullParserException {
+        // Custom entities are not supported
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        // Features are not supported
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        // Features are not supported
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        // Properties are not supported
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        // Properties are not supported
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException, IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        if (mCurrentToken != type || (name != null && !name.equals(mCurrentName))) {
+            throw new XmlPullParserException(getPositionDescription());
+        }
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (getEventType() != START_TAG) {
+            throw new XmlPullParserException(getPositionDescription());
+        }
+        int eventType = next();
+        if (eventType == TEXT) {
+            final String result = getText();
+            eventType = next();
+            if (eventType != END_TAG) {
+                throw new XmlPullParserException(getPositionDescription());
+            }
+            return result;
+        } else if (eventType == END_TAG) {
+            return "";
+        } else {
+            throw new XmlPullParserException(getPositionDescription());
+        }
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        int eventType = next();
+        if (eventType == TEXT && isWhitespace()) {
+            eventType = next();
+        }
+        if (eventType != START_TAG && eventType != END_TAG) {
+            throw new XmlPullParserException(getPositionDescription());
+        }
+        return eventType;
+    }
+
+    private static IllegalArgumentException illegalNamespace() {
+        return new IllegalArgumentException("Namespaces are not supported");
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static org.xmlpull.v1.XmlPullParser.CDSECT;
+import static org.xmlpull.v1.XmlPullParser.COMMENT;
+import static org.xmlpull.v1.XmlPullParser.DOCDECL;
+import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.END_TAG;
+import static org.xmlpull.v1.XmlPullParser.ENTITY_REF;
+import static org.xmlpull.v1.XmlPullParser.IGNORABLE_WHITESPACE;
+import static org.xmlpull.v1.XmlPullParser.PROCESSING_INSTRUCTION;
+import static org.xmlpull.v1.XmlPullParser.START_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.START_TAG;
+import static org.xmlpull.v1.XmlPullParser.TEXT;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Serializer that writes XML documents using a compact binary encoding instead
+ * of text. The resulting document can be read back using
+ * {@link BinaryXmlPullParser}, and {@link XmlUtils#resolvePullParser} will
+ * transparently pick the right parser for a given stream.
+ * <p>
+ * Each event is written as a single token byte whose low nibble is the
+ * {@link org.xmlpull.v1.XmlPullParser} event type and whose high nibble
+ * describes the type of data that follows. Tag and attribute names are
+ * interned into a string table the first time they are written, so repeated
+ * names cost only two bytes. Attribute values can be written using the typed
+ * {@code attribute*()} methods, which store primitive values directly instead
+ * of formatting them as strings.
+ * <p>
+ * Namespaces, indentation and document declarations are not supported, which
+ * matches how the platform persists its own state.
+ */
+public final class BinaryXmlSerializer implements XmlSerializer {
+    /**
+     * Magic header written at the start of every binary XML document; chosen
+     * so it can never be mistaken for the start of a text XML document.
+     */
+    public static final byte[] PROTOCOL_MAGIC_VERSION_0 = new byte[] { 0x41, 0x42, 0x58, 0x00 };
+
+    /** Token type used for attributes, which is not a real parser event. */
+    static final int ATTRIBUTE = 15;
+
+    static final int TYPE_NULL = 1 << 4;
+    static final int TYPE_STRING = 2 << 4;
+    static final int TYPE_STRING_INTERNED = 3 << 4;
+    static final int TYPE_BYTES_HEX = 4 << 4;
+    static final int TYPE_BYTES_BASE64 = 5 << 4;
+    static final int TYPE_INT = 6 << 4;
+    static final int TYPE_INT_HEX = 7 << 4;
+    static final int TYPE_LONG = 8 << 4;
+    static final int TYPE_LONG_HEX = 9 << 4;
+    static final int TYPE_FLOAT = 10 << 4;
+    static final int TYPE_DOUBLE = 11 << 4;
+    static final int TYPE_BOOLEAN_TRUE = 12 << 4;
+    static final int TYPE_BOOLEAN_FALSE = 13 << 4;
+
+    /** Marker used in place of an index when an interned string is new. */
+    static final int INTERNED_NEW = 0xFFFF;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private DataOutputStream mOut;
+
+    private final HashMap<String, Integer> mInterned = new HashMap<>();
+
+    private int mTagCount = 0;
+    private String[] mTagNames;
+
+    @Override
+    public void setOutput(@NonNull OutputStream os, @Nullable String encoding)
+            throws IOException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException();
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(os, BUFFER_SIZE));
+        mOut.write(PROTOCOL_MAGIC_VERSION_0);
+        mInterned.clear();
+        mTagCount = 0;
+        mTagNames = new String[8];
+    }
+
+    @Override
+    public void setOutput(Writer writer) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void startDocument(@Nullable String encoding, @Nullable Boolean standalone)
+            throws IOException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException();
+        }
+        mOut.writeByte(START_DOCUMENT | TYPE_NULL);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        mOut.writeByte(END_DOCUMENT | TYPE_NULL);
+        flush();
+    }
+
+    @Override
+    public int getDepth() {
+        return mTagCount;
+    }
+
+    @Override
+    public String getNamespace() {
+        // Namespaces are not supported
+        return XmlPullParser.NO_NAMESPACE;
+    }
+
+    @Override
+    public String getName() {
+        return mTagNames[mTagCount - 1];
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        if (mTagCount == mTagNames.length) {
+            mTagNames = Arrays.copyOf(mTagNames, mTagCount + (mTagCount >> 1));
+        }
+        mTagNames[mTagCount++] = name;
+        mOut.writeByte(START_TAG | TYPE_STRING_INTERNED);
+        writeInternedUTF(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mTagCount--;
+        mOut.writeByte(END_TAG | TYPE_STRING_INTERNED);
+        writeInternedUTF(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mOut.writeByte(ATTRIBUTE | TYPE_STRING);
+        writeInternedUTF(name);
+        writeUTF(value);
+        return this;
+    }
+
+    /**
+     * Write an attribute whose value is drawn from a small set of repeated
+     * strings, such as enum names or package names, so it is stored in the
+     * string table instead of inline.
+     */
+    public XmlSerializer attributeInterned(String namespace, String name, String value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mOut.writeByte(ATTRIBUTE | TYPE_STRING_INTERNED);
+        writeInternedUTF(name);
+        writeInternedUTF(value);
+        return this;
+    }
+
+    /** Write an attribute whose value is stored as raw bytes. */
+    public XmlSerializer attributeBytesHex(String namespace, String name, byte[] value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mOut.writeByte(ATTRIBUTE | TYPE_BYTES_HEX);
+        writeInternedUTF(name);
+        mOut.writeInt(value.length);
+        mOut.write(value);
+        return this;
+    }
+
+    /** Write an attribute whose value is stored as raw bytes. */
+    public XmlSerializer attributeBytesBase64(String namespace, String name, byte[] value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mOut.writeByte(ATTRIBUTE | TYPE_BYTES_BASE64);
+        writeInternedUTF(name);
+        mOut.writeInt(value.length);
+        mOut.write(value);
+        return this;
+    }
+
+    /** Write an attribute whose value is a decimal {@code int}. */
+    public XmlSerializer attributeInt(String namespace, String name, int value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mOut.writeByte(ATTRIBUTE | TYPE_INT);
+        writeInternedUTF(name);
+        mOut.writeInt(value);
+        return this;
+    }
+
+    /** Write an attribute whose value is a hexadecimal {@code int}. */
+    public XmlSerializer attributeIntHex(String namespace, String name, int value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mOut.writeByte(ATTRIBUTE | TYPE_INT_HEX);
+        writeInternedUTF(name);
+        mOut.writeInt(value);
+        return this;
+    }
+
+    /** Write an attribute whose value is a decimal {@code long}. */
+    public XmlSerializer attributeLong(String namespace, String name, long value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mOut.writeByte(ATTRIBUTE | TYPE_LONG);
+        writeInternedUTF(name);
+        mOut.writeLong(value);
+        return this;
+    }
+
+    /** Write an attribute whose value is a hexadecimal {@code long}. */
+    public XmlSerializer attributeLongHex(String namespace, String name, long value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mOut.writeByte(ATTRIBUTE | TYPE_LONG_HEX);
+        writeInternedUTF(name);
+        mOut.writeLong(value);
+        return this;
+    }
+
+    /** Write an attribute whose value is a {@code float}. */
+    public XmlSerializer attributeFloat(String namespace, String name, float value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mOut.writeByte(ATTRIBUTE | TYPE_FLOAT);
+        writeInternedUTF(name);
+        mOut.writeFloat(value);
+        return this;
+    }
+
+    /** Write an attribute whose value is a {@code double}. */
+    public XmlSerializer attributeDouble(String namespace, String name, double value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mOut.writeByte(ATTRIBUTE | TYPE_DOUBLE);
+        writeInternedUTF(name);
+        mOut.writeDouble(value);
+        return this;
+    }
+
+    /** Write an attribute whose value is a {@code boolean}. */
+    public XmlSerializer attributeBoolean(String namespace, String name, boolean value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) throw illegalNamespace();
+        mOut.writeByte(ATTRIBUTE | (value ? TYPE_BOOLEAN_TRUE : TYPE_BOOLEAN_FALSE));
+        writeInternedUTF(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException {
+        return text(new String(buf, start, len));
+    }
+
+    @Override
+    public XmlSerializer text(String text) throws IOException {
+        mOut.writeByte(TEXT | TYPE_STRING);
+        writeUTF(text);
+        return this;
+    }
+
+    @Override
+    public void cdsect(String text) throws IOException {
+        mOut.writeByte(CDSECT | TYPE_STRING);
+        writeUTF(text);
+    }
+
+    @Override
+    public void entityRef(String text) throws IOException {
+        mOut.writeByte(ENTITY_REF | TYPE_STRING);
+        writeUTF(text);
+    }
+
+    @Override
+    public void processingInstruction(String text) throws IOException {
+        mOut.writeByte(PROCESSING_INSTRUCTION | TYPE_STRING);
+        writeUTF(text);
+    }
+
+    @Override
+    public void comment(String text) throws IOException {
+        mOut.writeByte(COMMENT | TYPE_STRING);
+        writeUTF(text);
+    }
+
+    @Override
+    public void docdecl(String text) throws IOException {
+        mOut.writeByte(DOCDECL | TYPE_STRING);
+        writeUTF(text);
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) throws IOException {
+        mOut.writeByte(IGNORABLE_WHITESPACE | TYPE_STRING);
+        writeUTF(text);
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Quietly handle no-op features
+        if ("http://xmlpull.org/v1/doc/features.html#indent-output".equals(name)) {
+            return;
+        }
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) {
+        // Prefixes are not supported
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix) {
+        // Prefixes are not supported
+        throw new UnsupportedOperationException();
+    }
+
+    private void writeUTF(String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        mOut.writeInt(bytes.length);
+        mOut.write(bytes);
+    }
+
+    private void writeInternedUTF(String s) throws IOException {
+        final Integer index = mInterned.get(s);
+        if (index != null) {
+            mOut.writeShort(index);
+            return;
+        }
+        final int size = mInterned.size();
+        if (size < INTERNED_NEW) {
+            mInterned.put(s, size);
+        }
+        mOut.writeShort(INTERNED_NEW);
+        mOut.writeUTF(s);
+    }
+
+    private static IllegalArgumentException illegalNamespace() {
+        return new IllegalArgumentException("Namespaces are not supported");
+    }
+}
@@ -86,6 +86,15 @@ public class FileRotator {
         public boolean shouldWrite();
     }
 
+    /**
+     * External class that reads data from a given {@link File}, for readers
+     * that need random access to it. May be called multiple times when reading
+     * rotated data.
+     */
+    public interface FileReader {
+        public void read(File file) throws IOException;
+    }
+
     /**
      * Create a file rotator.
      *
@@ -299,6 +308,24 @@ public class FileRotator {
         }
     }
 
+    /**
+     * Pass any rotated files that overlap the requested time range to the
+     * given reader, without opening them.
+     */
+    public void readMatchingFiles(FileReader reader, long matchStartMillis, long matchEndMillis)
+            throws IOException {
+        final FileInfo info = new FileInfo(mPrefix);
+        for (String name : mBasePath.list()) {
+            if (!info.parse(name)) continue;
+
+            // read file when it overlaps
+            if (info.startMillis <= matchEndMillis && matchStartMillis <= info.endMillis) {
+                if (LOGD) Slog.d(TAG, "reading matching file " + name);
+                reader.read(new File(mBasePath, name));
+            }
+        }
+    }
+
     /**
      * Return the currently active file, which may not exist yet.
      */
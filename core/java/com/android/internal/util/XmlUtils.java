@@ -21,6 +21,7 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Base64;
@@ -32,6 +33,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -51,6 +53,53 @@ public class XmlUtils {
 
     private static final String STRING_ARRAY_SEPARATOR = ":";
 
+    /**
+     * System property controlling whether {@link #resolveSerializer} writes
+     * the compact binary format. Reading always accepts both formats, so this
+     * can be flipped in either direction without losing persisted state.
+     */
+    private static final String PROP_BINARY_XML = "persist.sys.binary_xml";
+
+    /**
+     * Return a parser for the given stream, which may contain either a text
+     * XML document or a document written by {@link BinaryXmlSerializer}. The
+     * format is detected from the first few bytes of the stream, so persisted
+     * state upgrades in place regardless of which format it was last written
+     * in.
+     */
+    public static XmlPullParser resolvePullParser(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        final XmlPullParser parser;
+        if (BinaryXmlPullParser.isBinaryXml(in)) {
+            parser = new BinaryXmlPullParser();
+        } else {
+            parser = Xml.newPullParser();
+        }
+        try {
+            parser.setInput(in, StandardCharsets.UTF_8.name());
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+        return parser;
+    }
+
+    /**
+     * Return a serializer writing to the given stream, using the binary format
+     * when enabled on this device and {@link FastXmlSerializer} otherwise.
+     */
+    public static XmlSerializer resolveSerializer(OutputStream out) throws IOException {
+        final XmlSerializer serializer;
+        if (SystemProperties.getBoolean(PROP_BINARY_XML, false)) {
+            serializer = new BinaryXmlSerializer();
+        } else {
+            serializer = new FastXmlSerializer();
+        }
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        return serializer;
+    }
+
     @UnsupportedAppUsage
     public static void skipCurrentTag(XmlPullParser parser)
             throws XmlPullParserException, IOException {
@@ -1589,6 +1638,13 @@ public class XmlUtils {
     }
 
     public static int readIntAttribute(XmlPullParser in, String name, int defaultValue) {
+        if (in instanceof BinaryXmlPullParser) {
+            try {
+                return ((BinaryXmlPullParser) in).getAttributeInt(null, name);
+            } catch (XmlPullParserException e) {
+                return defaultValue;
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1601,6 +1657,13 @@ public class XmlUtils {
     }
 
     public static int readIntAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof BinaryXmlPullParser) {
+            try {
+                return ((BinaryXmlPullParser) in).getAttributeInt(null, name);
+            } catch (XmlPullParserException e) {
+                throw new ProtocolException(e.getMessage());
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Integer.parseInt(value);
@@ -1611,10 +1674,21 @@ public class XmlUtils {
 
     public static void writeIntAttribute(XmlSerializer out, String name, int value)
             throws IOException {
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeInt(null, name, value);
+            return;
+        }
         out.attribute(null, name, Integer.toString(value));
     }
 
     public static long readLongAttribute(XmlPullParser in, String name, long defaultValue) {
+        if (in instanceof BinaryXmlPullParser) {
+            try {
+                return ((BinaryXmlPullParser) in).getAttributeLong(null, name);
+            } catch (XmlPullParserException e) {
+                return defaultValue;
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1627,6 +1701,13 @@ public class XmlUtils {
     }
 
     public static long readLongAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof BinaryXmlPullParser) {
+            try {
+                return ((BinaryXmlPullParser) in).getAttributeLong(null, name);
+            } catch (XmlPullParserException e) {
+                throw new ProtocolException(e.getMessage());
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Long.parseLong(value);
@@ -1637,6 +1718,10 @@ public class XmlUtils {
 
     public static void writeLongAttribute(XmlSerializer out, String name, long value)
             throws IOException {
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeLong(null, name, value);
+            return;
+        }
         out.attribute(null, name, Long.toString(value));
     }
 
@@ -1651,6 +1736,10 @@ public class XmlUtils {
 
     public static void writeFloatAttribute(XmlSerializer out, String name, float value)
             throws IOException {
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeFloat(null, name, value);
+            return;
+        }
         out.attribute(null, name, Float.toString(value));
     }
 
@@ -1661,6 +1750,13 @@ public class XmlUtils {
 
     public static boolean readBooleanAttribute(XmlPullParser in, String name,
             boolean defaultValue) {
+        if (in instanceof BinaryXmlPullParser) {
+            try {
+                return ((BinaryXmlPullParser) in).getAttributeBoolean(null, name);
+            } catch (XmlPullParserException e) {
+                return defaultValue;
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1671,6 +1767,10 @@ public class XmlUtils {
 
     public static void writeBooleanAttribute(XmlSerializer out, String name, boolean value)
             throws IOException {
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeBoolean(null, name, value);
+            return;
+        }
         out.attribute(null, name, Boolean.toString(value));
     }
 
@@ -74,6 +74,27 @@ public class CursorWindowTest extends TestCase implements PerformanceTestCase {
         window.close();
     }
 
+    @SmallTest
+    public void testCopyNumericColumns() {
+        CursorWindow window = new CursorWindow("MyWindow");
+        window.setStartPosition(100);
+        assertTrue(window.setNumColumns(2));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(window.allocRow());
+            assertTrue(window.putLong(i, i, 0));
+            assertTrue(window.putDouble(i * 0.5, i, 1));
+        }
+
+        long[] longs = new long[11];
+        assertEquals(5, window.copyLongColumn(105, 0, longs, 1, 10));
+        assertTrue(Arrays.equals(new long[] {0, 5, 6, 7, 8, 9, 0, 0, 0, 0, 0}, longs));
+
+        double[] doubles = new double[3];
+        assertEquals(3, window.copyDoubleColumn(100, 1, doubles, 0, 3));
+        assertTrue(Arrays.equals(new double[] {0, 0.5, 1}, doubles));
+        window.close();
+    }
+
     private void doTestValues(CursorWindow window) {
         assertTrue(window.setNumColumns(7));
         assertTrue(window.allocRow());
@@ -17,9 +17,12 @@
 package android.database.sqlite;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDebug.DbStats;
 import android.os.HandlerThread;
 import android.util.Log;
 
@@ -33,6 +36,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests for {@link SQLiteConnectionPool}
@@ -89,4 +95,90 @@ public class SQLiteConnectionPoolTest {
         pool.close();
         thread.quit();
     }
+
+    @Test
+    public void testTrimIdleConnections() {
+        mTestConf.openFlags = SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING;
+        SQLiteConnectionPool pool = SQLiteConnectionPool.open(mTestConf);
+        final int readers = pool.getConnectionPoolSizeLimit() - 1;
+        ArrayList<SQLiteConnection> connections = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            connections.add(pool.acquireConnection("pragma user_version", 0, null));
+            assertFalse(connections.get(i).isPrimaryConnection());
+        }
+        for (SQLiteConnection connection : connections) {
+            pool.releaseConnection(connection);
+        }
+        assertEquals(readers, pool.getAvailableNonPrimaryConnectionCount());
+
+        // All the connections were in use since the last trim, so they are kept.
+        pool.trimIdleConnections();
+        assertEquals(readers, pool.getAvailableNonPrimaryConnectionCount());
+
+        // None were used since, so they are closed.
+        pool.trimIdleConnections();
+        assertEquals(0, pool.getAvailableNonPrimaryConnectionCount());
+        pool.close();
+    }
+
+    @Test
+    public void testPoolGrowsWhenReadersQueue() throws InterruptedException {
+        mTestConf.openFlags = SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING;
+        SQLiteConnectionPool pool = SQLiteConnectionPool.open(mTestConf);
+        final int maxSize = pool.getConnectionPoolSizeLimit();
+        ArrayList<SQLiteConnection> connections = new ArrayList<>();
+        connections.add(pool.acquireConnection(null,
+                SQLiteConnectionPool.CONNECTION_FLAG_PRIMARY_CONNECTION_AFFINITY, null));
+        for (int i = 0; i < maxSize - 1; i++) {
+            connections.add(pool.acquireConnection(null, 0, null));
+        }
+
+        // The fourth reader to queue raises the limit and gets a new connection.
+        final CountDownLatch acquired = new CountDownLatch(1);
+        ArrayList<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            readers.add(new Thread(() -> {
+                SQLiteConnection connection = pool.acquireConnection(null, 0, null);
+                acquired.countDown();
+                pool.releaseConnection(connection);
+            }));
+            readers.get(i).start();
+        }
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(maxSize + 1, pool.getConnectionPoolSizeLimit());
+
+        for (SQLiteConnection connection : connections) {
+            pool.releaseConnection(connection);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        // The extra connection goes again once the pool is idle.
+        pool.trimIdleConnections();
+        pool.trimIdleConnections();
+        assertEquals(maxSize, pool.getConnectionPoolSizeLimit());
+        pool.close();
+    }
+
+    @Test
+    public void testStatementCacheGrowsWhenThrashing() {
+        mTestConf.maxSqlCacheSize = 4;
+        SQLiteConnectionPool pool = SQLiteConnectionPool.open(mTestConf);
+        SQLiteConnection connection = pool.acquireConnection(null, 0, null);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 8; i++) {
+                assertEquals(i, connection.executeForLong("SELECT " + i, null, null));
+            }
+        }
+        assertEquals(8, connection.getPreparedStatementCacheMaxSize());
+        pool.releaseConnection(connection);
+
+        ArrayList<DbStats> stats = new ArrayList<>();
+        pool.collectDbStats(stats);
+        assertNotNull(stats.get(0).waits);
+        assertTrue(stats.get(0).waits.startsWith("1/"));
+        assertTrue(stats.get(0).cacheHitPercent > 0);
+        pool.close();
+    }
 }
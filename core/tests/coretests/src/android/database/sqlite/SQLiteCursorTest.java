@@ -187,4 +187,41 @@ public class SQLiteCursorTest extends AndroidTestCase {
         }
         assertEquals("All rows should be visited", 10, n);
     }
-}
\ No newline at end of file
+
+    public void testForwardScanGrowsWindow() {
+        mDatabase.execSQL("CREATE TABLE Scan (i INTEGER, data BLOB NOT NULL);");
+        byte[] data = new byte[1000];
+        // Enough rows for three default sized windows
+        int n = CursorWindow.getDefaultCursorWindowSize() * 3 / data.length;
+        mDatabase.beginTransaction();
+        for (int i = 0; i < n; i++) {
+            mDatabase.execSQL("INSERT INTO Scan VALUES (?, ?)", new Object[]{i, data});
+        }
+        mDatabase.setTransactionSuccessful();
+        mDatabase.endTransaction();
+
+        AbstractWindowedCursor cursor = (AbstractWindowedCursor) mDatabase.rawQuery(
+                "SELECT i, data FROM Scan ORDER BY i", null);
+        assertEquals(n, cursor.getCount());
+        int firstWindowRows = cursor.getWindow().getNumRows();
+        assertTrue(firstWindowRows < n);
+
+        int i = 0;
+        int lastStart = 0;
+        int maxWindowRows = 0;
+        while (cursor.moveToNext()) {
+            assertEquals(i, cursor.getInt(0));
+            CursorWindow window = cursor.getWindow();
+            if (window.getStartPosition() != lastStart) {
+                // Each refill of the scan starts at the row that needed it
+                assertEquals(i, window.getStartPosition());
+                lastStart = i;
+            }
+            maxWindowRows = Math.max(maxWindowRows, window.getNumRows());
+            i++;
+        }
+        assertEquals("All rows should be visited", n, i);
+        assertTrue(maxWindowRows > firstWindowRows);
+        cursor.close();
+    }
+}
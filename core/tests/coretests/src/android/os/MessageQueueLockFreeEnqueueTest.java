@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class MessageQueueLockFreeEnqueueTest {
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES_PER_PRODUCER = 500;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private HandlerThread mThread;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("MessageQueueLockFreeEnqueueTest");
+        mThread.start();
+        mThread.getLooper().setLockFreeEnqueueEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    @Test
+    public void testMessagesFromEachProducerStayInOrder() throws Exception {
+        final int[] nextSeq = new int[PRODUCERS];
+        final List<String> errors = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(PRODUCERS * MESSAGES_PER_PRODUCER);
+        final Handler handler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.arg1 != nextSeq[msg.what]) {
+                    errors.add("Producer " + msg.what + ": expected #" + nextSeq[msg.what]
+                            + ", received #" + msg.arg1);
+                }
+                nextSeq[msg.what] = msg.arg1 + 1;
+                done.countDown();
+            }
+        };
+
+        final Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            final int producer = i;
+            producers[i] = new Thread(() -> {
+                for (int seq = 0; seq < MESSAGES_PER_PRODUCER; seq++) {
+                    handler.sendMessage(handler.obtainMessage(producer, seq, 0));
+                }
+            });
+            producers[i].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertThat(errors).isEmpty();
+    }
+
+    @Test
+    public void testDelayedAndFrontMessagesKeepTheirOrder() throws Exception {
+        final List<Integer> order = new ArrayList<>();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final Handler handler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                order.add(msg.what);
+                done.countDown();
+            }
+        };
+
+        // Keep the looper busy so that everything below is queued before it runs.
+        handler.post(() -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        handler.sendEmptyMessageDelayed(3, 100);
+        handler.sendEmptyMessage(1);
+        handler.sendEmptyMessage(2);
+        handler.sendMessageAtFrontOfQueue(handler.obtainMessage(0));
+        release.countDown();
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertThat(order).containsExactly(0, 1, 2, 3).inOrder();
+    }
+
+    @Test
+    public void testRemoveMessagesSeesPendingMessages() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Integer> received = new ArrayList<>();
+        final Handler handler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                received.add(msg.what);
+            }
+        };
+
+        handler.post(() -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        handler.sendEmptyMessage(1);
+        handler.sendEmptyMessage(2);
+        assertTrue(handler.hasMessages(1));
+        handler.removeMessages(1);
+        assertFalse(handler.hasMessages(1));
+        handler.sendEmptyMessage(3);
+        handler.post(done::countDown);
+        release.countDown();
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertThat(received).containsExactly(2, 3).inOrder();
+    }
+
+    @Test
+    public void testPostsRacingQuitAreRefused() throws Exception {
+        final Handler handler = new Handler(mThread.getLooper());
+        final int[] accepted = new int[PRODUCERS];
+        final int[] received = new int[PRODUCERS];
+        final CountDownLatch started = new CountDownLatch(PRODUCERS);
+        final Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            final int producer = i;
+            producers[i] = new Thread(() -> {
+                started.countDown();
+                for (int seq = 0; seq < MESSAGES_PER_PRODUCER; seq++) {
+                    if (handler.post(() -> received[producer]++)) {
+                        accepted[producer]++;
+                    }
+                }
+            });
+            producers[i].start();
+        }
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        mThread.quitSafely();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        mThread.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        // Every accepted post was queued before the quit, so quitSafely() still ran it.
+        assertFalse(mThread.isAlive());
+        for (int i = 0; i < PRODUCERS; i++) {
+            assertThat(received[i]).isEqualTo(accepted[i]);
+        }
+        assertFalse(handler.post(() -> { }));
+    }
+}
@@ -17,6 +17,9 @@
 package android.os;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import android.platform.test.annotations.Presubmit;
 
@@ -25,6 +28,8 @@ import androidx.test.runner.AndroidJUnit4;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.nio.ByteBuffer;
+
 @Presubmit
 @RunWith(AndroidJUnit4.class)
 public class ParcelTest {
@@ -110,4 +115,68 @@ public class ParcelTest {
             assertEquals(string, p.readString16());
         }
     }
+
+    @Test
+    public void testObtainRecycle_reusesThreadPooledParcel() {
+        // Empty this thread's and the shared pool.
+        for (int i = 0; i < 100; i++) {
+            Parcel.obtain();
+        }
+        final Parcel p = Parcel.obtain();
+        p.writeInt(42);
+        p.recycle();
+
+        final Parcel reused = Parcel.obtain();
+        assertSame(p, reused);
+        assertEquals(0, reused.dataSize());
+        reused.recycle();
+    }
+
+    @Test
+    public void testSharedBlob_inPlace() {
+        final byte[] data = createBytes(Parcel.SHARED_BLOB_THRESHOLD - 1);
+        final Parcel p = Parcel.obtain();
+        p.writeSharedBlob(ByteBuffer.wrap(data));
+        assertFalse(p.hasFileDescriptors());
+
+        p.setDataPosition(0);
+        assertEquals(ByteBuffer.wrap(data), p.readSharedBlob());
+        p.recycle();
+    }
+
+    @Test
+    public void testSharedBlob_sharedMemory() {
+        final byte[] data = createBytes(Parcel.SHARED_BLOB_THRESHOLD * 4);
+        final Parcel p = Parcel.obtain();
+        p.writeSharedBlob(ByteBuffer.wrap(data));
+        assertTrue(p.hasFileDescriptors());
+        assertTrue(p.dataSize() < Parcel.SHARED_BLOB_THRESHOLD);
+
+        p.setDataPosition(0);
+        final ByteBuffer read = p.readSharedBlob();
+        assertTrue(read.isReadOnly());
+        assertEquals(ByteBuffer.wrap(data), read);
+        p.recycle();
+    }
+
+    @Test
+    public void testSharedBlob_fdsNotAllowed() {
+        final byte[] data = createBytes(Parcel.SHARED_BLOB_THRESHOLD * 4);
+        final Parcel p = Parcel.obtain();
+        p.pushAllowFds(false);
+        p.writeSharedBlob(ByteBuffer.wrap(data));
+        assertFalse(p.hasFileDescriptors());
+
+        p.setDataPosition(0);
+        assertEquals(ByteBuffer.wrap(data), p.readSharedBlob());
+        p.recycle();
+    }
+
+    private static byte[] createBytes(int size) {
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
 }
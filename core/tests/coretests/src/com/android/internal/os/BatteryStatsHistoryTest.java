@@ -21,13 +21,16 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
+import android.os.BatteryStats;
 import android.os.Parcel;
+import android.util.AtomicFile;
 import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -139,6 +142,91 @@ public class BatteryStatsHistoryTest {
         verifyActiveFile(history2, "1.bin");
     }
 
+    @Test
+    public void testStartIteratingHistoryAt() throws Exception {
+        BatteryStatsHistory history =
+                new BatteryStatsHistory(mBatteryStatsImpl, mSystemDir, mHistoryBuffer);
+        // Files 0 to 2 hold 10 records each, record 30 to 39 are still in the buffer.
+        writeHistory(history, 4, 10);
+
+        assertEquals(40, readHistory(history, -1, -1));
+        // Records 0 to 24 fall in files 0 to 2, so iteration starts at file 2.
+        assertEquals(20, readHistory(history, 25_000, 20));
+        // Starting within the buffer skips all files.
+        assertEquals(10, readHistory(history, 35_000, 30));
+
+        // The index survives the history being reloaded from disk.
+        BatteryStatsHistory history2 =
+                new BatteryStatsHistory(mBatteryStatsImpl, mSystemDir, mHistoryBuffer);
+        assertEquals(20, readHistory(history2, 25_000, 20));
+
+        // Without an index entry for the oldest file nothing can be skipped.
+        history2.resetAllFiles();
+        mHistoryBuffer.setDataSize(0);
+        createActiveFile(history2);
+        assertEquals(0, readHistory(history2, 25_000, -1));
+    }
+
+    /**
+     * Writes records one second apart, each with the battery level set to its index, the way
+     * BatteryStatsImpl does: records are deltas of the previous one, and all but the last file
+     * are closed once they hold recordsPerFile records.
+     */
+    private void writeHistory(BatteryStatsHistory history, int files, int recordsPerFile)
+            throws IOException {
+        final BatteryStats.HistoryItem last = new BatteryStats.HistoryItem();
+        final BatteryStats.HistoryItem cur = new BatteryStats.HistoryItem();
+        mHistoryBuffer.setDataSize(0);
+        mHistoryBuffer.setDataPosition(0);
+        for (int i = 0; i < files * recordsPerFile; i++) {
+            if (i > 0 && i % recordsPerFile == 0) {
+                final Parcel p = Parcel.obtain();
+                p.writeInt(BatteryStatsImpl.VERSION);
+                p.writeLong(last.time);
+                p.writeInt(mHistoryBuffer.dataSize());
+                p.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+                final AtomicFile file = history.getActiveFile();
+                final FileOutputStream fos = file.startWrite();
+                fos.write(p.marshall());
+                file.finishWrite(fos);
+                p.recycle();
+                history.startNextFile();
+                mHistoryBuffer.setDataSize(0);
+                mHistoryBuffer.setDataPosition(0);
+            }
+            cur.time = i * 1000L;
+            cur.cmd = BatteryStats.HistoryItem.CMD_UPDATE;
+            cur.batteryLevel = (byte) i;
+            if (mHistoryBuffer.dataPosition() == 0) {
+                history.noteActiveFileStarted(last, cur.time);
+            }
+            mBatteryStatsImpl.writeHistoryDelta(mHistoryBuffer, cur, last);
+            last.setTo(cur);
+        }
+        createActiveFile(history);
+    }
+
+    /**
+     * Iterates history from startTime, verifying that records are decoded correctly.
+     * @return the number of records read.
+     */
+    private int readHistory(BatteryStatsHistory history, long startTime, int firstRecord) {
+        final BatteryStats.HistoryItem item = new BatteryStats.HistoryItem();
+        history.startIteratingHistory(startTime);
+        assertEquals(firstRecord > 0 ? 0 : -1, history.getIterationBaseTime());
+        int count = 0;
+        Parcel p;
+        while ((p = history.getNextParcel(item)) != null) {
+            mBatteryStatsImpl.readHistoryDelta(p, item);
+            final int expected = Math.max(firstRecord, 0) + count;
+            assertEquals(expected * 1000L, item.time);
+            assertEquals(expected, item.batteryLevel);
+            count++;
+        }
+        history.finishIteratingHistory();
+        return count;
+    }
+
     private void verifyActiveFile(BatteryStatsHistory history, String file) {
         final File expectedFile = new File(mHistoryDir, file);
         assertEquals(expectedFile.getPath(), history.getActiveFile().getBaseFile().getPath());
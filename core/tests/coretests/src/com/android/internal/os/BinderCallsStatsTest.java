@@ -17,6 +17,7 @@
 package com.android.internal.os;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import android.os.Binder;
@@ -753,6 +754,117 @@ public class BinderCallsStatsTest {
         assertEquals(1, callStats.recordedCallCount);
     }
 
+    @Test
+    public void testLatencyHistogram() {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setDetailedTracking(true);
+        Binder binder = new Binder();
+        for (int latency : new int[] {1, 5, 5, 100, 5000}) {
+            CallSession callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
+            bcs.elapsedTime += latency;
+            bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        }
+
+        List<BinderCallsStats.ExportedCallStat> callStats = bcs.getExportedCallStats();
+        assertEquals(1, callStats.size());
+        int[] histogram = callStats.get(0).latencyHistogram;
+        assertEquals(BinderCallsStats.LatencyHistogram.BUCKET_COUNT, histogram.length);
+        assertEquals(1, histogram[BinderCallsStats.LatencyHistogram.getBucket(1)]);
+        assertEquals(2, histogram[BinderCallsStats.LatencyHistogram.getBucket(5)]);
+        assertEquals(1, histogram[BinderCallsStats.LatencyHistogram.getBucket(100)]);
+        assertEquals(1, histogram[BinderCallsStats.LatencyHistogram.getBucket(5000)]);
+        assertEquals(5, BinderCallsStats.LatencyHistogram.getPercentile(histogram, 0.5));
+        long p99 = BinderCallsStats.LatencyHistogram.getPercentile(histogram, 0.99);
+        assertTrue(p99 >= 5000 && p99 <= 5000 * 1.25);
+    }
+
+    @Test
+    public void testLatencyHistogramDisabled() {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setDetailedTracking(true);
+        bcs.setCollectLatencyHistograms(false);
+        Binder binder = new Binder();
+        CallSession callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
+        bcs.elapsedTime += 10;
+        bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+
+        assertNull(bcs.getExportedCallStats().get(0).latencyHistogram);
+    }
+
+    @Test
+    public void testLatencyHistogramBuckets() {
+        // Buckets are contiguous, and each value is within 25% of its bucket's bounds.
+        for (int bucket = 1; bucket < BinderCallsStats.LatencyHistogram.BUCKET_COUNT; bucket++) {
+            long lowerBound = BinderCallsStats.LatencyHistogram.getBucketLowerBound(bucket);
+            assertEquals(bucket, BinderCallsStats.LatencyHistogram.getBucket(lowerBound));
+            assertEquals(bucket - 1,
+                    BinderCallsStats.LatencyHistogram.getBucket(lowerBound - 1));
+            long previousLowerBound =
+                    BinderCallsStats.LatencyHistogram.getBucketLowerBound(bucket - 1);
+            assertTrue(lowerBound - 1 <= previousLowerBound * 1.25 + 1);
+        }
+        assertEquals(BinderCallsStats.LatencyHistogram.BUCKET_COUNT - 1,
+                BinderCallsStats.LatencyHistogram.getBucket(Long.MAX_VALUE));
+        assertEquals(0, BinderCallsStats.LatencyHistogram.getBucket(-1));
+    }
+
+    @Test
+    public void testSlowCalls() {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setDetailedTracking(true);
+        Binder binder = new BinderWithGetTransactionName();
+        for (int i = 1; i <= 20; i++) {
+            CallSession callSession = bcs.callStarted(binder, i, WORKSOURCE_UID);
+            bcs.elapsedTime += i * 10;
+            bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        }
+
+        List<BinderCallsStats.SlowCall> slowCalls = bcs.getSlowCalls();
+        assertEquals(10, slowCalls.size());
+        for (int i = 0; i < 10; i++) {
+            BinderCallsStats.SlowCall call = slowCalls.get(i);
+            assertEquals((20 - i) * 10, call.latencyMicros);
+            assertEquals(20 - i, call.transactionCode);
+            assertEquals("resolved", call.methodName);
+            assertEquals(CALLING_UID, call.callingUid);
+            assertEquals(WORKSOURCE_UID, call.workSourceUid);
+        }
+
+        bcs.reset();
+        assertEquals(0, bcs.getSlowCalls().size());
+    }
+
+    @Test
+    public void testClassSamplingInterval() {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setDetailedTracking(true);
+        bcs.setSamplingInterval(1);
+        HashMap<String, Integer> intervals = new HashMap<>();
+        intervals.put(BinderWithGetTransactionName.class.getName(), 2);
+        bcs.setClassSamplingIntervals(intervals);
+
+        Binder sampledBinder = new BinderWithGetTransactionName();
+        Binder binder = new Binder();
+        for (int i = 0; i < 4; i++) {
+            CallSession callSession = bcs.callStarted(sampledBinder, 1, WORKSOURCE_UID);
+            bcs.time += 10;
+            bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        }
+        for (int i = 0; i < 4; i++) {
+            CallSession callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
+            bcs.time += 10;
+            bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        }
+
+        List<BinderCallsStats.ExportedCallStat> callStats = bcs.getExportedCallStats();
+        assertEquals(2, callStats.size());
+        for (BinderCallsStats.ExportedCallStat stat : callStats) {
+            assertEquals(4, stat.callCount);
+            assertEquals(stat.binderClass == BinderWithGetTransactionName.class ? 2 : 4,
+                    stat.recordedCallCount);
+        }
+    }
+
     class TestBinderCallsStats extends BinderCallsStats {
         public int callingUid = CALLING_UID;
         public long time = 1234;
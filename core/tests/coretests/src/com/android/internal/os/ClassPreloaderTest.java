@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import android.os.SystemClock;
+import android.util.ArraySet;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ClassPreloaderTest {
+    private static final String PREFIX = ClassPreloaderTest.class.getName() + "$";
+
+    /** Thread each test class was initialized on. */
+    private static final ConcurrentHashMap<String, Thread> sInitThreads =
+            new ConcurrentHashMap<>();
+
+    private static void initialized(Class<?> cls) {
+        sInitThreads.put(cls.getName(), Thread.currentThread());
+        SystemClock.sleep(5);
+    }
+
+    public static class Parallel0 { static { initialized(Parallel0.class); } }
+    public static class Parallel1 { static { initialized(Parallel1.class); } }
+    public static class Parallel2 { static { initialized(Parallel2.class); } }
+    public static class Parallel3 { static { initialized(Parallel3.class); } }
+    public static class Parallel4 { static { initialized(Parallel4.class); } }
+    public static class Parallel5 { static { initialized(Parallel5.class); } }
+    public static class MainThread { static { initialized(MainThread.class); } }
+
+    public static class Serial { static { initialized(Serial.class); } }
+
+    public static class Failing {
+        static {
+            if (true) {
+                throw new IllegalStateException("Failing");
+            }
+        }
+    }
+
+    @Test
+    public void testPreload_parallel() {
+        final List<String> classes = Arrays.asList(PREFIX + "Parallel0", PREFIX + "Parallel1",
+                PREFIX + "Parallel2", PREFIX + "Parallel3", PREFIX + "MainThread",
+                PREFIX + "Parallel4", PREFIX + "Parallel5");
+        final ClassPreloader preloader = new ClassPreloader(classes,
+                new ArraySet<>(new String[] {PREFIX + "MainThread"}),
+                getClass().getClassLoader(), 3, false);
+
+        assertThat(preloader.preload()).isEqualTo(classes.size());
+
+        for (String name : classes) {
+            assertThat(sInitThreads).containsKey(name);
+        }
+        assertSame(Thread.currentThread(), sInitThreads.get(PREFIX + "MainThread"));
+        for (int i = 0; i < classes.size(); i++) {
+            assertThat(preloader.getDurationNanos(i)).isGreaterThan(0L);
+        }
+        // All workers are gone once preloading returns.
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertThat(thread.getName()).doesNotContain("ClassPreloader");
+        }
+    }
+
+    @Test
+    public void testPreload_serialSkipsMissingClasses() {
+        final List<String> classes = Arrays.asList(PREFIX + "Missing",
+                PREFIX + "Serial", PREFIX + "Missing$$Lambda$1");
+        final ClassPreloader preloader = new ClassPreloader(classes, Collections.emptySet(),
+                getClass().getClassLoader(), 0, true);
+
+        assertThat(preloader.preload()).isEqualTo(1);
+        assertThat(preloader.getMissingLambdaCount()).isEqualTo(1);
+        assertSame(Thread.currentThread(), sInitThreads.get(PREFIX + "Serial"));
+    }
+
+    @Test
+    public void testPreload_rethrowsInitializerErrors() {
+        final ClassPreloader preloader = new ClassPreloader(
+                Arrays.asList(PREFIX + "Failing"), Collections.emptySet(),
+                getClass().getClassLoader(), 2, false);
+        try {
+            preloader.preload();
+            fail("Expected ExceptionInInitializerError");
+        } catch (ExceptionInInitializerError expected) {
+            assertThat(expected.getCause()).isInstanceOf(IllegalStateException.class);
+        }
+    }
+}
@@ -290,6 +290,14 @@ public final class LooperStatsTest {
         assertThat(entry.recordedDelayMessageCount).isEqualTo(4);
         assertThat(entry.delayMillis).isEqualTo(400);
         assertThat(entry.maxDelayMillis).isEqualTo(300);
+        assertThat(entry.delayHistogram)
+                .hasLength(BinderCallsStats.LatencyHistogram.BUCKET_COUNT);
+        assertThat(entry.delayHistogram[BinderCallsStats.LatencyHistogram.getBucket(0)])
+                .isEqualTo(2);
+        assertThat(entry.delayHistogram[BinderCallsStats.LatencyHistogram.getBucket(100_000)])
+                .isEqualTo(1);
+        assertThat(entry.delayHistogram[BinderCallsStats.LatencyHistogram.getBucket(300_000)])
+                .isEqualTo(1);
     }
 
     @Test
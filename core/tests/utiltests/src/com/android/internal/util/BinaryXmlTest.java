@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.END_TAG;
+import static org.xmlpull.v1.XmlPullParser.START_TAG;
+import static org.xmlpull.v1.XmlPullParser.TEXT;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests for {@link BinaryXmlSerializer} and {@link BinaryXmlPullParser}.
+ */
+@SmallTest
+public class BinaryXmlTest extends TestCase {
+
+    public void testRoundTrip_Binary() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final XmlSerializer out = new BinaryXmlSerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        writeSample(out);
+
+        final XmlPullParser in = XmlUtils.resolvePullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        assertTrue(in instanceof BinaryXmlPullParser);
+        assertSample(in);
+    }
+
+    public void testRoundTrip_TextFallback() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        writeSample(out);
+
+        final XmlPullParser in = XmlUtils.resolvePullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        assertFalse(in instanceof BinaryXmlPullParser);
+        assertSample(in);
+    }
+
+    public void testTypedAttributesAsStrings() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final BinaryXmlSerializer out = new BinaryXmlSerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.startTag(null, "tag");
+        out.attributeIntHex(null, "hex", 0xcafe);
+        out.attributeLong(null, "long", -42L);
+        out.attributeBoolean(null, "bool", true);
+        out.endTag(null, "tag");
+        out.endDocument();
+
+        final XmlPullParser in = XmlUtils.resolvePullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        assertEquals(START_TAG, in.next());
+        assertEquals("cafe", in.getAttributeValue(null, "hex"));
+        assertEquals("-42", in.getAttributeValue(null, "long"));
+        assertEquals("true", in.getAttributeValue(null, "bool"));
+        assertNull(in.getAttributeValue(null, "missing"));
+    }
+
+    private static void writeSample(XmlSerializer out) throws Exception {
+        out.startDocument(null, true);
+        out.startTag(null, "root");
+        XmlUtils.writeIntAttribute(out, "int", 42);
+        XmlUtils.writeLongAttribute(out, "long", 1L << 40);
+        XmlUtils.writeBooleanAttribute(out, "bool", true);
+        out.attribute(null, "string", "café");
+        for (int i = 0; i < 3; i++) {
+            out.startTag(null, "item");
+            XmlUtils.writeIntAttribute(out, "index", i);
+            out.text("value" + i);
+            out.endTag(null, "item");
+        }
+        out.endTag(null, "root");
+        out.endDocument();
+    }
+
+    private static void assertSample(XmlPullParser in) throws Exception {
+        assertEquals(START_TAG, in.next());
+        assertEquals("root", in.getName());
+        assertEquals(1, in.getDepth());
+        assertEquals(42, XmlUtils.readIntAttribute(in, "int"));
+        assertEquals(1L << 40, XmlUtils.readLongAttribute(in, "long"));
+        assertTrue(XmlUtils.readBooleanAttribute(in, "bool", false));
+        assertEquals("café", in.getAttributeValue(null, "string"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(START_TAG, in.next());
+            assertEquals("item", in.getName());
+            assertEquals(2, in.getDepth());
+            assertEquals(i, XmlUtils.readIntAttribute(in, "index"));
+            assertEquals(TEXT, in.next());
+            assertEquals("value" + i, in.getText());
+            assertEquals(END_TAG, in.next());
+            assertEquals(2, in.getDepth());
+        }
+        assertEquals(END_TAG, in.next());
+        assertEquals("root", in.getName());
+        assertEquals(END_DOCUMENT, in.next());
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of individual setting changes made since the last full
+ * snapshot of a {@link SettingsState} was written.
+ * <p>
+ * Each record carries a sequence number which is also stored in the snapshot
+ * when it is compacted, so records already folded into a snapshot are ignored
+ * on replay even if the journal could not be truncated afterwards. Records are
+ * checksummed and the journal is synced after every append; a torn record at
+ * the tail is dropped on replay, which leaves the state exactly as it was
+ * before the interrupted write, matching the guarantees of {@link
+ * android.util.AtomicFile}.
+ * <p>
+ * Sequence numbers are assigned when a batch is built, but concurrent writers
+ * may append their batches in the other order, so the file order is not the
+ * order of the changes. Replay goes by sequence number instead.
+ */
+final class SettingsJournal {
+    private static final String LOG_TAG = "SettingsJournal";
+
+    static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+    static final byte OP_PUT = 1;
+    static final byte OP_DELETE = 2;
+
+    /** Upper bound on a single record, to reject garbage lengths quickly. */
+    private static final int MAX_RECORD_BYTES = 4 * 1024 * 1024;
+
+    private final File mFile;
+
+    /** A single journaled change to one setting. */
+    static final class Record {
+        long seq;
+        byte op;
+        String name;
+        String value;
+        String defaultValue;
+        String packageName;
+        String tag;
+        String id;
+        boolean defaultFromSystem;
+        boolean isValuePreservedInRestore;
+    }
+
+    SettingsJournal(File stateFile) {
+        mFile = getJournalFile(stateFile);
+    }
+
+    static File getJournalFile(File stateFile) {
+        return new File(stateFile.getPath() + JOURNAL_FILE_SUFFIX);
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    long length() {
+        return mFile.length();
+    }
+
+    void delete() {
+        mFile.delete();
+    }
+
+    /**
+     * Append the given records and sync them to disk before returning.
+     */
+    void append(List<Record> records) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final DataOutputStream payloadOut = new DataOutputStream(payload);
+        final CRC32 crc = new CRC32();
+        final int recordCount = records.size();
+        for (int i = 0; i < recordCount; i++) {
+            payload.reset();
+            writeRecord(payloadOut, records.get(i));
+            crc.reset();
+            crc.update(payload.toByteArray(), 0, payload.size());
+            out.writeInt(payload.size());
+            out.writeInt((int) crc.getValue());
+            payload.writeTo(out);
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, true);
+            bytes.writeTo(fos);
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Replay the latest record of each setting with a sequence number greater
+     * than {@code afterSeq}, in sequence order. Older records of a setting are
+     * skipped wherever they appear in the file. A corrupt or truncated tail is
+     * cut off so that later appends are not hidden behind it.
+     *
+     * @return the highest sequence number seen in the journal, or
+     *         {@code afterSeq} if it contained nothing newer.
+     */
+    long replay(long afterSeq, Consumer<Record> consumer) {
+        final ArrayMap<String, Record> latest = new ArrayMap<>();
+        long maxSeq = afterSeq;
+        long goodLength = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    Slog.w(LOG_TAG, "Invalid record length " + length + " in " + mFile);
+                    break;
+                }
+                final int expectedCrc = in.readInt();
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    Slog.w(LOG_TAG, "Checksum mismatch in " + mFile);
+                    break;
+                }
+                goodLength += 8 + length;
+
+                final Record record = readRecord(
+                        new DataInputStream(new ByteArrayInputStream(payload)));
+                if (record.seq > afterSeq) {
+                    final Record previous = latest.get(record.name);
+                    if (previous == null || previous.seq < record.seq) {
+                        latest.put(record.name, record);
+                    }
+                }
+                maxSeq = Math.max(maxSeq, record.seq);
+            }
+        } catch (FileNotFoundException e) {
+            return maxSeq;
+        } catch (IOException e) {
+            Slog.w(LOG_TAG, "Truncated journal " + mFile, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        if (goodLength < mFile.length()) {
+            truncate(goodLength);
+        }
+
+        final List<Record> records = new ArrayList<>(latest.values());
+        records.sort((a, b) -> Long.compare(a.seq, b.seq));
+        for (int i = 0; i < records.size(); i++) {
+            consumer.accept(records.get(i));
+        }
+        return maxSeq;
+    }
+
+    private void truncate(long length) {
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(length);
+            raf.getFD().sync();
+        } catch (IOException e) {
+            Slog.w(LOG_TAG, "Failed to truncate " + mFile, e);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+        out.writeLong(record.seq);
+        out.writeByte(record.op);
+        writeString(out, record.name);
+        if (record.op == OP_PUT) {
+            writeString(out, record.value);
+            writeString(out, record.defaultValue);
+            writeString(out, record.packageName);
+            writeString(out, record.tag);
+            writeString(out, record.id);
+            out.writeBoolean(record.defaultFromSystem);
+            out.writeBoolean(record.isValuePreservedInRestore);
+        }
+    }
+
+    private static Record readRecord(DataInputStream in) throws IOException {
+        final Record record = new Record();
+        record.seq = in.readLong();
+        record.op = in.readByte();
+        record.name = readString(in);
+        if (record.op == OP_PUT) {
+            record.value = readString(in);
+            record.defaultValue = readString(in);
+            record.packageName = readString(in);
+            record.tag = readString(in);
+            record.id = readString(in);
+            record.defaultFromSystem = in.readBoolean();
+            record.isValuePreservedInRestore = in.readBoolean();
+        } else if (record.op != OP_DELETE) {
+            throw new IOException("Unknown journal op " + record.op);
+        }
+        return record;
+    }
+
+    /**
+     * Strings are written as raw UTF-16 code units so that values which are
+     * not valid Unicode, see {@link SettingsState#isBinary}, survive unchanged.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+}
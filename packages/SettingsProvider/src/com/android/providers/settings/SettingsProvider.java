@@ -2552,6 +2552,14 @@ public class SettingsProvider extends ContentProvider {
                 final File fallBackFile = new File(filePath + FALLBACK_FILE_SUFFIX);
                 try {
                     FileUtils.copy(originalFile, fallBackFile);
+                    // Changes not yet compacted into the snapshot live in its journal
+                    final File journalFile = SettingsJournal.getJournalFile(originalFile);
+                    final File fallBackJournalFile = SettingsJournal.getJournalFile(fallBackFile);
+                    if (journalFile.exists()) {
+                        FileUtils.copy(journalFile, fallBackJournalFile);
+                    } else {
+                        fallBackJournalFile.delete();
+                    }
                 } catch (IOException ex) {
                     Slog.w(LOG_TAG, "Failed to write fallback file for: " + filePath);
                 }
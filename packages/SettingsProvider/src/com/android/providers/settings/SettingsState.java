@@ -38,17 +38,18 @@ import android.provider.Settings.Global;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
-import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FrameworkStatsLog;
+import com.android.internal.util.XmlUtils;
 
 import libcore.io.IoUtils;
 
@@ -62,7 +63,6 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -97,6 +97,10 @@ final class SettingsState {
     private static final long WRITE_SETTINGS_DELAY_MILLIS = 200;
     private static final long MAX_WRITE_SETTINGS_DELAY_MILLIS = 2000;
 
+    // The journal is folded into a new snapshot once it grows past the larger
+    // of this and the size of the last snapshot, bounding replay cost at boot.
+    private static final long MIN_JOURNAL_COMPACTION_BYTES = 16 * 1024;
+
     public static final int MAX_BYTES_PER_APP_PACKAGE_UNLIMITED = -1;
     public static final int MAX_BYTES_PER_APP_PACKAGE_LIMITED = 20000;
 
@@ -112,6 +116,7 @@ final class SettingsState {
     private static final String ATTR_TAG_BASE64 = "tagBase64";
 
     private static final String ATTR_VERSION = "version";
+    private static final String ATTR_JOURNAL_SEQ = "journalSeq";
     private static final String ATTR_ID = "id";
     private static final String ATTR_NAME = "name";
 
@@ -217,6 +222,35 @@ final class SettingsState {
     @GuardedBy("mLock")
     private int mNextHistoricalOpIdx;
 
+    private final SettingsJournal mJournal;
+
+    // Names of settings changed since the last write, to be appended to the journal.
+    @GuardedBy("mLock")
+    private final ArraySet<String> mPendingJournalNames = new ArraySet<>();
+
+    // Whether the next write must be a full snapshot, e.g. because state that
+    // is not journaled, such as the version or banned namespaces, changed.
+    @GuardedBy("mLock")
+    private boolean mSnapshotRequired = true;
+
+    // Sequence number of the last change assigned to a journal record.
+    @GuardedBy("mLock")
+    private long mJournalSeq;
+
+    @GuardedBy("mLock")
+    private long mJournalBytes;
+
+    @GuardedBy("mLock")
+    private long mLastSnapshotBytes;
+
+    // Sequence number of the last journal record folded into the loaded snapshot.
+    @GuardedBy("mLock")
+    private long mSnapshotJournalSeq;
+
+    // Highest sequence number appended to the journal on disk.
+    @GuardedBy("mWriteLock")
+    private long mJournalMaxSeqWritten;
+
     public static final int SETTINGS_TYPE_GLOBAL = 0;
     public static final int SETTINGS_TYPE_SYSTEM = 1;
     public static final int SETTINGS_TYPE_SECURE = 2;
@@ -288,6 +322,8 @@ final class SettingsState {
         mHistoricalOperations = Build.IS_DEBUGGABLE
                 ? new ArrayList<>(HISTORICAL_OPERATION_COUNT) : null;
 
+        mJournal = new SettingsJournal(file);
+
         synchronized (mLock) {
             readStateSyncLocked();
         }
@@ -330,12 +366,13 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                mPendingJournalNames.add(name);
                 removedSomething = true;
             }
         }
 
         if (removedSomething) {
-            scheduleWriteIfNeededLocked();
+            scheduleWriteIfNeededLocked(null);
         }
     }
 
@@ -387,7 +424,7 @@ final class SettingsState {
             mSettings.put(name, newSetting);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
-            scheduleWriteIfNeededLocked();
+            scheduleWriteIfNeededLocked(name);
         }
     }
 
@@ -442,7 +479,7 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -479,6 +516,7 @@ final class SettingsState {
         // The write is intentionally not scheduled here, banned hashes should and will be written
         // when the related setting changes are written
         mNamespaceBannedHashes.put(prefix, hashCode(keyValues));
+        mSnapshotRequired = true;
     }
 
     @GuardedBy("mLock")
@@ -538,7 +576,8 @@ final class SettingsState {
         }
 
         if (!changedKeys.isEmpty()) {
-            scheduleWriteIfNeededLocked();
+            mPendingJournalNames.addAll(changedKeys);
+            scheduleWriteIfNeededLocked(null);
         }
 
         return changedKeys;
@@ -568,7 +607,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -598,7 +637,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -744,6 +783,20 @@ final class SettingsState {
 
     @GuardedBy("mLock")
     private void scheduleWriteIfNeededLocked() {
+        mSnapshotRequired = true;
+        scheduleWriteIfNeededLocked(null);
+    }
+
+    /**
+     * Schedule a write that only needs to record the change to the setting
+     * with the given name, or to the names already added to
+     * {@link #mPendingJournalNames} when {@code name} is null.
+     */
+    @GuardedBy("mLock")
+    private void scheduleWriteIfNeededLocked(String name) {
+        if (name != null) {
+            mPendingJournalNames.add(name);
+        }
         // If dirty then we have a write already scheduled.
         if (!mDirty) {
             mDirty = true;
@@ -786,13 +839,34 @@ final class SettingsState {
         final int version;
         final ArrayMap<String, Setting> settings;
         final ArrayMap<String, String> namespaceBannedHashes;
+        final long journalSeq;
+        List<SettingsJournal.Record> journalRecords = null;
 
+        synchronized (mLock) {
+            mDirty = false;
+            mWriteScheduled = false;
+            // Small changes on top of a recent snapshot only need to be journaled.
+            if (!mSnapshotRequired && !mPendingJournalNames.isEmpty()
+                    && mJournalBytes < Math.max(MIN_JOURNAL_COMPACTION_BYTES,
+                            mLastSnapshotBytes)) {
+                journalRecords = createJournalRecordsLocked();
+                mPendingJournalNames.clear();
+            }
+        }
+
+        if (journalRecords != null && doWriteJournal(journalRecords)) {
+            return;
+        }
+
+        // Either a snapshot is due or the journal couldn't be appended to, so
+        // write out everything.
         synchronized (mLock) {
             version = mVersion;
             settings = new ArrayMap<>(mSettings);
             namespaceBannedHashes = new ArrayMap<>(mNamespaceBannedHashes);
-            mDirty = false;
-            mWriteScheduled = false;
+            journalSeq = mJournalSeq;
+            mPendingJournalNames.clear();
+            mSnapshotRequired = false;
         }
 
         synchronized (mWriteLock) {
@@ -805,13 +879,13 @@ final class SettingsState {
             try {
                 out = destination.startWrite();
 
-                XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(out, StandardCharsets.UTF_8.name());
+                XmlSerializer serializer = XmlUtils.resolveSerializer(out);
                 serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
                         true);
                 serializer.startDocument(null, true);
                 serializer.startTag(null, TAG_SETTINGS);
                 serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
+                serializer.attribute(null, ATTR_JOURNAL_SEQ, String.valueOf(journalSeq));
 
                 final int settingCount = settings.size();
                 for (int i = 0; i < settingCount; i++) {
@@ -850,6 +924,13 @@ final class SettingsState {
                 serializer.endDocument();
                 destination.finishWrite(out);
 
+                // Only drop the journal when every record in it is covered by
+                // the snapshot we just wrote; a concurrent append may have
+                // raced ahead of us, and replay skips the older records anyway.
+                if (mJournalMaxSeqWritten <= journalSeq) {
+                    mJournal.delete();
+                }
+
                 wroteState = true;
 
                 if (DEBUG_PERSISTENCE) {
@@ -880,11 +961,89 @@ final class SettingsState {
             }
         }
 
-        if (wroteState) {
-            synchronized (mLock) {
+        final long snapshotBytes = mStatePersistFile.length();
+        final long journalBytes = mJournal.length();
+        synchronized (mLock) {
+            if (wroteState) {
+                mLastSnapshotBytes = snapshotBytes;
+                mJournalBytes = journalBytes;
                 addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+            } else {
+                mSnapshotRequired = true;
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private List<SettingsJournal.Record> createJournalRecordsLocked() {
+        final int nameCount = mPendingJournalNames.size();
+        final List<SettingsJournal.Record> records = new ArrayList<>(nameCount);
+        for (int i = 0; i < nameCount; i++) {
+            final String name = mPendingJournalNames.valueAt(i);
+            final Setting setting = mSettings.get(name);
+            final SettingsJournal.Record record = new SettingsJournal.Record();
+            record.seq = ++mJournalSeq;
+            record.name = name;
+            // Transient settings are never persisted, same as in the snapshot.
+            if (setting == null || setting.isTransient()) {
+                record.op = SettingsJournal.OP_DELETE;
+            } else {
+                record.op = SettingsJournal.OP_PUT;
+                record.value = setting.getValue();
+                record.defaultValue = setting.getDefaultValue();
+                record.packageName = setting.getPackageName();
+                record.tag = setting.getTag();
+                record.id = setting.getId();
+                record.defaultFromSystem = setting.isDefaultFromSystem();
+                record.isValuePreservedInRestore = setting.isValuePreservedInRestore();
             }
+            records.add(record);
         }
+        return records;
+    }
+
+    /**
+     * Append the given records to the journal.
+     *
+     * @return whether the records are durably stored.
+     */
+    private boolean doWriteJournal(List<SettingsJournal.Record> records) {
+        synchronized (mWriteLock) {
+            try {
+                mJournal.append(records);
+            } catch (IOException e) {
+                Slog.w(LOG_TAG, "Failed to append to " + mJournal.getFile(), e);
+                return false;
+            }
+            mJournalMaxSeqWritten = Math.max(mJournalMaxSeqWritten,
+                    records.get(records.size() - 1).seq);
+        }
+        final long journalBytes = mJournal.length();
+        synchronized (mLock) {
+            mJournalBytes = journalBytes;
+            addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+        }
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[JOURNALED] " + records.size() + " settings");
+        }
+        return true;
+    }
+
+    @GuardedBy("mLock")
+    private void replayJournalLocked(SettingsJournal journal, long snapshotSeq) {
+        mJournalSeq = journal.replay(snapshotSeq, (record) -> {
+            if (record.op == SettingsJournal.OP_PUT) {
+                mSettings.put(record.name, new Setting(record.name, record.value,
+                        record.defaultValue, record.packageName, record.tag,
+                        record.defaultFromSystem, record.id, record.isValuePreservedInRestore));
+            } else {
+                mSettings.remove(record.name);
+            }
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[REPLAYED] " + record.name + "=" + record.value);
+            }
+        });
+        mJournalBytes = journal.length();
     }
 
     private static void logSettingsDirectoryInformation(File settingsFile) {
@@ -1009,10 +1168,15 @@ final class SettingsState {
         } catch (FileNotFoundException fnfe) {
             Slog.w(LOG_TAG, "No settings state " + mStatePersistFile);
             logSettingsDirectoryInformation(mStatePersistFile);
+            // Without a snapshot any leftover journal has nothing to apply to.
+            mJournal.delete();
             addHistoricalOperationLocked(HISTORICAL_OPERATION_INITIALIZE, null);
             return;
         }
         if (parseStateFromXmlStreamLocked(in)) {
+            replayJournalLocked(mJournal, mSnapshotJournalSeq);
+            mLastSnapshotBytes = mStatePersistFile.length();
+            mSnapshotRequired = false;
             return;
         }
 
@@ -1029,12 +1193,20 @@ final class SettingsState {
             throw new IllegalStateException(message);
         }
         if (parseStateFromXmlStreamLocked(in)) {
+            // The journal next to the corrupted file belongs to a different
+            // snapshot, so only replay the one saved alongside the fallback.
+            replayJournalLocked(new SettingsJournal(statePersistFallbackFile),
+                    mSnapshotJournalSeq);
+            mJournal.delete();
+            mJournalBytes = 0;
             // Parsed state from fallback file. Restore original file with fallback file
             try {
                 FileUtils.copy(statePersistFallbackFile, mStatePersistFile);
             } catch (IOException ignored) {
                 // Failed to copy, but it's okay because we already parsed states from fallback file
             }
+            // Fold the replayed changes into a fresh snapshot as soon as possible.
+            scheduleWriteIfNeededLocked();
         } else {
             final String message = "Failed parsing settings file: " + mStatePersistFile;
             Slog.wtf(LOG_TAG, message);
@@ -1045,8 +1217,7 @@ final class SettingsState {
     @GuardedBy("mLock")
     private boolean parseStateFromXmlStreamLocked(FileInputStream in) {
         try {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(in, StandardCharsets.UTF_8.name());
+            XmlPullParser parser = XmlUtils.resolvePullParser(in);
             parseStateLocked(parser);
             return true;
         } catch (XmlPullParserException | IOException e) {
@@ -1090,6 +1261,7 @@ final class SettingsState {
             throws IOException, XmlPullParserException {
 
         mVersion = Integer.parseInt(parser.getAttributeValue(null, ATTR_VERSION));
+        mSnapshotJournalSeq = XmlUtils.readLongAttribute(parser, ATTR_JOURNAL_SEQ, 0);
 
         final int outerDepth = parser.getDepth();
         int type;
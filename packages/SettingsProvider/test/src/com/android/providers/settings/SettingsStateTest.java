@@ -26,6 +26,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class SettingsStateTest extends AndroidTestCase {
     public static final String CRAZY_STRING =
@@ -161,6 +162,101 @@ public class SettingsStateTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * Make sure changes written after the initial snapshot are journaled and
+     * replayed on top of the snapshot when read back.
+     */
+    public void testReadWrite_journal() {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        file.delete();
+        SettingsJournal.getJournalFile(file).delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "package");
+            ssWriter.insertSettingLocked("k2", "v2", null, false, "package");
+            ssWriter.persistSyncLocked();
+        }
+        final long snapshotLength = file.length();
+
+        synchronized (lock) {
+            ssWriter.insertSettingLocked("k1", CRAZY_STRING, null, false, "package");
+            ssWriter.deleteSettingLocked("k2");
+            ssWriter.insertSettingLocked("k3", "v3", null, false, "p3");
+            ssWriter.persistSyncLocked();
+        }
+        assertEquals(snapshotLength, file.length());
+        assertTrue(SettingsJournal.getJournalFile(file).exists());
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k1").getValue());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+            assertEquals("v3", ssReader.getSettingLocked("k3").getValue());
+            assertEquals("p3", ssReader.getSettingLocked("k3").getPackageName());
+        }
+    }
+
+    /**
+     * Batches can reach the journal in the other order than their sequence
+     * numbers; make sure the newest change of each setting wins on replay.
+     */
+    public void testReadWrite_journalOutOfOrder() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        file.delete();
+        SettingsJournal.getJournalFile(file).delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "package");
+            ssWriter.insertSettingLocked("k2", "v2", null, false, "package");
+            ssWriter.persistSyncLocked();
+        }
+
+        // The batch holding changes 4 and 5 was appended before the one holding 1 to 3.
+        final SettingsJournal journal = new SettingsJournal(file);
+        journal.append(Arrays.asList(
+                createPutRecord(4, "k1", "newest"),
+                createDeleteRecord(5, "k2")));
+        journal.append(Arrays.asList(
+                createPutRecord(1, "k1", "older"),
+                createPutRecord(2, "k2", "older"),
+                createPutRecord(3, "k3", "v3")));
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals("newest", ssReader.getSettingLocked("k1").getValue());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+            assertEquals("v3", ssReader.getSettingLocked("k3").getValue());
+        }
+    }
+
+    private static SettingsJournal.Record createPutRecord(long seq, String name, String value) {
+        final SettingsJournal.Record record = new SettingsJournal.Record();
+        record.seq = seq;
+        record.op = SettingsJournal.OP_PUT;
+        record.name = name;
+        record.value = value;
+        record.packageName = TEST_PACKAGE;
+        return record;
+    }
+
+    private static SettingsJournal.Record createDeleteRecord(long seq, String name) {
+        final SettingsJournal.Record record = new SettingsJournal.Record();
+        record.seq = seq;
+        record.op = SettingsJournal.OP_DELETE;
+        record.name = name;
+        return record;
+    }
+
     /**
      * In version 120, value "null" meant {code NULL}.
      */
@@ -259,11 +259,13 @@ class AlarmManagerService extends SystemService {
     interface Stats {
         int REBATCH_ALL_ALARMS = 0;
         int REORDER_ALARMS_FOR_STANDBY = 1;
+        int REBATCH_REMOVED_ALARMS = 2;
     }
 
     private final StatLogger mStatLogger = new StatLogger(new String[] {
             "REBATCH_ALL_ALARMS",
             "REORDER_ALARMS_FOR_STANDBY",
+            "REBATCH_REMOVED_ALARMS",
     });
 
     /**
@@ -677,6 +679,9 @@ class AlarmManagerService extends SystemService {
 
         final ArrayList<Alarm> alarms = new ArrayList<Alarm>();
 
+        /** This batch's entry in {@link #mBatchWindowIndex}, if any. */
+        BatchWindowIndex.Node indexNode;
+
         Batch(Alarm seed) {
             start = seed.whenElapsed;
             end = clampPositive(seed.maxWhenElapsed);
@@ -843,6 +848,173 @@ class AlarmManagerService extends SystemService {
         }
     }
 
+    /**
+     * Index of the batches that alarms can be coalesced into, ordered like
+     * {@link #mAlarmBatches} by start time, in which each entry also records the latest window
+     * end in its subtree. This finds the first batch whose window intersects a new alarm's in
+     * O(log n) rather than by walking all batches.
+     *
+     * <p>Entries snapshot the bounds of their batch, so a batch must be removed from the index
+     * before its bounds change, and added back after.
+     */
+    static final class BatchWindowIndex {
+        static final class Node {
+            final Batch batch;
+            final long start;
+            final long end;
+            final long seq;
+            final int priority;
+            long maxEnd;
+            Node left;
+            Node right;
+
+            Node(Batch batch, long seq) {
+                this.batch = batch;
+                this.start = batch.start;
+                this.end = batch.end;
+                this.seq = seq;
+                // Fibonacci hashing of the sequence number keeps the treap balanced
+                this.priority = (int) ((seq * 0x9E3779B97F4A7C15L) >>> 32);
+                this.maxEnd = end;
+            }
+        }
+
+        private Node mRoot;
+        private long mNextSeq;
+        private int mSize;
+
+        void add(Batch batch) {
+            if ((batch.flags & AlarmManager.FLAG_STANDALONE) != 0) {
+                // Nothing can be coalesced into a standalone batch
+                return;
+            }
+            final Node node = new Node(batch, mNextSeq++);
+            batch.indexNode = node;
+            mRoot = insert(mRoot, node);
+            mSize++;
+        }
+
+        void remove(Batch batch) {
+            final Node node = batch.indexNode;
+            if (node == null) {
+                return;
+            }
+            batch.indexNode = null;
+            mRoot = remove(mRoot, node);
+        }
+
+        void clear() {
+            mRoot = null;
+            mSize = 0;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * @return the batch with the earliest start among those whose window intersects
+         * [{@code whenElapsed}, {@code maxWhen}], or null if there is none.
+         */
+        Batch findFirst(long whenElapsed, long maxWhen) {
+            Node node = mRoot;
+            while (node != null) {
+                if (node.left != null && node.left.maxEnd >= whenElapsed) {
+                    node = node.left;
+                } else if (node.end >= whenElapsed) {
+                    // Every later batch starts no earlier than this one
+                    return (node.start <= maxWhen) ? node.batch : null;
+                } else if (node.right != null && node.right.maxEnd >= whenElapsed) {
+                    node = node.right;
+                } else {
+                    break;
+                }
+            }
+            return null;
+        }
+
+        private static int compare(Node n1, Node n2) {
+            if (n1.start != n2.start) {
+                return (n1.start < n2.start) ? -1 : 1;
+            }
+            return Long.compare(n1.seq, n2.seq);
+        }
+
+        private static void update(Node node) {
+            long maxEnd = node.end;
+            if (node.left != null && node.left.maxEnd > maxEnd) {
+                maxEnd = node.left.maxEnd;
+            }
+            if (node.right != null && node.right.maxEnd > maxEnd) {
+                maxEnd = node.right.maxEnd;
+            }
+            node.maxEnd = maxEnd;
+        }
+
+        private static Node insert(Node root, Node node) {
+            if (root == null) {
+                return node;
+            }
+            if (compare(node, root) < 0) {
+                root.left = insert(root.left, node);
+                if (root.left.priority > root.priority) {
+                    final Node left = root.left;
+                    root.left = left.right;
+                    left.right = root;
+                    update(root);
+                    root = left;
+                }
+            } else {
+                root.right = insert(root.right, node);
+                if (root.right.priority > root.priority) {
+                    final Node right = root.right;
+                    root.right = right.left;
+                    right.left = root;
+                    update(root);
+                    root = right;
+                }
+            }
+            update(root);
+            return root;
+        }
+
+        private Node remove(Node root, Node node) {
+            if (root == null) {
+                return null;
+            }
+            final int cmp = compare(node, root);
+            if (cmp < 0) {
+                root.left = remove(root.left, node);
+            } else if (cmp > 0) {
+                root.right = remove(root.right, node);
+            } else {
+                mSize--;
+                return merge(root.left, root.right);
+            }
+            update(root);
+            return root;
+        }
+
+        /** Joins two treaps, all of whose entries in {@code left} sort before {@code right}. */
+        private static Node merge(Node left, Node right) {
+            if (left == null) {
+                return right;
+            }
+            if (right == null) {
+                return left;
+            }
+            if (left.priority > right.priority) {
+                left.right = merge(left.right, right);
+                update(left);
+                return left;
+            } else {
+                right.left = merge(left, right.left);
+                update(right);
+                return right;
+            }
+        }
+    }
+
     final Comparator<Alarm> mAlarmDispatchComparator = new Comparator<Alarm>() {
         @Override
         public int compare(Alarm lhs, Alarm rhs) {
@@ -907,6 +1079,13 @@ class AlarmManagerService extends SystemService {
     static final long MIN_FUZZABLE_INTERVAL = 10000;
     static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
     final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
+    final BatchWindowIndex mBatchWindowIndex = new BatchWindowIndex();
+
+    /**
+     * Batches that alarms were removed from, whose remaining alarms still need to be re-batched.
+     * See {@link #rebatchRemovedFromLocked()}.
+     */
+    private final ArraySet<Batch> mRemovedFromBatches = new ArraySet<>();
 
     // set to non-null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
@@ -959,32 +1138,49 @@ class AlarmManagerService extends SystemService {
     }
 
     private void insertAndBatchAlarmLocked(Alarm alarm) {
-        final int whichBatch = ((alarm.flags & AlarmManager.FLAG_STANDALONE) != 0) ? -1
+        final Batch batch = ((alarm.flags & AlarmManager.FLAG_STANDALONE) != 0) ? null
                 : attemptCoalesceLocked(alarm.whenElapsed, alarm.maxWhenElapsed);
 
-        if (whichBatch < 0) {
-            addBatchLocked(mAlarmBatches, new Batch(alarm));
+        if (batch == null) {
+            final Batch newBatch = new Batch(alarm);
+            addBatchLocked(mAlarmBatches, newBatch);
+            mBatchWindowIndex.add(newBatch);
         } else {
-            final Batch batch = mAlarmBatches.get(whichBatch);
+            final int whichBatch = indexOfBatchLocked(batch);
+            mBatchWindowIndex.remove(batch);
             if (batch.add(alarm)) {
                 // The start time of this batch advanced, so batch ordering may
                 // have just been broken.  Move it to where it now belongs.
                 mAlarmBatches.remove(whichBatch);
                 addBatchLocked(mAlarmBatches, batch);
             }
+            mBatchWindowIndex.add(batch);
         }
     }
 
-    // Return the index of the matching batch, or -1 if none found.
-    int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
+    // Return the earliest batch that can hold the window, or null if none found.
+    Batch attemptCoalesceLocked(long whenElapsed, long maxWhen) {
+        return mBatchWindowIndex.findFirst(whenElapsed, maxWhen);
+    }
+
+    /** @return the index of {@code batch} in {@link #mAlarmBatches}, or -1. */
+    private int indexOfBatchLocked(Batch batch) {
         final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
-                return i;
+        final int index = Collections.binarySearch(mAlarmBatches, batch, sBatchOrder);
+        if (index >= 0) {
+            // Batches can share a start time; look around the match for this one.
+            for (int i = index; i >= 0 && mAlarmBatches.get(i).start == batch.start; i--) {
+                if (mAlarmBatches.get(i) == batch) {
+                    return i;
+                }
+            }
+            for (int i = index + 1; i < N && mAlarmBatches.get(i).start == batch.start; i++) {
+                if (mAlarmBatches.get(i) == batch) {
+                    return i;
+                }
             }
         }
-        return -1;
+        return mAlarmBatches.indexOf(batch);
     }
     /** @return total count of the alarms in a set of alarm batches. */
     static int getAlarmCount(ArrayList<Batch> batches) {
@@ -1036,6 +1232,8 @@ class AlarmManagerService extends SystemService {
 
         ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
         mAlarmBatches.clear();
+        mBatchWindowIndex.clear();
+        mRemovedFromBatches.clear();
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = mInjector.getElapsedRealtime();
         final int oldBatches = oldSet.size();
@@ -1071,6 +1269,74 @@ class AlarmManagerService extends SystemService {
         mStatLogger.logDurationStat(Stats.REBATCH_ALL_ALARMS, start);
     }
 
+    /**
+     * Removes the alarms matching {@code whichAlarms} from {@link #mAlarmBatches}. The batches
+     * that still hold alarms are left in place until {@link #rebatchRemovedFromLocked()}.
+     *
+     * @return whether any alarm was removed
+     */
+    private boolean removeFromBatchesLocked(Predicate<Alarm> whichAlarms) {
+        boolean didRemove = false;
+        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
+            final Batch b = mAlarmBatches.get(i);
+            if (b.remove(whichAlarms, false)) {
+                didRemove = true;
+                mBatchWindowIndex.remove(b);
+                if (b.size() == 0) {
+                    mAlarmBatches.remove(i);
+                } else {
+                    mRemovedFromBatches.add(b);
+                }
+            }
+        }
+        return didRemove;
+    }
+
+    /**
+     * Re-batches the alarms left in batches that {@link #removeFromBatchesLocked} removed alarms
+     * from, whose windows may have widened. Batches that did not change cannot coalesce any
+     * differently than they already do, so they are left as they are.
+     */
+    private void rebatchRemovedFromLocked() {
+        if (mPendingIdleUntil != null) {
+            // Which alarms are held while idle, and when the idle-until alarm goes off, depend on
+            // all of the alarms; leave that to a full rebatch.
+            rebatchAllAlarmsLocked(true);
+            return;
+        }
+        final long start = mStatLogger.getTime();
+        mAlarmBatches.removeAll(mRemovedFromBatches);
+        if (mNextWakeFromIdle == null) {
+            // The removal took the next wake from idle alarm. Re-adding alarms below only
+            // considers the alarms it re-adds, so find the earliest one left in the others.
+            for (int batchNum = mAlarmBatches.size() - 1; batchNum >= 0; batchNum--) {
+                final Batch batch = mAlarmBatches.get(batchNum);
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    final Alarm a = batch.get(i);
+                    if ((a.flags & AlarmManager.FLAG_WAKE_FROM_IDLE) != 0
+                            && (mNextWakeFromIdle == null
+                                    || mNextWakeFromIdle.whenElapsed > a.whenElapsed)) {
+                        mNextWakeFromIdle = a;
+                    }
+                }
+            }
+        }
+        final long nowElapsed = mInjector.getElapsedRealtime();
+        final int numBatches = mRemovedFromBatches.size();
+        for (int batchNum = 0; batchNum < numBatches; batchNum++) {
+            final Batch batch = mRemovedFromBatches.valueAt(batchNum);
+            final int N = batch.size();
+            for (int i = 0; i < N; i++) {
+                reAddAlarmLocked(batch.get(i), nowElapsed, true);
+            }
+        }
+        mRemovedFromBatches.clear();
+
+        rescheduleKernelAlarmsLocked();
+        updateNextAlarmClockLocked();
+        mStatLogger.logDurationStat(Stats.REBATCH_REMOVED_ALARMS, start);
+    }
+
     /**
      * Re-orders the alarm batches based on newly evaluated send times based on the current
      * app-standby buckets
@@ -1081,9 +1347,11 @@ class AlarmManagerService extends SystemService {
     boolean reorderAlarmsBasedOnStandbyBuckets(ArraySet<Pair<String, Integer>> targetPackages) {
         final long start = mStatLogger.getTime();
         final ArrayList<Alarm> rescheduledAlarms = new ArrayList<>();
+        final ArrayList<Batch> changedBatches = new ArrayList<>();
 
         for (int batchIndex = mAlarmBatches.size() - 1; batchIndex >= 0; batchIndex--) {
             final Batch batch = mAlarmBatches.get(batchIndex);
+            boolean changed = false;
             for (int alarmIndex = batch.size() - 1; alarmIndex >= 0; alarmIndex--) {
                 final Alarm alarm = batch.get(alarmIndex);
                 final Pair<String, Integer> packageUser =
@@ -1092,14 +1360,27 @@ class AlarmManagerService extends SystemService {
                     continue;
                 }
                 if (adjustDeliveryTimeBasedOnBucketLocked(alarm)) {
+                    if (!changed) {
+                        mBatchWindowIndex.remove(batch);
+                        changed = true;
+                    }
                     batch.remove(alarm);
                     rescheduledAlarms.add(alarm);
                 }
             }
-            if (batch.size() == 0) {
+            if (changed) {
+                // The bounds of the batch may have moved; put it back in order below.
                 mAlarmBatches.remove(batchIndex);
+                if (batch.size() > 0) {
+                    changedBatches.add(batch);
+                }
             }
         }
+        for (int i = 0; i < changedBatches.size(); i++) {
+            final Batch batch = changedBatches.get(i);
+            addBatchLocked(mAlarmBatches, batch);
+            mBatchWindowIndex.add(batch);
+        }
         for (int i = 0; i < rescheduledAlarms.size(); i++) {
             final Alarm a = rescheduledAlarms.get(i);
             insertAndBatchAlarmLocked(a);
@@ -1829,7 +2110,15 @@ class AlarmManagerService extends SystemService {
             }
         } catch (RemoteException e) {
         }
-        removeLocked(operation, directReceiver);
+        setImplLocked(a, doValidate);
+    }
+
+    /**
+     * Schedules {@code a}, replacing any alarm with the same operation or listener.
+     */
+    @VisibleForTesting
+    void setImplLocked(Alarm a, boolean doValidate) {
+        removeLocked(a.operation, a.listener);
         incrementAlarmCount(a.uid);
         setImplLocked(a, false, doValidate);
     }
@@ -3080,13 +3369,7 @@ class AlarmManagerService extends SystemService {
 
         boolean didRemove = false;
         final Predicate<Alarm> whichAlarms = (Alarm a) -> a.matches(operation, directReceiver);
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms, false);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        didRemove |= removeFromBatchesLocked(whichAlarms);
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm alarm = mPendingWhileIdleAlarms.get(i);
             if (alarm.matches(operation, directReceiver)) {
@@ -3129,7 +3412,7 @@ class AlarmManagerService extends SystemService {
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchRemovedFromLocked();
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
@@ -3142,15 +3425,13 @@ class AlarmManagerService extends SystemService {
             // If a force-stop occurs for a system-uid package, ignore it.
             return;
         }
+        if (mAlarmsPerUid.indexOfKey(uid) < 0) {
+            // None of the lists below hold an alarm from this uid.
+            return;
+        }
         boolean didRemove = false;
         final Predicate<Alarm> whichAlarms = (Alarm a) -> a.uid == uid;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms, false);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        didRemove |= removeFromBatchesLocked(whichAlarms);
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
             if (a.uid == uid) {
@@ -3185,7 +3466,7 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(uid) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchRemovedFromLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -3210,13 +3491,7 @@ class AlarmManagerService extends SystemService {
             return didMatch;
         };
         final boolean oldHasTick = haveBatchesTimeTickAlarm(mAlarmBatches);
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms, false);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        didRemove |= removeFromBatchesLocked(whichAlarms);
         final boolean newHasTick = haveBatchesTimeTickAlarm(mAlarmBatches);
         if (oldHasTick != newHasTick) {
             Slog.wtf(TAG, "removeLocked: hasTick changed from " + oldHasTick + " to " + newHasTick);
@@ -3252,7 +3527,7 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchRemovedFromLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -3264,6 +3539,9 @@ class AlarmManagerService extends SystemService {
             // If a force-stop occurs for a system-uid package, ignore it.
             return;
         }
+        if (mAlarmsPerUid.indexOfKey(uid) < 0) {
+            return;
+        }
         boolean didRemove = false;
         final Predicate<Alarm> whichAlarms = (Alarm a) -> {
             try {
@@ -3274,13 +3552,7 @@ class AlarmManagerService extends SystemService {
             } catch (RemoteException e) { /* fall through */}
             return false;
         };
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms, false);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        didRemove |= removeFromBatchesLocked(whichAlarms);
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
             if (a.uid == uid) {
@@ -3302,7 +3574,7 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchRemovedFromLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -3316,13 +3588,7 @@ class AlarmManagerService extends SystemService {
         boolean didRemove = false;
         final Predicate<Alarm> whichAlarms =
                 (Alarm a) -> UserHandle.getUserId(a.creatorUid) == userHandle;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms, false);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        didRemove |= removeFromBatchesLocked(whichAlarms);
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (UserHandle.getUserId(mPendingWhileIdleAlarms.get(i).creatorUid)
                     == userHandle) {
@@ -3352,7 +3618,7 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(user) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchRemovedFromLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -3512,6 +3778,7 @@ class AlarmManagerService extends SystemService {
             // We will (re)schedule some alarms now; don't let that interfere
             // with delivery of this current batch
             mAlarmBatches.remove(0);
+            mBatchWindowIndex.remove(batch);
 
             final int N = batch.size();
             for (int i = 0; i < N; i++) {
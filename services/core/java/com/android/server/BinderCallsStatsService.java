@@ -31,11 +31,13 @@ import android.os.Process;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
+import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.KeyValueListParser;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.AppIdToPackageMap;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.os.BinderCallsStats;
@@ -127,6 +129,10 @@ public class BinderCallsStatsService extends Binder {
         private static final String SETTINGS_TRACK_SCREEN_INTERACTIVE_KEY = "track_screen_state";
         private static final String SETTINGS_TRACK_DIRECT_CALLING_UID_KEY = "track_calling_uid";
         private static final String SETTINGS_MAX_CALL_STATS_KEY = "max_call_stats_count";
+        private static final String SETTINGS_LATENCY_HISTOGRAMS_KEY = "latency_histograms";
+        // Per binder class sampling intervals, e.g. "com.example.IFoo$Stub:1;com.example.IBar:10"
+        private static final String SETTINGS_CLASS_SAMPLING_INTERVALS_KEY =
+                "class_sampling_intervals";
 
         private boolean mEnabled;
         private final Uri mUri = Settings.Global.getUriFor(Settings.Global.BINDER_CALLS_STATS);
@@ -180,6 +186,11 @@ public class BinderCallsStatsService extends Binder {
             mBinderCallsStats.setTrackDirectCallerUid(
                     mParser.getBoolean(SETTINGS_TRACK_DIRECT_CALLING_UID_KEY,
                     BinderCallsStats.DEFAULT_TRACK_DIRECT_CALLING_UID));
+            mBinderCallsStats.setCollectLatencyHistograms(
+                    mParser.getBoolean(SETTINGS_LATENCY_HISTOGRAMS_KEY,
+                    BinderCallsStats.DEFAULT_COLLECT_LATENCY_HISTOGRAMS));
+            mBinderCallsStats.setClassSamplingIntervals(parseClassSamplingIntervals(
+                    mParser.getString(SETTINGS_CLASS_SAMPLING_INTERVALS_KEY, null)));
 
 
             final boolean enabled =
@@ -233,6 +244,29 @@ public class BinderCallsStatsService extends Binder {
         }
     }
 
+    /** Parses per binder class sampling intervals, as set in {@code class_sampling_intervals}. */
+    @VisibleForTesting
+    static ArrayMap<String, Integer> parseClassSamplingIntervals(String value) {
+        final ArrayMap<String, Integer> intervals = new ArrayMap<>();
+        if (TextUtils.isEmpty(value)) {
+            return intervals;
+        }
+        for (String pair : value.split(";")) {
+            final int separator = pair.lastIndexOf(':');
+            if (separator <= 0) {
+                Slog.e(TAG, "Bad class sampling interval: " + pair);
+                continue;
+            }
+            try {
+                intervals.put(pair.substring(0, separator).trim(),
+                        Integer.parseInt(pair.substring(separator + 1).trim()));
+            } catch (NumberFormatException e) {
+                Slog.e(TAG, "Bad class sampling interval: " + pair);
+            }
+        }
+        return intervals;
+    }
+
     public static class LifeCycle extends SystemService {
         private BinderCallsStatsService mService;
         private BinderCallsStats mBinderCallsStats;
@@ -318,6 +352,7 @@ public class BinderCallsStatsService extends Binder {
                     return;
                 } else if ("--no-sampling".equals(arg)) {
                     mBinderCallsStats.setSamplingInterval(1);
+                    mBinderCallsStats.setClassSamplingIntervals(new ArrayMap<>());
                     return;
                 } else if ("--enable-detailed-tracking".equals(arg)) {
                     SystemProperties.set(PERSIST_SYS_BINDER_CALLS_DETAILED_TRACKING, "1");
@@ -25,6 +25,7 @@ import android.util.ArraySet;
 import android.util.FastImmutableArraySet;
 import android.util.Log;
 import android.util.LogPrinter;
+import android.util.LruCache;
 import android.util.MutableInt;
 import android.util.PrintWriterPrinter;
 import android.util.Printer;
@@ -38,8 +39,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -51,6 +55,15 @@ public abstract class IntentResolver<F, R extends Object> {
     final private static boolean localLOGV = DEBUG || false;
     final private static boolean localVerificationLOGV = DEBUG || false;
 
+    /**
+     * Below this many filters for a scheme, matching all of them is cheaper than narrowing
+     * them down by host first.
+     */
+    private static final int MIN_FILTERS_FOR_HOST_INDEX = 16;
+
+    /** Number of distinct intents whose matching filters are remembered. */
+    private static final int MATCH_CACHE_SIZE = 64;
+
     public void addFilter(F f) {
         IntentFilter intentFilter = getIntentFilter(f);
         if (localLOGV) {
@@ -71,6 +84,14 @@ public abstract class IntentResolver<F, R extends Object> {
             register_intent_filter(f, intentFilter.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        if (numS != 0) {
+            final ArraySet<String> hostKeys = getSchemeHostKeys(intentFilter);
+            for (int i = hostKeys.size() - 1; i >= 0; i--) {
+                addFilter(mSchemeHostToFilter, hostKeys.valueAt(i), f);
+            }
+        }
+        mFilterOrder.put(intentFilter, mNextFilterOrder++);
+        invalidateMatchCache();
     }
 
     public static boolean filterEquals(IntentFilter f1, IntentFilter f2) {
@@ -215,6 +236,14 @@ public abstract class IntentResolver<F, R extends Object> {
             unregister_intent_filter(f, intentFilter.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        if (numS != 0) {
+            final ArraySet<String> hostKeys = getSchemeHostKeys(intentFilter);
+            for (int i = hostKeys.size() - 1; i >= 0; i--) {
+                remove_all_objects(mSchemeHostToFilter, hostKeys.valueAt(i), f);
+            }
+        }
+        mFilterOrder.remove(intentFilter);
+        invalidateMatchCache();
     }
 
     boolean dumpMap(PrintWriter out, String titlePrefix, String title,
@@ -411,6 +440,47 @@ public abstract class IntentResolver<F, R extends Object> {
             TAG, "Resolving type=" + resolvedType + " scheme=" + scheme
             + " defaultOnly=" + defaultOnly + " userId=" + userId + " of " + intent);
 
+        if (!debug && isMatchCacheEnabled()) {
+            // Which filters match depends only on the intent and the registered filters, so
+            // it can be reused until a filter is added or removed. Everything that depends on
+            // the caller or on package state is still evaluated for every query.
+            final MatchKey key = new MatchKey(intent, resolvedType);
+            MatchedFilters matched = mMatchCache.get(key);
+            if (matched == null) {
+                final int generation = mMatchCacheGeneration;
+                matched = collectMatches(intent, resolvedType, scheme);
+                if (generation == mMatchCacheGeneration) {
+                    mMatchCache.put(key, matched);
+                }
+            }
+            addMatchedResults(intent, defaultOnly, matched, finalList, userId);
+        } else {
+            final ArrayList<F[]> cuts = new ArrayList<>(4);
+            collectCuts(intent, resolvedType, scheme, debug, cuts);
+            FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+            for (int i = 0, N = cuts.size(); i < N; i++) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, cuts.get(i), finalList, userId);
+            }
+        }
+        filterResults(finalList);
+        sortResults(finalList);
+
+        if (debug) {
+            Slog.v(TAG, "Final result list:");
+            for (int i=0; i<finalList.size(); i++) {
+                Slog.v(TAG, "  " + finalList.get(i));
+            }
+        }
+        return finalList;
+    }
+
+    /**
+     * Adds the registered filter arrays that may match the given intent to {@code cuts}, in
+     * the order in which they must be matched.
+     */
+    private void collectCuts(Intent intent, String resolvedType, String scheme, boolean debug,
+            List<F[]> cuts) {
         F[] firstTypeCut = null;
         F[] secondTypeCut = null;
         F[] thirdTypeCut = null;
@@ -458,7 +528,7 @@ public abstract class IntentResolver<F, R extends Object> {
         // the filters that match its scheme (we will further refine matches
         // on the authority and path by directly matching each resulting filter).
         if (scheme != null) {
-            schemeCut = mSchemeToFilter.get(scheme);
+            schemeCut = getSchemeCut(intent, scheme);
             if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
         }
 
@@ -470,33 +540,252 @@ public abstract class IntentResolver<F, R extends Object> {
             if (debug) Slog.v(TAG, "Action list: " + Arrays.toString(firstTypeCut));
         }
 
-        FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
         if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
+            cuts.add(firstTypeCut);
         }
         if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
+            cuts.add(secondTypeCut);
         }
         if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
+            cuts.add(thirdTypeCut);
         }
         if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+            cuts.add(schemeCut);
         }
-        filterResults(finalList);
-        sortResults(finalList);
+    }
 
-        if (debug) {
-            Slog.v(TAG, "Final result list:");
-            for (int i=0; i<finalList.size(); i++) {
-                Slog.v(TAG, "  " + finalList.get(i));
+    /**
+     * Returns the filters registered for the given scheme that may accept the host of the
+     * intent's data. Filters that constrain the host are looked up by their exact host and by
+     * each domain suffix of the intent's host, so only the candidates that can match have to
+     * go through {@link IntentFilter#match}; paths are still checked there. The result keeps
+     * the registration order of {@link #mSchemeToFilter}.
+     */
+    private F[] getSchemeCut(Intent intent, String scheme) {
+        final F[] schemeCut = mSchemeToFilter.get(scheme);
+        if (schemeCut == null || schemeCut.length < MIN_FILTERS_FOR_HOST_INDEX
+                || schemeCut[MIN_FILTERS_FOR_HOST_INDEX - 1] == null) {
+            return schemeCut;
+        }
+        final Uri data = intent.getData();
+        final String host = data != null ? data.getHost() : null;
+        if (host != null && !isIndexableHost(host)) {
+            return schemeCut;
+        }
+
+        final ArrayList<F> candidates = new ArrayList<>();
+        addCandidates(candidates, mSchemeHostToFilter.get(scheme + ":"));
+        if (host != null) {
+            final String lowerHost = host.toLowerCase(Locale.ROOT);
+            final String prefix = scheme + "://";
+            addCandidates(candidates, mSchemeHostToFilter.get(prefix + lowerHost));
+            addCandidates(candidates, mSchemeHostToFilter.get(prefix + "*"));
+            for (int dot = lowerHost.indexOf('.'); dot >= 0;
+                    dot = lowerHost.indexOf('.', dot + 1)) {
+                addCandidates(candidates,
+                        mSchemeHostToFilter.get(prefix + "*" + lowerHost.substring(dot)));
             }
         }
-        return finalList;
+
+        Collections.sort(candidates, (a, b) -> Integer.compare(
+                getFilterOrder(a), getFilterOrder(b)));
+        final F[] result = newArray(candidates.size());
+        int count = 0;
+        IntentFilter last = null;
+        for (int i = 0, N = candidates.size(); i < N; i++) {
+            final F filter = candidates.get(i);
+            final IntentFilter intentFilter = getIntentFilter(filter);
+            // A filter reachable through several of its hosts is only matched once.
+            if (intentFilter != last) {
+                result[count++] = filter;
+                last = intentFilter;
+            }
+        }
+        return result;
+    }
+
+    private void addCandidates(List<F> dest, F[] src) {
+        if (src == null) {
+            return;
+        }
+        F filter;
+        for (int i = 0; i < src.length && (filter = src[i]) != null; i++) {
+            dest.add(filter);
+        }
+    }
+
+    private int getFilterOrder(F filter) {
+        final Integer order = mFilterOrder.get(getIntentFilter(filter));
+        return order != null ? order : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the keys under which the given filter is registered in
+     * {@link #mSchemeHostToFilter}: "scheme://host" for every exact host it accepts,
+     * "scheme://*suffix" for every wildcard host, or just "scheme:" if the filter may accept
+     * any host.
+     */
+    private static ArraySet<String> getSchemeHostKeys(IntentFilter filter) {
+        final int schemeCount = filter.countDataSchemes();
+        final int authorityCount = filter.countDataAuthorities();
+        final ArraySet<String> keys = new ArraySet<>();
+
+        // A matching scheme specific part accepts the data without looking at the authority.
+        boolean anyHost = authorityCount == 0 || filter.countDataSchemeSpecificParts() > 0;
+        for (int i = 0; i < authorityCount && !anyHost; i++) {
+            anyHost = !isIndexableHost(filter.getDataAuthority(i).getHost());
+        }
+
+        for (int i = 0; i < schemeCount; i++) {
+            final String scheme = filter.getDataScheme(i);
+            if (anyHost) {
+                keys.add(scheme + ":");
+                continue;
+            }
+            for (int j = 0; j < authorityCount; j++) {
+                keys.add(scheme + "://"
+                        + filter.getDataAuthority(j).getHost().toLowerCase(Locale.ROOT));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns whether the given host can be found through {@link #mSchemeHostToFilter}. Only
+     * ASCII hosts are indexed, since they are lower cased the same way
+     * {@link String#compareToIgnoreCase} compares them, and wildcards must cover whole domain
+     * labels.
+     */
+    private static boolean isIndexableHost(String host) {
+        for (int i = 0, N = host.length(); i < N; i++) {
+            if (host.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        if (host.startsWith("*")) {
+            return host.length() == 1 || host.charAt(1) == '.';
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the filters that match an intent may be remembered between queries. This
+     * is only correct if nothing but {@link #addFilter} and {@link #removeFilter} changes how
+     * the registered filters match.
+     */
+    protected boolean isMatchCacheEnabled() {
+        return false;
+    }
+
+    private void invalidateMatchCache() {
+        mMatchCacheGeneration++;
+        if (mMatchCache.size() > 0) {
+            mMatchCache.evictAll();
+        }
+    }
+
+    private MatchedFilters collectMatches(Intent intent, String resolvedType, String scheme) {
+        final ArrayList<F[]> cuts = new ArrayList<>(4);
+        collectCuts(intent, resolvedType, scheme, false /* debug */, cuts);
+        final FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        final String action = intent.getAction();
+        final Uri data = intent.getData();
+
+        final MatchedFilters matched = new MatchedFilters();
+        for (int c = 0, N = cuts.size(); c < N; c++) {
+            final F[] src = cuts.get(c);
+            F filter;
+            for (int i = 0; i < src.length && (filter = src[i]) != null; i++) {
+                final int match = getIntentFilter(filter).match(action, resolvedType, scheme,
+                        data, categories, TAG);
+                if (match >= 0) {
+                    matched.add(filter, match);
+                }
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * The second half of {@link #buildResolveList}, applied to filters already known to match.
+     */
+    @SuppressWarnings("unchecked")
+    private void addMatchedResults(Intent intent, boolean defaultOnly, MatchedFilters matched,
+            List<R> dest, int userId) {
+        final String packageName = intent.getPackage();
+        final boolean excludingStopped = intent.isExcludingStopped();
+        for (int i = 0; i < matched.size; i++) {
+            final F filter = (F) matched.filters[i];
+            if (excludingStopped && isFilterStopped(filter, userId)) {
+                continue;
+            }
+            if (packageName != null && !isPackageForFilter(packageName, filter)) {
+                continue;
+            }
+            if (!allowFilterResult(filter, dest)) {
+                continue;
+            }
+            if (defaultOnly && !getIntentFilter(filter).hasCategory(Intent.CATEGORY_DEFAULT)) {
+                continue;
+            }
+            final R oneResult = newResult(filter, matched.matches[i], userId);
+            if (oneResult != null) {
+                dest.add(oneResult);
+            }
+        }
+    }
+
+    /** The parts of an intent that {@link IntentFilter#match} looks at. */
+    private static final class MatchKey {
+        private final String mAction;
+        private final String mType;
+        private final Uri mData;
+        private final ArraySet<String> mCategories;
+        private final int mHashCode;
+
+        MatchKey(Intent intent, String resolvedType) {
+            mAction = intent.getAction();
+            mType = resolvedType;
+            mData = intent.getData();
+            final Set<String> categories = intent.getCategories();
+            mCategories = categories != null ? new ArraySet<>(categories) : null;
+            mHashCode = Objects.hash(mAction, mType, mData, mCategories);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MatchKey)) {
+                return false;
+            }
+            final MatchKey other = (MatchKey) o;
+            return mHashCode == other.mHashCode
+                    && Objects.equals(mAction, other.mAction)
+                    && Objects.equals(mType, other.mType)
+                    && Objects.equals(mData, other.mData)
+                    && Objects.equals(mCategories, other.mCategories);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /** Filters that matched an intent, in the order they were matched, with their match. */
+    private static final class MatchedFilters {
+        Object[] filters = new Object[4];
+        int[] matches = new int[4];
+        int size;
+
+        void add(Object filter, int match) {
+            if (size == filters.length) {
+                filters = Arrays.copyOf(filters, size * 2);
+                matches = Arrays.copyOf(matches, size * 2);
+            }
+            filters[size] = filter;
+            matches[size] = match;
+            size++;
+        }
     }
 
     /**
@@ -882,6 +1171,26 @@ public abstract class IntentResolver<F, R extends Object> {
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
 
+    /**
+     * The filters of {@link #mSchemeToFilter} again, keyed by scheme and the data authority
+     * hosts they accept; see {@link #getSchemeHostKeys}.
+     */
+    private final ArrayMap<String, F[]> mSchemeHostToFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * The order in which filters were added, used to merge candidates from
+     * {@link #mSchemeHostToFilter} back into the order of {@link #mSchemeToFilter}.
+     */
+    private final IdentityHashMap<IntentFilter, Integer> mFilterOrder = new IdentityHashMap<>();
+    private int mNextFilterOrder;
+
+    /**
+     * Filters matching recently resolved intents, if {@link #isMatchCacheEnabled()}.
+     */
+    private final LruCache<MatchKey, MatchedFilters> mMatchCache =
+            new LruCache<>(MATCH_CACHE_SIZE);
+    private volatile int mMatchCacheGeneration;
+
     /**
      * Rather than refactoring the entire class, this allows the input {@link F} to be a type
      * other than {@link IntentFilter}, transforming it whenever necessary. It is valid to use
@@ -33,6 +33,7 @@ import android.util.Slog;
 
 import com.android.internal.os.AppIdToPackageMap;
 import com.android.internal.os.BackgroundThread;
+import com.android.internal.os.BinderCallsStats;
 import com.android.internal.os.CachedDeviceState;
 import com.android.internal.os.LooperStats;
 import com.android.internal.util.DumpUtils;
@@ -126,14 +127,17 @@ public class LooperStatsService extends Binder {
                 "recorded_delay_message_count",
                 "total_delay_millis",
                 "max_delay_millis",
-                "exception_count"));
+                "exception_count",
+                "p50_delay_millis",
+                "p90_delay_millis",
+                "p99_delay_millis"));
         pw.println(header);
         for (LooperStats.ExportedEntry entry : entries) {
             if (entry.messageName.startsWith(LooperStats.DEBUG_ENTRY_PREFIX)) {
                 // Do not dump debug entries.
                 continue;
             }
-            pw.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s\n",
+            pw.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s\n",
                     packageMap.mapUid(entry.workSourceUid),
                     entry.threadName,
                     entry.handlerClassName,
@@ -148,10 +152,25 @@ public class LooperStatsService extends Binder {
                     entry.recordedDelayMessageCount,
                     entry.delayMillis,
                     entry.maxDelayMillis,
-                    entry.exceptionCount);
+                    entry.exceptionCount,
+                    getDelayPercentileMillis(entry, 0.5),
+                    getDelayPercentileMillis(entry, 0.9),
+                    getDelayPercentileMillis(entry, 0.99));
         }
     }
 
+    private static long getDelayPercentileMillis(LooperStats.ExportedEntry entry,
+            double percentile) {
+        if (entry.delayHistogram == null) {
+            return 0;
+        }
+        // Bucket bounds can exceed the largest value seen.
+        return Math.min(
+                BinderCallsStats.LatencyHistogram.getPercentile(entry.delayHistogram, percentile)
+                        / 1000,
+                entry.maxDelayMillis);
+    }
+
     private void setEnabled(boolean enabled) {
         if (mEnabled != enabled) {
             mEnabled = enabled;
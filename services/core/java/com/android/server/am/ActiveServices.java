@@ -2235,6 +2235,7 @@ public final class ActiveServices {
 
         final long origId = Binder.clearCallingIdentity();
         try {
+            final ArraySet<ProcessRecord> hosts = new ArraySet<>();
             while (clist.size() > 0) {
                 ConnectionRecord r = clist.get(0);
                 removeConnectionLocked(r, null, null);
@@ -2245,6 +2246,7 @@ public final class ActiveServices {
                 }
 
                 if (r.binding.service.app != null) {
+                    hosts.add(r.binding.service.app);
                     if (r.binding.service.app.whitelistManager) {
                         updateWhitelistManagerLocked(r.binding.service.app);
                     }
@@ -2258,7 +2260,8 @@ public final class ActiveServices {
                 }
             }
 
-            mAm.updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_UNBIND_SERVICE);
+            // Only the services' processes, and whatever they depend on, can have lost importance.
+            mAm.updateOomAdjForHostsLocked(hosts, OomAdjuster.OOM_ADJ_REASON_UNBIND_SERVICE);
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -358,6 +358,14 @@ final class ActivityManagerConstants extends ContentObserver {
     // keep updating all processes in the LRU list.
     public boolean OOMADJ_UPDATE_QUICK = DEFAULT_OOMADJ_UPDATE_POLICY == OOMADJ_UPDATE_POLICY_QUICK;
 
+    private static final String KEY_OOMADJ_VERIFY_PARTIAL_UPDATES =
+            "oomadj_verify_partial_updates";
+
+    // Indicate if every quick oom adj update should be followed by a full one, reporting the
+    // processes for which the two disagree; this is for debugging only since it costs more than
+    // always taking the slow path.
+    public boolean OOMADJ_VERIFY_PARTIAL_UPDATES = false;
+
     private static final long MIN_AUTOMATIC_HEAP_DUMP_PSS_THRESHOLD_BYTES = 100 * 1024; // 100 KB
 
     private final boolean mSystemServerAutomaticHeapDumpEnabled;
@@ -411,6 +419,9 @@ final class ActivityManagerConstants extends ContentObserver {
                             case KEY_OOMADJ_UPDATE_POLICY:
                                 updateOomAdjUpdatePolicy();
                                 break;
+                            case KEY_OOMADJ_VERIFY_PARTIAL_UPDATES:
+                                updateOomAdjVerifyPartialUpdates();
+                                break;
                             case KEY_IMPERCEPTIBLE_KILL_EXEMPT_PACKAGES:
                             case KEY_IMPERCEPTIBLE_KILL_EXEMPT_PROC_STATES:
                                 updateImperceptibleKillExemptions();
@@ -619,6 +630,13 @@ final class ActivityManagerConstants extends ContentObserver {
                 == OOMADJ_UPDATE_POLICY_QUICK;
     }
 
+    private void updateOomAdjVerifyPartialUpdates() {
+        OOMADJ_VERIFY_PARTIAL_UPDATES = DeviceConfig.getBoolean(
+                DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                KEY_OOMADJ_VERIFY_PARTIAL_UPDATES,
+                /* defaultValue */ false);
+    }
+
     private void updateForceRestrictedBackgroundCheck() {
         FORCE_BACKGROUND_CHECK_ON_RESTRICTED_APPS = DeviceConfig.getBoolean(
                 DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
@@ -779,5 +797,6 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.print("  CUR_TRIM_EMPTY_PROCESSES="); pw.println(CUR_TRIM_EMPTY_PROCESSES);
         pw.print("  CUR_TRIM_CACHED_PROCESSES="); pw.println(CUR_TRIM_CACHED_PROCESSES);
         pw.print("  OOMADJ_UPDATE_QUICK="); pw.println(OOMADJ_UPDATE_QUICK);
+        pw.print("  OOMADJ_VERIFY_PARTIAL_UPDATES="); pw.println(OOMADJ_VERIFY_PARTIAL_UPDATES);
     }
 }
@@ -7618,7 +7618,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
+                    mOomAdjuster.updateOomAdjForHostLocked(conn.provider.proc,
+                            OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
                 }
             }
         } finally {
@@ -7659,7 +7660,8 @@ public class ActivityManagerService extends IActivityManager.Stub
             ContentProviderRecord localCpr = mProviderMap.getProviderByClass(comp, userId);
             if (localCpr.hasExternalProcessHandles()) {
                 if (localCpr.removeExternalProcessHandleLocked(token)) {
-                    updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
+                    mOomAdjuster.updateOomAdjForHostLocked(localCpr.proc,
+                            OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
                 } else {
                     Slog.e(TAG, "Attmpt to remove content provider " + localCpr
                             + " with no external reference for token: "
@@ -18186,6 +18188,16 @@ public class ActivityManagerService extends IActivityManager.Stub
         mOomAdjuster.updateOomAdjLocked(app, oomAdjReason);
     }
 
+    /*
+     * Update OomAdj for processes that lost clients, and the processes they depend on.
+     * @param hosts The processes whose service bindings or provider connections went away
+     * @param oomAdjReason
+     */
+    @GuardedBy("this")
+    final void updateOomAdjForHostsLocked(ArraySet<ProcessRecord> hosts, String oomAdjReason) {
+        mOomAdjuster.updateOomAdjForHostsLocked(hosts, oomAdjReason);
+    }
+
     @Override
     public void makePackageIdle(String packageName, int userId) {
         if (checkCallingPermission(android.Manifest.permission.FORCE_STOP_PACKAGES)
@@ -40,6 +40,7 @@ public class BroadcastConstants {
     static final String KEY_DEFERRAL_FLOOR = "bcast_deferral_floor";
     static final String KEY_ALLOW_BG_ACTIVITY_START_TIMEOUT =
             "bcast_allow_bg_activity_start_timeout";
+    static final String KEY_MAX_MANIFEST_BATCH = "bcast_max_manifest_batch";
 
     // All time intervals are in milliseconds
     private static final long DEFAULT_TIMEOUT = 10_000;
@@ -48,6 +49,7 @@ public class BroadcastConstants {
     private static final float DEFAULT_DEFERRAL_DECAY_FACTOR = 0.75f;
     private static final long DEFAULT_DEFERRAL_FLOOR = 0;
     private static final long DEFAULT_ALLOW_BG_ACTIVITY_START_TIMEOUT = 10_000;
+    private static final int DEFAULT_MAX_MANIFEST_BATCH = 1;
 
     // All time constants are in milliseconds
 
@@ -64,6 +66,9 @@ public class BroadcastConstants {
     public long DEFERRAL_FLOOR = DEFAULT_DEFERRAL_FLOOR;
     // For how long after a whitelisted receiver's start its process can start a background activity
     public long ALLOW_BG_ACTIVITY_START_TIMEOUT = DEFAULT_ALLOW_BG_ACTIVITY_START_TIMEOUT;
+    // Most manifest receivers of a non-ordered broadcast that are handed to one running process
+    // without waiting for each to finish first; 1 delivers them one at a time
+    public int MAX_MANIFEST_BATCH = DEFAULT_MAX_MANIFEST_BATCH;
 
     // Settings override tracking for this instance
     private String mSettingsKey;
@@ -120,6 +125,7 @@ public class BroadcastConstants {
             DEFERRAL_FLOOR = mParser.getLong(KEY_DEFERRAL_FLOOR, DEFERRAL_FLOOR);
             ALLOW_BG_ACTIVITY_START_TIMEOUT = mParser.getLong(KEY_ALLOW_BG_ACTIVITY_START_TIMEOUT,
                     ALLOW_BG_ACTIVITY_START_TIMEOUT);
+            MAX_MANIFEST_BATCH = mParser.getInt(KEY_MAX_MANIFEST_BATCH, MAX_MANIFEST_BATCH);
         }
     }
 
@@ -156,6 +162,9 @@ public class BroadcastConstants {
             pw.print("    "); pw.print(KEY_ALLOW_BG_ACTIVITY_START_TIMEOUT); pw.print(" = ");
             TimeUtils.formatDuration(ALLOW_BG_ACTIVITY_START_TIMEOUT, pw);
             pw.println();
+
+            pw.print("    "); pw.print(KEY_MAX_MANIFEST_BATCH); pw.print(" = ");
+            pw.println(MAX_MANIFEST_BATCH);
         }
     }
 }
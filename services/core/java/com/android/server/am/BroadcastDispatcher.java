@@ -22,7 +22,9 @@ import static com.android.server.am.ActivityManagerDebugConfig.DEBUG_BROADCAST_D
 import android.content.Intent;
 import android.os.Handler;
 import android.os.SystemClock;
+import android.util.ArrayMap;
 import android.util.Slog;
+import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.util.proto.ProtoOutputStream;
 
@@ -229,6 +231,14 @@ public class BroadcastDispatcher {
     // Deferrals that *are* holding up alarms; ordered by alarm dispatch time
     private final ArrayList<Deferrals> mAlarmBroadcasts = new ArrayList<>();
 
+    // Latest record in mOrderedBroadcasts for each distinct intent, keyed by user, so that a
+    // FLAG_RECEIVER_REPLACE_PENDING broadcast finds the one it supersedes without comparing
+    // itself against everything queued
+    private final SparseArray<ArrayMap<Intent.FilterComparison, BroadcastRecord>>
+            mQueuedByIntent = new SparseArray<>();
+    // How many queued broadcasts have been dropped in favor of a replacement
+    private int mReplacedCount;
+
     // Next outbound broadcast, established by getNextBroadcastLocked()
     private BroadcastRecord mCurrentBroadcast;
 
@@ -278,6 +288,19 @@ public class BroadcastDispatcher {
         return pendingInDeferralsList(list) == 0;
     }
 
+    /**
+     * Number of broadcasts waiting for dispatch, not counting the one in flight
+     */
+    int getPendingCountLocked() {
+        return mOrderedBroadcasts.size()
+                + pendingInDeferralsList(mAlarmBroadcasts)
+                + pendingInDeferralsList(mDeferredBroadcasts);
+    }
+
+    int getReplacedCountLocked() {
+        return mReplacedCount;
+    }
+
     /**
      * Strictly for logging, describe the currently pending contents in a human-
      * readable way
@@ -309,12 +332,18 @@ public class BroadcastDispatcher {
 
     void enqueueOrderedBroadcastLocked(BroadcastRecord r) {
         mOrderedBroadcasts.add(r);
+        ArrayMap<Intent.FilterComparison, BroadcastRecord> queued = mQueuedByIntent.get(r.userId);
+        if (queued == null) {
+            queued = new ArrayMap<>();
+            mQueuedByIntent.put(r.userId, queued);
+        }
+        queued.put(new Intent.FilterComparison(r.intent), r);
     }
 
     // Returns the now-replaced broadcast record, or null if none
     BroadcastRecord replaceBroadcastLocked(BroadcastRecord r, String typeForLogging) {
         // Simple case, in the ordinary queue.
-        BroadcastRecord old = replaceBroadcastLocked(mOrderedBroadcasts, r, typeForLogging);
+        BroadcastRecord old = replaceQueuedBroadcastLocked(r, typeForLogging);
 
         // If we didn't find it, less-simple:  in a deferral queue?
         if (old == null) {
@@ -323,9 +352,64 @@ public class BroadcastDispatcher {
         if (old == null) {
             old = replaceDeferredBroadcastLocked(mDeferredBroadcasts, r, typeForLogging);
         }
+        if (old != null) {
+            mReplacedCount++;
+        }
         return old;
     }
 
+    private BroadcastRecord replaceQueuedBroadcastLocked(BroadcastRecord r,
+            String typeForLogging) {
+        final ArrayMap<Intent.FilterComparison, BroadcastRecord> queued =
+                mQueuedByIntent.get(r.userId);
+        if (queued == null) {
+            return null;
+        }
+        final Intent.FilterComparison key = new Intent.FilterComparison(r.intent);
+        final BroadcastRecord old = queued.get(key);
+        if (old == null) {
+            return null;
+        }
+        // Identity comparisons only; the intent has already been matched
+        final int i = mOrderedBroadcasts.lastIndexOf(old);
+        if (i < 0) {
+            Slog.wtf(TAG, "Indexed broadcast " + old + " is no longer queued");
+            final BroadcastRecord replaced =
+                    replaceBroadcastLocked(mOrderedBroadcasts, r, typeForLogging);
+            if (replaced != null) {
+                queued.put(key, r);
+            } else {
+                queued.remove(key);
+            }
+            return replaced;
+        }
+        if (DEBUG_BROADCAST) {
+            Slog.v(TAG, "***** Replacing " + typeForLogging
+                    + " [" + mQueue.mQueueName + "]: " + r.intent);
+        }
+        // Clone deferral state too if any
+        r.deferred = old.deferred;
+        mOrderedBroadcasts.set(i, r);
+        queued.put(key, r);
+        return old;
+    }
+
+    private void removeQueuedIndexLocked(BroadcastRecord r) {
+        final ArrayMap<Intent.FilterComparison, BroadcastRecord> queued =
+                mQueuedByIntent.get(r.userId);
+        if (queued == null) {
+            return;
+        }
+        final Intent.FilterComparison key = new Intent.FilterComparison(r.intent);
+        // An older record for the same intent leaves the latest one indexed
+        if (queued.get(key) == r) {
+            queued.remove(key);
+            if (queued.isEmpty()) {
+                mQueuedByIntent.remove(r.userId);
+            }
+        }
+    }
+
     private BroadcastRecord replaceDeferredBroadcastLocked(ArrayList<Deferrals> list,
             BroadcastRecord r, String typeForLogging) {
         BroadcastRecord old;
@@ -495,6 +579,7 @@ public class BroadcastDispatcher {
 
         if (next == null && someQueued) {
             next = mOrderedBroadcasts.remove(0);
+            removeQueuedIndexLocked(next);
             if (DEBUG_BROADCAST_DEFERRAL) {
                 Slog.i(TAG, "Next broadcast from main queue: " + next);
             }
@@ -53,6 +53,8 @@ import android.util.SparseIntArray;
 import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ExponentiallyBucketedHistogram;
 import com.android.internal.util.FrameworkStatsLog;
 
 import java.io.FileDescriptor;
@@ -143,6 +145,30 @@ public final class BroadcastQueue {
     final long[] mSummaryHistoryDispatchTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
     final long[] mSummaryHistoryFinishTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
 
+    /**
+     * Number of broadcasts waiting in this queue, sampled as each one is enqueued.
+     */
+    final ExponentiallyBucketedHistogram mQueueDepthHistogram =
+            new ExponentiallyBucketedHistogram(12);
+
+    /**
+     * Milliseconds between a broadcast being enqueued and its dispatch starting.
+     */
+    final ExponentiallyBucketedHistogram mDispatchLatencyHistogram =
+            new ExponentiallyBucketedHistogram(16);
+
+    /**
+     * Milliseconds each ordered or manifest receiver took to finish.
+     */
+    final ExponentiallyBucketedHistogram mReceiverTimeHistogram =
+            new ExponentiallyBucketedHistogram(16);
+
+    /**
+     * Manifest receivers handed to their process ahead of their turn, see
+     * {@link BroadcastConstants#MAX_MANIFEST_BATCH}.
+     */
+    int mBatchedReceiverCount;
+
     /**
      * Set when we current have a BROADCAST_INTENT_MSG in flight.
      */
@@ -239,6 +265,7 @@ public final class BroadcastQueue {
      */
     private void enqueueBroadcastHelper(BroadcastRecord r) {
         r.enqueueClockTime = System.currentTimeMillis();
+        mQueueDepthHistogram.add(mParallelBroadcasts.size() + mDispatcher.getPendingCountLocked());
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
             Trace.asyncTraceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -465,6 +492,7 @@ public final class BroadcastQueue {
         // nextReceiver is zero; in which case time-to-process bookkeeping doesn't apply.
         if (r.nextReceiver > 0) {
             r.duration[r.nextReceiver - 1] = elapsed;
+            mReceiverTimeHistogram.add((int) Math.min(elapsed, Integer.MAX_VALUE));
         }
 
         // if this receiver was slow, impose deferral policy on the app.  This will kick in
@@ -526,7 +554,8 @@ public final class BroadcastQueue {
             ActivityInfo nextReceiver;
             if (r.nextReceiver < r.receivers.size()) {
                 Object obj = r.receivers.get(r.nextReceiver);
-                nextReceiver = (obj instanceof ActivityInfo) ? (ActivityInfo)obj : null;
+                nextReceiver = (obj instanceof ResolveInfo) ? ((ResolveInfo) obj).activityInfo
+                        : null;
             } else {
                 nextReceiver = null;
             }
@@ -967,6 +996,7 @@ public final class BroadcastQueue {
             r = mParallelBroadcasts.remove(0);
             r.dispatchTime = SystemClock.uptimeMillis();
             r.dispatchClockTime = System.currentTimeMillis();
+            addDispatchLatencyLocked(r);
 
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -1164,7 +1194,9 @@ public final class BroadcastQueue {
             // Check whether the next receiver is under deferral policy, and handle that
             // accordingly.  If the current broadcast was already part of deferred-delivery
             // tracking, we know that it must now be deliverable as-is without re-deferral.
-            if (!r.deferred) {
+            // Receivers that were batched into their process have already been sent, so
+            // they are not split out either.
+            if (!r.deferred && r.nextReceiver > r.batchEnd) {
                 final int receiverUid = r.getReceiverUid(r.receivers.get(r.nextReceiver));
                 if (mDispatcher.isDeferringLocked(receiverUid)) {
                     if (DEBUG_BROADCAST_DEFERRAL) {
@@ -1246,6 +1278,7 @@ public final class BroadcastQueue {
         if (recIdx == 0) {
             r.dispatchTime = r.receiverTime;
             r.dispatchClockTime = System.currentTimeMillis();
+            addDispatchLatencyLocked(r);
 
             if (mLogLatencyMetrics) {
                 FrameworkStatsLog.write(
@@ -1275,6 +1308,10 @@ public final class BroadcastQueue {
         final BroadcastOptions brOptions = r.options;
         final Object nextReceiver = r.receivers.get(recIdx);
 
+        if (recIdx <= r.batchEnd && resumeBatchedReceiverLocked(r, recIdx)) {
+            return;
+        }
+
         if (nextReceiver instanceof BroadcastFilter) {
             // Simple case: this is a registered receiver who gets
             // a direct call.
@@ -1315,6 +1352,269 @@ public final class BroadcastQueue {
                 info.activityInfo.applicationInfo.packageName,
                 info.activityInfo.name);
 
+        // This is safe to do even if we are skipping the broadcast, and we need
+        // this information now to evaluate whether it is going to be allowed to run.
+        final int receiverUid = info.activityInfo.applicationInfo.uid;
+        final boolean skip = shouldSkipManifestReceiverLocked(r, info, component);
+        String targetProcess = info.activityInfo.processName;
+        ProcessRecord app = mService.getProcessRecordLocked(targetProcess,
+                info.activityInfo.applicationInfo.uid, false);
+
+        if (skip) {
+            if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
+                    "Skipping delivery of ordered [" + mQueueName + "] "
+                    + r + " for reason described above");
+            r.delivery[recIdx] = BroadcastRecord.DELIVERY_SKIPPED;
+            r.receiver = null;
+            r.curFilter = null;
+            r.state = BroadcastRecord.IDLE;
+            r.manifestSkipCount++;
+            scheduleBroadcastsLocked();
+            return;
+        }
+        r.manifestCount++;
+
+        r.delivery[recIdx] = BroadcastRecord.DELIVERY_DELIVERED;
+        r.state = BroadcastRecord.APP_RECEIVE;
+        r.curComponent = component;
+        r.curReceiver = info.activityInfo;
+        if (DEBUG_MU && r.callingUid > UserHandle.PER_USER_RANGE) {
+            Slog.v(TAG_MU, "Updated broadcast record activity info for secondary user, "
+                    + info.activityInfo + ", callingUid = " + r.callingUid + ", uid = "
+                    + receiverUid);
+        }
+
+        final boolean isActivityCapable =
+                (brOptions != null && brOptions.getTemporaryAppWhitelistDuration() > 0);
+        if (isActivityCapable) {
+            scheduleTempWhitelistLocked(receiverUid,
+                    brOptions.getTemporaryAppWhitelistDuration(), r);
+        }
+
+        // Broadcast is being executed, its package can't be stopped.
+        try {
+            AppGlobals.getPackageManager().setPackageStoppedState(
+                    r.curComponent.getPackageName(), false, r.userId);
+        } catch (RemoteException e) {
+        } catch (IllegalArgumentException e) {
+            Slog.w(TAG, "Failed trying to unstop package "
+                    + r.curComponent.getPackageName() + ": " + e);
+        }
+
+        // Is this receiver's application already running?
+        if (app != null && app.thread != null && !app.killed) {
+            try {
+                app.addPackage(info.activityInfo.packageName,
+                        info.activityInfo.applicationInfo.longVersionCode, mService.mProcessStats);
+                maybeAddAllowBackgroundActivityStartsToken(app, r);
+                processCurBroadcastLocked(r, app, skipOomAdj);
+                scheduleManifestBatchLocked(r, app, recIdx);
+                return;
+            } catch (RemoteException e) {
+                Slog.w(TAG, "Exception when sending broadcast to "
+                      + r.curComponent, e);
+            } catch (RuntimeException e) {
+                Slog.wtf(TAG, "Failed sending broadcast to "
+                        + r.curComponent + " with " + r.intent, e);
+                // If some unexpected exception happened, just skip
+                // this broadcast.  At this point we are not in the call
+                // from a client, so throwing an exception out from here
+                // will crash the entire system instead of just whoever
+                // sent the broadcast.
+                logBroadcastReceiverDiscardLocked(r);
+                finishReceiverLocked(r, r.resultCode, r.resultData,
+                        r.resultExtras, r.resultAbort, false);
+                scheduleBroadcastsLocked();
+                // We need to reset the state if we failed to start the receiver.
+                r.state = BroadcastRecord.IDLE;
+                return;
+            }
+
+            // If a dead object exception was thrown -- fall through to
+            // restart the application.
+        }
+
+        // Not running -- get it started, to be executed when the app comes up.
+        if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
+                "Need to start app ["
+                + mQueueName + "] " + targetProcess + " for broadcast " + r);
+        if ((r.curApp=mService.startProcessLocked(targetProcess,
+                info.activityInfo.applicationInfo, true,
+                r.intent.getFlags() | Intent.FLAG_FROM_BACKGROUND,
+                new HostingRecord("broadcast", r.curComponent),
+                isActivityCapable ? ZYGOTE_POLICY_FLAG_LATENCY_SENSITIVE : ZYGOTE_POLICY_FLAG_EMPTY,
+                (r.intent.getFlags()&Intent.FLAG_RECEIVER_BOOT_UPGRADE) != 0, false, false))
+                        == null) {
+            // Ah, this recipient is unavailable.  Finish it if necessary,
+            // and mark the broadcast record as ready for the next.
+            Slog.w(TAG, "Unable to launch app "
+                    + info.activityInfo.applicationInfo.packageName + "/"
+                    + receiverUid + " for broadcast "
+                    + r.intent + ": process is bad");
+            logBroadcastReceiverDiscardLocked(r);
+            finishReceiverLocked(r, r.resultCode, r.resultData,
+                    r.resultExtras, r.resultAbort, false);
+            scheduleBroadcastsLocked();
+            r.state = BroadcastRecord.IDLE;
+            return;
+        }
+
+        maybeAddAllowBackgroundActivityStartsToken(r.curApp, r);
+        mPendingBroadcast = r;
+        mPendingBroadcastRecvIndex = recIdx;
+    }
+
+    /**
+     * Sends the manifest receivers that follow {@code recIdx} and live in the same running
+     * process to it right away, instead of paying a policy pass, process state update and
+     * binder round trip for each one after the previous one has finished.  The app runs them
+     * in order and reports each finish as usual, and {@link #resumeBatchedReceiverLocked}
+     * only has to move the bookkeeping along.  Only non-ordered broadcasts qualify, since
+     * nothing can observe or abort the result in between.
+     */
+    private void scheduleManifestBatchLocked(BroadcastRecord r, ProcessRecord app, int recIdx) {
+        if (!canBatchManifestReceiversLocked(r, app)) {
+            return;
+        }
+
+        final int limit = Math.min(r.receivers.size(), recIdx + mConstants.MAX_MANIFEST_BATCH);
+        int batchEnd = recIdx;
+        for (int i = recIdx + 1; i < limit; i++) {
+            final Object next = r.receivers.get(i);
+            if (!(next instanceof ResolveInfo)) {
+                break;
+            }
+            final ResolveInfo info = (ResolveInfo) next;
+            final ActivityInfo ai = info.activityInfo;
+            // Singletons may be redirected to user 0, and so to another process
+            if (ai.applicationInfo.uid != app.uid || !ai.processName.equals(app.processName)
+                    || UserHandle.getAppId(ai.applicationInfo.uid) < Process.FIRST_APPLICATION_UID
+                    || (ai.flags & ActivityInfo.FLAG_SINGLE_USER) != 0) {
+                break;
+            }
+            final ComponentName component = new ComponentName(
+                    ai.applicationInfo.packageName, ai.name);
+            // A skipped receiver ends the batch: skips are processed from a later message,
+            // and a finish from the app that arrived in between would not match anything.
+            if (shouldSkipManifestReceiverLocked(r, info, component)) {
+                break;
+            }
+            if (!deliverBatchedReceiverLocked(r, app, ai, component)) {
+                break;
+            }
+            r.delivery[i] = BroadcastRecord.DELIVERY_DELIVERED;
+            r.manifestCount++;
+            mBatchedReceiverCount++;
+            batchEnd = i;
+        }
+
+        if (batchEnd > recIdx) {
+            if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Batched receivers " + (recIdx + 1)
+                    + ".." + batchEnd + " of " + r + " into " + app);
+            r.batchApp = app;
+            r.batchPid = app.pid;
+            r.batchEnd = batchEnd;
+        }
+    }
+
+    /**
+     * Returns whether the manifest receivers following the current one of {@code r} may be
+     * sent to {@code app} ahead of their turn.  Queues that wait behind services don't batch:
+     * while a broadcast waits there its {@code receiver} is cleared, and the finishes the app
+     * keeps sending for the rest of the batch would not be matched to it.
+     */
+    @VisibleForTesting
+    boolean canBatchManifestReceiversLocked(BroadcastRecord r, ProcessRecord app) {
+        return mConstants.MAX_MANIFEST_BATCH > 1 && !mDelayBehindServices && !r.ordered
+                && r.curApp == app && r.receiver != null
+                && !r.allowBackgroundActivityStarts
+                && (r.options == null || r.options.getTemporaryAppWhitelistDuration() <= 0)
+                && !mDispatcher.isDeferringLocked(app.uid);
+    }
+
+    private boolean deliverBatchedReceiverLocked(BroadcastRecord r, ProcessRecord app,
+            ActivityInfo info, ComponentName component) {
+        // The current receiver's package has just been unstopped; only another package
+        // sharing the process needs it again.
+        if (!component.getPackageName().equals(r.curComponent.getPackageName())) {
+            try {
+                AppGlobals.getPackageManager().setPackageStoppedState(
+                        component.getPackageName(), false, r.userId);
+            } catch (RemoteException e) {
+            } catch (IllegalArgumentException e) {
+                Slog.w(TAG, "Failed trying to unstop package "
+                        + component.getPackageName() + ": " + e);
+            }
+        }
+        app.addPackage(info.packageName, info.applicationInfo.longVersionCode,
+                mService.mProcessStats);
+
+        final Intent intent = new Intent(r.intent);
+        intent.setComponent(component);
+        try {
+            if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST,
+                    "Delivering batched to component " + component + ": " + r);
+            mService.notifyPackageUse(component.getPackageName(),
+                    PackageManager.NOTIFY_PACKAGE_USE_BROADCAST_RECEIVER);
+            app.thread.scheduleReceiver(intent, info,
+                    mService.compatibilityInfoForPackage(info.applicationInfo),
+                    r.resultCode, r.resultData, r.resultExtras, r.ordered, r.userId,
+                    app.getReportedProcState());
+            return true;
+        } catch (RemoteException e) {
+            // The process is going away; the receiver is left for regular delivery
+            Slog.w(TAG, "Exception when batching broadcast to " + component, e);
+            return false;
+        }
+    }
+
+    /**
+     * Makes the already sent receiver {@code recIdx} the current one, so that its finish
+     * is matched up as usual.  Returns false if it has to be delivered the regular way after
+     * all, because the process it was sent to has died; the rest of the batch then goes the
+     * regular way too, and is counted again as it does.
+     */
+    @VisibleForTesting
+    boolean resumeBatchedReceiverLocked(BroadcastRecord r, int recIdx) {
+        final ProcessRecord app = r.batchApp;
+        if (app.thread == null || app.killed || app.pid != r.batchPid) {
+            Slog.w(TAG, "Batched receivers of " + r + " lost with " + app);
+            for (int i = recIdx; i <= r.batchEnd; i++) {
+                if (r.delivery[i] == BroadcastRecord.DELIVERY_DELIVERED) {
+                    r.manifestCount--;
+                }
+                r.delivery[i] = BroadcastRecord.DELIVERY_PENDING;
+            }
+            r.batchApp = null;
+            r.batchEnd = -1;
+            return false;
+        }
+
+        final ActivityInfo info = ((ResolveInfo) r.receivers.get(recIdx)).activityInfo;
+        r.state = BroadcastRecord.APP_RECEIVE;
+        r.curComponent = new ComponentName(info.applicationInfo.packageName, info.name);
+        r.curReceiver = info;
+        r.receiver = app.thread.asBinder();
+        r.curApp = app;
+        r.intent.setComponent(r.curComponent);
+        app.curReceivers.add(r);
+        app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
+        return true;
+    }
+
+    private void addDispatchLatencyLocked(BroadcastRecord r) {
+        final long latency = r.dispatchClockTime - r.enqueueClockTime;
+        mDispatchLatencyHistogram.add((int) Math.min(latency, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Applies the permission, app-op, firewall and app state policy to one manifest receiver.
+     * Receivers that are singletons are switched over to their user 0 component as a side
+     * effect, so the caller must look up the hosting process afterwards.
+     */
+    private boolean shouldSkipManifestReceiverLocked(BroadcastRecord r, ResolveInfo info,
+            ComponentName component) {
+        final BroadcastOptions brOptions = r.options;
         boolean skip = false;
         if (brOptions != null &&
                 (info.activityInfo.applicationInfo.targetSdkVersion
@@ -1510,18 +1810,12 @@ public final class BroadcastQueue {
             }
         }
 
-        // This is safe to do even if we are skipping the broadcast, and we need
-        // this information now to evaluate whether it is going to be allowed to run.
         final int receiverUid = info.activityInfo.applicationInfo.uid;
         // If it's a singleton, it needs to be the same app or a special app
         if (r.callingUid != Process.SYSTEM_UID && isSingleton
                 && mService.isValidSingletonCall(r.callingUid, receiverUid)) {
             info.activityInfo = mService.getActivityInfoForUser(info.activityInfo, 0);
         }
-        String targetProcess = info.activityInfo.processName;
-        ProcessRecord app = mService.getProcessRecordLocked(targetProcess,
-                info.activityInfo.applicationInfo.uid, false);
-
         if (!skip) {
             final int allowed = mService.getAppStartModeLocked(
                     info.activityInfo.applicationInfo.uid, info.activityInfo.packageName,
@@ -1562,107 +1856,7 @@ public final class BroadcastQueue {
                             + info.activityInfo.applicationInfo.uid + " : user is not running");
         }
 
-        if (skip) {
-            if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
-                    "Skipping delivery of ordered [" + mQueueName + "] "
-                    + r + " for reason described above");
-            r.delivery[recIdx] = BroadcastRecord.DELIVERY_SKIPPED;
-            r.receiver = null;
-            r.curFilter = null;
-            r.state = BroadcastRecord.IDLE;
-            r.manifestSkipCount++;
-            scheduleBroadcastsLocked();
-            return;
-        }
-        r.manifestCount++;
-
-        r.delivery[recIdx] = BroadcastRecord.DELIVERY_DELIVERED;
-        r.state = BroadcastRecord.APP_RECEIVE;
-        r.curComponent = component;
-        r.curReceiver = info.activityInfo;
-        if (DEBUG_MU && r.callingUid > UserHandle.PER_USER_RANGE) {
-            Slog.v(TAG_MU, "Updated broadcast record activity info for secondary user, "
-                    + info.activityInfo + ", callingUid = " + r.callingUid + ", uid = "
-                    + receiverUid);
-        }
-
-        final boolean isActivityCapable =
-                (brOptions != null && brOptions.getTemporaryAppWhitelistDuration() > 0);
-        if (isActivityCapable) {
-            scheduleTempWhitelistLocked(receiverUid,
-                    brOptions.getTemporaryAppWhitelistDuration(), r);
-        }
-
-        // Broadcast is being executed, its package can't be stopped.
-        try {
-            AppGlobals.getPackageManager().setPackageStoppedState(
-                    r.curComponent.getPackageName(), false, r.userId);
-        } catch (RemoteException e) {
-        } catch (IllegalArgumentException e) {
-            Slog.w(TAG, "Failed trying to unstop package "
-                    + r.curComponent.getPackageName() + ": " + e);
-        }
-
-        // Is this receiver's application already running?
-        if (app != null && app.thread != null && !app.killed) {
-            try {
-                app.addPackage(info.activityInfo.packageName,
-                        info.activityInfo.applicationInfo.longVersionCode, mService.mProcessStats);
-                maybeAddAllowBackgroundActivityStartsToken(app, r);
-                processCurBroadcastLocked(r, app, skipOomAdj);
-                return;
-            } catch (RemoteException e) {
-                Slog.w(TAG, "Exception when sending broadcast to "
-                      + r.curComponent, e);
-            } catch (RuntimeException e) {
-                Slog.wtf(TAG, "Failed sending broadcast to "
-                        + r.curComponent + " with " + r.intent, e);
-                // If some unexpected exception happened, just skip
-                // this broadcast.  At this point we are not in the call
-                // from a client, so throwing an exception out from here
-                // will crash the entire system instead of just whoever
-                // sent the broadcast.
-                logBroadcastReceiverDiscardLocked(r);
-                finishReceiverLocked(r, r.resultCode, r.resultData,
-                        r.resultExtras, r.resultAbort, false);
-                scheduleBroadcastsLocked();
-                // We need to reset the state if we failed to start the receiver.
-                r.state = BroadcastRecord.IDLE;
-                return;
-            }
-
-            // If a dead object exception was thrown -- fall through to
-            // restart the application.
-        }
-
-        // Not running -- get it started, to be executed when the app comes up.
-        if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
-                "Need to start app ["
-                + mQueueName + "] " + targetProcess + " for broadcast " + r);
-        if ((r.curApp=mService.startProcessLocked(targetProcess,
-                info.activityInfo.applicationInfo, true,
-                r.intent.getFlags() | Intent.FLAG_FROM_BACKGROUND,
-                new HostingRecord("broadcast", r.curComponent),
-                isActivityCapable ? ZYGOTE_POLICY_FLAG_LATENCY_SENSITIVE : ZYGOTE_POLICY_FLAG_EMPTY,
-                (r.intent.getFlags()&Intent.FLAG_RECEIVER_BOOT_UPGRADE) != 0, false, false))
-                        == null) {
-            // Ah, this recipient is unavailable.  Finish it if necessary,
-            // and mark the broadcast record as ready for the next.
-            Slog.w(TAG, "Unable to launch app "
-                    + info.activityInfo.applicationInfo.packageName + "/"
-                    + receiverUid + " for broadcast "
-                    + r.intent + ": process is bad");
-            logBroadcastReceiverDiscardLocked(r);
-            finishReceiverLocked(r, r.resultCode, r.resultData,
-                    r.resultExtras, r.resultAbort, false);
-            scheduleBroadcastsLocked();
-            r.state = BroadcastRecord.IDLE;
-            return;
-        }
-
-        maybeAddAllowBackgroundActivityStartsToken(r.curApp, r);
-        mPendingBroadcast = r;
-        mPendingBroadcastRecvIndex = recIdx;
+        return skip;
     }
 
     private void maybeAddAllowBackgroundActivityStartsToken(ProcessRecord proc, BroadcastRecord r) {
@@ -1994,6 +2188,19 @@ public final class BroadcastQueue {
 
         mConstants.dump(pw);
 
+        if (dumpPackage == null) {
+            pw.println();
+            pw.print("  Dispatch stats ["); pw.print(mQueueName); pw.println("]:");
+            pw.print("    pending="); pw.print(mParallelBroadcasts.size()
+                    + mDispatcher.getPendingCountLocked());
+            pw.print(" replaced="); pw.print(mDispatcher.getReplacedCountLocked());
+            pw.print(" batchedReceivers="); pw.println(mBatchedReceiverCount);
+            mQueueDepthHistogram.dump(pw, "    Queue depth: ");
+            mDispatchLatencyHistogram.dump(pw, "    Dispatch latency (ms): ");
+            mReceiverTimeHistogram.dump(pw, "    Receiver time (ms): ");
+            needSep = true;
+        }
+
         int i;
         boolean printed = false;
 
@@ -114,6 +114,12 @@ final class BroadcastRecord extends Binder {
     ComponentName curComponent; // the receiver class that is currently running.
     ActivityInfo curReceiver;   // info about the receiver that is currently running.
 
+    // The following are set when later manifest receivers in curApp have been handed to
+    // it ahead of their turn, see BroadcastConstants.MAX_MANIFEST_BATCH.
+    ProcessRecord batchApp;     // process the batched receivers were sent to.
+    int batchPid;               // pid of batchApp when they were sent.
+    int batchEnd = -1;          // index of the last receiver already sent to batchApp.
+
     // Private refcount-management bookkeeping; start > 0
     static AtomicInteger sNextToken = new AtomicInteger(1);
 
@@ -196,6 +202,11 @@ final class BroadcastRecord extends Binder {
                         pw.println(curReceiver.applicationInfo.sourceDir);
             }
         }
+        if (batchApp != null && batchEnd >= nextReceiver) {
+            pw.print(prefix); pw.print("batchApp="); pw.print(batchApp);
+                    pw.print(" batchPid="); pw.print(batchPid);
+                    pw.print(" batchEnd="); pw.println(batchEnd);
+        }
         if (state != IDLE) {
             String stateStr = " (?)";
             switch (state) {
@@ -408,6 +419,14 @@ final class BroadcastRecord extends Binder {
                 if (i < nextReceiver) {
                     nextReceiver--;
                 }
+                if (i <= batchEnd) {
+                    // Keep the batch and its delivery states on the receivers that were sent
+                    System.arraycopy(delivery, i + 1, delivery, i, batchEnd - i);
+                    System.arraycopy(duration, i + 1, duration, i, batchEnd - i);
+                    delivery[batchEnd] = DELIVERY_PENDING;
+                    duration[batchEnd] = 0;
+                    batchEnd--;
+                }
             }
         }
         nextReceiver = Math.min(nextReceiver, receivers.size());
@@ -70,6 +70,20 @@ public class OomAdjProfiler {
     @GuardedBy("this")
     private int mTotalOomAdjCalls;
 
+    /** Totals of full updates, which evaluate every process in the LRU list. */
+    @GuardedBy("this")
+    private final UpdateStats mFullUpdateStats = new UpdateStats();
+    /** Totals of partial updates, which only evaluate the processes reachable from a change. */
+    @GuardedBy("this")
+    private final UpdateStats mPartialUpdateStats = new UpdateStats();
+    @GuardedBy("this")
+    final RingBuffer<UpdateRecord> mRecentUpdates = new RingBuffer<>(UpdateRecord.class, 20);
+
+    @GuardedBy("this")
+    private int mVerifiedPartialUpdates;
+    @GuardedBy("this")
+    private int mVerifyMismatches;
+
     void batteryPowerChanged(boolean onBattery) {
         synchronized (this) {
             scheduleSystemServerCpuTimeUpdate();
@@ -91,7 +105,12 @@ public class OomAdjProfiler {
         }
     }
 
-    void oomAdjEnded() {
+    /**
+     * @param reason The reason passed to the update
+     * @param fullUpdate Whether the whole LRU list was evaluated
+     * @param numProcesses How many processes were evaluated
+     */
+    void oomAdjEnded(String reason, boolean fullUpdate, int numProcesses) {
         synchronized (this) {
             if (!mOomAdjStarted) {
                 return;
@@ -100,6 +119,21 @@ public class OomAdjProfiler {
             mOomAdjRunTime.addCpuTimeUs(elapsedUs);
             mTotalOomAdjRunTimeUs += elapsedUs;
             mTotalOomAdjCalls++;
+
+            (fullUpdate ? mFullUpdateStats : mPartialUpdateStats).add(numProcesses, elapsedUs);
+            mRecentUpdates.append(new UpdateRecord(reason, fullUpdate, numProcesses, elapsedUs));
+        }
+    }
+
+    /**
+     * Records the outcome of checking a partial update against a full one.
+     *
+     * @param mismatches How many processes the partial update got wrong
+     */
+    void partialUpdateVerified(int mismatches) {
+        synchronized (this) {
+            mVerifiedPartialUpdates++;
+            mVerifyMismatches += mismatches;
         }
     }
 
@@ -185,10 +219,69 @@ public class OomAdjProfiler {
                 pw.print(mTotalOomAdjCalls);
                 pw.print("  average=");
                 pw.println(mTotalOomAdjRunTimeUs / mTotalOomAdjCalls);
+
+                pw.println("oomAdj updates by kind since boot (cpu time in us):");
+                pw.print("  full: ");
+                pw.println(mFullUpdateStats);
+                pw.print("  partial: ");
+                pw.println(mPartialUpdateStats);
+                if (mVerifiedPartialUpdates != 0) {
+                    pw.print("  partial updates verified=");
+                    pw.print(mVerifiedPartialUpdates);
+                    pw.print("  processes that diverged=");
+                    pw.println(mVerifyMismatches);
+                }
+
+                pw.println("Recent oomAdj updates (most recent first):");
+                final UpdateRecord[] recentUpdates = mRecentUpdates.toArray();
+                for (int i = recentUpdates.length - 1; i >= 0; --i) {
+                    pw.print("  ");
+                    pw.println(recentUpdates[i]);
+                }
             }
         }
     }
 
+    private static class UpdateStats {
+        private int mCalls;
+        private long mProcesses;
+        private long mTimeUs;
+
+        void add(int numProcesses, long timeUs) {
+            mCalls++;
+            mProcesses += numProcesses;
+            mTimeUs += timeUs;
+        }
+
+        public String toString() {
+            if (mCalls == 0) {
+                return "none";
+            }
+            return "calls=" + mCalls + "  processes=" + mProcesses
+                    + "  avg processes=" + (mProcesses / mCalls)
+                    + "  cpu time spent=" + mTimeUs + "  average=" + (mTimeUs / mCalls);
+        }
+    }
+
+    private static class UpdateRecord {
+        private final String mReason;
+        private final boolean mFullUpdate;
+        private final int mProcesses;
+        private final long mTimeUs;
+
+        UpdateRecord(String reason, boolean fullUpdate, int numProcesses, long timeUs) {
+            mReason = reason;
+            mFullUpdate = fullUpdate;
+            mProcesses = numProcesses;
+            mTimeUs = timeUs;
+        }
+
+        public String toString() {
+            return mReason + (mFullUpdate ? " full" : " partial")
+                    + " processes=" + mProcesses + " time=" + mTimeUs + "us";
+        }
+    }
+
     private class CpuTimes {
         private long mOnBatteryTimeUs;
         private long mOnBatteryScreenOffTimeUs;
@@ -107,7 +107,6 @@ import com.android.server.wm.ActivityServiceConnectionsHolder;
 import com.android.server.wm.WindowProcessController;
 
 import java.io.PrintWriter;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -212,7 +211,7 @@ public final class OomAdjuster {
     private ArrayList<ProcessRecord> mTmpProcessList = new ArrayList<ProcessRecord>();
     private ArrayList<UidRecord> mTmpBecameIdle = new ArrayList<UidRecord>();
     private ActiveUids mTmpUidRecords;
-    private ArrayDeque<ProcessRecord> mTmpQueue;
+    private final ArraySet<ProcessRecord> mTmpHosts = new ArraySet<>();
 
     private final IPlatformCompat mPlatformCompat;
 
@@ -260,7 +259,6 @@ public final class OomAdjuster {
             return true;
         });
         mTmpUidRecords = new ActiveUids(service, false);
-        mTmpQueue = new ArrayDeque<ProcessRecord>(mConstants.CUR_MAX_CACHED_PROCESSES << 1);
         mNumSlots = ((ProcessList.CACHED_APP_MAX_ADJ - ProcessList.CACHED_APP_MIN_ADJ + 1) >> 1)
                 / ProcessList.CACHED_APP_IMPORTANCE_LEVELS;
         IBinder b = ServiceManager.getService(Context.PLATFORM_COMPAT_SERVICE);
@@ -442,28 +440,133 @@ public final class OomAdjuster {
             if (DEBUG_OOM_ADJ) {
                 Slog.i(TAG_OOM_ADJ, "No oomadj changes for " + app);
             }
-            mService.mOomAdjProfiler.oomAdjEnded();
+            mService.mOomAdjProfiler.oomAdjEnded(oomAdjReason, false, 1);
             Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+            verifyPartialUpdateIfNeededLocked(oomAdjReason);
             return success;
         }
 
         // Next to find out all its reachable processes
         ArrayList<ProcessRecord> processes = mTmpProcessList;
         ActiveUids uids = mTmpUidRecords;
-        ArrayDeque<ProcessRecord> queue = mTmpQueue;
+        processes.clear();
+        uids.clear();
+        processes.add(app);
+        final boolean containsCycle = collectReachableProcessesLocked(processes, uids);
+        // The process itself has been updated above already.
+        processes.remove(0);
+        int size = processes.size();
+        if (size > 0) {
+            // Reverse the process list, since the updateOomAdjLockedInner scans from the end of it.
+            for (int l = 0, r = size - 1; l < r; l++, r--) {
+                ProcessRecord t = processes.get(l);
+                processes.set(l, processes.get(r));
+                processes.set(r, t);
+            }
+            mAdjSeq--;
+            // Update these reachable processes
+            updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
+        } else if (app.getCurRawAdj() == ProcessList.UNKNOWN_ADJ) {
+            // In case the app goes from non-cached to cached but it doesn't have other reachable
+            // processes, its adj could be still unknown as of now, assign one.
+            processes.add(app);
+            assignCachedAdjIfNecessary(processes);
+            applyOomAdjLocked(app, false, SystemClock.uptimeMillis(),
+                    SystemClock.elapsedRealtime());
+        }
+        mService.mOomAdjProfiler.oomAdjEnded(oomAdjReason, false, size + 1);
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+        verifyPartialUpdateIfNeededLocked(oomAdjReason);
+        return true;
+    }
 
+    /**
+     * Update OomAdj after the clients of the given processes changed, typically because a
+     * service binding or provider connection into them went away. The hosts are re-evaluated
+     * against their remaining clients, followed by every process they in turn depend on through
+     * their own bindings and provider connections; the rest of the LRU list is left untouched.
+     *
+     * @param hosts The processes whose clients changed
+     * @param oomAdjReason
+     */
+    @GuardedBy("mService")
+    void updateOomAdjForHostsLocked(ArraySet<ProcessRecord> hosts, String oomAdjReason) {
+        if (!mConstants.OOMADJ_UPDATE_QUICK) {
+            updateOomAdjLocked(oomAdjReason);
+            return;
+        }
+
+        ArrayList<ProcessRecord> processes = mTmpProcessList;
+        ActiveUids uids = mTmpUidRecords;
         processes.clear();
         uids.clear();
-        queue.clear();
+        for (int i = hosts.size() - 1; i >= 0; i--) {
+            final ProcessRecord host = hosts.valueAt(i);
+            if (host != null && !host.killedByAm && host.thread != null) {
+                processes.add(host);
+            }
+        }
+        if (processes.isEmpty()) {
+            return;
+        }
 
+        final ProcessRecord topApp = mService.getTopAppLocked();
+        Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, oomAdjReason);
+        mService.mOomAdjProfiler.oomAdjStarted();
+
+        final boolean containsCycle = collectReachableProcessesLocked(processes, uids);
+        final int size = processes.size();
+        // Reverse the process list, since the updateOomAdjLockedInner scans from the end of it.
+        for (int l = 0, r = size - 1; l < r; l++, r--) {
+            ProcessRecord t = processes.get(l);
+            processes.set(l, processes.get(r));
+            processes.set(r, t);
+        }
+        updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
+
+        mService.mOomAdjProfiler.oomAdjEnded(oomAdjReason, false, size);
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+        verifyPartialUpdateIfNeededLocked(oomAdjReason);
+    }
+
+    /**
+     * Update OomAdj after the clients of a single process changed.
+     *
+     * @see #updateOomAdjForHostsLocked
+     */
+    @GuardedBy("mService")
+    void updateOomAdjForHostLocked(ProcessRecord host, String oomAdjReason) {
+        final ArraySet<ProcessRecord> hosts = mTmpHosts;
+        hosts.clear();
+        hosts.add(host);
+        updateOomAdjForHostsLocked(hosts, oomAdjReason);
+        hosts.clear();
+    }
+
+    /**
+     * Appends everything the given processes depend on to {@code processes}, in breadth first
+     * order: the processes hosting the services they are bound to and the providers they are
+     * connected to, then those processes' own hosts and so on. Together with the client lists
+     * on the host side, {@link ProcessRecord#connections} and {@link ProcessRecord#conProviders}
+     * form the client to host dependency graph, so this is the subgraph an update of the given
+     * processes can affect.
+     *
+     * @param processes The processes to start from on input, all reachable processes on output
+     * @param uids Collects the uids of all reachable processes
+     * @return Whether a process was reached more than once, in which case the graph could
+     *         contain a cycle and clients must be re-evaluated along the way
+     */
+    @GuardedBy("mService")
+    private boolean collectReachableProcessesLocked(ArrayList<ProcessRecord> processes,
+            ActiveUids uids) {
+        for (int i = processes.size() - 1; i >= 0; i--) {
+            processes.get(i).mReachable = true;
+        }
         // Track if any of them reachables could include a cycle
         boolean containsCycle = false;
-        // Scan downstreams of the process record
-        app.mReachable = true;
-        for (ProcessRecord pr = app; pr != null; pr = queue.poll()) {
-            if (pr != app) {
-                processes.add(pr);
-            }
+        // The list doubles as the queue of the breadth first search.
+        for (int n = 0; n < processes.size(); n++) {
+            final ProcessRecord pr = processes.get(n);
             if (pr.uidRecord != null) {
                 uids.put(pr.uidRecord.uid, pr.uidRecord);
             }
@@ -484,48 +587,70 @@ public final class OomAdjuster {
                         == Context.BIND_WAIVE_PRIORITY) {
                     continue;
                 }
-                queue.offer(service);
+                processes.add(service);
                 service.mReachable = true;
             }
             for (int i = pr.conProviders.size() - 1; i >= 0; i--) {
                 ContentProviderConnection cpc = pr.conProviders.get(i);
                 ProcessRecord provider = cpc.provider.proc;
-                if (provider == null || provider == pr || (containsCycle |= provider.mReachable)) {
+                if (provider == null || provider == pr) {
                     continue;
                 }
                 containsCycle |= provider.mReachable;
                 if (provider.mReachable) {
                     continue;
                 }
-                queue.offer(provider);
+                processes.add(provider);
                 provider.mReachable = true;
             }
         }
+        for (int i = processes.size() - 1; i >= 0; i--) {
+            processes.get(i).mReachable = false;
+        }
+        return containsCycle;
+    }
 
-        // Reset the flag
-        app.mReachable = false;
-        int size = processes.size();
-        if (size > 0) {
-            // Reverse the process list, since the updateOomAdjLockedInner scans from the end of it.
-            for (int l = 0, r = size - 1; l < r; l++, r--) {
-                ProcessRecord t = processes.get(l);
-                processes.set(l, processes.get(r));
-                processes.set(r, t);
+    /**
+     * In verification mode, follows a partial update with a full one and reports each process
+     * whose importance the partial update got wrong. The full update's results are kept.
+     */
+    @GuardedBy("mService")
+    private void verifyPartialUpdateIfNeededLocked(String oomAdjReason) {
+        if (!mConstants.OOMADJ_VERIFY_PARTIAL_UPDATES) {
+            return;
+        }
+        final ArrayList<ProcessRecord> lru = mProcessList.mLruProcesses;
+        final int numLru = lru.size();
+        final ProcessRecord[] apps = lru.toArray(new ProcessRecord[numLru]);
+        final int[] adjs = new int[numLru];
+        final int[] procStates = new int[numLru];
+        for (int i = 0; i < numLru; i++) {
+            adjs[i] = apps[i].setAdj;
+            procStates[i] = apps[i].setProcState;
+        }
+
+        updateOomAdjLockedInner(oomAdjReason, mService.getTopAppLocked(), null, null, true,
+                false);
+
+        int mismatches = 0;
+        for (int i = 0; i < numLru; i++) {
+            final ProcessRecord app = apps[i];
+            if (app.killedByAm || app.thread == null) {
+                continue;
+            }
+            // Cached processes only differ in the slot they have been assigned, which depends
+            // on the order in which they were evaluated.
+            final boolean adjDiffers = adjs[i] != app.setAdj
+                    && (adjs[i] < ProcessList.CACHED_APP_MIN_ADJ
+                            || app.setAdj < ProcessList.CACHED_APP_MIN_ADJ);
+            if (adjDiffers || procStates[i] != app.setProcState) {
+                mismatches++;
+                Slog.w(TAG_OOM_ADJ, "Partial update " + oomAdjReason + " diverged for " + app
+                        + ": adj " + adjs[i] + " vs " + app.setAdj
+                        + ", procState " + procStates[i] + " vs " + app.setProcState);
             }
-            mAdjSeq--;
-            // Update these reachable processes
-            updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
-        } else if (app.getCurRawAdj() == ProcessList.UNKNOWN_ADJ) {
-            // In case the app goes from non-cached to cached but it doesn't have other reachable
-            // processes, its adj could be still unknown as of now, assign one.
-            processes.add(app);
-            assignCachedAdjIfNecessary(processes);
-            applyOomAdjLocked(app, false, SystemClock.uptimeMillis(),
-                    SystemClock.elapsedRealtime());
         }
-        mService.mOomAdjProfiler.oomAdjEnded();
-        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
-        return true;
+        mService.mOomAdjProfiler.partialUpdateVerified(mismatches);
     }
 
     /**
@@ -677,7 +802,7 @@ public final class OomAdjuster {
             }
         }
         if (startProfiling) {
-            mService.mOomAdjProfiler.oomAdjEnded();
+            mService.mOomAdjProfiler.oomAdjEnded(oomAdjReason, fullUpdate, numProc);
             Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
         }
     }
@@ -135,7 +135,6 @@ import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
-import android.util.Xml;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.Immutable;
@@ -150,7 +149,6 @@ import com.android.internal.app.MessageSamplingConfig;
 import com.android.internal.os.Zygote;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.Preconditions;
 import com.android.internal.util.XmlUtils;
 import com.android.internal.util.function.pooled.PooledLambda;
@@ -177,7 +175,6 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
@@ -249,6 +246,9 @@ public class AppOpsService extends IAppOpsService.Stub {
     private static final int MAX_UNUSED_POOLED_OBJECTS = 3;
     private static final int RARELY_USED_PACKAGES_INITIALIZATION_DELAY_MILLIS = 300000;
 
+    /** How long notes decided without the lock are buffered before they are applied */
+    private static final long FLUSH_NOTED_OPS_DELAY_MILLIS = 500;
+
     //TODO: remove this when development is done.
     private static final int DEBUG_FGS_ALLOW_WHILE_IN_USE = 0;
     private static final int DEBUG_FGS_ENFORCE_TYPE = 1;
@@ -320,6 +320,26 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     volatile @NonNull HistoricalRegistry mHistoricalRegistry = new HistoricalRegistry(this);
 
+    /**
+     * Copy-on-write view of {@link #mUidStates} that lets {@link #checkOperationUnchecked} and
+     * {@link #noteOperationUnchecked} decide the common case without taking the lock. Entries are
+     * created lazily and removed whenever the state they were created from changes.
+     *
+     * @see #getUidSnapshotLocked
+     * @see #invalidateUidSnapshotLocked
+     */
+    private volatile @NonNull SparseArray<UidSnapshot> mUidSnapshots = new SparseArray<>();
+
+    /** Ops restricted for any user by any client, see {@link #updateRestrictedOpsLocked} */
+    private volatile @NonNull boolean[] mRestrictedOps = new boolean[_NUM_OP];
+
+    /** Ops watched by any noted callback, see {@link #updateNotedWatchedOpsLocked} */
+    private volatile @NonNull boolean[] mNotedWatchedOps = new boolean[_NUM_OP];
+
+    /** Notes decided without the lock that have not been applied to their {@link Op} yet */
+    private final NotedOpsBuffer mNotedOpsBuffer = new NotedOpsBuffer();
+    private final Runnable mFlushNotedOpsRunner = this::flushNotedOps;
+
     long mLastRealtime;
 
     /*
@@ -665,6 +685,78 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Immutable copy of the parts of a {@link UidState} needed to check or note an op without
+     * holding the lock.
+     */
+    private static final class UidSnapshot {
+        /** Only used for racy reads of {@link UidState#state} */
+        final @NonNull UidState uidState;
+
+        /** Copy of {@link UidState#opModes} */
+        final @Nullable SparseIntArray uidModes;
+
+        /** Packages whose uid was already verified, i.e. that have a {@link Ops#bypass} */
+        final @NonNull ArrayMap<String, PackageSnapshot> packages;
+
+        UidSnapshot(@NonNull UidState uidState) {
+            this.uidState = uidState;
+            uidModes = uidState.opModes == null ? null : uidState.opModes.clone();
+
+            final int numPkgs = uidState.pkgOps == null ? 0 : uidState.pkgOps.size();
+            packages = new ArrayMap<>(numPkgs);
+            for (int i = 0; i < numPkgs; i++) {
+                final Ops ops = uidState.pkgOps.valueAt(i);
+                if (ops.bypass != null) {
+                    packages.put(ops.packageName, new PackageSnapshot(this, ops));
+                }
+            }
+        }
+    }
+
+    /**
+     * Immutable copy of the parts of an {@link Ops} needed to check or note an op without holding
+     * the lock.
+     */
+    private static final class PackageSnapshot {
+        final @NonNull UidSnapshot uid;
+        final @NonNull RestrictionBypass bypass;
+        final @NonNull ArraySet<String> knownAttributionTags;
+
+        /** Modes of the {@link Op ops} of the package */
+        final @NonNull SparseIntArray modes;
+
+        PackageSnapshot(@NonNull UidSnapshot uid, @NonNull Ops ops) {
+            this.uid = uid;
+            bypass = ops.bypass;
+            knownAttributionTags = new ArraySet<>(ops.knownAttributionTags);
+
+            final int numOps = ops.size();
+            modes = new SparseIntArray(numOps);
+            for (int i = 0; i < numOps; i++) {
+                modes.put(ops.keyAt(i), ops.valueAt(i).mode);
+            }
+        }
+
+        /**
+         * Get the raw mode of an op, the uid mode taking precedence over the package mode.
+         *
+         * @param switchCode The switch code of the op
+         *
+         * @return The raw mode; {@link AppOpsManager#MODE_FOREGROUND} needs to be evaluated
+         * against the current uid state
+         */
+        int getMode(int switchCode) {
+            if (uid.uidModes != null) {
+                final int index = uid.uidModes.indexOfKey(switchCode);
+                if (index >= 0) {
+                    return uid.uidModes.valueAt(index);
+                }
+            }
+            return modes.get(switchCode, AppOpsManager.opToDefaultMode(switchCode));
+        }
+    }
+
     /** A in progress startOp->finishOp event */
     private static final class InProgressStartOpEvent implements IBinder.DeathRecipient {
         /** Wall clock time of startOp event (not monotonic) */
@@ -1512,8 +1604,10 @@ public class AppOpsService extends IAppOpsService.Stub {
                         return;
                     }
 
+                    flushNotedOpsLocked();
                     Ops removedOps = uidState.pkgOps.remove(pkgName);
                     if (removedOps != null) {
+                        invalidateUidSnapshotLocked(uid);
                         scheduleFastWriteLocked();
                     }
                 }
@@ -1555,8 +1649,10 @@ public class AppOpsService extends IAppOpsService.Stub {
                     }
 
                     // Reset cached package properties to re-initialize when needed
+                    flushNotedOpsLocked();
                     ops.bypass = null;
                     ops.knownAttributionTags.clear();
+                    invalidateUidSnapshotLocked(uid);
 
                     // Merge data collected for removed attributions into their successor
                     // attributions
@@ -1608,8 +1704,10 @@ public class AppOpsService extends IAppOpsService.Stub {
 
                 String[] pkgsInUid = getPackagesForUid(uidState.uid);
                 if (ArrayUtils.isEmpty(pkgsInUid)) {
+                    flushNotedOpsLocked();
                     uidState.clear();
                     mUidStates.removeAt(uidNum);
+                    invalidateUidSnapshotLocked(uid);
                     scheduleFastWriteLocked();
                     continue;
                 }
@@ -1760,7 +1858,9 @@ public class AppOpsService extends IAppOpsService.Stub {
 
             // Remove any package state if such.
             if (uidState.pkgOps != null) {
+                flushNotedOpsLocked();
                 ops = uidState.pkgOps.remove(packageName);
+                invalidateUidSnapshotLocked(uid);
             }
 
             // If we just nuked the last package state check if the UID is valid.
@@ -1795,7 +1895,9 @@ public class AppOpsService extends IAppOpsService.Stub {
     public void uidRemoved(int uid) {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
+                flushNotedOpsLocked();
                 mUidStates.remove(uid);
+                invalidateUidSnapshotLocked(uid);
                 scheduleFastWriteLocked();
             }
         }
@@ -1962,6 +2064,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 Binder.getCallingPid(), Binder.getCallingUid(), null);
         ArrayList<AppOpsManager.PackageOps> res = null;
         synchronized (this) {
+            flushNotedOpsLocked();
             final int uidStateCount = mUidStates.size();
             for (int i = 0; i < uidStateCount; i++) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -1997,6 +2100,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             return Collections.emptyList();
         }
         synchronized (this) {
+            flushNotedOpsLocked();
             Ops pkgOps = getOpsLocked(uid, resolvedPackageName, null, null, false /* edit */);
             if (pkgOps == null) {
                 return null;
@@ -2082,6 +2186,8 @@ public class AppOpsService extends IAppOpsService.Stub {
         final String[] opNamesArray = (opNames != null)
                 ? opNames.toArray(new String[opNames.size()]) : null;
 
+        flushNotedOps();
+
         // Must not hold the appops lock
         mHandler.post(PooledLambda.obtainRunnable(HistoricalRegistry::getHistoricalOps,
                 mHistoricalRegistry, uid, packageName, attributionTag, opNamesArray, filter,
@@ -2102,6 +2208,8 @@ public class AppOpsService extends IAppOpsService.Stub {
         final String[] opNamesArray = (opNames != null)
                 ? opNames.toArray(new String[opNames.size()]) : null;
 
+        flushNotedOps();
+
         // Must not hold the appops lock
         mHandler.post(PooledLambda.obtainRunnable(HistoricalRegistry::getHistoricalOpsFromDiskRaw,
                 mHistoricalRegistry, uid, packageName, attributionTag, opNamesArray,
@@ -2121,6 +2229,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         mContext.enforcePermission(android.Manifest.permission.GET_APP_OPS_STATS,
                 Binder.getCallingPid(), Binder.getCallingUid(), null);
         synchronized (this) {
+            flushNotedOpsLocked();
             UidState uidState = getUidStateLocked(uid, false);
             if (uidState == null) {
                 return null;
@@ -2138,6 +2247,8 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private void pruneOpLocked(Op op, int uid, String packageName) {
+        // Buffered notes may still hold the access and reject times of the op
+        flushNotedOpsLocked();
         op.removeAttributionsWithNoTime();
 
         if (op.mAttributions.isEmpty()) {
@@ -2155,6 +2266,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                         if (uidState.isDefault()) {
                             mUidStates.remove(uid);
                         }
+                        invalidateUidSnapshotLocked(uid);
                     }
                 }
             }
@@ -2236,6 +2348,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
                 scheduleWriteLocked();
             }
+            invalidateUidSnapshotLocked(uid);
             uidState.evalForegroundOps(mOpModeWatchers);
         }
 
@@ -2464,6 +2577,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 if (op.mode != mode) {
                     previousMode = op.mode;
                     op.mode = mode;
+                    invalidateUidSnapshotLocked(uid);
                     if (uidState != null) {
                         uidState.evalForegroundOps(mOpModeWatchers);
                     }
@@ -2620,6 +2734,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         HashMap<ModeCallback, ArrayList<ChangeRec>> callbacks = null;
         ArrayList<ChangeRec> allChanges = new ArrayList<>();
         synchronized (this) {
+            flushNotedOpsLocked();
             boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -2704,6 +2819,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             if (changed) {
+                invalidateUidSnapshotsLocked();
                 scheduleFastWriteLocked();
             }
         }
@@ -2883,18 +2999,33 @@ public class AppOpsService extends IAppOpsService.Stub {
      */
     private @Mode int checkOperationUnchecked(int code, int uid, @NonNull String packageName,
                 boolean raw) {
+        final PackageSnapshot pkgSnapshot = getVerifiedPackageSnapshot(uid, packageName, null);
         RestrictionBypass bypass;
-        try {
-            bypass = verifyAndGetBypass(uid, packageName, null);
-        } catch (SecurityException e) {
-            Slog.e(TAG, "checkOperation", e);
-            return AppOpsManager.opToDefaultMode(code);
+        if (pkgSnapshot != null) {
+            bypass = pkgSnapshot.bypass;
+        } else {
+            try {
+                bypass = verifyAndGetBypass(uid, packageName, null);
+            } catch (SecurityException e) {
+                Slog.e(TAG, "checkOperation", e);
+                return AppOpsManager.opToDefaultMode(code);
+            }
         }
 
         if (isOpRestrictedDueToSuspend(code, packageName, uid)) {
             return AppOpsManager.MODE_IGNORED;
         }
+
+        // Unless the mode depends on the current uid state the snapshot has all that is needed
+        if (pkgSnapshot != null && !mRestrictedOps[code]) {
+            final int rawMode = pkgSnapshot.getMode(AppOpsManager.opToSwitch(code));
+            if (raw || rawMode != AppOpsManager.MODE_FOREGROUND) {
+                return rawMode;
+            }
+        }
+
         synchronized (this) {
+            getUidSnapshotLocked(uid);
             if (isOpRestrictedLocked(uid, code, packageName, bypass)) {
                 return AppOpsManager.MODE_IGNORED;
             }
@@ -3048,15 +3179,41 @@ public class AppOpsService extends IAppOpsService.Stub {
             @Nullable String proxyAttributionTag, @OpFlags int flags,
             boolean shouldCollectAsyncNotedOp, @Nullable String message,
             boolean shouldCollectMessage) {
+        final PackageSnapshot pkgSnapshot = getVerifiedPackageSnapshot(uid, packageName,
+                attributionTag);
+
+        // If nobody needs to hear about this note right away, decide it from the snapshot and
+        // record it in the buffer instead of in the op
+        if (pkgSnapshot != null && proxyUid == Process.INVALID_UID && !mRestrictedOps[code]
+                && !mNotedWatchedOps[code]) {
+            final int mode = pkgSnapshot.getMode(AppOpsManager.opToSwitch(code));
+            if (mode != AppOpsManager.MODE_FOREGROUND
+                    && (mode != AppOpsManager.MODE_ALLOWED || !shouldCollectAsyncNotedOp)) {
+                if (mNotedOpsBuffer.add(code, uid, packageName, attributionTag,
+                        pkgSnapshot.uid.uidState.state, flags, mode == AppOpsManager.MODE_ALLOWED,
+                        System.currentTimeMillis())) {
+                    mHandler.postDelayed(mFlushNotedOpsRunner, FLUSH_NOTED_OPS_DELAY_MILLIS);
+                }
+                return mode;
+            }
+        }
+
         RestrictionBypass bypass;
-        try {
-            bypass = verifyAndGetBypass(uid, packageName, attributionTag);
-        } catch (SecurityException e) {
-            Slog.e(TAG, "noteOperation", e);
-            return AppOpsManager.MODE_ERRORED;
+        if (pkgSnapshot != null) {
+            bypass = pkgSnapshot.bypass;
+        } else {
+            try {
+                bypass = verifyAndGetBypass(uid, packageName, attributionTag);
+            } catch (SecurityException e) {
+                Slog.e(TAG, "noteOperation", e);
+                return AppOpsManager.MODE_ERRORED;
+            }
         }
 
         synchronized (this) {
+            // Keep the access times in order with the buffered notes
+            flushNotedOpsLocked();
+
             final Ops ops = getOpsLocked(uid, packageName, attributionTag, bypass,
                     true /* edit */);
             if (ops == null) {
@@ -3066,6 +3223,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                         + " package " + packageName);
                 return AppOpsManager.MODE_ERRORED;
             }
+            getUidSnapshotLocked(uid);
             final Op op = getOpLocked(ops, code, uid, true);
             if (isOpRestrictedLocked(uid, code, packageName, bypass)) {
                 scheduleOpNotedIfNeededLocked(code, uid, packageName,
@@ -3246,6 +3404,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             for (int op : ops) {
                 callbacks.put(op, notedCallback);
             }
+            updateNotedWatchedOpsLocked();
         }
     }
 
@@ -3258,6 +3417,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (notedCallbacks == null) {
                 return;
             }
+            updateNotedWatchedOpsLocked();
             final int callbackCount = notedCallbacks.size();
             for (int i = 0; i < callbackCount; i++) {
                 notedCallbacks.valueAt(i).destroy();
@@ -3957,18 +4117,158 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
 
         if (edit) {
-            if (bypass != null) {
+            boolean changed = false;
+            if (bypass != null && ops.bypass != bypass) {
                 ops.bypass = bypass;
+                changed = true;
             }
 
             if (attributionTag != null) {
-                ops.knownAttributionTags.add(attributionTag);
+                changed |= ops.knownAttributionTags.add(attributionTag);
+            }
+
+            if (changed) {
+                invalidateUidSnapshotLocked(uid);
             }
         }
 
         return ops;
     }
 
+    /**
+     * Get the snapshot of a package if the package is known to belong to the uid and to declare the
+     * attribution tag. Does not take the lock.
+     *
+     * @param uid The uid the package belongs to
+     * @param packageName The name of the package
+     * @param attributionTag attribution tag or {@code null} if no need to verify
+     *
+     * @return The snapshot or {@code null} if the package has to be verified first
+     */
+    private @Nullable PackageSnapshot getVerifiedPackageSnapshot(int uid,
+            @NonNull String packageName, @Nullable String attributionTag) {
+        if (uid == Process.ROOT_UID) {
+            return null;
+        }
+        final UidSnapshot uidSnapshot = mUidSnapshots.get(uid);
+        if (uidSnapshot == null) {
+            return null;
+        }
+        final PackageSnapshot pkgSnapshot = uidSnapshot.packages.get(packageName);
+        if (pkgSnapshot == null || (attributionTag != null
+                && !pkgSnapshot.knownAttributionTags.contains(attributionTag))) {
+            return null;
+        }
+        return pkgSnapshot;
+    }
+
+    /**
+     * Get (and potentially create) the snapshot of a uid.
+     *
+     * @param uid The uid
+     *
+     * @return The snapshot or {@code null} if there is no state for the uid
+     */
+    @GuardedBy("this")
+    private @Nullable UidSnapshot getUidSnapshotLocked(int uid) {
+        final UidState uidState = mUidStates.get(uid);
+        if (uidState == null) {
+            return null;
+        }
+        UidSnapshot uidSnapshot = mUidSnapshots.get(uid);
+        if (uidSnapshot == null || uidSnapshot.uidState != uidState) {
+            uidSnapshot = new UidSnapshot(uidState);
+            final SparseArray<UidSnapshot> uidSnapshots = mUidSnapshots.clone();
+            uidSnapshots.put(uid, uidSnapshot);
+            mUidSnapshots = uidSnapshots;
+        }
+        return uidSnapshot;
+    }
+
+    /**
+     * Drop the snapshot of a uid after modes, packages or package properties of the uid changed.
+     */
+    @GuardedBy("this")
+    private void invalidateUidSnapshotLocked(int uid) {
+        if (mUidSnapshots.indexOfKey(uid) >= 0) {
+            final SparseArray<UidSnapshot> uidSnapshots = mUidSnapshots.clone();
+            uidSnapshots.remove(uid);
+            mUidSnapshots = uidSnapshots;
+        }
+    }
+
+    @GuardedBy("this")
+    private void invalidateUidSnapshotsLocked() {
+        mUidSnapshots = new SparseArray<>();
+    }
+
+    @GuardedBy("this")
+    private void updateRestrictedOpsLocked() {
+        final boolean[] restrictedOps = new boolean[_NUM_OP];
+        final int restrictionSetCount = mOpUserRestrictions.size();
+        for (int i = 0; i < restrictionSetCount; i++) {
+            mOpUserRestrictions.valueAt(i).collectRestrictedOps(restrictedOps);
+        }
+        mRestrictedOps = restrictedOps;
+    }
+
+    @GuardedBy("this")
+    private void updateNotedWatchedOpsLocked() {
+        final boolean[] notedWatchedOps = new boolean[_NUM_OP];
+        final int callbackListCount = mNotedWatchers.size();
+        for (int i = 0; i < callbackListCount; i++) {
+            final SparseArray<NotedCallback> callbacks = mNotedWatchers.valueAt(i);
+            final int callbackCount = callbacks.size();
+            for (int j = 0; j < callbackCount; j++) {
+                notedWatchedOps[callbacks.keyAt(j)] = true;
+            }
+        }
+        mNotedWatchedOps = notedWatchedOps;
+    }
+
+    /**
+     * Apply the notes buffered by {@link #noteOperationUnchecked} to their ops and to the
+     * historical registry.
+     */
+    private void flushNotedOps() {
+        synchronized (this) {
+            flushNotedOpsLocked();
+        }
+    }
+
+    @GuardedBy("this")
+    private void flushNotedOpsLocked() {
+        mNotedOpsBuffer.drain(this::applyNotedOpLocked);
+    }
+
+    @GuardedBy("this")
+    private void applyNotedOpLocked(@NonNull NotedOpsBuffer.NotedOp notedOp) {
+        // The package or uid might have been removed after the note was buffered. The removal
+        // paths flush first, so what is left here was noted concurrently and is dropped rather
+        // than re-creating state for it.
+        final Ops ops = getOpsLocked(notedOp.uid, notedOp.packageName, notedOp.attributionTag,
+                null, false /* edit */);
+        if (ops == null) {
+            return;
+        }
+        final Op op = getOpLocked(ops, notedOp.op, notedOp.uid, true);
+        final AttributedOp attributedOp = op.getOrCreateAttribution(op, notedOp.attributionTag);
+
+        if (notedOp.accessCount > 0) {
+            attributedOp.accessed(notedOp.lastAccessTime, -1, Process.INVALID_UID, null, null,
+                    notedOp.uidState, notedOp.flags);
+            mHistoricalRegistry.incrementOpAccessedCount(notedOp.op, notedOp.uid,
+                    notedOp.packageName, notedOp.attributionTag, notedOp.uidState,
+                    notedOp.flags, notedOp.accessCount);
+        }
+        if (notedOp.rejectCount > 0) {
+            attributedOp.rejected(notedOp.lastRejectTime, notedOp.uidState, notedOp.flags);
+            mHistoricalRegistry.incrementOpRejected(notedOp.op, notedOp.uid,
+                    notedOp.packageName, notedOp.attributionTag, notedOp.uidState,
+                    notedOp.flags, notedOp.rejectCount);
+        }
+    }
+
     private void scheduleWriteLocked() {
         if (!mWriteScheduled) {
             mWriteScheduled = true;
@@ -4070,10 +4370,11 @@ public class AppOpsService extends IAppOpsService.Stub {
                     return;
                 }
                 boolean success = false;
+                flushNotedOpsLocked();
                 mUidStates.clear();
+                invalidateUidSnapshotsLocked();
                 try {
-                    XmlPullParser parser = Xml.newPullParser();
-                    parser.setInput(stream, StandardCharsets.UTF_8.name());
+                    XmlPullParser parser = XmlUtils.resolvePullParser(stream);
                     int type;
                     while ((type = parser.next()) != XmlPullParser.START_TAG
                             && type != XmlPullParser.END_DOCUMENT) {
@@ -4133,6 +4434,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
         synchronized (this) {
             upgradeLocked(oldVersion);
+            invalidateUidSnapshotsLocked();
         }
     }
 
@@ -4331,8 +4633,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
 
             try {
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(stream, StandardCharsets.UTF_8.name());
+                XmlSerializer out = XmlUtils.resolveSerializer(stream);
                 out.startDocument(null, true);
                 out.startTag(null, "app-ops");
                 out.attribute(null, "v", String.valueOf(CURRENT_VERSION));
@@ -5124,6 +5425,8 @@ public class AppOpsService extends IAppOpsService.Stub {
     protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (!DumpUtils.checkDumpAndUsageStatsPermission(mContext, TAG, pw)) return;
 
+        flushNotedOps();
+
         int dumpOp = OP_NONE;
         String dumpPackage = null;
         String dumpAttributionTag = null;
@@ -5741,6 +6044,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                 mOpUserRestrictions.remove(token);
                 restrictionState.destroy();
             }
+
+            updateRestrictedOpsLocked();
         }
     }
 
@@ -5766,6 +6071,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 ClientRestrictionState opRestrictions = mOpUserRestrictions.valueAt(i);
                 opRestrictions.removeUser(userHandle);
             }
+            updateRestrictedOpsLocked();
             removeUidsForUserLocked(userHandle);
         }
     }
@@ -6097,10 +6403,12 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private void removeUidsForUserLocked(int userHandle) {
+        flushNotedOpsLocked();
         for (int i = mUidStates.size() - 1; i >= 0; --i) {
             final int uid = mUidStates.keyAt(i);
             if (UserHandle.getUserId(uid) == userHandle) {
                 mUidStates.removeAt(i);
+                invalidateUidSnapshotLocked(uid);
             }
         }
     }
@@ -6281,10 +6589,29 @@ public class AppOpsService extends IAppOpsService.Stub {
             return perUserRestrictions == null || perUserRestrictions.size() <= 0;
         }
 
+        /**
+         * Mark the ops this client restricts for any user.
+         *
+         * @param restrictedOps Array indexed by op code to update
+         */
+        void collectRestrictedOps(@NonNull boolean[] restrictedOps) {
+            if (perUserRestrictions == null) {
+                return;
+            }
+            final int userCount = perUserRestrictions.size();
+            for (int i = 0; i < userCount; i++) {
+                final boolean[] restrictions = perUserRestrictions.valueAt(i);
+                for (int code = 0; code < restrictions.length; code++) {
+                    restrictedOps[code] |= restrictions[code];
+                }
+            }
+        }
+
         @Override
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                updateRestrictedOpsLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
@@ -450,6 +450,12 @@ final class HistoricalRegistry {
 
     void incrementOpAccessedCount(int op, int uid, @NonNull String packageName,
             @Nullable String attributionTag, @UidState int uidState, @OpFlags int flags) {
+        incrementOpAccessedCount(op, uid, packageName, attributionTag, uidState, flags, 1);
+    }
+
+    void incrementOpAccessedCount(int op, int uid, @NonNull String packageName,
+            @Nullable String attributionTag, @UidState int uidState, @OpFlags int flags,
+            long count) {
         synchronized (mInMemoryLock) {
             if (mMode == AppOpsManager.HISTORICAL_MODE_ENABLED_ACTIVE) {
                 if (!isPersistenceInitializedMLocked()) {
@@ -458,13 +464,19 @@ final class HistoricalRegistry {
                 }
                 getUpdatedPendingHistoricalOpsMLocked(
                         System.currentTimeMillis()).increaseAccessCount(op, uid, packageName,
-                        attributionTag, uidState, flags, 1);
+                        attributionTag, uidState, flags, count);
             }
         }
     }
 
     void incrementOpRejected(int op, int uid, @NonNull String packageName,
             @Nullable String attributionTag, @UidState int uidState, @OpFlags int flags) {
+        incrementOpRejected(op, uid, packageName, attributionTag, uidState, flags, 1);
+    }
+
+    void incrementOpRejected(int op, int uid, @NonNull String packageName,
+            @Nullable String attributionTag, @UidState int uidState, @OpFlags int flags,
+            long count) {
         synchronized (mInMemoryLock) {
             if (mMode == AppOpsManager.HISTORICAL_MODE_ENABLED_ACTIVE) {
                 if (!isPersistenceInitializedMLocked()) {
@@ -473,7 +485,7 @@ final class HistoricalRegistry {
                 }
                 getUpdatedPendingHistoricalOpsMLocked(
                         System.currentTimeMillis()).increaseRejectCount(op, uid, packageName,
-                        attributionTag, uidState, flags, 1);
+                        attributionTag, uidState, flags, count);
             }
         }
     }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appop;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.AppOpsManager.OpFlags;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Collects the outcome of {@code noteOperation} calls that did not need the {@link AppOpsService}
+ * lock to be decided, so they can be applied to the {@code Op}s and the historical registry in a
+ * batch.
+ *
+ * <p>Notes are aggregated per (uid, package, attribution, op, uid state, flags): only the count
+ * and the time of the last access and rejection are kept. The buffer is split into stripes chosen
+ * by the calling thread so that binder threads noting ops concurrently rarely share a lock.
+ */
+class NotedOpsBuffer {
+    private static final int NUM_STRIPES = Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors()) * 2);
+
+    private final Stripe[] mStripes = new Stripe[NUM_STRIPES];
+
+    /** Whether a flush was requested since the last {@link #drain}. */
+    private final AtomicBoolean mFlushPending = new AtomicBoolean();
+
+    NotedOpsBuffer() {
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Record a note.
+     *
+     * @return {@code true} iff no flush was pending and the caller should schedule one
+     */
+    boolean add(int op, int uid, @NonNull String packageName, @Nullable String attributionTag,
+            int uidState, @OpFlags int flags, boolean allowed, long time) {
+        final Stripe stripe = mStripes[(int) Thread.currentThread().getId() & (NUM_STRIPES - 1)];
+        synchronized (stripe) {
+            final NotedOp probe = stripe.mProbe;
+            probe.set(op, uid, packageName, attributionTag, uidState, flags);
+            NotedOp notedOp = stripe.mNotedOps.get(probe);
+            if (notedOp == null) {
+                notedOp = new NotedOp();
+                notedOp.set(op, uid, packageName, attributionTag, uidState, flags);
+                stripe.mNotedOps.put(notedOp, notedOp);
+            }
+            if (allowed) {
+                notedOp.accessCount++;
+                notedOp.lastAccessTime = Math.max(notedOp.lastAccessTime, time);
+            } else {
+                notedOp.rejectCount++;
+                notedOp.lastRejectTime = Math.max(notedOp.lastRejectTime, time);
+            }
+        }
+        return mFlushPending.compareAndSet(false, true);
+    }
+
+    /**
+     * Remove all buffered notes and pass them to {@code consumer}.
+     */
+    void drain(@NonNull Consumer<NotedOp> consumer) {
+        if (!mFlushPending.getAndSet(false)) {
+            // Nothing was added since the last drain, or the adder is about to request a flush
+            return;
+        }
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            final Stripe stripe = mStripes[i];
+            final HashMap<NotedOp, NotedOp> notedOps;
+            synchronized (stripe) {
+                if (stripe.mNotedOps.isEmpty()) {
+                    continue;
+                }
+                notedOps = stripe.mNotedOps;
+                stripe.mNotedOps = new HashMap<>();
+            }
+            for (NotedOp notedOp : notedOps.values()) {
+                consumer.accept(notedOp);
+            }
+        }
+    }
+
+    private static final class Stripe {
+        @GuardedBy("this")
+        HashMap<NotedOp, NotedOp> mNotedOps = new HashMap<>();
+
+        /** Reused to look up {@link #mNotedOps} without allocating */
+        @GuardedBy("this")
+        final NotedOp mProbe = new NotedOp();
+    }
+
+    /**
+     * Aggregated notes of an op.
+     */
+    static final class NotedOp {
+        int op;
+        int uid;
+        String packageName;
+        @Nullable String attributionTag;
+        int uidState;
+        @OpFlags int flags;
+
+        int accessCount;
+        long lastAccessTime;
+        int rejectCount;
+        long lastRejectTime;
+
+        void set(int op, int uid, @NonNull String packageName, @Nullable String attributionTag,
+                int uidState, @OpFlags int flags) {
+            this.op = op;
+            this.uid = uid;
+            this.packageName = packageName;
+            this.attributionTag = attributionTag;
+            this.uidState = uidState;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NotedOp)) {
+                return false;
+            }
+            final NotedOp other = (NotedOp) o;
+            return op == other.op && uid == other.uid && uidState == other.uidState
+                    && flags == other.flags && packageName.equals(other.packageName)
+                    && Objects.equals(attributionTag, other.attributionTag);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = op;
+            result = 31 * result + uid;
+            result = 31 * result + packageName.hashCode();
+            result = 31 * result + Objects.hashCode(attributionTag);
+            result = 31 * result + uidState;
+            result = 31 * result + flags;
+            return result;
+        }
+    }
+}
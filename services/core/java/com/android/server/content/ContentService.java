@@ -50,6 +50,7 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.FactoryTest;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Process;
 import android.os.RemoteException;
@@ -83,6 +84,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
 
@@ -153,6 +156,9 @@ public final class ContentService extends IContentService.Stub {
 
     private final ObserverNode mRootNode = new ObserverNode("");
 
+    private final ObserverDispatcher mObserverDispatcher =
+            new ObserverDispatcher(BackgroundThread.getHandler(), BACKGROUND_OBSERVER_DELAY);
+
     private SyncManager mSyncManager = null;
     private final Object mSyncManagerLock = new Object();
 
@@ -266,6 +272,9 @@ public final class ContentService extends IContentService.Stub {
 
                 sObserverDeathDispatcher.dump(pw, " ");
             }
+            pw.println();
+            pw.println("Observer dispatch:");
+            mObserverDispatcher.dump(pw, "  ");
             synchronized (sObserverLeakDetectedUid) {
                 pw.println();
                 pw.print("Observer leaking UIDs: ");
@@ -411,7 +420,7 @@ public final class ContentService extends IContentService.Stub {
         final int callingUserId = UserHandle.getCallingUserId();
 
         // Set of notification events that we need to dispatch
-        final ObserverCollector collector = new ObserverCollector();
+        final ObserverCollector collector = new ObserverCollector(mObserverDispatcher);
 
         // Set of content provider authorities that we've validated the caller
         // has access to, mapped to the package name hosting that provider
@@ -506,9 +515,11 @@ public final class ContentService extends IContentService.Stub {
      */
     @VisibleForTesting
     public static class ObserverCollector {
-        private final ArrayMap<Key, List<Uri>> collected = new ArrayMap<>();
+        private final ArrayMap<Key, LinkedHashSet<Uri>> collected = new ArrayMap<>();
+        private final ObserverDispatcher dispatcher;
+        private int collectedCount;
 
-        private static class Key {
+        static class Key {
             final IContentObserver observer;
             final int uid;
             final boolean selfChange;
@@ -542,41 +553,174 @@ public final class ContentService extends IContentService.Stub {
             }
         }
 
+        public ObserverCollector() {
+            this(new ObserverDispatcher(BackgroundThread.getHandler(),
+                    BACKGROUND_OBSERVER_DELAY));
+        }
+
+        public ObserverCollector(ObserverDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
         public void collect(IContentObserver observer, int uid, boolean selfChange, Uri uri,
                 int flags, int userId) {
             final Key key = new Key(observer, uid, selfChange, flags, userId);
-            List<Uri> value = collected.get(key);
+            LinkedHashSet<Uri> value = collected.get(key);
             if (value == null) {
-                value = new ArrayList<>();
+                value = new LinkedHashSet<>();
                 collected.put(key, value);
             }
             value.add(uri);
+            collectedCount++;
         }
 
         public void dispatch() {
+            dispatcher.noteCollected(collectedCount);
             for (int i = 0; i < collected.size(); i++) {
-                final Key key = collected.keyAt(i);
-                final List<Uri> value = collected.valueAt(i);
-
-                final Runnable task = () -> {
-                    try {
-                        key.observer.onChangeEtc(key.selfChange,
-                                value.toArray(new Uri[value.size()]), key.flags, key.userId);
-                    } catch (RemoteException ignored) {
-                    }
-                };
-
-                // Immediately dispatch notifications to foreground apps that
-                // are important to the user; all other background observers are
-                // delayed to avoid stampeding
-                final boolean noDelay = (key.flags & ContentResolver.NOTIFY_NO_DELAY) != 0;
-                final int procState = LocalServices.getService(ActivityManagerInternal.class)
-                        .getUidProcessState(key.uid);
-                if (procState <= ActivityManager.PROCESS_STATE_IMPORTANT_FOREGROUND || noDelay) {
-                    task.run();
-                } else {
-                    BackgroundThread.getHandler().postDelayed(task, BACKGROUND_OBSERVER_DELAY);
+                dispatcher.dispatch(collected.keyAt(i), collected.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * Sends the change notifications gathered by {@link ObserverCollector}. Notifications for
+     * background observers are held back for a delay, and anything collected for the same
+     * observer and arguments in the meantime is merged into the pending batch, so a provider
+     * notifying once per row costs each background observer one transaction per delay.
+     */
+    @VisibleForTesting
+    public static class ObserverDispatcher {
+        /** Most Uris sent in one transaction, to stay clear of the binder buffer limit. */
+        @VisibleForTesting
+        static final int MAX_URIS_PER_CHANGE = 1000;
+
+        private final Handler mHandler;
+        private final long mDelay;
+        private final Object mLock = new Object();
+
+        @GuardedBy("mLock")
+        private final ArrayMap<ObserverCollector.Key, LinkedHashSet<Uri>> mPending =
+                new ArrayMap<>();
+
+        /** Uris collected for observers, one per observer notified. */
+        @GuardedBy("mLock")
+        private long mUrisIn;
+        /** Uris sent in onChange transactions, after dropping duplicates. */
+        @GuardedBy("mLock")
+        private long mUrisOut;
+        /** onChange transactions sent. */
+        @GuardedBy("mLock")
+        private long mChangesOut;
+        /** Delayed batches sent, each covering one delay for one observer. */
+        @GuardedBy("mLock")
+        private long mDelayedBatches;
+        /** Collections merged into a batch that was already pending. */
+        @GuardedBy("mLock")
+        private long mCoalesced;
+        /** Most Uris sent for one batch. */
+        @GuardedBy("mLock")
+        private int mMaxBatchUris;
+
+        public ObserverDispatcher(Handler handler, long delay) {
+            mHandler = handler;
+            mDelay = delay;
+        }
+
+        void noteCollected(int count) {
+            synchronized (mLock) {
+                mUrisIn += count;
+            }
+        }
+
+        void dispatch(ObserverCollector.Key key, LinkedHashSet<Uri> uris) {
+            // Immediately dispatch notifications to foreground apps that
+            // are important to the user; all other background observers are
+            // delayed to avoid stampeding
+            final boolean noDelay = (key.flags & ContentResolver.NOTIFY_NO_DELAY) != 0;
+            final int procState = getUidProcessState(key.uid);
+            if (procState <= ActivityManager.PROCESS_STATE_IMPORTANT_FOREGROUND || noDelay) {
+                send(key, uris);
+            } else {
+                dispatchDelayed(key, uris);
+            }
+        }
+
+        @VisibleForTesting
+        protected int getUidProcessState(int uid) {
+            return LocalServices.getService(ActivityManagerInternal.class)
+                    .getUidProcessState(uid);
+        }
+
+        private void dispatchDelayed(ObserverCollector.Key key, LinkedHashSet<Uri> uris) {
+            synchronized (mLock) {
+                final LinkedHashSet<Uri> pending = mPending.get(key);
+                if (pending != null) {
+                    pending.addAll(uris);
+                    mCoalesced++;
+                    return;
                 }
+                mPending.put(key, uris);
+            }
+            mHandler.postDelayed(() -> flush(key), mDelay);
+        }
+
+        private void flush(ObserverCollector.Key key) {
+            final LinkedHashSet<Uri> uris;
+            synchronized (mLock) {
+                uris = mPending.remove(key);
+                if (uris == null) {
+                    return;
+                }
+                mDelayedBatches++;
+            }
+            send(key, uris);
+        }
+
+        private void send(ObserverCollector.Key key, LinkedHashSet<Uri> uris) {
+            final int size = uris.size();
+            final Iterator<Uri> it = uris.iterator();
+            int changes = 0;
+            for (int start = 0; start < size; start += MAX_URIS_PER_CHANGE) {
+                final Uri[] batch = new Uri[Math.min(MAX_URIS_PER_CHANGE, size - start)];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = it.next();
+                }
+                try {
+                    key.observer.onChangeEtc(key.selfChange, batch, key.flags, key.userId);
+                } catch (RemoteException ignored) {
+                }
+                changes++;
+            }
+            synchronized (mLock) {
+                mUrisOut += size;
+                mChangesOut += changes;
+                mMaxBatchUris = Math.max(mMaxBatchUris, size);
+            }
+        }
+
+        @VisibleForTesting
+        long getUrisIn() {
+            synchronized (mLock) {
+                return mUrisIn;
+            }
+        }
+
+        @VisibleForTesting
+        long getChangesOut() {
+            synchronized (mLock) {
+                return mChangesOut;
+            }
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            synchronized (mLock) {
+                pw.print(prefix); pw.print("Notifications in: "); pw.print(mUrisIn);
+                pw.print(" uris out: "); pw.print(mUrisOut);
+                pw.print(" onChange calls: "); pw.println(mChangesOut);
+                pw.print(prefix); pw.print("Delayed batches: "); pw.print(mDelayedBatches);
+                pw.print(" coalesced: "); pw.print(mCoalesced);
+                pw.print(" pending: "); pw.print(mPending.size());
+                pw.print(" max uris: "); pw.println(mMaxBatchUris);
             }
         }
     }
@@ -1512,7 +1656,8 @@ public final class ContentService extends IContentService.Stub {
         }
 
         private String mName;
-        private ArrayList<ObserverNode> mChildren = new ArrayList<ObserverNode>();
+        /** Children keyed by their segment, so that walking a Uri doesn't scan siblings. */
+        private ArrayMap<String, ObserverNode> mChildren = new ArrayMap<String, ObserverNode>();
         private ArrayList<ObserverEntry> mObservers = new ArrayList<ObserverEntry>();
 
         public ObserverNode(String name) {
@@ -1544,7 +1689,7 @@ public final class ContentService extends IContentService.Stub {
                 }
                 for (int i=0; i<mChildren.size(); i++) {
                     counts[0]++;
-                    mChildren.get(i).dumpLocked(fd, pw, args, innerName, prefix,
+                    mChildren.valueAt(i).dumpLocked(fd, pw, args, innerName, prefix,
                             counts, pidCounts);
                 }
             }
@@ -1592,36 +1737,26 @@ public final class ContentService extends IContentService.Stub {
             if (segment == null) {
                 throw new IllegalArgumentException("Invalid Uri (" + uri + ") used for observer");
             }
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (node.mName.equals(segment)) {
-                    node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
-                            observersLock, uid, pid, userHandle);
-                    return;
-                }
+            ObserverNode node = mChildren.get(segment);
+            if (node == null) {
+                // No child found, create one
+                node = new ObserverNode(segment);
+                mChildren.put(segment, node);
             }
-
-            // No child found, create one
-            ObserverNode node = new ObserverNode(segment);
-            mChildren.add(node);
             node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
                     observersLock, uid, pid, userHandle);
         }
 
         public boolean removeObserverLocked(IContentObserver observer) {
-            int size = mChildren.size();
-            for (int i = 0; i < size; i++) {
-                boolean empty = mChildren.get(i).removeObserverLocked(observer);
+            for (int i = mChildren.size() - 1; i >= 0; i--) {
+                boolean empty = mChildren.valueAt(i).removeObserverLocked(observer);
                 if (empty) {
-                    mChildren.remove(i);
-                    i--;
-                    size--;
+                    mChildren.removeAt(i);
                 }
             }
 
             IBinder observerBinder = observer.asBinder();
-            size = mObservers.size();
+            int size = mObservers.size();
             for (int i = 0; i < size; i++) {
                 ObserverEntry entry = mObservers.get(i);
                 if (entry.observer.asBinder() == observerBinder) {
@@ -1715,16 +1850,18 @@ public final class ContentService extends IContentService.Stub {
                         flags, targetUserHandle, collector);
             }
 
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (segment == null || node.mName.equals(segment)) {
+            if (segment == null) {
+                for (int i = 0; i < mChildren.size(); i++) {
+                    mChildren.valueAt(i).collectObserversLocked(uri, segmentCount, index + 1,
+                            observer, observerWantsSelfNotifications, flags, targetUserHandle,
+                            collector);
+                }
+            } else {
+                final ObserverNode node = mChildren.get(segment);
+                if (node != null) {
                     // We found the child,
                     node.collectObserversLocked(uri, segmentCount, index + 1, observer,
                             observerWantsSelfNotifications, flags, targetUserHandle, collector);
-                    if (segment != null) {
-                        break;
-                    }
                 }
             }
         }
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.DEFAULT_NETWORK_NO;
+import static android.net.NetworkStats.DEFAULT_NETWORK_YES;
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.METERED_NO;
+import static android.net.NetworkStats.METERED_YES;
+import static android.net.NetworkStats.ROAMING_NO;
+import static android.net.NetworkStats.ROAMING_YES;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+
+import static com.android.internal.net.NetworkUtilsInternal.multiplySafeByRational;
+import static com.android.server.net.NetworkStatsCollection.COLUMN_COUNT;
+import static com.android.server.net.NetworkStatsCollection.FILE_MAGIC;
+import static com.android.server.net.NetworkStatsCollection.INDEX_ENTRY_SIZE;
+import static com.android.server.net.NetworkStatsCollection.VERSION_COLUMNAR;
+
+import android.annotation.Nullable;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only view of a {@link NetworkStatsCollection} file written in the
+ * {@link NetworkStatsCollection#VERSION_COLUMNAR} format. The file is mapped into memory, so a
+ * query only reads the index and the series of the keys it matches, instead of decoding every
+ * {@link NetworkStatsHistory} in the file onto the heap.
+ * <p>
+ * Not inherently thread safe.
+ */
+final class MappedNetworkStatsFile {
+    /** magic, version, bucketDuration, identCount and identBytes. */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES + Long.BYTES;
+
+    // Offsets within an index entry.
+    private static final int ENTRY_UID = 0;
+    private static final int ENTRY_SET = 4;
+    private static final int ENTRY_TAG = 8;
+    private static final int ENTRY_IDENT = 12;
+    private static final int ENTRY_BUCKET_COUNT = 16;
+    private static final int ENTRY_DATA_OFFSET = 20;
+
+    // Order of the series of a key.
+    private static final int COLUMN_BUCKET_START = 0;
+    private static final int COLUMN_RX_BYTES = 2;
+    private static final int COLUMN_RX_PACKETS = 3;
+    private static final int COLUMN_TX_BYTES = 4;
+    private static final int COLUMN_TX_PACKETS = 5;
+    private static final int COLUMN_OPERATIONS = 6;
+
+    private final ByteBuffer mBuffer;
+    private final long mBucketDuration;
+    private final NetworkIdentitySet[] mIdents;
+    private final int mKeyCount;
+    private final int mIndexOffset;
+
+    private MappedNetworkStatsFile(ByteBuffer buffer, long bucketDuration,
+            NetworkIdentitySet[] idents, int keyCount, int indexOffset) {
+        mBuffer = buffer;
+        mBucketDuration = bucketDuration;
+        mIdents = idents;
+        mKeyCount = keyCount;
+        mIndexOffset = indexOffset;
+    }
+
+    /**
+     * Map the given file.
+     *
+     * @return the mapped file, or {@code null} if it isn't in the columnar format and must be read
+     *         with {@link NetworkStatsCollection#read}.
+     */
+    @Nullable
+    static MappedNetworkStatsFile open(File file) throws IOException {
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        boolean success = false;
+        try {
+            final MappedNetworkStatsFile mapped = parse(buffer);
+            success = mapped != null;
+            return mapped;
+        } finally {
+            if (!success) {
+                NioUtils.freeDirectBuffer(buffer);
+            }
+        }
+    }
+
+    @Nullable
+    private static MappedNetworkStatsFile parse(ByteBuffer buffer) throws IOException {
+        final int limit = buffer.limit();
+        if (limit < 2 * Integer.BYTES) {
+            throw new ProtocolException("truncated header");
+        }
+        final int magic = buffer.getInt(0);
+        if (magic != FILE_MAGIC) {
+            throw new ProtocolException("unexpected magic: " + magic);
+        }
+        if (buffer.getInt(4) != VERSION_COLUMNAR) {
+            return null;
+        }
+        if (limit < HEADER_SIZE) {
+            throw new ProtocolException("truncated header");
+        }
+        final long bucketDuration = buffer.getLong(8);
+        final int identCount = buffer.getInt(16);
+        final int identBytes = buffer.getInt(20);
+        if (bucketDuration <= 0 || identCount < 0 || identBytes < 0
+                || identBytes > limit - HEADER_SIZE - Integer.BYTES) {
+            throw new ProtocolException("corrupt header");
+        }
+
+        final byte[] identData = new byte[identBytes];
+        buffer.position(HEADER_SIZE);
+        buffer.get(identData);
+        final DataInputStream identIn = new DataInputStream(new ByteArrayInputStream(identData));
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[identCount];
+        for (int i = 0; i < identCount; i++) {
+            idents[i] = new NetworkIdentitySet(identIn);
+        }
+
+        final int keyCount = buffer.getInt(HEADER_SIZE + identBytes);
+        final int indexOffset = HEADER_SIZE + identBytes + Integer.BYTES;
+        if (keyCount < 0 || keyCount > (limit - indexOffset) / INDEX_ENTRY_SIZE) {
+            throw new ProtocolException("corrupt index");
+        }
+        // Check every key once, so that queries don't need to.
+        for (int i = 0; i < keyCount; i++) {
+            final int entry = indexOffset + i * INDEX_ENTRY_SIZE;
+            final int identIndex = buffer.getInt(entry + ENTRY_IDENT);
+            final int bucketCount = buffer.getInt(entry + ENTRY_BUCKET_COUNT);
+            final long dataOffset = buffer.getLong(entry + ENTRY_DATA_OFFSET);
+            if (identIndex < 0 || identIndex >= identCount || bucketCount < 0 || dataOffset < 0
+                    || dataOffset + (long) bucketCount * COLUMN_COUNT * Long.BYTES > limit) {
+                throw new ProtocolException("corrupt key " + i);
+            }
+        }
+        return new MappedNetworkStatsFile(buffer, bucketDuration, idents, keyCount, indexOffset);
+    }
+
+    /**
+     * Release the mapping. The file can't be queried anymore.
+     */
+    void close() {
+        NioUtils.freeDirectBuffer(mBuffer);
+    }
+
+    /**
+     * Summarize the series matching the requested parameters into {@code stats}, as
+     * {@link NetworkStatsCollection#getSummary} does.
+     */
+    void getSummary(NetworkTemplate template, long start, long end, long now,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid, NetworkStats stats) {
+        final boolean[] identMatches = matchIdents(template);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < mKeyCount; i++) {
+            final int indexEntry = mIndexOffset + i * INDEX_ENTRY_SIZE;
+            final int uid = mBuffer.getInt(indexEntry + ENTRY_UID);
+            final int set = mBuffer.getInt(indexEntry + ENTRY_SET);
+            final int identIndex = mBuffer.getInt(indexEntry + ENTRY_IDENT);
+            if (!identMatches[identIndex] || set >= NetworkStats.SET_DEBUG_START
+                    || !NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+                continue;
+            }
+
+            final NetworkIdentitySet ident = mIdents[identIndex];
+            entry.iface = IFACE_ALL;
+            entry.uid = uid;
+            entry.set = set;
+            entry.tag = mBuffer.getInt(indexEntry + ENTRY_TAG);
+            entry.defaultNetwork = ident.areAllMembersOnDefaultNetwork()
+                    ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
+            entry.metered = ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
+            entry.roaming = ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+            sumValues(indexEntry, start, end, now, entry);
+
+            if (!entry.isEmpty()) {
+                stats.combineValues(entry);
+            }
+        }
+    }
+
+    /**
+     * Record the buckets of the series matching the requested parameters that atomically occur
+     * in the inclusive time range into {@code history}, as
+     * {@link NetworkStatsCollection#getHistory} does.
+     */
+    void recordHistory(NetworkTemplate template, int uid, int set, int tag, long start, long end,
+            NetworkStatsHistory history) {
+        final boolean[] identMatches = matchIdents(template);
+        final NetworkStats.Entry entry = new NetworkStats.Entry(
+                IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, 0L, 0L, 0L, 0L, 0L);
+        for (int i = firstKeyForUid(uid); i < mKeyCount; i++) {
+            final int indexEntry = mIndexOffset + i * INDEX_ENTRY_SIZE;
+            if (mBuffer.getInt(indexEntry + ENTRY_UID) != uid) {
+                break;
+            }
+            if (!NetworkStats.setMatches(set, mBuffer.getInt(indexEntry + ENTRY_SET))
+                    || mBuffer.getInt(indexEntry + ENTRY_TAG) != tag
+                    || !identMatches[mBuffer.getInt(indexEntry + ENTRY_IDENT)]) {
+                continue;
+            }
+
+            final int bucketCount = mBuffer.getInt(indexEntry + ENTRY_BUCKET_COUNT);
+            final int data = (int) mBuffer.getLong(indexEntry + ENTRY_DATA_OFFSET);
+            for (int j = firstBucketStartingAtOrAfter(data, bucketCount, start);
+                    j < bucketCount; j++) {
+                final long bucketStart = getValue(data, bucketCount, COLUMN_BUCKET_START, j);
+                final long bucketEnd = bucketStart + mBucketDuration;
+                if (bucketEnd > end) break;
+
+                entry.rxBytes = getValue(data, bucketCount, COLUMN_RX_BYTES, j);
+                entry.rxPackets = getValue(data, bucketCount, COLUMN_RX_PACKETS, j);
+                entry.txBytes = getValue(data, bucketCount, COLUMN_TX_BYTES, j);
+                entry.txPackets = getValue(data, bucketCount, COLUMN_TX_PACKETS, j);
+                entry.operations = getValue(data, bucketCount, COLUMN_OPERATIONS, j);
+                history.recordData(bucketStart, bucketEnd, entry);
+            }
+        }
+    }
+
+    /**
+     * Interpolate the values of the key at {@code indexEntry} across the requested range, as
+     * {@link NetworkStatsHistory#getValues(long, long, long, NetworkStatsHistory.Entry)} does.
+     */
+    private void sumValues(int indexEntry, long start, long end, long now,
+            NetworkStats.Entry entry) {
+        entry.rxBytes = 0;
+        entry.rxPackets = 0;
+        entry.txBytes = 0;
+        entry.txPackets = 0;
+        entry.operations = 0;
+
+        final int bucketCount = mBuffer.getInt(indexEntry + ENTRY_BUCKET_COUNT);
+        final int data = (int) mBuffer.getLong(indexEntry + ENTRY_DATA_OFFSET);
+        for (int i = firstBucketEndingAfter(data, bucketCount, start); i < bucketCount; i++) {
+            final long curStart = getValue(data, bucketCount, COLUMN_BUCKET_START, i);
+            // bucket is newer than request; we're finished
+            if (curStart >= end) break;
+
+            long curEnd = curStart + mBucketDuration;
+            // the active bucket is shorter then a normal completed bucket
+            if (curEnd > now) curEnd = now;
+            final long bucketSpan = curEnd - curStart;
+            if (bucketSpan <= 0) continue;
+
+            final long overlap = Math.min(curEnd, end) - Math.max(curStart, start);
+            if (overlap <= 0) continue;
+
+            entry.rxBytes += multiplySafeByRational(
+                    getValue(data, bucketCount, COLUMN_RX_BYTES, i), overlap, bucketSpan);
+            entry.rxPackets += multiplySafeByRational(
+                    getValue(data, bucketCount, COLUMN_RX_PACKETS, i), overlap, bucketSpan);
+            entry.txBytes += multiplySafeByRational(
+                    getValue(data, bucketCount, COLUMN_TX_BYTES, i), overlap, bucketSpan);
+            entry.txPackets += multiplySafeByRational(
+                    getValue(data, bucketCount, COLUMN_TX_PACKETS, i), overlap, bucketSpan);
+            entry.operations += multiplySafeByRational(
+                    getValue(data, bucketCount, COLUMN_OPERATIONS, i), overlap, bucketSpan);
+        }
+    }
+
+    private boolean[] matchIdents(NetworkTemplate template) {
+        final boolean[] matches = new boolean[mIdents.length];
+        for (int i = 0; i < mIdents.length; i++) {
+            matches[i] = NetworkStatsCollection.templateMatches(template, mIdents[i]);
+        }
+        return matches;
+    }
+
+    private long getValue(int data, int bucketCount, int column, int bucket) {
+        return mBuffer.getLong(data + (column * bucketCount + bucket) * Long.BYTES);
+    }
+
+    /** Index of the first key of the given uid, or of the first key after it if it has none. */
+    private int firstKeyForUid(int uid) {
+        int low = 0;
+        int high = mKeyCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mBuffer.getInt(mIndexOffset + mid * INDEX_ENTRY_SIZE + ENTRY_UID) < uid) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int firstBucketStartingAtOrAfter(int data, int bucketCount, long time) {
+        int low = 0;
+        int high = bucketCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getValue(data, bucketCount, COLUMN_BUCKET_START, mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int firstBucketEndingAfter(int data, int bucketCount, long time) {
+        int low = 0;
+        int high = bucketCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getValue(data, bucketCount, COLUMN_BUCKET_START, mid) + mBucketDuration <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
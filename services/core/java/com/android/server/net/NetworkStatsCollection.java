@@ -60,9 +60,9 @@ import com.android.internal.util.IndentingPrintWriter;
 import libcore.io.IoUtils;
 
 import com.google.android.collect.Lists;
-import com.google.android.collect.Maps;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
@@ -77,7 +77,7 @@ import java.net.ProtocolException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Objects;
 
@@ -87,7 +87,7 @@ import java.util.Objects;
  */
 public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.Writer {
     /** File header magic number: "ANET" */
-    private static final int FILE_MAGIC = 0x414E4554;
+    static final int FILE_MAGIC = 0x414E4554;
 
     private static final int VERSION_NETWORK_INIT = 1;
 
@@ -97,6 +97,25 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    /** Indexed keys followed by fixed-width bucket columns; see {@link MappedNetworkStatsFile}. */
+    static final int VERSION_COLUMNAR = 17;
+
+    /** Size of a key in the index of a {@link #VERSION_COLUMNAR} file. */
+    static final int INDEX_ENTRY_SIZE = 5 * Integer.BYTES + Long.BYTES;
+    /** Number of {@code long} series stored for each key of a {@link #VERSION_COLUMNAR} file. */
+    static final int COLUMN_COUNT = 7;
+
+    /** Order of the keys in a {@link #VERSION_COLUMNAR} file, so they can be searched by uid. */
+    private static final Comparator<Key> COLUMNAR_KEY_ORDER = (a, b) -> {
+        int res = Integer.compare(a.uid, b.uid);
+        if (res == 0) {
+            res = Integer.compare(a.set, b.set);
+        }
+        if (res == 0) {
+            res = Integer.compare(a.tag, b.tag);
+        }
+        return res;
+    };
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
@@ -465,12 +484,68 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                 }
                 break;
             }
+            case VERSION_COLUMNAR: {
+                readColumnar(in);
+                break;
+            }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
             }
         }
     }
 
+    /**
+     * Read the rest of a {@link #VERSION_COLUMNAR} file, whose layout is:
+     * <pre>
+     * bucketDuration identCount identBytes *(NetworkIdentitySet)
+     * keyCount *(uid set tag identIndex bucketCount dataOffset)
+     * *(bucketStart[] activeTime[] rxBytes[] rxPackets[] txBytes[] txPackets[] operations[])
+     * </pre>
+     * Keys are sorted by uid, set and tag, and their series follow the index in the same order.
+     */
+    private void readColumnar(DataInput in) throws IOException {
+        final long bucketDuration = in.readLong();
+        final int identCount = in.readInt();
+        in.readInt(); // identBytes, only needed to skip over the idents
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[identCount];
+        for (int i = 0; i < identCount; i++) {
+            idents[i] = new NetworkIdentitySet(in);
+        }
+
+        final int keyCount = in.readInt();
+        final Key[] keys = new Key[keyCount];
+        final int[] bucketCounts = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            final int uid = in.readInt();
+            final int set = in.readInt();
+            final int tag = in.readInt();
+            final int identIndex = in.readInt();
+            bucketCounts[i] = in.readInt();
+            in.readLong(); // dataOffset, only needed for random access
+            if (identIndex < 0 || identIndex >= identCount || bucketCounts[i] < 0) {
+                throw new ProtocolException("corrupt key " + i);
+            }
+            keys[i] = new Key(idents[identIndex], uid, set, tag);
+        }
+
+        for (int i = 0; i < keyCount; i++) {
+            final int bucketCount = bucketCounts[i];
+            recordHistory(keys[i], new NetworkStatsHistory(bucketDuration,
+                    readLongs(in, bucketCount), readLongs(in, bucketCount),
+                    readLongs(in, bucketCount), readLongs(in, bucketCount),
+                    readLongs(in, bucketCount), readLongs(in, bucketCount),
+                    readLongs(in, bucketCount)));
+        }
+    }
+
+    private static long[] readLongs(DataInput in, int count) throws IOException {
+        final long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
     @Override
     public void write(OutputStream out) throws IOException {
         write((DataOutput) new DataOutputStream(out));
@@ -478,36 +553,73 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     }
 
     private void write(DataOutput out) throws IOException {
-        // cluster key lists grouped by ident
-        final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
-        for (Key key : mStats.keySet()) {
-            ArrayList<Key> keys = keysByIdent.get(key.ident);
-            if (keys == null) {
-                keys = Lists.newArrayList();
-                keysByIdent.put(key.ident, keys);
+        // Number the idents, and sort the keys so that readers can search them by uid.
+        final ArrayMap<NetworkIdentitySet, Integer> identIndexes = new ArrayMap<>();
+        final ByteArrayOutputStream identBytes = new ByteArrayOutputStream();
+        final DataOutputStream identOut = new DataOutputStream(identBytes);
+        final ArrayList<Key> keys = new ArrayList<>(mStats.size());
+        for (int i = 0; i < mStats.size(); i++) {
+            final Key key = mStats.keyAt(i);
+            if (!identIndexes.containsKey(key.ident)) {
+                identIndexes.put(key.ident, identIndexes.size());
+                key.ident.writeToStream(identOut);
             }
             keys.add(key);
         }
+        identOut.flush();
+        Collections.sort(keys, COLUMNAR_KEY_ORDER);
 
         out.writeInt(FILE_MAGIC);
-        out.writeInt(VERSION_UNIFIED_INIT);
-
-        out.writeInt(keysByIdent.size());
-        for (NetworkIdentitySet ident : keysByIdent.keySet()) {
-            final ArrayList<Key> keys = keysByIdent.get(ident);
-            ident.writeToStream(out);
-
-            out.writeInt(keys.size());
-            for (Key key : keys) {
-                final NetworkStatsHistory history = mStats.get(key);
-                out.writeInt(key.uid);
-                out.writeInt(key.set);
-                out.writeInt(key.tag);
-                history.writeToStream(out);
+        out.writeInt(VERSION_COLUMNAR);
+        out.writeLong(mBucketDuration);
+        out.writeInt(identIndexes.size());
+        out.writeInt(identBytes.size());
+        out.write(identBytes.toByteArray());
+
+        final int keyCount = keys.size();
+        out.writeInt(keyCount);
+        long dataOffset = 4 * Integer.BYTES + Long.BYTES + identBytes.size() + Integer.BYTES
+                + (long) keyCount * INDEX_ENTRY_SIZE;
+        for (int i = 0; i < keyCount; i++) {
+            final Key key = keys.get(i);
+            final int bucketCount = mStats.get(key).size();
+            out.writeInt(key.uid);
+            out.writeInt(key.set);
+            out.writeInt(key.tag);
+            out.writeInt(identIndexes.get(key.ident));
+            out.writeInt(bucketCount);
+            out.writeLong(dataOffset);
+            dataOffset += (long) bucketCount * COLUMN_COUNT * Long.BYTES;
+        }
+
+        final NetworkStatsHistory.Entry entry = new NetworkStatsHistory.Entry();
+        for (int i = 0; i < keyCount; i++) {
+            final NetworkStatsHistory history = mStats.get(keys.get(i));
+            final int bucketCount = history.size();
+            for (int column = 0; column < COLUMN_COUNT; column++) {
+                for (int j = 0; j < bucketCount; j++) {
+                    history.getValues(j, entry);
+                    out.writeLong(getColumn(entry, column));
+                }
             }
         }
     }
 
+    private static long getColumn(NetworkStatsHistory.Entry entry, int column) {
+        final long value;
+        switch (column) {
+            case 0: value = entry.bucketStart; break;
+            case 1: value = entry.activeTime; break;
+            case 2: value = entry.rxBytes; break;
+            case 3: value = entry.rxPackets; break;
+            case 4: value = entry.txBytes; break;
+            case 5: value = entry.txPackets; break;
+            default: value = entry.operations; break;
+        }
+        // Series missing from old histories are stored as zeroes.
+        return value == NetworkStatsHistory.Entry.UNKNOWN ? 0 : value;
+    }
+
     @Deprecated
     public void readLegacyNetwork(File file) throws IOException {
         final AtomicFile inputFile = new AtomicFile(file);
@@ -746,7 +858,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
      * Test if given {@link NetworkTemplate} matches any {@link NetworkIdentity}
      * in the given {@link NetworkIdentitySet}.
      */
-    private static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
+    static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
         for (NetworkIdentity ident : identSet) {
             if (template.matches(ident)) {
                 return true;
@@ -87,6 +87,19 @@ public class NetworkStatsFactory {
     @GuardedBy("mPersistentDataLock")
     private NetworkStats mPersistSnapshot;
 
+    // The snapshot preceding mPersistSnapshot. The two are double-buffered so that a poll reuses
+    // their arrays instead of allocating a new snapshot.
+    @GuardedBy("mPersistentDataLock")
+    private NetworkStats mPrevSnapshot;
+
+    // Reused to read the incremental bpf stats of each poll.
+    @GuardedBy("mPersistentDataLock")
+    private final NetworkStats mBpfIncrement = new NetworkStats(0L, -1);
+
+    // Reused to compute the delta between mPrevSnapshot and mPersistSnapshot.
+    @GuardedBy("mPersistentDataLock")
+    private NetworkStats mDelta = new NetworkStats(0L, -1);
+
     // The persistent snapshot of tun and 464xlat adjusted stats since device start
     @GuardedBy("mPersistentDataLock")
     private NetworkStats mTunAnd464xlatAdjustedStats;
@@ -170,6 +183,7 @@ public class NetworkStatsFactory {
         mUseBpfStats = useBpfStats;
         synchronized (mPersistentDataLock) {
             mPersistSnapshot = new NetworkStats(SystemClock.elapsedRealtime(), -1);
+            mPrevSnapshot = new NetworkStats(SystemClock.elapsedRealtime(), -1);
             mTunAnd464xlatAdjustedStats = new NetworkStats(SystemClock.elapsedRealtime(), -1);
         }
     }
@@ -320,12 +334,10 @@ public class NetworkStatsFactory {
         synchronized (mPersistentDataLock) {
             // Take a reference. If this gets swapped out, we still have the old reference.
             final VpnInfo[] vpnArray = mVpnInfos;
-            // Take a defensive copy. mPersistSnapshot is mutated in some cases below
-            final NetworkStats prev = mPersistSnapshot.clone();
 
+            // nativeReadNetworkStatsDetail overwrites the rows of the given stats, and only
+            // grows its arrays when they are too small.
             if (USE_NATIVE_PARSING) {
-                final NetworkStats stats =
-                        new NetworkStats(SystemClock.elapsedRealtime(), 0 /* initialSize */);
                 if (mUseBpfStats) {
                     try {
                         requestSwapActiveStatsMapLocked();
@@ -334,15 +346,22 @@ public class NetworkStatsFactory {
                     }
                     // Stats are always read from the inactive map, so they must be read after the
                     // swap
+                    final NetworkStats stats = mBpfIncrement;
+                    stats.setElapsedRealtime(SystemClock.elapsedRealtime());
                     if (nativeReadNetworkStatsDetail(stats, mStatsXtUid.getAbsolutePath(), UID_ALL,
                             INTERFACES_ALL, TAG_ALL, mUseBpfStats) != 0) {
                         throw new IOException("Failed to parse network stats");
                     }
 
-                    // BPF stats are incremental; fold into mPersistSnapshot.
+                    // BPF stats are incremental; fold into mPersistSnapshot, keeping what it was
+                    // in mPrevSnapshot.
+                    mPrevSnapshot.copyFrom(mPersistSnapshot);
                     mPersistSnapshot.setElapsedRealtime(stats.getElapsedRealtime());
                     mPersistSnapshot.combineAllValues(stats);
                 } else {
+                    // Read into the buffer of the previous snapshot, then swap the two.
+                    final NetworkStats stats = mPrevSnapshot;
+                    stats.setElapsedRealtime(SystemClock.elapsedRealtime());
                     if (nativeReadNetworkStatsDetail(stats, mStatsXtUid.getAbsolutePath(), UID_ALL,
                             INTERFACES_ALL, TAG_ALL, mUseBpfStats) != 0) {
                         throw new IOException("Failed to parse network stats");
@@ -353,14 +372,18 @@ public class NetworkStatsFactory {
                         assertEquals(javaStats, stats);
                     }
 
+                    mPrevSnapshot = mPersistSnapshot;
                     mPersistSnapshot = stats;
                 }
             } else {
-                mPersistSnapshot = javaReadNetworkStatsDetail(mStatsXtUid, UID_ALL, INTERFACES_ALL,
-                        TAG_ALL);
+                final NetworkStats stats = javaReadNetworkStatsDetail(mStatsXtUid, UID_ALL,
+                        INTERFACES_ALL, TAG_ALL);
+                mPrevSnapshot = mPersistSnapshot;
+                mPersistSnapshot = stats;
             }
 
-            NetworkStats adjustedStats = adjustForTunAnd464Xlat(mPersistSnapshot, prev, vpnArray);
+            NetworkStats adjustedStats =
+                    adjustForTunAnd464Xlat(mPersistSnapshot, mPrevSnapshot, vpnArray);
 
             // Filter return values
             adjustedStats.filter(limitUid, limitIfaces, limitTag);
@@ -371,8 +394,10 @@ public class NetworkStatsFactory {
     @GuardedBy("mPersistentDataLock")
     private NetworkStats adjustForTunAnd464Xlat(
             NetworkStats uidDetailStats, NetworkStats previousStats, VpnInfo[] vpnArray) {
-        // Calculate delta from last snapshot
-        final NetworkStats delta = uidDetailStats.subtract(previousStats);
+        // Calculate delta from last snapshot, reusing the delta of the previous poll
+        final NetworkStats delta =
+                NetworkStats.subtract(uidDetailStats, previousStats, null, null, mDelta);
+        mDelta = delta;
 
         // Apply 464xlat adjustments before VPN adjustments. If VPNs are using v4 on a v6 only
         // network, the overhead is their fault.
@@ -29,6 +29,7 @@ import android.net.TrafficStats;
 import android.os.Binder;
 import android.os.DropBoxManager;
 import android.service.NetworkStatsRecorderProto;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.MathUtils;
 import android.util.Slog;
@@ -41,8 +42,11 @@ import com.google.android.collect.Sets;
 
 import libcore.io.IoUtils;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -89,6 +93,9 @@ public class NetworkStatsRecorder {
 
     private WeakReference<NetworkStatsCollection> mComplete;
 
+    /** Files of {@link #mRotator} mapped by queries, keyed by name. */
+    private final ArrayMap<String, MappedNetworkStatsFile> mMappedFiles = new ArrayMap<>();
+
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
      */
@@ -197,6 +204,142 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Summarize all persisted and pending stats which match the requested parameters, as
+     * {@link NetworkStatsCollection#getSummary} would on the complete history. Unless the complete
+     * history is already loaded, only reads the index and the matching series of the files that
+     * overlap the requested range, which are mapped rather than loaded onto the heap.
+     */
+    public NetworkStats getSummaryLocked(NetworkTemplate template, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        if (complete != null) {
+            return complete.getSummary(template, start, end, accessLevel, callerUid);
+        }
+
+        final NetworkStats stats = mPending.getSummary(template, start, end, accessLevel,
+                callerUid);
+        // shortcut when we know stats will be empty
+        if (start == end) return stats;
+
+        final long now = System.currentTimeMillis();
+        try {
+            mRotator.readMatchingFiles(file -> {
+                final MappedNetworkStatsFile mapped = getOrMapFileLocked(file);
+                if (mapped != null) {
+                    mapped.getSummary(template, start, end, now, accessLevel, callerUid, stats);
+                } else {
+                    stats.combineAllValues(readFileLocked(file).getSummary(template, start, end,
+                            accessLevel, callerUid));
+                }
+            }, start, end);
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem reading network stats summary", e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem reading network stats summary", e);
+            recoverFromWtf();
+        }
+        return stats;
+    }
+
+    /**
+     * Combine all persisted and pending {@link NetworkStatsHistory} which match the requested
+     * parameters, as {@link NetworkStatsCollection#getHistory} would on the complete history
+     * without a subscription plan. Reads files like {@link #getSummaryLocked}.
+     */
+    public NetworkStatsHistory getHistoryLocked(NetworkTemplate template, int uid, int set,
+            int tag, int fields, long start, long end, @NetworkStatsAccess.Level int accessLevel,
+            int callerUid) {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        if (complete != null) {
+            return complete.getHistory(template, null, uid, set, tag, fields, start, end,
+                    accessLevel, callerUid);
+        }
+
+        // Also checks that the caller has access to the uid.
+        final NetworkStatsHistory history = mPending.getHistory(template, null, uid, set, tag,
+                fields, start, end, accessLevel, callerUid);
+        // shortcut when we know stats will be empty
+        if (start == end) return history;
+
+        try {
+            mRotator.readMatchingFiles(file -> {
+                final MappedNetworkStatsFile mapped = getOrMapFileLocked(file);
+                if (mapped != null) {
+                    mapped.recordHistory(template, uid, set, tag, start, end, history);
+                } else {
+                    history.recordEntireHistory(readFileLocked(file).getHistory(template, null,
+                            uid, set, tag, fields, start, end, accessLevel, callerUid));
+                }
+            }, start, end);
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem reading network stats history", e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem reading network stats history", e);
+            recoverFromWtf();
+        }
+        return history;
+    }
+
+    /**
+     * @return the mapped file, or {@code null} if it must be read with
+     *         {@link #readFileLocked}.
+     */
+    private MappedNetworkStatsFile getOrMapFileLocked(File file) throws IOException {
+        final String name = file.getName();
+        MappedNetworkStatsFile mapped = mMappedFiles.get(name);
+        if (mapped == null) {
+            mapped = MappedNetworkStatsFile.open(file);
+            if (mapped == null) {
+                if (LOGD) Slog.d(TAG, "Not mapping " + name + " from older version");
+                return null;
+            }
+            mMappedFiles.put(name, mapped);
+        }
+        return mapped;
+    }
+
+    private NetworkStatsCollection readFileLocked(File file) throws IOException {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            collection.read(in);
+        }
+        return collection;
+    }
+
+    /**
+     * Unmap any files mapped by queries. Must be called whenever {@link #mRotator} changes its
+     * files.
+     */
+    private void closeMappedFilesLocked() {
+        for (int i = 0; i < mMappedFiles.size(); i++) {
+            mMappedFiles.valueAt(i).close();
+        }
+        mMappedFiles.clear();
+    }
+
+    /**
+     * Rewrite any files that are in an older format than the one {@link NetworkStatsCollection}
+     * writes, so that queries can map them.
+     */
+    public void upgradeFilesLocked() {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        closeMappedFilesLocked();
+        try {
+            mRotator.rewriteAll(new UpgradeRewriter(mBucketDuration));
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem upgrading network stats", e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem upgrading network stats", e);
+            recoverFromWtf();
+        }
+    }
+
     /**
      * Record any delta that occurred since last {@link NetworkStats} snapshot, using the given
      * {@link Map} to identify network interfaces. First snapshot is considered bootstrap, and is
@@ -283,6 +426,7 @@ public class NetworkStatsRecorder {
         if (pendingBytes >= mPersistThresholdBytes) {
             forcePersistLocked(currentTimeMillis);
         } else {
+            closeMappedFilesLocked();
             mRotator.maybeRotate(currentTimeMillis);
         }
     }
@@ -294,6 +438,7 @@ public class NetworkStatsRecorder {
         Objects.requireNonNull(mRotator, "missing FileRotator");
         if (mPending.isDirty()) {
             if (LOGD) Slog.d(TAG, "forcePersistLocked() writing for " + mCookie);
+            closeMappedFilesLocked();
             try {
                 mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
                 mRotator.maybeRotate(currentTimeMillis);
@@ -314,6 +459,7 @@ public class NetworkStatsRecorder {
      */
     public void removeUidsLocked(int[] uids) {
         if (mRotator != null) {
+            closeMappedFilesLocked();
             try {
                 // Rewrite all persisted data to migrate UID stats
                 mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
@@ -415,10 +561,53 @@ public class NetworkStatsRecorder {
         }
     }
 
+    /**
+     * Rewriter that will rewrite files in an older format than the one
+     * {@link NetworkStatsCollection} writes, leaving the others untouched.
+     */
+    private static class UpgradeRewriter implements FileRotator.Rewriter {
+        private final NetworkStatsCollection mTemp;
+        private boolean mUpgrade;
+
+        UpgradeRewriter(long bucketDuration) {
+            mTemp = new NetworkStatsCollection(bucketDuration);
+        }
+
+        @Override
+        public void reset() {
+            mTemp.reset();
+            mUpgrade = false;
+        }
+
+        @Override
+        public void read(InputStream in) throws IOException {
+            // Only look at the header of files that are already up to date.
+            in.mark(2 * Integer.BYTES);
+            final DataInputStream header = new DataInputStream(in);
+            header.readInt();
+            mUpgrade = header.readInt() != NetworkStatsCollection.VERSION_COLUMNAR;
+            if (mUpgrade) {
+                in.reset();
+                mTemp.read(in);
+            }
+        }
+
+        @Override
+        public boolean shouldWrite() {
+            return mUpgrade;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            mTemp.write(out);
+        }
+    }
+
     public void importLegacyNetworkLocked(File file) throws IOException {
         Objects.requireNonNull(mRotator, "missing FileRotator");
 
         // legacy file still exists; start empty to avoid double importing
+        closeMappedFilesLocked();
         mRotator.deleteAll();
 
         final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
@@ -439,6 +628,7 @@ public class NetworkStatsRecorder {
         Objects.requireNonNull(mRotator, "missing FileRotator");
 
         // legacy file still exists; start empty to avoid double importing
+        closeMappedFilesLocked();
         mRotator.deleteAll();
 
         final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
@@ -500,6 +690,7 @@ public class NetworkStatsRecorder {
             mDropBox.addData(TAG_NETSTATS_DUMP, os.toByteArray(), 0);
         }
 
+        closeMappedFilesLocked();
         mRotator.deleteAll();
     }
 }
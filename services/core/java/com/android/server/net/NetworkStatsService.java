@@ -338,6 +338,25 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
     private long mLastStatsSessionPoll;
 
+    /**
+     * Number of polls started, incremented under {@link #mStatsLock} before the poll asks the
+     * providers for stats. Read without the lock by {@link #performPoll} so that requests that
+     * waited for a poll can be coalesced into it if it started after they were made.
+     */
+    private volatile long mPollStartGeneration;
+
+    /** Value of {@link #mPollStartGeneration} taken by the last poll that completed. */
+    @GuardedBy("mStatsLock")
+    private long mLastCompletedPollGeneration;
+
+    /** Flags of the last poll that completed. */
+    @GuardedBy("mStatsLock")
+    private int mLastPollFlags;
+
+    /** Number of poll requests answered by a concurrent poll. */
+    @GuardedBy("mStatsLock")
+    private long mCoalescedPollCount;
+
     /** Map from UID to number of opened sessions */
     @GuardedBy("mOpenSessionCallsPerUid")
     private final SparseIntArray mOpenSessionCallsPerUid = new SparseIntArray();
@@ -516,6 +535,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             // upgrade any legacy stats, migrating them to rotated files
             maybeUpgradeLegacyStatsLocked();
 
+            // rewrite uid stats from before the columnar format, so that queries can map them
+            // instead of loading the complete history.
+            mUidRecorder.upgradeFilesLocked();
+            mUidTagRecorder.upgradeFilesLocked();
+
             // read historical network stats from disk, since policy service
             // might need them right away.
             mXtStatsCached = mXtRecorder.getOrLoadCompleteLocked();
@@ -703,7 +727,6 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     callingPackage);
 
             private NetworkStatsCollection mUidComplete;
-            private NetworkStatsCollection mUidTagComplete;
 
             private NetworkStatsCollection getUidComplete() {
                 synchronized (mStatsLock) {
@@ -714,15 +737,6 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
-            private NetworkStatsCollection getUidTagComplete() {
-                synchronized (mStatsLock) {
-                    if (mUidTagComplete == null) {
-                        mUidTagComplete = mUidTagRecorder.getOrLoadCompleteLocked();
-                    }
-                    return mUidTagComplete;
-                }
-            }
-
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(mAccessLevel);
@@ -752,14 +766,16 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStats getSummaryForAllUid(
                     NetworkTemplate template, long start, long end, boolean includeTags) {
                 try {
-                    final NetworkStats stats = getUidComplete()
-                            .getSummary(template, start, end, mAccessLevel, mCallingUid);
-                    if (includeTags) {
-                        final NetworkStats tagStats = getUidTagComplete()
-                                .getSummary(template, start, end, mAccessLevel, mCallingUid);
-                        stats.combineAllValues(tagStats);
+                    synchronized (mStatsLock) {
+                        final NetworkStats stats = mUidRecorder.getSummaryLocked(
+                                template, start, end, mAccessLevel, mCallingUid);
+                        if (includeTags) {
+                            final NetworkStats tagStats = mUidTagRecorder.getSummaryLocked(
+                                    template, start, end, mAccessLevel, mCallingUid);
+                            stats.combineAllValues(tagStats);
+                        }
+                        return stats;
                     }
-                    return stats;
                 } catch (NullPointerException e) {
                     // TODO: Track down and fix the cause of this crash and remove this catch block.
                     Slog.wtf(TAG, "NullPointerException in getSummaryForAllUid", e);
@@ -771,11 +787,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStatsHistory getHistoryForUid(
                     NetworkTemplate template, int uid, int set, int tag, int fields) {
                 // NOTE: We don't augment UID-level statistics
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
-                } else {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
+                synchronized (mStatsLock) {
+                    final NetworkStatsRecorder recorder =
+                            tag == TAG_NONE ? mUidRecorder : mUidTagRecorder;
+                    return recorder.getHistoryLocked(template, uid, set, tag, fields,
                             Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
                 }
             }
@@ -786,11 +801,15 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     long start, long end) {
                 // NOTE: We don't augment UID-level statistics
                 if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                    synchronized (mStatsLock) {
+                        return mUidRecorder.getHistoryLocked(template, uid, set, tag, fields,
+                                start, end, mAccessLevel, mCallingUid);
+                    }
                 } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                    synchronized (mStatsLock) {
+                        return mUidTagRecorder.getHistoryLocked(template, uid, set, tag, fields,
+                                start, end, mAccessLevel, mCallingUid);
+                    }
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
@@ -800,7 +819,6 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             @Override
             public void close() {
                 mUidComplete = null;
-                mUidTagComplete = null;
             }
         };
     }
@@ -882,12 +900,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     private NetworkStats getNetworkUidBytes(NetworkTemplate template, long start, long end) {
         assertSystemReady();
 
-        final NetworkStatsCollection uidComplete;
         synchronized (mStatsLock) {
-            uidComplete = mUidRecorder.getOrLoadCompleteLocked();
+            return mUidRecorder.getSummaryLocked(template, start, end,
+                    NetworkStatsAccess.Level.DEVICE, android.os.Process.SYSTEM_UID);
         }
-        return uidComplete.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
-                android.os.Process.SYSTEM_UID);
     }
 
     @Override
@@ -1465,7 +1481,16 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     }
 
     private void performPoll(int flags) {
+        final long generation = mPollStartGeneration;
         synchronized (mStatsLock) {
+            // A poll that started after this request was made, and persisted at least as much,
+            // already did everything this poll would do.
+            if (mLastCompletedPollGeneration > generation
+                    && (mLastPollFlags & flags) == flags) {
+                mCoalescedPollCount++;
+                return;
+            }
+
             mWakeLock.acquire();
 
             try {
@@ -1490,6 +1515,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         final boolean persistUid = (flags & FLAG_PERSIST_UID) != 0;
         final boolean persistForce = (flags & FLAG_PERSIST_FORCE) != 0;
 
+        final long generation = ++mPollStartGeneration;
         performPollFromProvidersLocked();
 
         // TODO: consider marking "untrusted" times in historical stats
@@ -1523,6 +1549,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             }
         }
         Trace.traceEnd(TRACE_TAG_NETWORK);
+        mLastCompletedPollGeneration = generation;
+        mLastPollFlags = flags;
 
         if (mSettings.getSampleEnabled()) {
             // sample stats after each full poll
@@ -1749,6 +1777,13 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             pw.println();
             pw.decreaseIndent();
 
+            pw.println("Polls:");
+            pw.increaseIndent();
+            pw.printPair("started", mPollStartGeneration);
+            pw.printPair("coalesced", mCoalescedPollCount);
+            pw.println();
+            pw.decreaseIndent();
+
             pw.println("Active interfaces:");
             pw.increaseIndent();
             for (int i = 0; i < mActiveIfaces.size(); i++) {
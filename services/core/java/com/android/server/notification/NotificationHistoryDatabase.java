@@ -43,11 +43,13 @@ import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -67,6 +69,19 @@ public class NotificationHistoryDatabase {
     private static final long WRITE_BUFFER_INTERVAL_MS = 1000 * 60 * 20;
     private static final long INVALID_FILE_TIME_MS = -1;
 
+    // Each buffer write makes a new file, named by its write time, holding at most
+    // WRITE_BUFFER_INTERVAL_MS of history. Files smaller than this are merged with their
+    // neighbours by CompactFilesRunnable so that reads don't open a file per buffer write.
+    private static final long SMALL_FILE_BYTES = 32 * 1024;
+    // Merging stops once a merged file would grow past this size
+    private static final long MAX_COMPACTED_FILE_BYTES = 512 * 1024;
+    // Only files written within this long of the oldest of them are merged. The merged file
+    // keeps that oldest file's name, and so is deleted with it, so this bounds how early merged
+    // history can expire.
+    private static final long COMPACTION_WINDOW_MS = 1000 * 60 * 60 * 2;
+    // Compaction is scheduled once there are at least this many small files
+    private static final int MIN_SMALL_FILES_TO_COMPACT = 4;
+
     private static final String ACTION_HISTORY_DELETION =
             NotificationHistoryDatabase.class.getSimpleName() + ".CLEANUP";
     private static final int REQUEST_CODE_DELETION = 1;
@@ -85,6 +100,7 @@ public class NotificationHistoryDatabase {
     // Current version of the database files schema
     private int mCurrentVersion;
     private final WriteBufferRunnable mWriteBufferRunnable;
+    private final CompactFilesRunnable mCompactFilesRunnable;
 
     // Object containing posted notifications that have not yet been written to disk
     @VisibleForTesting
@@ -100,6 +116,7 @@ public class NotificationHistoryDatabase {
         mHistoryFiles = new LinkedList<>();
         mBuffer = new NotificationHistory();
         mWriteBufferRunnable = new WriteBufferRunnable();
+        mCompactFilesRunnable = new CompactFilesRunnable();
 
         IntentFilter deletionFilter = new IntentFilter(ACTION_HISTORY_DELETION);
         deletionFilter.addDataScheme(SCHEME_DELETION);
@@ -210,15 +227,16 @@ public class NotificationHistoryDatabase {
             int maxNotifications) {
         synchronized (mLock) {
             NotificationHistory notifications = new NotificationHistory();
+            final NotificationHistoryFilter filter = new NotificationHistoryFilter.Builder()
+                    .setPackage(packageName)
+                    .setChannel(packageName, channelId)
+                    .setMaxNotifications(maxNotifications)
+                    .build();
 
+            // Files are newest first, and each read stops as soon as the filter is full
             for (AtomicFile file : mHistoryFiles) {
                 try {
-                    readLocked(file, notifications,
-                            new NotificationHistoryFilter.Builder()
-                                    .setPackage(packageName)
-                                    .setChannel(packageName, channelId)
-                                    .setMaxNotifications(maxNotifications)
-                                    .build());
+                    readLocked(file, notifications, filter);
                     if (maxNotifications == notifications.getHistoryCount()) {
                         // No need to read any more files
                         break;
@@ -289,7 +307,19 @@ public class NotificationHistoryDatabase {
         if (DEBUG) {
             Slog.d(TAG, "Scheduling deletion for " + file.getName() + " at " + deletionTime);
         }
-        final PendingIntent pi = PendingIntent.getBroadcast(mContext,
+        mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, deletionTime,
+                getDeletionIntent(file));
+    }
+
+    private void cancelDeletion(File file) {
+        if (DEBUG) {
+            Slog.d(TAG, "Cancelling deletion for " + file.getName());
+        }
+        mAlarmManager.cancel(getDeletionIntent(file));
+    }
+
+    private PendingIntent getDeletionIntent(File file) {
+        return PendingIntent.getBroadcast(mContext,
                 REQUEST_CODE_DELETION,
                 new Intent(ACTION_HISTORY_DELETION)
                         .setData(new Uri.Builder().scheme(SCHEME_DELETION)
@@ -297,7 +327,117 @@ public class NotificationHistoryDatabase {
                         .addFlags(Intent.FLAG_RECEIVER_FOREGROUND)
                         .putExtra(EXTRA_KEY, file.getAbsolutePath()),
                 PendingIntent.FLAG_UPDATE_CURRENT);
-        mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, deletionTime, pi);
+    }
+
+    private void maybeScheduleCompactionLocked() {
+        int smallFiles = 0;
+        for (AtomicFile file : mHistoryFiles) {
+            if (file.getBaseFile().length() < SMALL_FILE_BYTES) {
+                smallFiles++;
+            }
+        }
+        if (smallFiles >= MIN_SMALL_FILES_TO_COMPACT) {
+            mFileWriteHandler.removeCallbacks(mCompactFilesRunnable);
+            mFileWriteHandler.post(mCompactFilesRunnable);
+        }
+    }
+
+    /**
+     * Merges runs of small, adjacent history files into the oldest file of each run.
+     * Must be called on the file write handler, which is the only thread that writes history
+     * files, and without holding {@link #mLock}.
+     */
+    @VisibleForTesting
+    void compact() {
+        final List<List<AtomicFile>> runs;
+        synchronized (mLock) {
+            runs = getCompactionRunsLocked();
+        }
+        for (int i = 0; i < runs.size(); i++) {
+            merge(runs.get(i));
+        }
+    }
+
+    private List<List<AtomicFile>> getCompactionRunsLocked() {
+        final List<List<AtomicFile>> runs = new ArrayList<>();
+        // Walk from oldest to newest, collecting runs of files to merge
+        ArrayList<AtomicFile> run = new ArrayList<>();
+        long runStartTime = INVALID_FILE_TIME_MS;
+        long runBytes = 0;
+        for (int i = mHistoryFiles.size() - 1; i >= 0; i--) {
+            final AtomicFile file = mHistoryFiles.get(i);
+            final long time = safeParseLong(file.getBaseFile().getName());
+            final long bytes = file.getBaseFile().length();
+            if (time == INVALID_FILE_TIME_MS || bytes >= SMALL_FILE_BYTES
+                    || (!run.isEmpty() && (time - runStartTime > COMPACTION_WINDOW_MS
+                            || runBytes + bytes > MAX_COMPACTED_FILE_BYTES))) {
+                if (run.size() > 1) {
+                    runs.add(run);
+                }
+                run = new ArrayList<>();
+                runBytes = 0;
+                if (time == INVALID_FILE_TIME_MS || bytes >= SMALL_FILE_BYTES) {
+                    continue;
+                }
+            }
+            if (run.isEmpty()) {
+                runStartTime = time;
+            }
+            run.add(file);
+            runBytes += bytes;
+        }
+        if (run.size() > 1) {
+            runs.add(run);
+        }
+        return runs;
+    }
+
+    /**
+     * Rewrites the given files, oldest first, as a single file under the oldest file's name and
+     * deletes the rest, along with their deletion alarms. The files are read and the merged file
+     * is written next to them without holding {@link #mLock}; only replacing the files takes it,
+     * so readers never see both the merged file and the files merged into it.
+     */
+    private void merge(List<AtomicFile> files) {
+        final AtomicFile target = files.get(0);
+        final File targetFile = target.getBaseFile();
+        // Not named by a time, so it's pruned on the next boot if it's left behind
+        final AtomicFile compacted = new AtomicFile(
+                new File(targetFile.getParentFile(), targetFile.getName() + ".compact"));
+        final NotificationHistory merged = new NotificationHistory();
+        final NotificationHistoryFilter filter = new NotificationHistoryFilter.Builder().build();
+        try {
+            // Read newest first so the merged file keeps the newest-first order of notifications
+            for (int i = files.size() - 1; i >= 0; i--) {
+                readLocked(files.get(i), merged, filter);
+            }
+            writeLocked(compacted, merged);
+        } catch (Exception e) {
+            Slog.e(TAG, "Failed to compact into " + targetFile.getName(), e);
+            compacted.delete();
+            return;
+        }
+
+        synchronized (mLock) {
+            // A deletion alarm may have removed one of the files in the meantime
+            boolean filesLeft = true;
+            for (int i = 0; i < files.size(); i++) {
+                filesLeft &= files.get(i).exists();
+            }
+            if (!filesLeft || !compacted.getBaseFile().renameTo(targetFile)) {
+                Slog.w(TAG, "Abandoned compaction into " + targetFile.getName());
+                compacted.delete();
+                return;
+            }
+            if (DEBUG) {
+                Slog.d(TAG, "Compacted " + files.size() + " files into " + targetFile.getName());
+            }
+            for (int i = 1; i < files.size(); i++) {
+                final AtomicFile file = files.get(i);
+                cancelDeletion(file.getBaseFile());
+                deleteFile(file);
+            }
+        }
     }
 
     private void writeLocked(AtomicFile file, NotificationHistory notifications)
@@ -383,6 +523,7 @@ public class NotificationHistoryDatabase {
                     mBuffer = new NotificationHistory();
 
                     scheduleDeletion(file.getBaseFile(), time, HISTORY_RETENTION_DAYS);
+                    maybeScheduleCompactionLocked();
                 } catch (IOException e) {
                     Slog.e(TAG, "Failed to write buffer to disk. not flushing buffer", e);
                 }
@@ -390,6 +531,15 @@ public class NotificationHistoryDatabase {
         }
     }
 
+    final class CompactFilesRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            if (DEBUG) Slog.d(TAG, "CompactFilesRunnable");
+            compact();
+        }
+    }
+
     private final class RemovePackageRunnable implements Runnable {
         private String mPkg;
 
@@ -50,13 +50,21 @@ public final class NotificationHistoryFilter {
                 || mNotificationCount < Integer.MAX_VALUE;
     }
 
+    /**
+     * Returns true if notifications from this package can pass the package filter, false
+     * otherwise. Lets readers skip the rest of a notification as soon as its package is known.
+     */
+    public boolean matchesPackageFilter(String packageName) {
+        return TextUtils.isEmpty(getPackage()) || getPackage().equals(packageName);
+    }
+
     /**
      * Returns true if this notification passes the package and channel name filter, false
      * otherwise.
      */
     public boolean matchesPackageAndChannelFilter(HistoricalNotification notification) {
         if (!TextUtils.isEmpty(getPackage())) {
-            if (!getPackage().equals(notification.getPackage())) {
+            if (!matchesPackageFilter(notification.getPackage())) {
                 return false;
             } else {
                 if (!TextUtils.isEmpty(getChannel())
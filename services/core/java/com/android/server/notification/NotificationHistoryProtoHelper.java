@@ -77,8 +77,9 @@ final class NotificationHistoryProtoHelper {
             throws IOException {
         final long token = proto.start(NotificationHistoryProto.NOTIFICATION);
         try {
-            HistoricalNotification notification = readNotification(proto, stringPool);
-            if (filter.matchesPackageAndChannelFilter(notification)
+            HistoricalNotification notification = readNotification(proto, stringPool, filter);
+            if (notification != null
+                    && filter.matchesPackageAndChannelFilter(notification)
                     && filter.matchesCountFilter(notifications)) {
                 notifications.addNotificationToWrite(notification);
             }
@@ -89,8 +90,12 @@ final class NotificationHistoryProtoHelper {
         }
     }
 
+    /**
+     * Returns null without reading the rest of the notification if its package doesn't match the
+     * filter; the caller's {@link ProtoInputStream#end} skips over the remaining fields.
+     */
     private static HistoricalNotification readNotification(ProtoInputStream parser,
-            List<String> stringPool) throws IOException {
+            List<String> stringPool, NotificationHistoryFilter filter) throws IOException {
         final HistoricalNotification.Builder notification = new HistoricalNotification.Builder();
         String pkg = null;
         while (true) {
@@ -99,10 +104,16 @@ final class NotificationHistoryProtoHelper {
                     pkg = parser.readString(Notification.PACKAGE);
                     notification.setPackage(pkg);
                     stringPool.add(pkg);
+                    if (!filter.matchesPackageFilter(pkg)) {
+                        return null;
+                    }
                     break;
                 case (int) Notification.PACKAGE_INDEX:
                     pkg = stringPool.get(parser.readInt(Notification.PACKAGE_INDEX) - 1);
                     notification.setPackage(pkg);
+                    if (!filter.matchesPackageFilter(pkg)) {
+                        return null;
+                    }
                     break;
                 case (int) Notification.CHANNEL_NAME:
                     String channelName = parser.readString(Notification.CHANNEL_NAME);
@@ -312,30 +323,42 @@ final class NotificationHistoryProtoHelper {
                     stringPool = readStringPool(proto);
                     break;
                 case (int) NotificationHistoryProto.NOTIFICATION:
+                    if (!filter.matchesCountFilter(notifications)) {
+                        // Notifications are stored newest first, so none of the remaining ones
+                        // can make it into the results; stop without parsing them.
+                        finishRead(notifications, stringPool, filter);
+                        return;
+                    }
                     readNotification(proto, stringPool, notifications, filter);
                     break;
                 case ProtoInputStream.NO_MORE_FIELDS:
-                    if (filter.isFiltering()) {
-                        notifications.poolStringsFromNotifications();
-                    } else {
-                        notifications.addPooledStrings(stringPool);
-                    }
+                    finishRead(notifications, stringPool, filter);
                     return;
             }
         }
     }
 
+    private static void finishRead(NotificationHistory notifications, List<String> stringPool,
+            NotificationHistoryFilter filter) {
+        if (filter.isFiltering()) {
+            notifications.poolStringsFromNotifications();
+        } else {
+            notifications.addPooledStrings(stringPool);
+        }
+    }
+
     public static void write(OutputStream out, NotificationHistory notifications, int version) {
         final ProtoOutputStream proto = new ProtoOutputStream(out);
         proto.write(NotificationHistoryProto.MAJOR_VERSION, version);
         // String pool should be written before the history itself
         writeStringPool(proto, notifications);
 
+        // Sorted copy of the pool, built once rather than for every notification
+        final String[] stringPool = notifications.getPooledStringsToWrite();
         List<HistoricalNotification> notificationsToWrite = notifications.getNotificationsToWrite();
         final int count = notificationsToWrite.size();
         for (int i = 0; i < count; i++) {
-            writeNotification(proto, notifications.getPooledStringsToWrite(),
-                    notificationsToWrite.get(i));
+            writeNotification(proto, stringPool, notificationsToWrite.get(i));
         }
 
         proto.flush();
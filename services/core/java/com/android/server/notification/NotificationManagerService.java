@@ -333,6 +333,7 @@ public class NotificationManagerService extends SystemService {
     // ranking thread messages
     private static final int MESSAGE_RECONSIDER_RANKING = 1000;
     private static final int MESSAGE_RANKING_SORT = 1001;
+    private static final int MESSAGE_RANKING_SORT_STALE = 1002;
 
     static final int LONG_DELAY = PhoneWindowManager.TOAST_WINDOW_TIMEOUT;
     static final int SHORT_DELAY = 2000; // 2 seconds
@@ -4894,7 +4895,7 @@ public class NotificationManagerService extends SystemService {
                     }
                 }
                 if (needsSort) {
-                    mRankingHandler.requestSort();
+                    mRankingHandler.requestSortForStaleRecords();
                 }
             } finally {
                 Binder.restoreCallingIdentity(identity);
@@ -5126,7 +5127,7 @@ public class NotificationManagerService extends SystemService {
         if (r.getSbn().getOverrideGroupKey() == null) {
             addAutoGroupAdjustment(r, GroupHelper.AUTOGROUP_KEY);
             EventLogTags.writeNotificationAutogrouped(key);
-            mRankingHandler.requestSort();
+            mRankingHandler.requestSortForStaleRecords();
         }
     }
 
@@ -5139,7 +5140,7 @@ public class NotificationManagerService extends SystemService {
         if (r.getSbn().getOverrideGroupKey() != null) {
             addAutoGroupAdjustment(r, null);
             EventLogTags.writeNotificationUnautogrouped(key);
-            mRankingHandler.requestSort();
+            mRankingHandler.requestSortForStaleRecords();
         }
     }
 
@@ -6505,7 +6506,7 @@ public class NotificationManagerService extends SystemService {
                     }
 
                     mRankingHelper.extractSignals(r);
-                    mRankingHelper.sort(mNotificationList);
+                    mRankingHelper.sort(mNotificationList, r);
                     final int position = mRankingHelper.indexOf(mNotificationList, r);
 
                     int buzzBeepBlinkLoggingCode = 0;
@@ -7333,6 +7334,17 @@ public class NotificationManagerService extends SystemService {
     }
 
     void handleRankingSort() {
+        handleRankingSort(false /* onlyStaleRecords */);
+    }
+
+    /**
+     * Extracts signals again and re-sorts.
+     *
+     * @param onlyStaleRecords whether to only extract the signals of records whose
+     *                         {@link NotificationRecord#areSignalsStale()}, rather than of all
+     *                         records.
+     */
+    void handleRankingSort(boolean onlyStaleRecords) {
         if (mRankingHelper == null) return;
         synchronized (mNotificationLock) {
             final int N = mNotificationList.size();
@@ -7367,7 +7379,9 @@ public class NotificationManagerService extends SystemService {
                 systemSmartActionsBefore.add(r.getSystemGeneratedSmartActions());
                 smartRepliesBefore.add(r.getSmartReplies());
                 importancesBefore[i] = r.getImportance();
-                mRankingHelper.extractSignals(r);
+                if (!onlyStaleRecords || r.areSignalsStale()) {
+                    mRankingHelper.extractSignals(r);
+                }
             }
             mRankingHelper.sort(mNotificationList);
             for (int i = 0; i < N; i++) {
@@ -7545,16 +7559,31 @@ public class NotificationManagerService extends SystemService {
                 case MESSAGE_RANKING_SORT:
                     handleRankingSort();
                     break;
+                case MESSAGE_RANKING_SORT_STALE:
+                    handleRankingSort(true /* onlyStaleRecords */);
+                    break;
             }
         }
 
         public void requestSort() {
             removeMessages(MESSAGE_RANKING_SORT);
+            removeMessages(MESSAGE_RANKING_SORT_STALE);
             Message msg = Message.obtain();
             msg.what = MESSAGE_RANKING_SORT;
             sendMessage(msg);
         }
 
+        public void requestSortForStaleRecords() {
+            // A pending full sort extracts the signals of every record anyway.
+            if (hasMessages(MESSAGE_RANKING_SORT)) {
+                return;
+            }
+            removeMessages(MESSAGE_RANKING_SORT_STALE);
+            Message msg = Message.obtain();
+            msg.what = MESSAGE_RANKING_SORT_STALE;
+            sendMessage(msg);
+        }
+
         public void requestReconsideration(RankingReconsideration recon) {
             Message m = Message.obtain(this,
                     NotificationManagerService.MESSAGE_RECONSIDER_RANKING, recon);
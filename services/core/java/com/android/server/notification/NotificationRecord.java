@@ -141,6 +141,8 @@ public final class NotificationRecord {
 
     private int mAuthoritativeRank;
     private String mGlobalSortKey;
+    // Whether inputs of the signal extractors changed since they last processed this record
+    private boolean mSignalsStale = true;
     private int mPackageVisibility;
     private int mSystemImportance = IMPORTANCE_UNSPECIFIED;
     private int mAssistantImportance = IMPORTANCE_UNSPECIFIED;
@@ -624,6 +626,7 @@ public final class NotificationRecord {
         synchronized (mAdjustments) {
             mAdjustments.add(adjustment);
         }
+        mSignalsStale = true;
     }
 
     public void applyAdjustments() {
@@ -1003,6 +1006,18 @@ public final class NotificationRecord {
         return mAuthoritativeRank;
     }
 
+    public void setSignalsStale(boolean signalsStale) {
+        mSignalsStale = signalsStale;
+    }
+
+    /**
+     * Whether this record changed in a way that the signal extractors need to process again,
+     * e.g. it received an adjustment, since signals were last extracted.
+     */
+    public boolean areSignalsStale() {
+        return mSignalsStale;
+    }
+
     public String getGroupKey() {
         return getSbn().getGroupKey();
     }
@@ -17,5 +17,11 @@ package com.android.server.notification;
 
 public interface RankingHandler {
     public void requestSort();
+    /**
+     * Like {@link #requestSort()}, but only the records that changed since their signals were
+     * extracted, as reported by {@link NotificationRecord#areSignalsStale()}, are processed by
+     * the signal extractors again.
+     */
+    public void requestSortForStaleRecords();
     public void requestReconsideration(RankingReconsideration recon);
 }
\ No newline at end of file
@@ -18,6 +18,7 @@ package com.android.server.notification;
 import android.annotation.NonNull;
 import android.app.NotificationManager;
 import android.content.Context;
+import android.os.SystemClock;
 import android.service.notification.RankingHelperProto;
 import android.util.ArrayMap;
 import android.util.Slog;
@@ -26,6 +27,8 @@ import android.util.proto.ProtoOutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 public class RankingHelper {
     private static final String TAG = "RankingHelper";
@@ -34,7 +37,19 @@ public class RankingHelper {
     private final NotificationComparator mPreliminaryComparator;
     private final GlobalSortKeyComparator mFinalComparator = new GlobalSortKeyComparator();
 
+    private final Comparator<NotificationRecord> mAuthoritativeRankComparator =
+            (left, right) -> Integer.compare(left.getAuthoritativeRank(),
+                    right.getAuthoritativeRank());
+
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
+    private final ArrayList<NotificationRecord> mRankedTmp = new ArrayList<>();
+    private final StringBuilder mSortKeyBuilder = new StringBuilder();
+
+    // Time spent in, and number of records processed by, each extractor; for dumpsys only.
+    private final long[] mExtractorTimeNanos;
+    private final long[] mExtractorCalls;
+    private long mFullSorts;
+    private long mIncrementalSorts;
 
     private final Context mContext;
     private final RankingHandler mRankingHandler;
@@ -48,6 +63,8 @@ public class RankingHelper {
 
         final int N = extractorNames.length;
         mSignalExtractors = new NotificationSignalExtractor[N];
+        mExtractorTimeNanos = new long[N];
+        mExtractorCalls = new long[N];
         for (int i = 0; i < N; i++) {
             try {
                 Class<?> extractorClass = mContext.getClassLoader().loadClass(extractorNames[i]);
@@ -83,6 +100,7 @@ public class RankingHelper {
         final int N = mSignalExtractors.length;
         for (int i = 0; i < N; i++) {
             NotificationSignalExtractor extractor = mSignalExtractors[i];
+            final long start = SystemClock.elapsedRealtimeNanos();
             try {
                 RankingReconsideration recon = extractor.process(r);
                 if (recon != null) {
@@ -91,10 +109,14 @@ public class RankingHelper {
             } catch (Throwable t) {
                 Slog.w(TAG, "NotificationSignalExtractor failed.", t);
             }
+            mExtractorTimeNanos[i] += SystemClock.elapsedRealtimeNanos() - start;
+            mExtractorCalls[i]++;
         }
+        r.setSignalsStale(false);
     }
 
     public void sort(ArrayList<NotificationRecord> notificationList) {
+        mFullSorts++;
         final int N = notificationList.size();
         // clear global sort keys
         for (int i = N - 1; i >= 0; i--) {
@@ -104,10 +126,78 @@ public class RankingHelper {
         // rank each record individually
         Collections.sort(notificationList, mPreliminaryComparator);
 
+        assignGlobalSortKeys(notificationList);
+
+        // Do a second ranking pass, using group proxies
+        Collections.sort(notificationList, mFinalComparator);
+    }
+
+    /**
+     * Sorts a list that was sorted before {@code changed} was added to it or replaced one of its
+     * records. Rather than ranking every record again, {@code changed} is placed among the
+     * others, in the order of their previous ranks, with a binary search; the final pass then
+     * only has to move the records whose group ranking changed.
+     * <p>
+     * Falls back to {@link #sort(ArrayList)} if the other records weren't all sorted before.
+     */
+    public void sort(ArrayList<NotificationRecord> notificationList, NotificationRecord changed) {
+        final ArrayList<NotificationRecord> ranked = mRankedTmp;
+        boolean sorted = true;
+        for (int i = notificationList.size() - 1; i >= 0; i--) {
+            final NotificationRecord record = notificationList.get(i);
+            if (record == changed) continue;
+            if (record.getGlobalSortKey() == null) {
+                sorted = false;
+                break;
+            }
+            ranked.add(record);
+        }
+        if (sorted) {
+            Collections.sort(ranked, mAuthoritativeRankComparator);
+            for (int i = 1; i < ranked.size(); i++) {
+                if (ranked.get(i - 1).getAuthoritativeRank()
+                        == ranked.get(i).getAuthoritativeRank()) {
+                    sorted = false;
+                    break;
+                }
+            }
+        }
+        if (!sorted || ranked.size() != notificationList.size() - 1) {
+            ranked.clear();
+            sort(notificationList);
+            return;
+        }
+        mIncrementalSorts++;
+
+        // find the preliminary rank of the changed record
+        int low = 0;
+        int high = ranked.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mPreliminaryComparator.compare(ranked.get(mid), changed) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        ranked.add(low, changed);
+
+        assignGlobalSortKeys(ranked);
+        ranked.clear();
+
+        // The other records keep their relative order, so this is close to a single pass.
+        Collections.sort(notificationList, mFinalComparator);
+    }
+
+    /**
+     * Records the rank of each record of the preliminary ranking, and assigns global sort keys.
+     */
+    private void assignGlobalSortKeys(List<NotificationRecord> ranked) {
+        final int N = ranked.size();
         synchronized (mProxyByGroupTmp) {
             // record individual ranking result and nominate proxies for each group
             for (int i = 0; i < N; i++) {
-                final NotificationRecord record = notificationList.get(i);
+                final NotificationRecord record = ranked.get(i);
                 record.setAuthoritativeRank(i);
                 final String groupKey = record.getGroupKey();
                 NotificationRecord existingProxy = mProxyByGroupTmp.get(groupKey);
@@ -118,7 +208,7 @@ public class RankingHelper {
             // assign global sort key:
             //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
             for (int i = 0; i < N; i++) {
-                final NotificationRecord record = notificationList.get(i);
+                final NotificationRecord record = ranked.get(i);
                 NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
                 String groupSortKey = record.getNotification().getSortKey();
 
@@ -137,22 +227,38 @@ public class RankingHelper {
                 }
 
                 boolean isGroupSummary = record.getNotification().isGroupSummary();
-                record.setGlobalSortKey(
-                        String.format("crtcl=0x%04x:intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
-                        record.getCriticality(),
-                        record.isRecentlyIntrusive()
-                                && record.getImportance() > NotificationManager.IMPORTANCE_MIN
-                                ? '0' : '1',
-                        groupProxy.getAuthoritativeRank(),
-                        isGroupSummary ? '0' : '1',
-                        groupSortKeyPortion,
-                        record.getAuthoritativeRank()));
+                // Same as String.format(
+                //     "crtcl=0x%04x:intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x", ...),
+                // which is too slow to run for every record on every post.
+                final StringBuilder sb = mSortKeyBuilder;
+                sb.setLength(0);
+                sb.append("crtcl=0x");
+                appendHex(sb, record.getCriticality());
+                sb.append(":intrsv=");
+                sb.append(record.isRecentlyIntrusive()
+                        && record.getImportance() > NotificationManager.IMPORTANCE_MIN
+                        ? '0' : '1');
+                sb.append(":grnk=0x");
+                appendHex(sb, groupProxy.getAuthoritativeRank());
+                sb.append(":gsmry=");
+                sb.append(isGroupSummary ? '0' : '1');
+                sb.append(':');
+                sb.append(groupSortKeyPortion);
+                sb.append(":rnk=0x");
+                appendHex(sb, record.getAuthoritativeRank());
+                record.setGlobalSortKey(sb.toString());
             }
             mProxyByGroupTmp.clear();
         }
+    }
 
-        // Do a second ranking pass, using group proxies
-        Collections.sort(notificationList, mFinalComparator);
+    /** Appends {@code value} as "%04x" would. */
+    private static void appendHex(StringBuilder sb, int value) {
+        final String hex = Integer.toHexString(value);
+        for (int i = hex.length(); i < 4; i++) {
+            sb.append('0');
+        }
+        sb.append(hex);
     }
 
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
@@ -168,8 +274,24 @@ public class RankingHelper {
         for (int i = 0; i < N; i++) {
             pw.print(prefix);
             pw.print("  ");
-            pw.println(mSignalExtractors[i].getClass().getSimpleName());
+            pw.print(mSignalExtractors[i].getClass().getSimpleName());
+            pw.print(" calls=");
+            pw.print(mExtractorCalls[i]);
+            pw.print(" totalTime=");
+            pw.print(mExtractorTimeNanos[i] / 1000);
+            pw.print("us");
+            if (mExtractorCalls[i] > 0) {
+                pw.print(" avgTime=");
+                pw.print(mExtractorTimeNanos[i] / mExtractorCalls[i] / 1000);
+                pw.print("us");
+            }
+            pw.println();
         }
+        pw.print(prefix);
+        pw.print("sorts: full=");
+        pw.print(mFullSorts);
+        pw.print(" incremental=");
+        pw.println(mIncrementalSorts);
     }
 
     public void dump(ProtoOutputStream proto,
@@ -25,19 +25,17 @@ import android.content.om.OverlayInfo;
 import android.os.UserHandle;
 import android.util.ArrayMap;
 import android.util.Slog;
-import android.util.Xml;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.XmlUtils;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -405,10 +403,9 @@ final class OverlayManagerSettings {
         public static void restore(@NonNull final ArrayList<SettingsItem> table,
                 @NonNull final InputStream is) throws IOException, XmlPullParserException {
 
-            try (InputStreamReader reader = new InputStreamReader(is)) {
+            try (InputStream in = is) {
                 table.clear();
-                final XmlPullParser parser = Xml.newPullParser();
-                parser.setInput(reader);
+                final XmlPullParser parser = XmlUtils.resolvePullParser(in);
                 XmlUtils.beginDocument(parser, TAG_OVERLAYS);
                 int version = XmlUtils.readIntAttribute(parser, ATTR_VERSION);
                 if (version != CURRENT_VERSION) {
@@ -465,8 +462,7 @@ final class OverlayManagerSettings {
 
         public static void persist(@NonNull final ArrayList<SettingsItem> table,
                 @NonNull final OutputStream os) throws IOException, XmlPullParserException {
-            final FastXmlSerializer xml = new FastXmlSerializer();
-            xml.setOutput(os, "utf-8");
+            final XmlSerializer xml = XmlUtils.resolveSerializer(os);
             xml.startDocument(null, true);
             xml.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
             xml.startTag(null, TAG_OVERLAYS);
@@ -481,7 +477,7 @@ final class OverlayManagerSettings {
             xml.endDocument();
         }
 
-        private static void persistRow(@NonNull final FastXmlSerializer xml,
+        private static void persistRow(@NonNull final XmlSerializer xml,
                 @NonNull final SettingsItem item) throws IOException {
             xml.startTag(null, TAG_ITEM);
             XmlUtils.writeStringAttribute(xml, ATTR_PACKAGE_NAME, item.mPackageName);
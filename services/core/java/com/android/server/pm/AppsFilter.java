@@ -286,6 +286,7 @@ public class AppsFilter {
             }
             updateEnabledState(pkg);
             mAppsFilter.updateShouldFilterCacheForPackage(packageName);
+            PackageManager.invalidatePackageInfoCache();
         }
 
         private void updateEnabledState(@NonNull AndroidPackage pkg) {
@@ -1184,6 +1184,12 @@ public class ComponentResolver {
         private ArrayMap<String, F[]> mMimeGroupToFilter = new ArrayMap<>();
         private boolean mIsUpdatingMimeGroup = false;
 
+        @Override
+        protected boolean isMatchCacheEnabled() {
+            // MIME group updates re-add the affected filters, which invalidates the cache.
+            return true;
+        }
+
         @Override
         public void addFilter(F f) {
             IntentFilter intentFilter = getIntentFilter(f);
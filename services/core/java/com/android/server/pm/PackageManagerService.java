@@ -764,6 +764,30 @@ public class PackageManagerService extends IPackageManager.Stub
     @GuardedBy("mLock")
     final ArrayMap<String, AndroidPackage> mPackages = new ArrayMap<>();
 
+    private static final int PACKAGE_QUERY_CACHE_SIZE = 256;
+
+    // Set while the current thread is dispatching an incoming binder call to this service.
+    // Only remote callers are answered from the query snapshots below; system server code
+    // calling in directly keeps the locked path.
+    private static final ThreadLocal<Boolean> sDispatchingIncomingCall = new ThreadLocal<>();
+
+    // Snapshots of read-only query results for the current version of the package state,
+    // answered without holding mLock. Each caller gets its own copy. See PackageQueryCache.
+    private final PackageQueryCache<PackageInfo> mPackageInfoSnapshot = new PackageQueryCache<>(
+            PACKAGE_QUERY_CACHE_SIZE, q -> getPackageInfoInternalBody(
+                    q.packageName, q.versionCode, q.flags, q.filterCallingUid, q.userId),
+            PackageQueryCache::copyPackageInfo);
+    private final PackageQueryCache<ApplicationInfo> mApplicationInfoSnapshot =
+            new PackageQueryCache<>(PACKAGE_QUERY_CACHE_SIZE, q -> getApplicationInfoInternalBody(
+                    q.packageName, q.flags, q.filterCallingUid, q.userId), ApplicationInfo::new);
+    private final PackageQueryCache<Integer> mPackageUidSnapshot = new PackageQueryCache<>(
+            PACKAGE_QUERY_CACHE_SIZE, q -> {
+                final int uid = getPackageUidInternal(
+                        q.packageName, q.flags, q.userId, q.filterCallingUid);
+                // Negative results are not cached.
+                return uid != -1 ? uid : null;
+            }, uid -> uid);
+
     // Keys are isolated uids and values are the uid of the application
     // that created the isolated proccess.
     @GuardedBy("mLock")
@@ -3105,20 +3129,25 @@ public class PackageManagerService extends IPackageManager.Stub
                 if (partition.getOverlayFolder() == null) {
                     continue;
                 }
+                t.traceBegin("scanOverlays " + partition.getFolder());
                 scanDirTracedLI(partition.getOverlayFolder(), systemParseFlags,
                         systemScanFlags | partition.scanFlag, 0,
                         packageParser, executorService);
+                t.traceEnd();
             }
 
+            t.traceBegin("scanFramework");
             scanDirTracedLI(frameworkDir, systemParseFlags,
                     systemScanFlags | SCAN_NO_DEX | SCAN_AS_PRIVILEGED, 0,
                     packageParser, executorService);
+            t.traceEnd();
             if (!mPackages.containsKey("android")) {
                 throw new IllegalStateException(
                         "Failed to load frameworks package; check log for warnings");
             }
             for (int i = 0, size = mDirsToScanAsSystem.size(); i < size; i++) {
                 final ScanPartition partition = mDirsToScanAsSystem.get(i);
+                t.traceBegin("scanPartition " + partition.getFolder());
                 if (partition.getPrivAppFolder() != null) {
                     scanDirTracedLI(partition.getPrivAppFolder(), systemParseFlags,
                             systemScanFlags | SCAN_AS_PRIVILEGED | partition.scanFlag, 0,
@@ -3127,6 +3156,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 scanDirTracedLI(partition.getAppFolder(), systemParseFlags,
                         systemScanFlags | partition.scanFlag, 0,
                         packageParser, executorService);
+                t.traceEnd();
             }
 
             // Parse overlay configuration files to set default enable state, mutability, and
@@ -3239,9 +3269,10 @@ public class PackageManagerService extends IPackageManager.Stub
             if (!mOnlyCore) {
                 EventLog.writeEvent(EventLogTags.BOOT_PROGRESS_PMS_DATA_SCAN_START,
                         SystemClock.uptimeMillis());
+                t.traceBegin("scanData " + sAppInstallDir);
                 scanDirTracedLI(sAppInstallDir, 0, scanFlags | SCAN_REQUIRE_KNOWN, 0,
                         packageParser, executorService);
-
+                t.traceEnd();
             }
 
             packageParser.close();
@@ -4318,6 +4349,8 @@ public class PackageManagerService extends IPackageManager.Stub
     @Override
     public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
             throws RemoteException {
+        final Boolean wasDispatching = sDispatchingIncomingCall.get();
+        sDispatchingIncomingCall.set(Boolean.TRUE);
         try {
             return super.onTransact(code, data, reply, flags);
         } catch (RuntimeException e) {
@@ -4325,9 +4358,22 @@ public class PackageManagerService extends IPackageManager.Stub
                 Slog.wtf(TAG, "Package Manager Crash", e);
             }
             throw e;
+        } finally {
+            sDispatchingIncomingCall.set(wasDispatching);
         }
     }
 
+    /**
+     * Returns whether the current query may be answered from the query snapshots. Only remote
+     * callers qualify. Isolated callers are excluded because their visibility depends on
+     * {@link #mIsolatedOwners}, which changes without invalidating the package info cache.
+     */
+    private boolean canUseQuerySnapshot(int callingUid) {
+        return sDispatchingIncomingCall.get() == Boolean.TRUE
+                && Binder.getCallingPid() != Process.myPid()
+                && !Process.isIsolated(callingUid);
+    }
+
     /**
      * Returns whether or not a full application can see an instant application.
      * <p>
@@ -4515,15 +4561,24 @@ public class PackageManagerService extends IPackageManager.Stub
 
     @Override
     public PackageInfo getPackageInfo(String packageName, int flags, int userId) {
+        final int callingUid = Binder.getCallingUid();
         return getPackageInfoInternal(packageName, PackageManager.VERSION_CODE_HIGHEST,
-                flags, Binder.getCallingUid(), userId);
+                flags, callingUid, userId, canUseQuerySnapshot(callingUid));
     }
 
     @Override
     public PackageInfo getPackageInfoVersioned(VersionedPackage versionedPackage,
             int flags, int userId) {
+        final int callingUid = Binder.getCallingUid();
         return getPackageInfoInternal(versionedPackage.getPackageName(),
-                versionedPackage.getLongVersionCode(), flags, Binder.getCallingUid(), userId);
+                versionedPackage.getLongVersionCode(), flags, callingUid, userId,
+                canUseQuerySnapshot(callingUid));
+    }
+
+    private PackageInfo getPackageInfoInternal(String packageName, long versionCode,
+            int flags, int filterCallingUid, int userId) {
+        return getPackageInfoInternal(packageName, versionCode, flags, filterCallingUid, userId,
+                false /* useSnapshot */);
     }
 
     /**
@@ -4533,12 +4588,23 @@ public class PackageManagerService extends IPackageManager.Stub
      * trusted and will be used as-is; unlike userId which will be validated by this method.
      */
     private PackageInfo getPackageInfoInternal(String packageName, long versionCode,
-            int flags, int filterCallingUid, int userId) {
+            int flags, int filterCallingUid, int userId, boolean useSnapshot) {
         if (!mUserManager.exists(userId)) return null;
         flags = updateFlagsForPackage(flags, userId);
         mPermissionManager.enforceCrossUserPermission(Binder.getCallingUid(), userId,
                 false /* requireFullPermission */, false /* checkShell */, "get package info");
 
+        // APEX state is owned by ApexManager and is not versioned by the package info cache.
+        if (useSnapshot && (flags & MATCH_APEX) == 0) {
+            return mPackageInfoSnapshot.query(new PackageQueryCache.Query(
+                    packageName, versionCode, flags, filterCallingUid, userId));
+        }
+        return getPackageInfoInternalBody(packageName, versionCode, flags, filterCallingUid,
+                userId);
+    }
+
+    private PackageInfo getPackageInfoInternalBody(String packageName, long versionCode,
+            int flags, int filterCallingUid, int userId) {
         // reader
         synchronized (mLock) {
             // Normalize package name to handle renamed packages and static libs
@@ -4840,6 +4906,11 @@ public class PackageManagerService extends IPackageManager.Stub
         flags = updateFlagsForPackage(flags, userId);
         mPermissionManager.enforceCrossUserPermission(callingUid, userId,
                 false /*requireFullPermission*/, false /*checkShell*/, "getPackageUid");
+        if (canUseQuerySnapshot(callingUid)) {
+            final Integer uid = mPackageUidSnapshot.query(new PackageQueryCache.Query(
+                    packageName, PackageManager.VERSION_CODE_HIGHEST, flags, callingUid, userId));
+            return uid != null ? uid : -1;
+        }
         return getPackageUidInternal(packageName, flags, userId, callingUid);
     }
 
@@ -4940,7 +5011,15 @@ public class PackageManagerService extends IPackageManager.Stub
 
     @Override
     public ApplicationInfo getApplicationInfo(String packageName, int flags, int userId) {
-        return getApplicationInfoInternal(packageName, flags, Binder.getCallingUid(), userId);
+        final int callingUid = Binder.getCallingUid();
+        return getApplicationInfoInternal(packageName, flags, callingUid, userId,
+                canUseQuerySnapshot(callingUid));
+    }
+
+    private ApplicationInfo getApplicationInfoInternal(String packageName, int flags,
+            int filterCallingUid, int userId) {
+        return getApplicationInfoInternal(packageName, flags, filterCallingUid, userId,
+                false /* useSnapshot */);
     }
 
     /**
@@ -4950,7 +5029,7 @@ public class PackageManagerService extends IPackageManager.Stub
      * trusted and will be used as-is; unlike userId which will be validated by this method.
      */
     private ApplicationInfo getApplicationInfoInternal(String packageName, int flags,
-            int filterCallingUid, int userId) {
+            int filterCallingUid, int userId, boolean useSnapshot) {
         if (!mUserManager.exists(userId)) return null;
         flags = updateFlagsForApplication(flags, userId);
 
@@ -4960,6 +5039,16 @@ public class PackageManagerService extends IPackageManager.Stub
                     "get application info");
         }
 
+        // APEX state is owned by ApexManager and is not versioned by the package info cache.
+        if (useSnapshot && (flags & PackageManager.MATCH_APEX) == 0) {
+            return mApplicationInfoSnapshot.query(new PackageQueryCache.Query(packageName,
+                    PackageManager.VERSION_CODE_HIGHEST, flags, filterCallingUid, userId));
+        }
+        return getApplicationInfoInternalBody(packageName, flags, filterCallingUid, userId);
+    }
+
+    private ApplicationInfo getApplicationInfoInternalBody(String packageName, int flags,
+            int filterCallingUid, int userId) {
         // writer
         synchronized (mLock) {
             // Normalize package name to handle renamed packages and static libs
@@ -9099,8 +9188,7 @@ public class PackageManagerService extends IPackageManager.Stub
         ParallelPackageParser parallelPackageParser =
                 new ParallelPackageParser(packageParser, executorService);
 
-        // Submit files for parsing in parallel
-        int fileCount = 0;
+        final List<File> packageFiles = new ArrayList<>(files.length);
         for (File file : files) {
             final boolean isPackage = (isApkFile(file) || file.isDirectory())
                     && !PackageInstallerService.isStageName(file.getName());
@@ -9108,7 +9196,14 @@ public class PackageManagerService extends IPackageManager.Stub
                 // Ignore entries which are not packages
                 continue;
             }
-            parallelPackageParser.submit(file, parseFlags);
+            packageFiles.add(file);
+        }
+        ParallelPackageParser.sortLargestFirst(packageFiles);
+
+        // Submit files for parsing in parallel
+        int fileCount = 0;
+        for (int i = 0, size = packageFiles.size(); i < size; i++) {
+            parallelPackageParser.submit(packageFiles.get(i), parseFlags);
             fileCount++;
         }
 
@@ -24672,6 +24767,8 @@ public class PackageManagerService extends IPackageManager.Stub
                     mAppsFilter.grantImplicitAccess(recipientUid, visibleUid);
                 }
             }
+            // Visibility changed without a settings write; drop cached query results.
+            PackageManager.invalidatePackageInfoCache();
         }
 
         @Override
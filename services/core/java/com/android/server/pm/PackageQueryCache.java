@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.PropertyInvalidatedCache;
+import android.content.pm.PackageInfo;
+import android.os.Parcel;
+import android.permission.PermissionManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * A snapshot of read-only package query results, valid for one version of the package state.
+ * <p>
+ * The version is the {@link PermissionManager#CACHE_KEY_PACKAGE_INFO} nonce that is bumped by
+ * {@link android.content.pm.PackageManager#invalidatePackageInfoCache()} whenever packages,
+ * package settings or permissions change, and that the client-side caches in
+ * {@link android.content.pm.PackageManager} already rely on. While the nonce is unchanged,
+ * results are served without taking the package manager lock, so readers are no longer
+ * serialized behind installs, scans and settings writes. While invalidations are corked, every
+ * query falls through to {@code recompute}.
+ * <p>
+ * Every caller gets its own copy of a result, so callers may modify what they receive without
+ * affecting the cached entry or each other.
+ */
+final class PackageQueryCache<Result> extends PropertyInvalidatedCache<PackageQueryCache.Query,
+        Result> {
+    private final Function<Query, Result> mRecompute;
+    private final UnaryOperator<Result> mCopy;
+
+    PackageQueryCache(int maxEntries, @NonNull Function<Query, Result> recompute,
+            @NonNull UnaryOperator<Result> copy) {
+        this(maxEntries, PermissionManager.CACHE_KEY_PACKAGE_INFO, recompute, copy);
+    }
+
+    @VisibleForTesting
+    PackageQueryCache(int maxEntries, @NonNull String propertyName,
+            @NonNull Function<Query, Result> recompute, @NonNull UnaryOperator<Result> copy) {
+        super(maxEntries, propertyName);
+        mRecompute = recompute;
+        mCopy = copy;
+    }
+
+    @Override
+    public Result query(Query query) {
+        final Result result = super.query(query);
+        return result != null ? mCopy.apply(result) : null;
+    }
+
+    @Override
+    protected Result recompute(Query query) {
+        return mRecompute.apply(query);
+    }
+
+    /**
+     * Deep copy of a {@link PackageInfo}, made the same way a binder call would make it.
+     */
+    static PackageInfo copyPackageInfo(@NonNull PackageInfo info) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            info.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return PackageInfo.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Key for a single query. The flags must already have been normalized by the caller, and
+     * {@code filterCallingUid} is part of the key since visibility depends on the caller.
+     */
+    static final class Query {
+        final String packageName;
+        final long versionCode;
+        final int flags;
+        final int filterCallingUid;
+        final int userId;
+
+        Query(@Nullable String packageName, long versionCode, int flags, int filterCallingUid,
+                int userId) {
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.flags = flags;
+            this.filterCallingUid = filterCallingUid;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Query)) return false;
+            final Query other = (Query) o;
+            return versionCode == other.versionCode
+                    && flags == other.flags
+                    && filterCallingUid == other.filterCallingUid
+                    && userId == other.userId
+                    && Objects.equals(packageName, other.packageName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Objects.hashCode(packageName);
+            result = 31 * result + Long.hashCode(versionCode);
+            result = 31 * result + flags;
+            result = 31 * result + filterCallingUid;
+            result = 31 * result + userId;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "Query{" + packageName + " v=" + versionCode + " flags=0x"
+                    + Integer.toHexString(flags) + " filterUid=" + filterCallingUid
+                    + " user=" + userId + "}";
+        }
+    }
+}
@@ -28,29 +28,108 @@ import com.android.server.pm.parsing.PackageParser2;
 import com.android.server.pm.parsing.pkg.ParsedPackage;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Parsing requests are processed by a thread-pool of {@link #getThreadCount()} threads,
+ * one per available core between {@link #MIN_THREADS} and {@link #MAX_THREADS}.
+ * At any time, at most {@link #QUEUE_CAPACITY_PER_THREAD} results per thread are kept in
+ * RAM</p>
  */
 class ParallelPackageParser {
 
-    private static final int QUEUE_CAPACITY = 30;
-    private static final int MAX_THREADS = 4;
+    private static final int QUEUE_CAPACITY_PER_THREAD = 8;
+    private static final int MIN_THREADS = 2;
+    private static final int MAX_THREADS = 8;
+
+    private static final String APK_FILE_EXTENSION = ".apk";
+
+    /** How many directories below a scanned package directory to look for its APKs. */
+    private static final int MAX_PACKAGE_DIR_DEPTH = 1;
 
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<ParseResult> mQueue =
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY_PER_THREAD * getThreadCount());
+
+    /**
+     * Returns the number of parsing threads. The pool is only used for the scan during boot,
+     * when nothing else competes for the CPU, so it uses every available core; beyond
+     * {@link #MAX_THREADS} the scan is bound by I/O and the package manager lock instead.
+     */
+    static int getThreadCount() {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(MIN_THREADS, Math.min(MAX_THREADS, cores));
+    }
 
     static ExecutorService makeExecutorService() {
-        return ConcurrentUtils.newFixedThreadPool(MAX_THREADS, "package-parsing-thread",
+        return ConcurrentUtils.newFixedThreadPool(getThreadCount(), "package-parsing-thread",
                 Process.THREAD_PRIORITY_FOREGROUND);
     }
 
+    /**
+     * Orders the given package files so that the largest are submitted first. A few large
+     * APKs take most of the parse time of a partition; starting them early keeps them from
+     * being the only work left running at the end of the scan.
+     */
+    static void sortLargestFirst(List<File> files) {
+        final int count = files.size();
+        final List<SizedFile> sized = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final File file = files.get(i);
+            sized.add(new SizedFile(file, getPackageSize(file)));
+        }
+        Collections.sort(sized, (a, b) -> Long.compare(b.size, a.size));
+        for (int i = 0; i < count; i++) {
+            files.set(i, sized.get(i).file);
+        }
+    }
+
+    /**
+     * Returns the size of an APK, or of the APKs inside a cluster package. Installed apps live
+     * one level further down, in {@code ~~<random>/<package>-<random>/}, so directories are
+     * searched that deep for APKs.
+     */
+    private static long getPackageSize(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        return getApkSize(file, 0);
+    }
+
+    private static long getApkSize(File dir, int depth) {
+        long size = 0;
+        final File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    if (depth < MAX_PACKAGE_DIR_DEPTH) {
+                        size += getApkSize(child, depth + 1);
+                    }
+                } else if (child.getName().endsWith(APK_FILE_EXTENSION)) {
+                    size += child.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    private static class SizedFile {
+        final File file;
+        final long size;
+
+        SizedFile(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
     private final PackageParser2 mPackageParser;
 
     private final ExecutorService mExecutorService;
@@ -31,6 +31,11 @@ public class PreferredIntentResolver
         return new PreferredActivity[size];
     }
 
+    @Override
+    protected boolean isMatchCacheEnabled() {
+        return true;
+    }
+
     @Override
     protected boolean isPackageForFilter(String packageName, PreferredActivity filter) {
         return packageName.equals(filter.mPref.mComponent.getPackageName());
@@ -22,7 +22,6 @@ import android.os.FileUtils;
 import android.os.Parcel;
 import android.system.ErrnoException;
 import android.system.Os;
-import android.system.OsConstants;
 import android.system.StructStat;
 import android.util.Slog;
 
@@ -30,17 +29,28 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.pm.parsing.pkg.PackageImpl;
 import com.android.server.pm.parsing.pkg.ParsedPackage;
 
-import libcore.io.IoUtils;
-
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class PackageCacher {
 
     private static final String TAG = "PackageCacher";
 
+    /**
+     * Leads every cache entry. The header that follows it identifies the exact package file the
+     * entry was produced from: its absolute path, mod-time and size. An entry is only used when
+     * all three still match, so a different package that happens to share a file name, or a
+     * package replaced in place, is re-parsed instead of being served stale.
+     */
+    private static final int CACHE_ENTRY_MAGIC = 0x50434831; // "PCH1"
+
     /**
      * Total number of packages that were read from the cache.  We use it only for logging.
      */
@@ -112,34 +122,59 @@ public class PackageCacher {
     }
 
     /**
-     * Given a {@code packageFile} and a {@code cacheFile} returns whether the
-     * cache file is up to date based on the mod-time of both files.
+     * Stats the given package file, returning {@code null} if that fails.
      */
-    private static boolean isCacheUpToDate(File packageFile, File cacheFile) {
+    private static StructStat statPackage(File packageFile) {
         try {
             // NOTE: We don't use the File.lastModified API because it has the very
             // non-ideal failure mode of returning 0 with no excepions thrown.
             // The nio2 Files API is a little better but is considerably more expensive.
-            final StructStat pkg = Os.stat(packageFile.getAbsolutePath());
-            final StructStat cache = Os.stat(cacheFile.getAbsolutePath());
-            return pkg.st_mtime < cache.st_mtime;
+            return Os.stat(packageFile.getAbsolutePath());
         } catch (ErrnoException ee) {
-            // The most common reason why stat fails is that a given cache file doesn't
-            // exist. We ignore that here. It's easy to reason that it's safe to say the
-            // cache isn't up to date if we see any sort of exception here.
-            //
-            // (1) Exception while stating the package file : This should never happen,
-            // and if it does, we do a full package parse (which is likely to throw the
-            // same exception).
-            // (2) Exception while stating the cache file : If the file doesn't exist, the
-            // cache is obviously out of date. If the file *does* exist, we can't read it.
-            // We will attempt to delete and recreate it after parsing the package.
-            if (ee.errno != OsConstants.ENOENT) {
-                Slog.w("Error while stating package cache : ", ee);
-            }
+            // This should never happen, and if it does, we do a full package parse
+            // (which is likely to throw the same exception).
+            Slog.w(TAG, "Error while stating package " + packageFile, ee);
+            return null;
+        }
+    }
 
-            return false;
+    private static byte[] toHeader(File packageFile, StructStat stat) {
+        final byte[] path = packageFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer header = ByteBuffer.allocate(4 + 8 + 8 + 4 + path.length);
+        header.putInt(CACHE_ENTRY_MAGIC);
+        header.putLong(stat.st_mtime);
+        header.putLong(stat.st_size);
+        header.putInt(path.length);
+        header.put(path);
+        return header.array();
+    }
+
+    /**
+     * Given a {@code packageFile} and the mapped contents of its cache file, returns the
+     * serialized package if the entry was produced from the same path, mod-time and size,
+     * or {@code null} if the cache entry is out of date.
+     */
+    private static byte[] readIfUpToDate(File packageFile, StructStat stat, ByteBuffer entry) {
+        if (entry.remaining() < 4 + 8 + 8 + 4 || entry.getInt() != CACHE_ENTRY_MAGIC) {
+            return null;
+        }
+        if (entry.getLong() != stat.st_mtime || entry.getLong() != stat.st_size) {
+            return null;
         }
+        final byte[] expectedPath = packageFile.getAbsolutePath().getBytes(
+                StandardCharsets.UTF_8);
+        final int pathLength = entry.getInt();
+        if (pathLength != expectedPath.length || entry.remaining() < pathLength) {
+            return null;
+        }
+        for (int i = 0; i < pathLength; i++) {
+            if (entry.get() != expectedPath[i]) {
+                return null;
+            }
+        }
+        final byte[] bytes = new byte[entry.remaining()];
+        entry.get(bytes);
+        return bytes;
     }
 
     /**
@@ -149,14 +184,28 @@ public class PackageCacher {
     public ParsedPackage getCachedResult(File packageFile, int flags) {
         final String cacheKey = getCacheKey(packageFile, flags);
         final File cacheFile = new File(mCacheDir, cacheKey);
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        final StructStat stat = statPackage(packageFile);
+        if (stat == null) {
+            return null;
+        }
 
         try {
+            // Map the entry rather than reading it through a growing buffer; only the
+            // serialized package is copied out, and only once the header has matched.
+            final byte[] bytes;
+            try (FileInputStream fis = new FileInputStream(cacheFile);
+                    FileChannel channel = fis.getChannel()) {
+                final MappedByteBuffer entry = channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                bytes = readIfUpToDate(packageFile, stat, entry);
+            }
             // If the cache is not up to date, return null.
-            if (!isCacheUpToDate(packageFile, cacheFile)) {
+            if (bytes == null) {
                 return null;
             }
-
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
             return fromCacheEntry(bytes);
         } catch (Throwable e) {
             Slog.w(TAG, "Error reading package cache: ", e);
@@ -182,6 +231,11 @@ public class PackageCacher {
                 }
             }
 
+            final StructStat stat = statPackage(packageFile);
+            if (stat == null) {
+                return;
+            }
+
             final byte[] cacheEntry = toCacheEntry(parsed);
 
             if (cacheEntry == null) {
@@ -189,6 +243,7 @@ public class PackageCacher {
             }
 
             try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
+                fos.write(toHeader(packageFile, stat));
                 fos.write(cacheEntry);
             } catch (IOException ioe) {
                 Slog.w(TAG, "Error writing cache entry.", ioe);
@@ -329,6 +329,12 @@ public class AlarmManagerServiceTest {
                 callingUid, TEST_CALLING_PACKAGE);
     }
 
+    private void setWindowedTestAlarm(int type, long triggerTime, long windowLength,
+            PendingIntent operation) {
+        mService.setImpl(type, triggerTime, windowLength, 0, operation, null, "test", 0, null,
+                null, TEST_CALLING_UID, TEST_CALLING_PACKAGE);
+    }
+
     private void setTestAlarmWithListener(int type, long triggerTime, IAlarmListener listener) {
         mService.setImpl(type, triggerTime, AlarmManager.WINDOW_EXACT, 0,
                 null, listener, "test", AlarmManager.FLAG_STANDALONE, null, null,
@@ -1096,6 +1102,60 @@ public class AlarmManagerServiceTest {
         }
     }
 
+    @Test
+    public void alarmCoalescesIntoEarliestIntersectingBatch() {
+        final int numBatches = mService.mAlarmBatches.size();
+        setWindowedTestAlarm(ELAPSED_REALTIME_WAKEUP, mNowElapsedTest + 1000,
+                AlarmManager.WINDOW_EXACT, getNewMockPendingIntent());
+        setWindowedTestAlarm(ELAPSED_REALTIME_WAKEUP, mNowElapsedTest + 3000,
+                AlarmManager.WINDOW_EXACT, getNewMockPendingIntent());
+        assertEquals(numBatches + 2, mService.mAlarmBatches.size());
+
+        // This window intersects both batches, so it should join the earlier one.
+        setWindowedTestAlarm(ELAPSED_REALTIME_WAKEUP, mNowElapsedTest + 500, 3000,
+                getNewMockPendingIntent());
+        assertEquals(numBatches + 2, mService.mAlarmBatches.size());
+        assertEquals(mNowElapsedTest + 1000, mTestTimer.getElapsed());
+        assertEquals(2, mService.mAlarmBatches.get(0).size());
+    }
+
+    @Test
+    public void removingAlarmRebatchesItsBatch() {
+        final int numBatches = mService.mAlarmBatches.size();
+        final PendingIntent pi1 = getNewMockPendingIntent();
+        final PendingIntent pi2 = getNewMockPendingIntent();
+        setWindowedTestAlarm(ELAPSED_REALTIME_WAKEUP, mNowElapsedTest + 1000, 1000, pi1);
+        setWindowedTestAlarm(ELAPSED_REALTIME_WAKEUP, mNowElapsedTest + 1500, 1000, pi2);
+        // Both windows include +1500, so the alarms share a batch that starts then.
+        assertEquals(numBatches + 1, mService.mAlarmBatches.size());
+        assertEquals(mNowElapsedTest + 1500, mTestTimer.getElapsed());
+
+        mService.removeLocked(pi2, null);
+        assertEquals(numBatches + 1, mService.mAlarmBatches.size());
+        assertEquals(mNowElapsedTest + 1000, mTestTimer.getElapsed());
+        assertEquals(1, mService.mAlarmsPerUid.get(TEST_CALLING_UID));
+    }
+
+    @Test
+    public void removingNextWakeFromIdleFindsTheNextOne() {
+        final PendingIntent pi1 = getNewMockPendingIntent();
+        final PendingIntent pi2 = getNewMockPendingIntent();
+        mService.setImpl(ELAPSED_REALTIME_WAKEUP, mNowElapsedTest + 1000,
+                AlarmManager.WINDOW_EXACT, 0, pi1, null, "test",
+                AlarmManager.FLAG_STANDALONE | AlarmManager.FLAG_WAKE_FROM_IDLE, null, null,
+                TEST_CALLING_UID, TEST_CALLING_PACKAGE);
+        mService.setImpl(ELAPSED_REALTIME_WAKEUP, mNowElapsedTest + 2000,
+                AlarmManager.WINDOW_EXACT, 0, pi2, null, "test",
+                AlarmManager.FLAG_STANDALONE | AlarmManager.FLAG_WAKE_FROM_IDLE, null, null,
+                TEST_CALLING_UID, TEST_CALLING_PACKAGE);
+        assertEquals(pi1, mService.mNextWakeFromIdle.operation);
+
+        // The alarm left is in a batch the removal doesn't touch.
+        mService.removeLocked(pi1, null);
+        assertNotNull(mService.mNextWakeFromIdle);
+        assertEquals(pi2, mService.mNextWakeFromIdle.operation);
+    }
+
     @After
     public void tearDown() {
         if (mMockingSession != null) {
@@ -1363,6 +1363,51 @@ public class MockingOomAdjusterTests {
                 SCHED_GROUP_DEFAULT);
     }
 
+    @SuppressWarnings("GuardedBy")
+    @Test
+    public void testUpdateOomAdj_ForHosts_Unbind() {
+        ProcessRecord app = spy(makeDefaultProcessRecord(MOCKAPP_PID, MOCKAPP_UID,
+                MOCKAPP_PROCESSNAME, MOCKAPP_PACKAGENAME, false));
+        ProcessRecord app2 = spy(makeDefaultProcessRecord(MOCKAPP2_PID, MOCKAPP2_UID,
+                MOCKAPP2_PROCESSNAME, MOCKAPP2_PACKAGENAME, false));
+        ProcessRecord app3 = spy(makeDefaultProcessRecord(MOCKAPP3_PID, MOCKAPP3_UID,
+                MOCKAPP3_PROCESSNAME, MOCKAPP3_PACKAGENAME, false));
+        app2.setHasForegroundServices(true, 0);
+        ServiceRecord s = bindService(app, app2, null, 0, mock(IBinder.class));
+        bindProvider(app3, app, null, null, false);
+        ArrayList<ProcessRecord> lru = sService.mProcessList.mLruProcesses;
+        lru.clear();
+        lru.add(app);
+        lru.add(app2);
+        lru.add(app3);
+        sService.mWakefulness = PowerManagerInternal.WAKEFULNESS_AWAKE;
+        sService.mOomAdjuster.updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_NONE);
+
+        assertProcStates(app, PROCESS_STATE_FOREGROUND_SERVICE, PERCEPTIBLE_APP_ADJ,
+                SCHED_GROUP_DEFAULT);
+        assertProcStates(app3, PROCESS_STATE_FOREGROUND_SERVICE, PERCEPTIBLE_APP_ADJ,
+                SCHED_GROUP_DEFAULT);
+
+        // Drop the binding; only the service host and the provider it uses need updating.
+        app2.connections.clear();
+        s.getConnections().clear();
+        sService.mOomAdjuster.updateOomAdjForHostLocked(app,
+                OomAdjuster.OOM_ADJ_REASON_UNBIND_SERVICE);
+
+        final int appProcState = app.setProcState;
+        final int app3ProcState = app3.setProcState;
+        assertTrue(app.setAdj > PERCEPTIBLE_APP_ADJ);
+        assertTrue(app3.setAdj > PERCEPTIBLE_APP_ADJ);
+        assertProcStates(app2, PROCESS_STATE_FOREGROUND_SERVICE, PERCEPTIBLE_APP_ADJ,
+                SCHED_GROUP_DEFAULT);
+
+        // A full update must agree with the partial one.
+        sService.mOomAdjuster.updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_NONE);
+        lru.clear();
+        assertEquals(appProcState, app.setProcState);
+        assertEquals(app3ProcState, app3.setProcState);
+    }
+
     @SuppressWarnings("GuardedBy")
     @Test
     public void testUpdateOomAdj_DoAll_BoundFgService_Cycle() {
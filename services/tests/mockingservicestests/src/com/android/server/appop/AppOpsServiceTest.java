@@ -21,6 +21,7 @@ import static android.app.AppOpsManager.FILTER_BY_UID;
 import static android.app.AppOpsManager.MODE_ALLOWED;
 import static android.app.AppOpsManager.MODE_ERRORED;
 import static android.app.AppOpsManager.MODE_FOREGROUND;
+import static android.app.AppOpsManager.MODE_IGNORED;
 import static android.app.AppOpsManager.OP_COARSE_LOCATION;
 import static android.app.AppOpsManager.OP_FLAGS_ALL;
 import static android.app.AppOpsManager.OP_READ_SMS;
@@ -75,6 +76,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -99,6 +101,7 @@ public class AppOpsServiceTest {
     private int mMyUid;
     private long mTestStartMillis;
     private StaticMockitoSession mMockingSession;
+    private PackageManagerInternal mMockPackageManagerInternal;
 
     private void setupAppOpsService() {
         mAppOpsService = new AppOpsService(mAppOpsFile, mHandler, spy(sContext));
@@ -143,14 +146,9 @@ public class AppOpsServiceTest {
 
         // Mock LocalServices.getService(PackageManagerInternal.class).getPackage dependency
         // needed by AppOpsService
-        PackageManagerInternal mockPackageManagerInternal = mock(PackageManagerInternal.class);
-        AndroidPackage mockMyPkg = mock(AndroidPackage.class);
-        when(mockMyPkg.isPrivileged()).thenReturn(false);
-        when(mockMyPkg.getUid()).thenReturn(mMyUid);
-        when(mockMyPkg.getAttributions()).thenReturn(Collections.emptyList());
-
-        when(mockPackageManagerInternal.getPackage(sMyPackageName)).thenReturn(mockMyPkg);
-        doReturn(mockPackageManagerInternal).when(
+        mMockPackageManagerInternal = mock(PackageManagerInternal.class);
+        mockPackage(sMyPackageName, mMyUid);
+        doReturn(mMockPackageManagerInternal).when(
                 () -> LocalServices.getService(PackageManagerInternal.class));
 
         // Mock behavior to use specific Settings.Global.APPOP_HISTORY_PARAMETERS
@@ -456,6 +454,98 @@ public class AppOpsServiceTest {
                 false, null, false)).isNotEqualTo(MODE_ALLOWED);
     }
 
+    @Test
+    public void testNoteOperation_concurrentMixedUids() throws Exception {
+        final int numThreads = 8;
+        final int numUids = 6;
+        final int notesPerThread = 5000;
+
+        final int[] uids = new int[numUids];
+        final String[] packageNames = new String[numUids];
+        final int[] modes = new int[numUids];
+        for (int i = 0; i < numUids; i++) {
+            uids[i] = Process.FIRST_APPLICATION_UID + 5000 + i;
+            packageNames[i] = "com.android.server.appop.test" + i;
+            modes[i] = i % 2 == 0 ? MODE_ALLOWED : MODE_ERRORED;
+            mockPackage(packageNames[i], uids[i]);
+            mAppOpsService.setMode(OP_READ_SMS, uids[i], packageNames[i], modes[i]);
+        }
+
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(numThreads);
+        final AtomicInteger unexpectedModes = new AtomicInteger();
+        for (int t = 0; t < numThreads; t++) {
+            final int firstUid = t;
+            new Thread(() -> {
+                try {
+                    startLatch.await();
+                    for (int n = 0; n < notesPerThread; n++) {
+                        final int i = (firstUid + n) % numUids;
+                        if (mAppOpsService.noteOperation(OP_READ_SMS, uids[i], packageNames[i],
+                                null, false, null, false) != modes[i]) {
+                            unexpectedModes.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    unexpectedModes.incrementAndGet();
+                } finally {
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+
+        startLatch.countDown();
+        assertThat(doneLatch.await(30, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(unexpectedModes.get()).isEqualTo(0);
+        for (int i = 0; i < numUids; i++) {
+            final List<PackageOps> pkgOps = mAppOpsService.getOpsForPackage(uids[i],
+                    packageNames[i], new int[] {OP_READ_SMS});
+            assertThat(pkgOps).hasSize(1);
+            final OpEntry opEntry = pkgOps.get(0).getOps().get(0);
+            assertThat(opEntry.getMode()).isEqualTo(modes[i]);
+            if (modes[i] == MODE_ALLOWED) {
+                assertThat(opEntry.getLastAccessTime(OP_FLAGS_ALL)).isAtLeast(mTestStartMillis);
+            } else {
+                assertThat(opEntry.getLastRejectTime(OP_FLAGS_ALL)).isAtLeast(mTestStartMillis);
+            }
+        }
+    }
+
+    @Test
+    public void testCheckOperation_seesModeChanges() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, sMyPackageName, MODE_ALLOWED);
+        // Verify the package, then check twice so that the second check is served from the
+        // snapshot of the uid
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, sMyPackageName, null, false, null,
+                false);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, sMyPackageName, MODE_ERRORED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ERRORED);
+
+        mAppOpsService.setUidMode(OP_READ_SMS, mMyUid, MODE_IGNORED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_IGNORED);
+
+        mAppOpsService.setUidMode(OP_READ_SMS, mMyUid, AppOpsManager.opToDefaultMode(OP_READ_SMS));
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ERRORED);
+    }
+
+    private void mockPackage(String packageName, int uid) {
+        AndroidPackage mockPkg = mock(AndroidPackage.class);
+        when(mockPkg.isPrivileged()).thenReturn(false);
+        when(mockPkg.getUid()).thenReturn(uid);
+        when(mockPkg.getAttributions()).thenReturn(Collections.emptyList());
+
+        when(mMockPackageManagerInternal.getPackage(packageName)).thenReturn(mockPkg);
+    }
+
     private List<PackageOps> getLoggedOps() {
         return mAppOpsService.getOpsForPackage(mMyUid, sMyPackageName, null /* all ops */);
     }
@@ -30,6 +30,8 @@ import static com.android.server.job.JobSchedulerService.RARE_INDEX;
 import static com.android.server.job.JobSchedulerService.sElapsedRealtimeClock;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
@@ -53,6 +55,7 @@ import android.os.Looper;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
+import android.util.ArraySet;
 
 import com.android.server.AppStateTracker;
 import com.android.server.DeviceIdleInternal;
@@ -842,4 +845,31 @@ public class JobSchedulerServiceTest {
                             0, ""));
         }
     }
+
+    /**
+     * Tests that checking the jobs controllers reported as changed drops the ones that are no
+     * longer ready from the pending queue, and leaves the other pending jobs alone.
+     */
+    @Test
+    public void testCheckChangedJobList_onlyChangedJobsAreRemovedFromPending() {
+        final JobStatus changedJob = createJobStatus(
+                "testCheckChangedJobList", createJobInfo().setRequiresCharging(true));
+        final JobStatus unchangedJob = createJobStatus(
+                "testCheckChangedJobList", createJobInfo().setRequiresCharging(true));
+        synchronized (mService.mLock) {
+            mService.mPendingJobs.add(changedJob);
+            mService.mPendingJobs.add(unchangedJob);
+
+            final ArraySet<JobStatus> changedJobs = new ArraySet<>();
+            changedJobs.add(changedJob);
+            mService.onControllerStateChanged(changedJobs);
+            // The listener must copy the set.
+            changedJobs.clear();
+            mService.checkChangedJobListLocked();
+
+            assertFalse(mService.mPendingJobs.contains(changedJob));
+            assertTrue(mService.mPendingJobs.contains(unchangedJob));
+            assertEquals(1, mService.mPendingJobs.size());
+        }
+    }
 }
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertEquals;
 
 import android.os.Process;
 import android.platform.test.annotations.Presubmit;
+import android.util.ArrayMap;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SmallTest;
@@ -71,4 +72,15 @@ public class BinderCallsStatsServiceTest {
 
         assertEquals(Integer.MAX_VALUE, workSourceProvider.resolveWorkSourceUid(1));
     }
+
+    @Test
+    public void parseClassSamplingIntervals() {
+        ArrayMap<String, Integer> intervals = BinderCallsStatsService.parseClassSamplingIntervals(
+                "com.example.IFoo$Stub:1; com.example.IBar:10;bad;com.example.IBaz:x");
+
+        assertEquals(2, intervals.size());
+        assertEquals(Integer.valueOf(1), intervals.get("com.example.IFoo$Stub"));
+        assertEquals(Integer.valueOf(10), intervals.get("com.example.IBar"));
+        assertEquals(0, BinderCallsStatsService.parseClassSamplingIntervals(null).size());
+    }
 }
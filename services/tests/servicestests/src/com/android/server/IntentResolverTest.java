@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+
+import android.annotation.NonNull;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link IntentResolver}.
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:IntentResolverTest
+ */
+@SmallTest
+@Presubmit
+public class IntentResolverTest {
+    private static final String[] URLS = {
+            "https://www.example.com/",
+            "https://EXAMPLE.com/path",
+            "https://m.example.com/deep/link",
+            "http://www.example.com/",
+            "https://other.org/",
+            "https://host0.test/",
+            "https://sub.host7.test/path",
+            "https://www.éxample.com/",
+            "mailto:someone@example.com",
+    };
+
+    @Test
+    public void testHostIndexMatchesAllFilters() throws Exception {
+        final List<IntentFilter> filters = createFilters();
+        final TestResolver indexed = new TestResolver(false);
+        final TestResolver cached = new TestResolver(true);
+        for (IntentFilter filter : filters) {
+            indexed.addFilter(filter);
+            cached.addFilter(filter);
+        }
+
+        for (String url : URLS) {
+            final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(url))
+                    .addCategory(Intent.CATEGORY_BROWSABLE);
+            final List<IntentFilter> expected = matchAll(filters, intent);
+            assertEquals(url, expected, indexed.queryIntent(intent, null, false, 0));
+            assertEquals(url, expected, cached.queryIntent(intent, null, false, 0));
+            // And again, from the match cache.
+            assertEquals(url, expected, cached.queryIntent(intent, null, false, 0));
+        }
+    }
+
+    /** Resolves the intent by matching every filter, in the order the resolver sorts them. */
+    private static List<IntentFilter> matchAll(List<IntentFilter> filters, Intent intent) {
+        final List<IntentFilter> result = new ArrayList<>();
+        for (IntentFilter filter : filters) {
+            if (filter.match(intent.getAction(), null, intent.getScheme(), intent.getData(),
+                    intent.getCategories(), "IntentResolverTest") >= 0) {
+                result.add(filter);
+            }
+        }
+        Collections.sort(result, (a, b) -> Integer.compare(b.getPriority(), a.getPriority()));
+        return result;
+    }
+
+    @Test
+    public void testMatchCacheInvalidatedOnAddAndRemove() throws Exception {
+        final TestResolver resolver = new TestResolver(true);
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("https://example.com/"));
+        assertEquals(0, resolver.queryIntent(intent, null, false, 0).size());
+
+        final IntentFilter filter = createFilter("example.com", 0);
+        resolver.addFilter(filter);
+        assertEquals(Arrays.asList(filter), resolver.queryIntent(intent, null, false, 0));
+
+        resolver.removeFilter(filter);
+        assertEquals(0, resolver.queryIntent(intent, null, false, 0).size());
+    }
+
+    private static List<IntentFilter> createFilters() throws Exception {
+        final List<IntentFilter> filters = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            filters.add(createFilter("host" + i + ".test", i % 3));
+            filters.add(createFilter("*.host" + i + ".test", 0));
+        }
+        filters.add(createFilter("www.example.com", 0));
+        filters.add(createFilter("Example.com", 1));
+        filters.add(createFilter("*.example.com", 0));
+        filters.add(createFilter("*", -1));
+        filters.add(createFilter("*xample.com", 0));
+        filters.add(createFilter("www.éxample.com", 0));
+        filters.add(createFilter(null, 0));
+        return filters;
+    }
+
+    private static IntentFilter createFilter(String host, int priority) throws Exception {
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_VIEW);
+        filter.addCategory(Intent.CATEGORY_BROWSABLE);
+        filter.addDataScheme("http");
+        filter.addDataScheme("https");
+        if (host != null) {
+            filter.addDataAuthority(host, null);
+        }
+        filter.setPriority(priority);
+        return filter;
+    }
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        private final boolean mMatchCacheEnabled;
+
+        TestResolver(boolean matchCacheEnabled) {
+            mMatchCacheEnabled = matchCacheEnabled;
+        }
+
+        @Override
+        protected boolean isMatchCacheEnabled() {
+            return mMatchCacheEnabled;
+        }
+
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+
+        @Override
+        protected IntentFilter getIntentFilter(@NonNull IntentFilter input) {
+            return input;
+        }
+    }
+}
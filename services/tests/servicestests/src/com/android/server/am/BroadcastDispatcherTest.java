@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.content.Intent;
+import android.os.UserHandle;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+/**
+ * Test class for {@link BroadcastDispatcher}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:BroadcastDispatcherTest
+ */
+@SmallTest
+@Presubmit
+public class BroadcastDispatcherTest {
+    private static final String ACTION_A = "com.android.server.am.ACTION_A";
+    private static final String ACTION_B = "com.android.server.am.ACTION_B";
+
+    private BroadcastDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new BroadcastDispatcher(null /* queue */,
+                new BroadcastConstants("test_broadcast_constants"), null /* handler */,
+                new Object());
+    }
+
+    @Test
+    public void testReplaceQueuedBroadcast() {
+        final BroadcastRecord a1 = createBroadcastRecord(ACTION_A, UserHandle.USER_SYSTEM);
+        final BroadcastRecord b = createBroadcastRecord(ACTION_B, UserHandle.USER_SYSTEM);
+        mDispatcher.enqueueOrderedBroadcastLocked(a1);
+        mDispatcher.enqueueOrderedBroadcastLocked(b);
+
+        final BroadcastRecord a2 = createBroadcastRecord(ACTION_A, UserHandle.USER_SYSTEM);
+        assertSame(a1, mDispatcher.replaceBroadcastLocked(a2, "TEST"));
+        final BroadcastRecord a3 = createBroadcastRecord(ACTION_A, UserHandle.USER_SYSTEM);
+        assertSame(a2, mDispatcher.replaceBroadcastLocked(a3, "TEST"));
+        assertEquals(2, mDispatcher.getReplacedCountLocked());
+        assertEquals(2, mDispatcher.getPendingCountLocked());
+
+        // The replacement keeps its predecessor's place in the queue.
+        assertSame(a3, nextBroadcast());
+        assertSame(b, nextBroadcast());
+    }
+
+    @Test
+    public void testReplaceOnlyMatchesSameUser() {
+        final BroadcastRecord user0 = createBroadcastRecord(ACTION_A, UserHandle.USER_SYSTEM);
+        mDispatcher.enqueueOrderedBroadcastLocked(user0);
+
+        final BroadcastRecord user1 = createBroadcastRecord(ACTION_A, UserHandle.USER_SYSTEM + 1);
+        assertNull(mDispatcher.replaceBroadcastLocked(user1, "TEST"));
+        assertEquals(0, mDispatcher.getReplacedCountLocked());
+    }
+
+    @Test
+    public void testReplaceAfterDispatchStarted() {
+        final BroadcastRecord first = createBroadcastRecord(ACTION_A, UserHandle.USER_SYSTEM);
+        final BroadcastRecord second = createBroadcastRecord(ACTION_A, UserHandle.USER_SYSTEM);
+        mDispatcher.enqueueOrderedBroadcastLocked(first);
+        mDispatcher.enqueueOrderedBroadcastLocked(second);
+
+        // The in-flight broadcast can no longer be replaced, but the one queued behind it can.
+        assertSame(first, nextBroadcast());
+        final BroadcastRecord third = createBroadcastRecord(ACTION_A, UserHandle.USER_SYSTEM);
+        assertSame(second, mDispatcher.replaceBroadcastLocked(third, "TEST"));
+
+        // Once everything has been dispatched there is nothing left to replace.
+        assertSame(third, nextBroadcast());
+        final BroadcastRecord fourth = createBroadcastRecord(ACTION_A, UserHandle.USER_SYSTEM);
+        assertNull(mDispatcher.replaceBroadcastLocked(fourth, "TEST"));
+    }
+
+    private BroadcastRecord nextBroadcast() {
+        final BroadcastRecord r = mDispatcher.getNextBroadcastLocked(0);
+        mDispatcher.retireBroadcastLocked(r);
+        return r;
+    }
+
+    private static BroadcastRecord createBroadcastRecord(String action, int userId) {
+        return new BroadcastRecord(
+                null /* queue */,
+                new Intent(action),
+                null /* callerApp */,
+                null  /* callerPackage */,
+                null /* callerFeatureId */,
+                0 /* callingPid */,
+                0 /* callingUid */,
+                false /* callerInstantApp */,
+                null /* resolvedType */,
+                null /* requiredPermissions */,
+                0 /* appOp */,
+                null /* options */,
+                new ArrayList<>(),
+                null /* resultTo */,
+                0 /* resultCode */,
+                null /* resultData */,
+                null /* resultExtras */,
+                true /* serialized */,
+                false /* sticky */,
+                false /* initialSticky */,
+                userId,
+                false, /* allowBackgroundActivityStarts */
+                false /* timeoutExempt */ );
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static android.testing.DexmakerShareClassLoaderRule.runWithDexmakerShareClassLoader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test class for the manifest receiver batching of {@link BroadcastQueue}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:BroadcastQueueTest
+ */
+@SmallTest
+@Presubmit
+public class BroadcastQueueTest {
+    private static final String ACTION = "com.android.server.am.ACTION_BATCHED";
+    private static final String PACKAGE = "com.example.receivers";
+    private static final int UID = 10_123;
+
+    private ActivityManagerService mService;
+    private ProcessRecord mApp;
+    private BroadcastQueue mForegroundQueue;
+    private BroadcastQueue mBackgroundQueue;
+
+    @Before
+    public void setUp() {
+        // Need to run with dexmaker share class loader to mock package private classes.
+        runWithDexmakerShareClassLoader(() -> {
+            mService = mock(ActivityManagerService.class);
+            mApp = mock(ProcessRecord.class);
+        });
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mForegroundQueue = new BroadcastQueue(mService, handler, "foreground",
+                createConstants(), false /* allowDelayBehindServices */);
+        mBackgroundQueue = new BroadcastQueue(mService, handler, "background",
+                createConstants(), true /* allowDelayBehindServices */);
+    }
+
+    @Test
+    public void testBackgroundQueueDoesNotBatch() {
+        final BroadcastRecord fg = startBroadcast(mForegroundQueue, 3);
+        final BroadcastRecord bg = startBroadcast(mBackgroundQueue, 3);
+        fg.curApp = mApp;
+        bg.curApp = mApp;
+
+        assertTrue(mForegroundQueue.canBatchManifestReceiversLocked(fg, mApp));
+        assertFalse(mBackgroundQueue.canBatchManifestReceiversLocked(bg, mApp));
+    }
+
+    @Test
+    public void testFinishOnBackgroundQueueMovesToReceiverInSameProcess() {
+        final BroadcastRecord r = startBroadcast(mBackgroundQueue, 3);
+
+        // The next receiver runs in the same process, so the broadcast must not wait behind
+        // background services; that would drop the finishes the app sends for it.
+        assertTrue(mBackgroundQueue.finishReceiverLocked(r, 0, null, null, false,
+                true /* waitForServices */));
+        assertEquals(BroadcastRecord.IDLE, r.state);
+        assertNull(r.curComponent);
+        assertNull(r.receiver);
+    }
+
+    @Test
+    public void testProcessDeathMidBatch() {
+        final BroadcastRecord r = startBroadcast(mForegroundQueue, 4);
+        // Receivers 1 and 2 were sent ahead of their turn, and 0 has just finished.
+        r.delivery[1] = BroadcastRecord.DELIVERY_DELIVERED;
+        r.delivery[2] = BroadcastRecord.DELIVERY_DELIVERED;
+        r.manifestCount = 3;
+        r.batchApp = mApp;
+        r.batchPid = 1234;
+        r.batchEnd = 2;
+        r.state = BroadcastRecord.IDLE;
+        r.receiver = null;
+        r.nextReceiver = 2;
+
+        // The mocked process has no thread, as if it had died.
+        assertFalse(mForegroundQueue.resumeBatchedReceiverLocked(r, 1));
+
+        // The rest of the batch goes the regular way, and is counted again as it does.
+        assertEquals(1, r.manifestCount);
+        assertEquals(BroadcastRecord.DELIVERY_PENDING, r.delivery[1]);
+        assertEquals(BroadcastRecord.DELIVERY_PENDING, r.delivery[2]);
+        assertEquals(BroadcastRecord.DELIVERY_PENDING, r.delivery[3]);
+        assertNull(r.batchApp);
+        assertEquals(-1, r.batchEnd);
+    }
+
+    /**
+     * Makes a broadcast to {@code count} manifest receivers in one process the active one on
+     * {@code queue}, with the first receiver running.
+     */
+    private BroadcastRecord startBroadcast(BroadcastQueue queue, int count) {
+        final List<ResolveInfo> receivers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            receivers.add(createResolveInfo("Receiver" + i));
+        }
+        final BroadcastRecord r = createBroadcastRecord(queue, receivers);
+        queue.enqueueOrderedBroadcastLocked(r);
+        assertSame(r, queue.mDispatcher.getNextBroadcastLocked(0));
+
+        final ActivityInfo first = receivers.get(0).activityInfo;
+        r.nextReceiver = 1;
+        r.delivery[0] = BroadcastRecord.DELIVERY_DELIVERED;
+        r.manifestCount = 1;
+        r.state = BroadcastRecord.APP_RECEIVE;
+        r.curReceiver = first;
+        r.curComponent = new ComponentName(PACKAGE, first.name);
+        r.receiver = new Binder();
+        return r;
+    }
+
+    private static ResolveInfo createResolveInfo(String name) {
+        final ApplicationInfo appInfo = new ApplicationInfo();
+        appInfo.packageName = PACKAGE;
+        appInfo.uid = UID;
+        final ResolveInfo info = new ResolveInfo();
+        info.activityInfo = new ActivityInfo();
+        info.activityInfo.applicationInfo = appInfo;
+        info.activityInfo.packageName = PACKAGE;
+        info.activityInfo.processName = PACKAGE;
+        info.activityInfo.name = PACKAGE + "." + name;
+        return info;
+    }
+
+    private static BroadcastConstants createConstants() {
+        final BroadcastConstants constants = new BroadcastConstants("test_broadcast_constants");
+        constants.MAX_MANIFEST_BATCH = 4;
+        return constants;
+    }
+
+    private static BroadcastRecord createBroadcastRecord(BroadcastQueue queue, List receivers) {
+        return new BroadcastRecord(
+                queue,
+                new Intent(ACTION),
+                null /* callerApp */,
+                null  /* callerPackage */,
+                null /* callerFeatureId */,
+                0 /* callingPid */,
+                0 /* callingUid */,
+                false /* callerInstantApp */,
+                null /* resolvedType */,
+                null /* requiredPermissions */,
+                0 /* appOp */,
+                null /* options */,
+                receivers,
+                null /* resultTo */,
+                0 /* resultCode */,
+                null /* resultData */,
+                null /* resultExtras */,
+                false /* serialized */,
+                false /* sticky */,
+                false /* initialSticky */,
+                UserHandle.USER_SYSTEM,
+                false, /* allowBackgroundActivityStarts */
+                false /* timeoutExempt */ );
+    }
+}
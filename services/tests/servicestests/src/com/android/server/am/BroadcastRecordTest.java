@@ -16,7 +16,9 @@
 
 package com.android.server.am;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
@@ -94,6 +96,36 @@ public class BroadcastRecordTest {
         assertNull(verifyRemaining(recordU0, Collections.emptyList()));
     }
 
+    @Test
+    public void testCleanupDisabledPackageReceiversInBatch() {
+        final int user0 = UserHandle.USER_SYSTEM;
+        final String pkgToCleanup = "pkg.a";
+        final String pkgOther = "pkg.b";
+
+        // [pkg.b, pkg.b, pkg.a, pkg.b, pkg.b], where #1..#3 were batched while #1 is current.
+        final List<ResolveInfo> receivers = new ArrayList<>();
+        receivers.add(createResolveInfo(pkgOther, UserHandle.getUid(user0, 10001)));
+        receivers.add(createResolveInfo(pkgOther, UserHandle.getUid(user0, 10001)));
+        receivers.add(createResolveInfo(pkgToCleanup, UserHandle.getUid(user0, 10000)));
+        receivers.add(createResolveInfo(pkgOther, UserHandle.getUid(user0, 10001)));
+        receivers.add(createResolveInfo(pkgOther, UserHandle.getUid(user0, 10001)));
+        final BroadcastRecord record = createBroadcastRecord(receivers, user0);
+        record.nextReceiver = 2;
+        record.batchEnd = 3;
+        for (int i = 0; i <= 3; i++) {
+            record.delivery[i] = BroadcastRecord.DELIVERY_DELIVERED;
+        }
+
+        cleanupDisabledPackageReceivers(record, pkgToCleanup, user0);
+
+        assertEquals(4, record.receivers.size());
+        assertEquals(2, record.nextReceiver);
+        assertEquals(2, record.batchEnd);
+        assertSame(receivers.get(3), record.receivers.get(record.batchEnd));
+        assertEquals(BroadcastRecord.DELIVERY_DELIVERED, record.delivery[2]);
+        assertEquals(BroadcastRecord.DELIVERY_PENDING, record.delivery[3]);
+    }
+
     private static void cleanupDisabledPackageReceivers(BroadcastRecord record,
             String packageName, int userId) {
         record.cleanupDisabledPackageReceiversLocked(packageName, null /* filterByClasses */,
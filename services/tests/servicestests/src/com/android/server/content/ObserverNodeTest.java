@@ -21,7 +21,10 @@ import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -36,12 +39,14 @@ import android.os.Binder;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.UserHandle;
+import android.os.test.TestLooper;
 import android.util.ArraySet;
 
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.server.LocalServices;
 import com.android.server.content.ContentService.ObserverCollector;
+import com.android.server.content.ContentService.ObserverDispatcher;
 import com.android.server.content.ContentService.ObserverNode;
 
 import org.junit.Test;
@@ -167,6 +172,147 @@ public class ObserverNodeTest {
                 eq(ContentResolver.NOTIFY_UPDATE), anyInt());
     }
 
+    @Test
+    public void testDispatch_dropsDuplicateUris() throws Exception {
+        final int myUserHandle = UserHandle.myUserId();
+        setUidProcessState(ActivityManager.PROCESS_STATE_IMPORTANT_FOREGROUND);
+
+        final IContentObserver observer = mock(IContentObserver.class);
+        when(observer.asBinder()).thenReturn(new Binder());
+
+        final ObserverNode root = new ObserverNode("");
+        root.addObserverLocked(Uri.parse("content://authority/"), observer,
+                true, root, 0, 1000, myUserHandle);
+
+        final ObserverDispatcher dispatcher = new ObserverDispatcher(
+                new Handler(new TestLooper().getLooper()), 10_000);
+        final ObserverCollector collector = new ObserverCollector(dispatcher);
+        for (int i = 0; i < 3; i++) {
+            root.collectObserversLocked(Uri.parse("content://authority/1"), 0, null, false,
+                    0, myUserHandle, collector);
+            root.collectObserversLocked(Uri.parse("content://authority/2"), 0, null, false,
+                    0, myUserHandle, collector);
+        }
+        collector.dispatch();
+
+        verify(observer).onChangeEtc(eq(false), argThat(new UriSetMatcher(
+                        Uri.parse("content://authority/1"),
+                        Uri.parse("content://authority/2"))),
+                eq(0), anyInt());
+        assertEquals(6, dispatcher.getUrisIn());
+        assertEquals(1, dispatcher.getChangesOut());
+    }
+
+    @Test
+    public void testDispatch_coalescesBackgroundObservers() throws Exception {
+        final int myUserHandle = UserHandle.myUserId();
+        setUidProcessState(ActivityManager.PROCESS_STATE_CACHED_EMPTY);
+
+        final IContentObserver observer = mock(IContentObserver.class);
+        when(observer.asBinder()).thenReturn(new Binder());
+
+        final ObserverNode root = new ObserverNode("");
+        root.addObserverLocked(Uri.parse("content://authority/"), observer,
+                true, root, 0, 1000, myUserHandle);
+
+        final TestLooper looper = new TestLooper();
+        final ObserverDispatcher dispatcher = new ObserverDispatcher(
+                new Handler(looper.getLooper()), 10_000);
+        // Each notifyChange call uses its own collector
+        for (int i = 0; i < 100; i++) {
+            final ObserverCollector collector = new ObserverCollector(dispatcher);
+            root.collectObserversLocked(Uri.parse("content://authority/" + (i % 10)), 0, null,
+                    false, 0, myUserHandle, collector);
+            collector.dispatch();
+        }
+        looper.dispatchAll();
+        verify(observer, never()).onChangeEtc(anyBoolean(), any(), anyInt(), anyInt());
+
+        looper.moveTimeForward(10_000);
+        looper.dispatchAll();
+        final Uri[] expected = new Uri[10];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = Uri.parse("content://authority/" + i);
+        }
+        verify(observer).onChangeEtc(eq(false), argThat(new UriSetMatcher(expected)),
+                eq(0), anyInt());
+        assertEquals(100, dispatcher.getUrisIn());
+        assertEquals(1, dispatcher.getChangesOut());
+
+        // A later notification starts a new batch
+        final ObserverCollector collector = new ObserverCollector(dispatcher);
+        root.collectObserversLocked(Uri.parse("content://authority/1"), 0, null, false,
+                0, myUserHandle, collector);
+        collector.dispatch();
+        looper.moveTimeForward(10_000);
+        looper.dispatchAll();
+        verify(observer).onChangeEtc(eq(false), argThat(new UriSetMatcher(
+                        Uri.parse("content://authority/1"))),
+                eq(0), anyInt());
+        assertEquals(2, dispatcher.getChangesOut());
+    }
+
+    @Test
+    public void testDispatch_splitsLargeBatches() throws Exception {
+        final int myUserHandle = UserHandle.myUserId();
+        setUidProcessState(ActivityManager.PROCESS_STATE_IMPORTANT_FOREGROUND);
+
+        final IContentObserver observer = mock(IContentObserver.class);
+        when(observer.asBinder()).thenReturn(new Binder());
+
+        final ObserverNode root = new ObserverNode("");
+        root.addObserverLocked(Uri.parse("content://authority/"), observer,
+                true, root, 0, 1000, myUserHandle);
+
+        final ObserverDispatcher dispatcher = new ObserverDispatcher(
+                new Handler(new TestLooper().getLooper()), 10_000);
+        final ObserverCollector collector = new ObserverCollector(dispatcher);
+        final int count = ObserverDispatcher.MAX_URIS_PER_CHANGE * 2 + 1;
+        for (int i = 0; i < count; i++) {
+            root.collectObserversLocked(Uri.parse("content://authority/" + i), 0, null, false,
+                    0, myUserHandle, collector);
+        }
+        collector.dispatch();
+
+        verify(observer, times(3)).onChangeEtc(anyBoolean(), any(), anyInt(), anyInt());
+        assertEquals(3, dispatcher.getChangesOut());
+    }
+
+    @Test
+    public void testRemoveObserver_prunesEmptyChildren() {
+        final int myUserHandle = UserHandle.myUserId();
+
+        final IContentObserver first = new TestObserver().getContentObserver();
+        final IContentObserver second = new TestObserver().getContentObserver();
+        final ObserverNode root = new ObserverNode("");
+        root.addObserverLocked(Uri.parse("content://c/a/1"), first, false, root,
+                0, 0, myUserHandle);
+        root.addObserverLocked(Uri.parse("content://c/b/1"), second, false, root,
+                0, 0, myUserHandle);
+
+        root.removeObserverLocked(first);
+        ObserverCollector collector = mock(ObserverCollector.class);
+        root.collectObserversLocked(Uri.parse("content://c/a/1"), 0, null, false, 0,
+                myUserHandle, collector);
+        verify(collector, never()).collect(
+                any(), anyInt(), anyBoolean(), any(), anyInt(), anyInt());
+
+        collector = mock(ObserverCollector.class);
+        root.collectObserversLocked(Uri.parse("content://c/b/1"), 0, null, false, 0,
+                myUserHandle, collector);
+        verify(collector).collect(eq(second), anyInt(), anyBoolean(), any(), anyInt(), anyInt());
+
+        // Removing the last observer leaves nothing behind
+        assertTrue(root.removeObserverLocked(second));
+    }
+
+    private static void setUidProcessState(int procState) {
+        final ActivityManagerInternal ami = mock(ActivityManagerInternal.class);
+        when(ami.getUidProcessState(anyInt())).thenReturn(procState);
+        LocalServices.removeServiceForTest(ActivityManagerInternal.class);
+        LocalServices.addService(ActivityManagerInternal.class, ami);
+    }
+
     private static class UriSetMatcher implements ArgumentMatcher<Uri[]> {
         private final ArraySet<Uri> uris;
 
@@ -5,6 +5,7 @@ import static android.net.NetworkCapabilities.NET_CAPABILITY_OEM_PAID;
 import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -40,6 +41,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Clock;
 import java.time.ZoneOffset;
 import java.util.Arrays;
@@ -455,6 +459,128 @@ public class JobStoreTest {
                 taskStatus.getJob().isRequireBatteryNotLow());
     }
 
+    @Test
+    public void testRemovedJobIsNotPersisted() throws Exception {
+        final JobInfo task1 = new Builder(8, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobInfo task2 = new Builder(12, mComponent)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(true)
+                .build();
+        final JobStatus taskStatus1 = JobStatus.createFromJobInfo(task1, SOME_UID, null, -1, null);
+        final JobStatus taskStatus2 = JobStatus.createFromJobInfo(task2, SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(taskStatus1);
+        mTaskStoreUnderTest.add(taskStatus2);
+        waitForPendingIo();
+        final int appends = mTaskStoreUnderTest.getPersistStats().countAppends;
+
+        mTaskStoreUnderTest.remove(taskStatus1, true);
+        waitForPendingIo();
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        assertTasksEqual(task2, jobStatusSet.getAllJobs().get(0).getJob());
+        // Only the removal was written.
+        assertEquals(appends + 1, mTaskStoreUnderTest.getPersistStats().countAppends);
+        assertTrue(mTaskStoreUnderTest.getPersistStats().bytesWrittenLastSave > 0);
+    }
+
+    @Test
+    public void testTruncatedRecordIsIgnored() throws Exception {
+        final JobInfo task = new Builder(8, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(task, SOME_UID, null, -1, null));
+        waitForPendingIo();
+
+        // As if the device crashed while appending the next record.
+        try (FileOutputStream fos = new FileOutputStream(getJobsFile("jobs.log"), true)) {
+            fos.write(new byte[] {0, 0, 1});
+        }
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        assertTasksEqual(task, jobStatusSet.getAllJobs().get(0).getJob());
+    }
+
+    @Test
+    public void testMigratesLegacyXmlFile() throws Exception {
+        waitForPendingIo();
+        assertTrue(getJobsFile("jobs.log").delete());
+        final String xml = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
+                + "<job-info version=\"0\">\n"
+                + "<job jobid=\"8\" package=\"" + mComponent.getPackageName() + "\""
+                + " class=\"" + mComponent.getClassName() + "\" sourceUserId=\"0\""
+                + " uid=\"" + SOME_UID + "\" priority=\"0\" flags=\"0\""
+                + " lastSuccessfulRunTime=\"0\" lastFailedRunTime=\"0\">\n"
+                + "<constraints connectivity=\"true\" charging=\"true\" />\n"
+                + "<one-off initial-backoff=\"30000\" backoff-policy=\"0\" />\n"
+                + "<extras>\n"
+                + "<string name=\"str\">value</string>\n"
+                + "<int name=\"num\" value=\"42\" />\n"
+                + "</extras>\n"
+                + "</job>\n"
+                + "<job jobid=\"9\" package=\"" + mComponent.getPackageName() + "\""
+                + " class=\"" + mComponent.getClassName() + "\" sourceUserId=\"0\""
+                + " uid=\"" + SOME_UID + "\" priority=\"0\" flags=\"0\""
+                + " lastSuccessfulRunTime=\"0\" lastFailedRunTime=\"0\">\n"
+                + "<constraints idle=\"true\" battery-not-low=\"true\" />\n"
+                + "<periodic period=\"900000\" flex=\"300000\" />\n"
+                + "<extras />\n"
+                + "</job>\n"
+                + "</job-info>\n";
+        try (FileOutputStream fos = new FileOutputStream(getJobsFile("jobs.xml"))) {
+            fos.write(xml.getBytes(StandardCharsets.UTF_8));
+        }
+        final PersistableBundle extras = new PersistableBundle();
+        extras.putString("str", "value");
+        extras.putInt("num", 42);
+        final JobInfo oneOff = new Builder(8, mComponent)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(true)
+                .setBackoffCriteria(30000, JobInfo.BACKOFF_POLICY_LINEAR)
+                .setExtras(extras)
+                .setPersisted(true)
+                .build();
+        final JobInfo periodic = new Builder(9, mComponent)
+                .setRequiresDeviceIdle(true)
+                .setRequiresBatteryNotLow(true)
+                .setPeriodic(900000, 300000)
+                .setPersisted(true)
+                .build();
+
+        // Reading the legacy file at boot migrates it to the log with the next write.
+        final JobStore migratedStore =
+                JobStore.initAndReadForTesting(mTestContext, mTestContext.getFilesDir());
+        assertEquals("Incorrect # of migrated tasks.", 2, migratedStore.size());
+        assertTrue("Timed out waiting for the migration to be written",
+                migratedStore.waitForWriteToCompleteForTesting(5_000L));
+        assertFalse(getJobsFile("jobs.xml").exists());
+        assertTrue(getJobsFile("jobs.log").exists());
+        assertEquals(2, migratedStore.getPersistStats().countAllJobsSaved);
+
+        // The jobs are read back from the log alone.
+        final JobStore reloadedStore =
+                JobStore.initAndReadForTesting(mTestContext, mTestContext.getFilesDir());
+        assertFalse(getJobsFile("jobs.xml").exists());
+        assertEquals("Incorrect # of reloaded tasks.", 2, reloadedStore.size());
+        final JobStatus reloadedOneOff = reloadedStore.getJobByUidAndJobId(SOME_UID, 8);
+        final JobStatus reloadedPeriodic = reloadedStore.getJobByUidAndJobId(SOME_UID, 9);
+        assertTasksEqual(oneOff, reloadedOneOff.getJob());
+        assertTasksEqual(periodic, reloadedPeriodic.getJob());
+        assertEquals(SOME_UID, reloadedOneOff.getUid());
+        assertEquals(0, reloadedOneOff.getSourceUserId());
+    }
+
+    private File getJobsFile(String name) {
+        return new File(new File(new File(mTestContext.getFilesDir(), "system"), "job"), name);
+    }
+
     /**
      * Helper function to kick a {@link JobInfo} through a persistence cycle and
      * assert that it's unchanged.
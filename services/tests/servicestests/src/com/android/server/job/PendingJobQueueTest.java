@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManagerInternal;
+import android.os.Build;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.LocalServices;
+import com.android.server.job.controllers.JobStatus;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link PendingJobQueue}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:PendingJobQueueTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+@Presubmit
+public class PendingJobQueueTest {
+    private static final Comparator<JobStatus> sEnqueueTimeComparator =
+            (o1, o2) -> Long.compare(o1.enqueueTime, o2.enqueueTime);
+
+    private Context mContext;
+    private ComponentName mComponent;
+    private PendingJobQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mComponent = new ComponentName(mContext, PendingJobQueueTest.class);
+        mQueue = new PendingJobQueue(sEnqueueTimeComparator);
+        final PackageManagerInternal pm = mock(PackageManagerInternal.class);
+        when(pm.getPackageTargetSdkVersion(anyString()))
+                .thenReturn(Build.VERSION_CODES.CUR_DEVELOPMENT);
+        LocalServices.removeServiceForTest(PackageManagerInternal.class);
+        LocalServices.addService(PackageManagerInternal.class, pm);
+    }
+
+    private JobStatus createJobStatus(int jobId, int callingUid, long enqueueTime) {
+        final JobInfo jobInfo = new JobInfo.Builder(jobId, mComponent).build();
+        final JobStatus job = JobStatus.createFromJobInfo(jobInfo, callingUid,
+                mContext.getPackageName(), mContext.getUserId(), "Test");
+        job.enqueueTime = enqueueTime;
+        return job;
+    }
+
+    @Test
+    public void testIterationMergesUidsInOrder() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            mQueue.add(createJobStatus(i, 10000 + random.nextInt(20), random.nextInt(100)));
+        }
+        assertEquals(500, mQueue.size());
+
+        final List<JobStatus> jobs = new ArrayList<>();
+        mQueue.getAll(jobs);
+        assertEquals(500, jobs.size());
+        for (int i = 1; i < jobs.size(); i++) {
+            assertTrue("Job " + i + " out of order",
+                    jobs.get(i - 1).enqueueTime <= jobs.get(i).enqueueTime);
+        }
+
+        // Iterating again starts over.
+        mQueue.resetIterator();
+        assertSame(jobs.get(0), mQueue.next());
+    }
+
+    @Test
+    public void testEqualJobsKeepInsertionOrder() {
+        final JobStatus first = createJobStatus(1, 10000, 5);
+        final JobStatus second = createJobStatus(2, 10000, 5);
+        final JobStatus third = createJobStatus(3, 10000, 5);
+        mQueue.add(first);
+        mQueue.add(second);
+        mQueue.add(third);
+
+        mQueue.resetIterator();
+        assertSame(first, mQueue.next());
+        assertSame(second, mQueue.next());
+        assertSame(third, mQueue.next());
+        assertNull(mQueue.next());
+    }
+
+    @Test
+    public void testRemoveAndContains() {
+        final JobStatus job1 = createJobStatus(1, 10000, 10);
+        final JobStatus job2 = createJobStatus(2, 10000, 10);
+        final JobStatus job3 = createJobStatus(3, 10001, 5);
+        mQueue.add(job1);
+        mQueue.add(job2);
+        mQueue.add(job3);
+        assertTrue(mQueue.contains(job2));
+
+        assertTrue(mQueue.remove(job2));
+        assertFalse(mQueue.contains(job2));
+        assertFalse(mQueue.remove(job2));
+        assertTrue(mQueue.contains(job1));
+        assertEquals(2, mQueue.size());
+
+        assertTrue(mQueue.remove(job3));
+        mQueue.resetIterator();
+        assertSame(job1, mQueue.next());
+        assertNull(mQueue.next());
+
+        mQueue.clear();
+        assertEquals(0, mQueue.size());
+        assertFalse(mQueue.contains(job1));
+        mQueue.resetIterator();
+        assertNull(mQueue.next());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import android.app.PropertyInvalidatedCache;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests that {@link PackageQueryCache} snapshots follow the package state they were taken from.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:PackageQueryCacheTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PackageQueryCacheTest {
+    private static final String KEY = "sys.testkey.package_query_cache";
+    private static final String PACKAGE = "com.example.app";
+    private static final int USER_ID = 0;
+
+    // Stands in for the package manager state the snapshot is taken from
+    private final ArrayMap<String, PackageInfo> mPackages = new ArrayMap<>();
+    private int mRecomputeCount;
+    private PackageQueryCache<PackageInfo> mCache;
+
+    @Before
+    public void setUp() {
+        SystemProperties.set(KEY, "");
+        mCache = new PackageQueryCache<>(4, KEY, q -> {
+            mRecomputeCount++;
+            final PackageInfo info = mPackages.get(q.packageName);
+            return info != null ? PackageQueryCache.copyPackageInfo(info) : null;
+        }, PackageQueryCache::copyPackageInfo);
+        PropertyInvalidatedCache.invalidateCache(KEY);
+    }
+
+    @Test
+    public void testQueryIsServedFromSnapshot() {
+        addPackage(PACKAGE, 1);
+
+        assertEquals(1, query(PACKAGE).getLongVersionCode());
+        assertEquals(1, query(PACKAGE).getLongVersionCode());
+        assertEquals(1, mRecomputeCount);
+    }
+
+    @Test
+    public void testSnapshotIsStaleAfterPackageAdded() {
+        assertNull(query(PACKAGE));
+
+        addPackage(PACKAGE, 1);
+        assertNotNull(query(PACKAGE));
+    }
+
+    @Test
+    public void testSnapshotIsStaleAfterPackageChanged() {
+        addPackage(PACKAGE, 1);
+        assertEquals(1, query(PACKAGE).getLongVersionCode());
+
+        addPackage(PACKAGE, 2);
+        assertEquals(2, query(PACKAGE).getLongVersionCode());
+    }
+
+    @Test
+    public void testSnapshotIsStaleAfterPackageRemoved() {
+        addPackage(PACKAGE, 1);
+        assertNotNull(query(PACKAGE));
+
+        mPackages.remove(PACKAGE);
+        PropertyInvalidatedCache.invalidateCache(KEY);
+        assertNull(query(PACKAGE));
+    }
+
+    @Test
+    public void testSnapshotIsIsolatedFromCallers() {
+        addPackage(PACKAGE, 1);
+        final PackageInfo first = query(PACKAGE);
+        first.versionName = "modified";
+        first.applicationInfo.flags |= ApplicationInfo.FLAG_SYSTEM;
+
+        final PackageInfo second = query(PACKAGE);
+        assertEquals(1, mRecomputeCount);
+        assertNotSame(first, second);
+        assertNotSame(first.applicationInfo, second.applicationInfo);
+        assertEquals("1", second.versionName);
+        assertEquals(0, second.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM);
+    }
+
+    @Test
+    public void testSnapshotIsIsolatedFromLaterStateChanges() {
+        addPackage(PACKAGE, 1);
+        assertEquals("1", query(PACKAGE).versionName);
+
+        // Modifying the state without invalidating leaves what was already answered untouched
+        mPackages.get(PACKAGE).versionName = "modified";
+        assertEquals("1", query(PACKAGE).versionName);
+    }
+
+    /** Adds or replaces a package and invalidates, as the package manager does. */
+    private void addPackage(String packageName, int versionCode) {
+        final PackageInfo info = new PackageInfo();
+        info.packageName = packageName;
+        info.setLongVersionCode(versionCode);
+        info.versionName = Integer.toString(versionCode);
+        info.applicationInfo = new ApplicationInfo();
+        info.applicationInfo.packageName = packageName;
+        mPackages.put(packageName, info);
+        PropertyInvalidatedCache.invalidateCache(KEY);
+    }
+
+    private PackageInfo query(String packageName) {
+        return mCache.query(new PackageQueryCache.Query(packageName,
+                PackageManager.VERSION_CODE_HIGHEST, 0 /* flags */, 0 /* filterCallingUid */,
+                USER_ID));
+    }
+}
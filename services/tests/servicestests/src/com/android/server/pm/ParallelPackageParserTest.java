@@ -19,6 +19,7 @@ package com.android.server.pm;
 import android.platform.test.annotations.Presubmit;
 import android.util.Log;
 
+import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.server.pm.parsing.PackageParser2;
@@ -32,7 +33,11 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
@@ -74,6 +79,75 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test
+    public void testSortLargestFirst() throws Exception {
+        final File dir = InstrumentationRegistry.getContext().getCacheDir();
+        final File small = createFile(new File(dir, "small.apk"), 10);
+        final File large = createFile(new File(dir, "large.apk"), 1000);
+        final File cluster = new File(dir, "cluster");
+        cluster.mkdirs();
+        createFile(new File(cluster, "base.apk"), 300);
+        createFile(new File(cluster, "split.apk"), 300);
+        try {
+            final List<File> files = new ArrayList<>(Arrays.asList(small, cluster, large));
+            ParallelPackageParser.sortLargestFirst(files);
+            Assert.assertEquals(Arrays.asList(large, cluster, small), files);
+        } finally {
+            small.delete();
+            large.delete();
+            new File(cluster, "base.apk").delete();
+            new File(cluster, "split.apk").delete();
+            cluster.delete();
+        }
+    }
+
+    @Test
+    public void testSortLargestFirst_installedAppLayout() throws Exception {
+        // Installed apps live in /data/app/~~<random>/<package>-<random>/, next to their
+        // oat and lib directories.
+        final File dir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "sortLargestFirst");
+        final File small = createInstalledApp(dir, "~~small", "com.example.small-a1", 10);
+        final File large = createInstalledApp(dir, "~~large", "com.example.large-b2", 1000);
+        createFile(new File(large, "com.example.large-b2/split_config.en.apk"), 200);
+        final File medium = createInstalledApp(dir, "~~medium", "com.example.medium-c3", 500);
+        try {
+            final List<File> files = new ArrayList<>(Arrays.asList(small, medium, large));
+            ParallelPackageParser.sortLargestFirst(files);
+            Assert.assertEquals(Arrays.asList(large, medium, small), files);
+        } finally {
+            deleteRecursive(dir);
+        }
+    }
+
+    private static File createInstalledApp(File dir, String randomDir, String packageDir,
+            int apkSize) throws Exception {
+        final File codePath = new File(new File(dir, randomDir), packageDir);
+        new File(codePath, "oat/arm64").mkdirs();
+        new File(codePath, "lib/arm64").mkdirs();
+        createFile(new File(codePath, "base.apk"), apkSize);
+        // Compiled code isn't parsed, so it must not count towards the size.
+        createFile(new File(codePath, "oat/arm64/base.odex"), 5000);
+        return codePath.getParentFile();
+    }
+
+    private static void deleteRecursive(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static File createFile(File file, int size) throws Exception {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(new byte[size]);
+        }
+        return file;
+    }
+
     private class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser(PackageParser2 packageParser, ExecutorService executorService) {
@@ -22,6 +22,9 @@ import static junit.framework.TestCase.fail;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
 import android.app.usage.TimeSparseArray;
 import android.app.usage.UsageEvents.Event;
@@ -385,6 +388,74 @@ public class UsageStatsDatabaseTest {
         compareIntervalStats(mIntervalStats, stats.get(0), MAX_TESTED_VERSION);
     }
 
+    /**
+     * Demonstrate that repeated queries are served from the cache of decoded stats, and that the
+     * cache does not hide stats written after they were decoded.
+     */
+    @Test
+    public void testQueryUsesCachedStats() throws IOException {
+        final int interval = UsageStatsManager.INTERVAL_DAILY;
+        mUsageStatsDatabase.putUsageStats(interval, mIntervalStats);
+        final List<IntervalStats> first = mUsageStatsDatabase.queryUsageStats(interval, 0,
+                mEndTime, mIntervalStatsVerifier);
+        final List<IntervalStats> second = mUsageStatsDatabase.queryUsageStats(interval, 0,
+                mEndTime, mIntervalStatsVerifier);
+        assertEquals(1, second.size());
+        assertSame(first.get(0), second.get(0));
+
+        mIntervalStats.interactiveTracker.count++;
+        mUsageStatsDatabase.putUsageStats(interval, mIntervalStats);
+        final List<IntervalStats> third = mUsageStatsDatabase.queryUsageStats(interval, 0,
+                mEndTime, mIntervalStatsVerifier);
+        assertEquals(1, third.size());
+        assertNotSame(first.get(0), third.get(0));
+        compareIntervalStats(mIntervalStats, third.get(0), MAX_TESTED_VERSION);
+    }
+
+    /**
+     * Demonstrate that cached stats are handed to combiners as mutable, so that changes to the
+     * copies they return don't reach later queries.
+     */
+    @Test
+    public void testCachedStatsAreCopiedByCombiners() throws IOException {
+        final int interval = UsageStatsManager.INTERVAL_DAILY;
+        final UsageStatsDatabase.StatCombiner<UsageStats> combiner =
+                (stats, mutable, accResult) -> {
+                    assertTrue(mutable);
+                    for (int i = 0; i < stats.packageStats.size(); i++) {
+                        accResult.add(new UsageStats(stats.packageStats.valueAt(i)));
+                    }
+                };
+        mUsageStatsDatabase.putUsageStats(interval, mIntervalStats);
+        final List<UsageStats> first = mUsageStatsDatabase.queryUsageStats(interval, 0,
+                mEndTime, combiner);
+        final int launchCount = first.get(0).mAppLaunchCount;
+        first.get(0).mAppLaunchCount += 10;
+
+        final List<UsageStats> second = mUsageStatsDatabase.queryUsageStats(interval, 0,
+                mEndTime, combiner);
+        assertEquals(first.size(), second.size());
+        assertEquals(launchCount, second.get(0).mAppLaunchCount);
+    }
+
+    /**
+     * Demonstrate that stats are decoded again once the cache was evicted.
+     */
+    @Test
+    public void testEvictCachedStats() throws IOException {
+        final int interval = UsageStatsManager.INTERVAL_DAILY;
+        mUsageStatsDatabase.putUsageStats(interval, mIntervalStats);
+        final List<IntervalStats> first = mUsageStatsDatabase.queryUsageStats(interval, 0,
+                mEndTime, mIntervalStatsVerifier);
+
+        mUsageStatsDatabase.evictCachedStats();
+        final List<IntervalStats> second = mUsageStatsDatabase.queryUsageStats(interval, 0,
+                mEndTime, mIntervalStatsVerifier);
+        assertEquals(1, second.size());
+        assertNotSame(first.get(0), second.get(0));
+        compareIntervalStats(mIntervalStats, second.get(0), MAX_TESTED_VERSION);
+    }
+
     /**
      * Demonstrate that IntervalStats can be serialized and deserialized from disk without loss of
      * relevant data.
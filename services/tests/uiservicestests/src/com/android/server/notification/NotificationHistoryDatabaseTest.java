@@ -29,6 +29,7 @@ import static org.mockito.Mockito.when;
 import android.app.AlarmManager;
 import android.app.NotificationHistory;
 import android.app.NotificationHistory.HistoricalNotification;
+import android.app.PendingIntent;
 import android.content.Context;
 import android.graphics.drawable.Icon;
 import android.os.Handler;
@@ -47,6 +48,7 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.internal.matchers.Not;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
@@ -371,4 +373,93 @@ public class NotificationHistoryDatabaseTest extends UiServiceTestCase {
         assertThat(mDataBase.mBuffer).isNotEqualTo(nh);
         verify(mAlarmManager, times(1)).setExactAndAllowWhileIdle(anyInt(), anyLong(), any());
     }
+
+    @Test
+    public void testCompact_mergesSmallFilesIntoOldest() throws Exception {
+        File dir = createTestDir();
+        for (int i = 0; i < 5; i++) {
+            mDataBase.mHistoryFiles.addFirst(
+                    writeHistoryFile(dir, 1000 * (i + 1), getHistoricalNotification(i)));
+        }
+
+        mDataBase.compact();
+
+        assertThat(mDataBase.mHistoryFiles.size()).isEqualTo(1);
+        assertThat(mDataBase.mHistoryFiles.get(0).getBaseFile().getName()).isEqualTo("1000");
+        assertThat(dir.list()).asList().containsExactly("1000");
+        // The merged-away files' deletion alarms go with them
+        verify(mAlarmManager, times(4)).cancel(any(PendingIntent.class));
+
+        NotificationHistory merged = mDataBase.readNotificationHistory();
+        List<HistoricalNotification> notifications = merged.getNotificationsToWrite();
+        assertThat(notifications.size()).isEqualTo(5);
+        for (int i = 0; i < 5; i++) {
+            // Newest first
+            assertThat(notifications.get(i)).isEqualTo(getHistoricalNotification(4 - i));
+        }
+    }
+
+    @Test
+    public void testCompact_doesNotMergeAcrossWindow() throws Exception {
+        File dir = createTestDir();
+        final long later = 1000 * 60 * 60 * 3;
+        mDataBase.mHistoryFiles.addFirst(
+                writeHistoryFile(dir, 1000, getHistoricalNotification(0)));
+        mDataBase.mHistoryFiles.addFirst(
+                writeHistoryFile(dir, 2000, getHistoricalNotification(1)));
+        mDataBase.mHistoryFiles.addFirst(
+                writeHistoryFile(dir, later, getHistoricalNotification(2)));
+        mDataBase.mHistoryFiles.addFirst(
+                writeHistoryFile(dir, later + 1000, getHistoricalNotification(3)));
+
+        mDataBase.compact();
+
+        assertThat(mDataBase.mHistoryFiles.size()).isEqualTo(2);
+        assertThat(mDataBase.mHistoryFiles.get(0).getBaseFile().getName())
+                .isEqualTo(String.valueOf(later));
+        assertThat(mDataBase.mHistoryFiles.get(1).getBaseFile().getName()).isEqualTo("1000");
+        assertThat(mDataBase.readNotificationHistory().getHistoryCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void testReadNotificationHistory_withFilterAcrossCompactedFiles() throws Exception {
+        File dir = createTestDir();
+        for (int i = 0; i < 6; i++) {
+            mDataBase.mHistoryFiles.addFirst(writeHistoryFile(dir, 1000 * (i + 1),
+                    getHistoricalNotification(i % 2 == 0 ? "even" : "odd", i)));
+        }
+        mDataBase.compact();
+
+        NotificationHistory history = mDataBase.readNotificationHistory("even", null, 2);
+
+        List<HistoricalNotification> notifications = history.getNotificationsToWrite();
+        assertThat(notifications.size()).isEqualTo(2);
+        assertThat(notifications.get(0)).isEqualTo(getHistoricalNotification("even", 4));
+        assertThat(notifications.get(1)).isEqualTo(getHistoricalNotification("even", 2));
+    }
+
+    private File createTestDir() {
+        File dir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "NotificationHistoryDatabaseTest_compact");
+        if (dir.exists()) {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+        } else {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
+    private AtomicFile writeHistoryFile(File dir, long time, HistoricalNotification notification)
+            throws Exception {
+        NotificationHistory history = new NotificationHistory();
+        history.addNotificationToWrite(notification);
+        history.poolStringsFromNotifications();
+        AtomicFile af = new AtomicFile(new File(dir, String.valueOf(time)));
+        FileOutputStream fos = af.startWrite();
+        NotificationHistoryProtoHelper.write(fos, history, 1);
+        af.finishWrite(fos);
+        return af;
+    }
 }
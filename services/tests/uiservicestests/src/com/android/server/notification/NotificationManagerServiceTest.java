@@ -3270,7 +3270,7 @@ public class NotificationManagerServiceTest extends UiServiceTestCase {
         mService.addNotification(r);
         mService.addAutogroupKeyLocked(r.getKey());
 
-        verify(mRankingHandler, times(1)).requestSort();
+        verify(mRankingHandler, times(1)).requestSortForStaleRecords();
     }
 
     @Test
@@ -3280,7 +3280,7 @@ public class NotificationManagerServiceTest extends UiServiceTestCase {
         mService.addNotification(r);
         mService.removeAutogroupKeyLocked(r.getKey());
 
-        verify(mRankingHandler, times(1)).requestSort();
+        verify(mRankingHandler, times(1)).requestSortForStaleRecords();
     }
 
     @Test
@@ -3290,7 +3290,7 @@ public class NotificationManagerServiceTest extends UiServiceTestCase {
         mService.addNotification(r);
         mService.addAutogroupKeyLocked(r.getKey());
 
-        verify(mRankingHandler, never()).requestSort();
+        verify(mRankingHandler, never()).requestSortForStaleRecords();
     }
 
     @Test
@@ -3736,7 +3736,7 @@ public class NotificationManagerServiceTest extends UiServiceTestCase {
 
         waitForIdle();
 
-        verify(mRankingHandler, timeout(300).times(1)).requestSort();
+        verify(mRankingHandler, timeout(300).times(1)).requestSortForStaleRecords();
     }
 
     @Test
@@ -3754,7 +3754,7 @@ public class NotificationManagerServiceTest extends UiServiceTestCase {
 
         waitForIdle();
 
-        verify(mRankingHandler, times(1)).requestSort();
+        verify(mRankingHandler, times(1)).requestSortForStaleRecords();
     }
 
     @Test
@@ -20,6 +20,7 @@ import static android.app.NotificationManager.IMPORTANCE_LOW;
 
 import static junit.framework.TestCase.assertEquals;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Matchers.anyInt;
@@ -40,7 +41,9 @@ import android.content.pm.Signature;
 import android.media.AudioAttributes;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.UserHandle;
+import android.service.notification.Adjustment;
 import android.service.notification.StatusBarNotification;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.testing.TestableContentResolver;
@@ -326,4 +329,56 @@ public class RankingHelperTest extends UiServiceTestCase {
         assertEquals(highChild, notificationList.get(1));
         assertEquals(low, notificationList.get(2));
     }
+
+    @Test
+    public void testSortWithChangedRecord_matchesFullSort() {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<>();
+        notificationList.add(mRecordGroupGSortA);
+        notificationList.add(mRecordNoGroup);
+        notificationList.add(mRecordNoGroupSortA);
+        notificationList.add(generateRecord(1));
+        mHelper.sort(notificationList);
+
+        // Posting the second member of a group, and a record that ranks above everything.
+        notificationList.add(mRecordGroupGSortB);
+        mHelper.sort(notificationList, mRecordGroupGSortB);
+        final NotificationRecord critical = generateRecord(0);
+        notificationList.add(critical);
+        mHelper.sort(notificationList, critical);
+
+        ArrayList<NotificationRecord> expected = new ArrayList<>(notificationList);
+        mHelper.sort(expected);
+        assertEquals(expected, notificationList);
+        assertEquals(critical, notificationList.get(0));
+        for (NotificationRecord record : notificationList) {
+            assertEquals(record, notificationList.get(mHelper.indexOf(notificationList, record)));
+        }
+    }
+
+    @Test
+    public void testSortWithChangedRecord_unsortedListFallsBack() {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<>();
+        notificationList.add(mRecordNoGroup);
+        notificationList.add(mRecordNoGroup2);
+        notificationList.add(mRecordGroupGSortA);
+        mHelper.sort(notificationList, mRecordGroupGSortA);
+
+        for (NotificationRecord record : notificationList) {
+            assertTrue(record.getGlobalSortKey() != null);
+        }
+        ArrayList<NotificationRecord> expected = new ArrayList<>(notificationList);
+        mHelper.sort(expected);
+        assertEquals(expected, notificationList);
+    }
+
+    @Test
+    public void testExtractSignals_clearsStaleSignals() {
+        assertTrue(mRecordNoGroup.areSignalsStale());
+        mHelper.extractSignals(mRecordNoGroup);
+        assertFalse(mRecordNoGroup.areSignalsStale());
+
+        mRecordNoGroup.addAdjustment(new Adjustment(PKG, mRecordNoGroup.getKey(), new Bundle(),
+                "", mRecordNoGroup.getUserId()));
+        assertTrue(mRecordNoGroup.areSignalsStale());
+    }
 }
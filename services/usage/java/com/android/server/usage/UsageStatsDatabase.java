@@ -24,6 +24,7 @@ import android.os.Build;
 import android.os.SystemProperties;
 import android.util.ArrayMap;
 import android.util.AtomicFile;
+import android.util.LruCache;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.TimeUtils;
@@ -108,6 +109,16 @@ public class UsageStatsDatabase {
     private static final int SELECTION_LOG_RETENTION_LEN =
             SystemProperties.getInt(RETENTION_LEN_KEY, 14);
 
+    // Upper bound on the estimated memory held by the cache of decoded stat files. A busy day is a
+    // few thousand events, so this fits a few days of daily files.
+    @VisibleForTesting
+    static final int MAX_CACHED_STATS_BYTES = 1024 * 1024;
+    // Rough heap cost of a decoded IntervalStats and of each record in it, used to size the cache.
+    private static final int CACHED_INTERVAL_STATS_BYTES = 1024;
+    private static final int CACHED_PACKAGE_STATS_BYTES = 256;
+    private static final int CACHED_CONFIGURATION_STATS_BYTES = 256;
+    private static final int CACHED_EVENT_BYTES = 96;
+
     private final Object mLock = new Object();
     private final File[] mIntervalDirs;
     @VisibleForTesting
@@ -130,6 +141,20 @@ public class UsageStatsDatabase {
     // Holds all of the data related to the obfuscated packages and their token mappings.
     final PackagesTokenData mPackagesTokenData = new PackagesTokenData();
 
+    // Recently decoded stat files, keyed by base file and sized in estimated bytes. The cached
+    // stats are handed to StatCombiners as mutable so that they copy what they keep, and must be
+    // dropped whenever their file is rewritten or data may have been omitted from it.
+    private final LruCache<File, IntervalStats> mCachedStats =
+            new LruCache<File, IntervalStats>(MAX_CACHED_STATS_BYTES) {
+                @Override
+                protected int sizeOf(File file, IntervalStats stats) {
+                    return CACHED_INTERVAL_STATS_BYTES
+                            + stats.packageStats.size() * CACHED_PACKAGE_STATS_BYTES
+                            + stats.configurations.size() * CACHED_CONFIGURATION_STATS_BYTES
+                            + stats.events.size() * CACHED_EVENT_BYTES;
+                }
+            };
+
     /**
      * UsageStatsDatabase constructor that allows setting the version number.
      * This should only be used for testing.
@@ -277,6 +302,7 @@ public class UsageStatsDatabase {
                 return !name.endsWith(BAK_SUFFIX);
             }
         };
+        mCachedStats.evictAll();
         // Index the available usage stat files on disk.
         for (int i = 0; i < mSortedStatFiles.length; i++) {
             if (mSortedStatFiles[i] == null) {
@@ -564,6 +590,8 @@ public class UsageStatsDatabase {
     int onPackageRemoved(String packageName, long timeRemoved) {
         synchronized (mLock) {
             final int tokenRemoved = mPackagesTokenData.removePackage(packageName, timeRemoved);
+            // Cached stats may still hold data of the removed package
+            mCachedStats.evictAll();
             try {
                 writeMappingsLocked();
             } catch (Exception e) {
@@ -580,6 +608,7 @@ public class UsageStatsDatabase {
      */
     boolean pruneUninstalledPackagesData() {
         synchronized (mLock) {
+            mCachedStats.evictAll();
             for (int i = 0; i < mIntervalDirs.length; i++) {
                 final File[] files = mIntervalDirs[i].listFiles();
                 if (files == null) {
@@ -626,6 +655,7 @@ public class UsageStatsDatabase {
             return;
         }
         synchronized (mLock) {
+            mCachedStats.evictAll();
             for (int i = 0; i < mIntervalDirs.length; i++) {
                 final File[] files = mIntervalDirs[i].listFiles();
                 if (files == null) {
@@ -851,16 +881,12 @@ public class UsageStatsDatabase {
             final ArrayList<T> results = new ArrayList<>();
             for (int i = startIndex; i <= endIndex; i++) {
                 final AtomicFile f = intervalStats.valueAt(i);
-                final IntervalStats stats = new IntervalStats();
-
-                if (DEBUG) {
-                    Slog.d(TAG, "Reading stat file " + f.getBaseFile().getAbsolutePath());
-                }
 
                 try {
-                    readLocked(f, stats);
+                    final IntervalStats stats = readCachedLocked(f);
                     if (beginTime < stats.endTime) {
-                        combiner.combine(stats, false, results);
+                        // The stats stay in the cache, so results must not share their objects
+                        combiner.combine(stats, true, results);
                     }
                 } catch (Exception e) {
                     Slog.e(TAG, "Failed to read usage stats file", e);
@@ -872,6 +898,35 @@ public class UsageStatsDatabase {
         }
     }
 
+    /**
+     * Drop all decoded stats held in memory. Called when memory is low, when the user is stopped
+     * and when no queries were made for a while.
+     */
+    void evictCachedStats() {
+        synchronized (mLock) {
+            mCachedStats.evictAll();
+        }
+    }
+
+    /**
+     * Get the decoded stats of a file, reading it only if it is not in {@link #mCachedStats}. The
+     * returned stats must not be modified.
+     */
+    private IntervalStats readCachedLocked(AtomicFile f) throws IOException, RuntimeException {
+        IntervalStats stats = mCachedStats.get(f.getBaseFile());
+        if (stats != null) {
+            return stats;
+        }
+
+        if (DEBUG) {
+            Slog.d(TAG, "Reading stat file " + f.getBaseFile().getAbsolutePath());
+        }
+        stats = new IntervalStats();
+        readLocked(f, stats);
+        mCachedStats.put(f.getBaseFile(), stats);
+        return stats;
+    }
+
     /**
      * Find the interval that best matches this range.
      *
@@ -1223,6 +1278,7 @@ public class UsageStatsDatabase {
                 mSortedStatFiles[intervalType].put(stats.beginTime, f);
             }
 
+            mCachedStats.remove(f.getBaseFile());
             writeLocked(f, stats);
             stats.lastTimeSaved = f.getLastModifiedTime();
         }
@@ -1490,6 +1546,14 @@ public class UsageStatsDatabase {
                 }
                 pw.decreaseIndent();
             }
+            pw.print("Cached stats files: ");
+            pw.print(mCachedStats.snapshot().size());
+            pw.print(", estimated bytes: ");
+            pw.print(mCachedStats.size());
+            pw.print(", hits: ");
+            pw.print(mCachedStats.hitCount());
+            pw.print(", misses: ");
+            pw.println(mCachedStats.missCount());
             pw.decreaseIndent();
         }
     }
@@ -51,6 +51,7 @@ import android.app.usage.UsageStatsManager.StandbyBuckets;
 import android.app.usage.UsageStatsManager.UsageSource;
 import android.app.usage.UsageStatsManagerInternal;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -128,8 +129,12 @@ public class UsageStatsService extends SystemService implements
     static final boolean COMPRESS_TIME = false;
 
     private static final long TEN_SECONDS = 10 * 1000;
+    private static final long FIVE_MINUTES = 5 * 60 * 1000;
     private static final long TWENTY_MINUTES = 20 * 60 * 1000;
     private static final long FLUSH_INTERVAL = COMPRESS_TIME ? TEN_SECONDS : TWENTY_MINUTES;
+    // Decoded stat files are dropped from memory once no query was made for this long.
+    private static final long CACHED_STATS_IDLE_TIMEOUT =
+            COMPRESS_TIME ? TEN_SECONDS : FIVE_MINUTES;
     static final long TIME_CHANGE_THRESHOLD_MILLIS = 2 * 1000; // Two seconds.
 
     private static final boolean ENABLE_KERNEL_UPDATES = true;
@@ -150,6 +155,7 @@ public class UsageStatsService extends SystemService implements
     static final int MSG_REPORT_EVENT_TO_ALL_USERID = 4;
     static final int MSG_UNLOCKED_USER = 5;
     static final int MSG_PACKAGE_REMOVED = 6;
+    static final int MSG_EVICT_CACHED_STATS = 7;
 
     private final Object mLock = new Object();
     Handler mHandler;
@@ -261,6 +267,23 @@ public class UsageStatsService extends SystemService implements
         filter.addAction(Intent.ACTION_USER_STARTED);
         getContext().registerReceiverAsUser(new UserActionsReceiver(), UserHandle.ALL, filter,
                 null, mHandler);
+        getContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                    mHandler.sendEmptyMessage(MSG_EVICT_CACHED_STATS);
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                mHandler.sendEmptyMessage(MSG_EVICT_CACHED_STATS);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
 
         publishLocalService(UsageStatsManagerInternal.class, new LocalService());
         publishLocalService(AppStandbyInternal.class, mAppStandby);
@@ -981,6 +1004,28 @@ public class UsageStatsService extends SystemService implements
         UsageStatsIdleService.cancelUpdateMappingsJob(getContext());
     }
 
+    /**
+     * Called by the Handler for message MSG_EVICT_CACHED_STATS.
+     */
+    void evictCachedStats() {
+        synchronized (mLock) {
+            for (int i = mUserState.size() - 1; i >= 0; i--) {
+                final UserUsageStatsService service = mUserState.valueAt(i);
+                if (service != null) {
+                    service.evictCachedStats();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the decoded stat files held for queries once no query was made for a while.
+     */
+    private void scheduleEvictCachedStats() {
+        mHandler.removeMessages(MSG_EVICT_CACHED_STATS);
+        mHandler.sendEmptyMessageDelayed(MSG_EVICT_CACHED_STATS, CACHED_STATS_IDLE_TIMEOUT);
+    }
+
     /**
      * Called by the Handler for message MSG_PACKAGE_REMOVED.
      */
@@ -1060,6 +1105,7 @@ public class UsageStatsService extends SystemService implements
             if (service == null) {
                 return null; // user was stopped or removed
             }
+            scheduleEvictCachedStats();
             List<UsageStats> list = service.queryUsageStats(bucketType, beginTime, endTime);
             if (list == null) {
                 return null;
@@ -1094,6 +1140,7 @@ public class UsageStatsService extends SystemService implements
             if (service == null) {
                 return null; // user was stopped or removed
             }
+            scheduleEvictCachedStats();
             return service.queryConfigurationStats(bucketType, beginTime, endTime);
         }
     }
@@ -1113,6 +1160,7 @@ public class UsageStatsService extends SystemService implements
             if (service == null) {
                 return null; // user was stopped or removed
             }
+            scheduleEvictCachedStats();
             return service.queryEventStats(bucketType, beginTime, endTime);
         }
     }
@@ -1131,6 +1179,7 @@ public class UsageStatsService extends SystemService implements
             if (service == null) {
                 return null; // user was stopped or removed
             }
+            scheduleEvictCachedStats();
             return service.queryEvents(beginTime, endTime, flags);
         }
     }
@@ -1150,6 +1199,7 @@ public class UsageStatsService extends SystemService implements
             if (service == null) {
                 return null; // user was stopped or removed
             }
+            scheduleEvictCachedStats();
             return service.queryEventsForPackage(beginTime, endTime, packageName, includeTaskRoot);
         }
     }
@@ -1386,6 +1436,9 @@ public class UsageStatsService extends SystemService implements
                 case MSG_PACKAGE_REMOVED:
                     onPackageRemoved(msg.arg1, (String) msg.obj);
                     break;
+                case MSG_EVICT_CACHED_STATS:
+                    evictCachedStats();
+                    break;
                 case MSG_UID_STATE_CHANGED: {
                     final int uid = msg.arg1;
                     final int procState = msg.arg2;
@@ -174,6 +174,14 @@ class UserUsageStatsService {
     void userStopped() {
         // Flush events to disk immediately to guarantee persistence.
         persistActiveStats();
+        mDatabase.evictCachedStats();
+    }
+
+    /**
+     * Drop the decoded stat files kept in memory to answer queries.
+     */
+    void evictCachedStats() {
+        mDatabase.evictCachedStats();
     }
 
     int onPackageRemoved(String packageName, long timeRemoved) {
@@ -418,6 +418,60 @@ public class NetworkStatsTest {
                 DEFAULT_NETWORK_NO, 32L, 0L, 0L, 0L, 0L);
     }
 
+    @Test
+    public void testCopyFrom() {
+        final NetworkStats source = new NetworkStats(TEST_START, 3)
+                .insertEntry(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                        DEFAULT_NETWORK_NO, 1024L, 8L, 0L, 0L, 1L)
+                .insertEntry(TEST_IFACE2, 101, SET_FOREGROUND, 0xF00D, METERED_YES, ROAMING_NO,
+                        DEFAULT_NETWORK_YES, 0L, 0L, 512L, 4L, 2L)
+                .insertEntry(TEST_IFACE, 102, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_YES,
+                        DEFAULT_NETWORK_NO, 64L, 1L, 64L, 1L, 0L);
+
+        // Grows into an empty object.
+        final NetworkStats stats = new NetworkStats(0L, -1);
+        stats.copyFrom(source);
+        assertEquals(TEST_START, stats.getElapsedRealtime());
+        assertEquals(3, stats.size());
+        assertValues(stats, 1, TEST_IFACE2, 101, SET_FOREGROUND, 0xF00D, METERED_YES, ROAMING_NO,
+                DEFAULT_NETWORK_YES, 0L, 0L, 512L, 4L, 2L);
+
+        // Shrinks in place, and isn't affected by later changes to the source.
+        final NetworkStats smaller = new NetworkStats(TEST_START + 1, 1)
+                .insertEntry(TEST_IFACE, 103, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                        DEFAULT_NETWORK_NO, 32L, 1L, 0L, 0L, 0L);
+        stats.copyFrom(smaller);
+        smaller.combineAllValues(smaller.clone());
+        assertEquals(1, stats.size());
+        assertEquals(3, stats.internalSize());
+        assertValues(stats, 0, TEST_IFACE, 103, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 32L, 1L, 0L, 0L, 0L);
+    }
+
+    @Test
+    public void testAddAllValuesOutOfOrder() {
+        final NetworkStats first = new NetworkStats(TEST_START, 3)
+                .insertEntry(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, 32L, 1L, 0L, 0L, 0L)
+                .insertEntry(TEST_IFACE, 101, SET_DEFAULT, TAG_NONE, 32L, 1L, 0L, 0L, 0L)
+                .insertEntry(TEST_IFACE, 102, SET_DEFAULT, TAG_NONE, 32L, 1L, 0L, 0L, 0L);
+        final NetworkStats second = new NetworkStats(TEST_START, 3)
+                .insertEntry(TEST_IFACE, 102, SET_DEFAULT, TAG_NONE, 1L, 0L, 0L, 0L, 0L)
+                .insertEntry(TEST_IFACE, 103, SET_DEFAULT, TAG_NONE, 2L, 0L, 0L, 0L, 0L)
+                .insertEntry(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, 3L, 0L, 0L, 0L, 0L);
+
+        first.combineAllValues(second);
+
+        assertEquals(4, first.size());
+        assertValues(first, 0, TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 35L, 1L, 0L, 0L, 0L);
+        assertValues(first, 1, TEST_IFACE, 101, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 32L, 1L, 0L, 0L, 0L);
+        assertValues(first, 2, TEST_IFACE, 102, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 33L, 1L, 0L, 0L, 0L);
+        assertValues(first, 3, TEST_IFACE, 103, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 2L, 0L, 0L, 0L, 0L);
+    }
+
     @Test
     public void testGetTotal() {
         final NetworkStats stats = new NetworkStats(TEST_START, 7)
@@ -268,6 +268,65 @@ public class NetworkStatsCollectionTest {
                 0, NetworkStatsAccess.Level.DEVICE);
     }
 
+    @Test
+    public void testMappedFile() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+        final NetworkStats.Entry entry = new NetworkStats.Entry(1000L, 10L, 500L, 5L, 1L);
+        final int[] uids = { Process.SYSTEM_UID, myUid(), myUid() + 1 };
+        for (int uid : uids) {
+            collection.recordData(identSet, uid, SET_DEFAULT, TAG_NONE, 0,
+                    5 * HOUR_IN_MILLIS, entry);
+            collection.recordData(identSet, uid, SET_DEFAULT, 0xF00D, HOUR_IN_MILLIS,
+                    2 * HOUR_IN_MILLIS, entry);
+        }
+
+        final File testFile =
+                new File(InstrumentationRegistry.getContext().getFilesDir(), TEST_FILE);
+        try (OutputStream out = new FileOutputStream(testFile)) {
+            collection.write(out);
+        }
+        final MappedNetworkStatsFile mapped = MappedNetworkStatsFile.open(testFile);
+        assertNotNull(mapped);
+        try {
+            // Summary across partial buckets
+            final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+            final long start = 30 * MINUTE_IN_MILLIS;
+            final long end = 4 * HOUR_IN_MILLIS + 15 * MINUTE_IN_MILLIS;
+            final NetworkStats expectedSummary = collection.getSummary(template, start, end,
+                    NetworkStatsAccess.Level.DEVICE, myUid());
+            final NetworkStats summary = new NetworkStats(end - start, 1);
+            mapped.getSummary(template, start, end, Long.MAX_VALUE,
+                    NetworkStatsAccess.Level.DEVICE, myUid(), summary);
+            assertEquals(expectedSummary.size(), summary.size());
+            assertEntry(expectedSummary.getTotalIncludingTags(null),
+                    summary.getTotalIncludingTags(null));
+
+            // History of a single uid
+            final NetworkStatsHistory expectedHistory = collection.getHistory(template, null,
+                    myUid(), SET_ALL, TAG_NONE, FIELD_ALL, HOUR_IN_MILLIS, 4 * HOUR_IN_MILLIS,
+                    NetworkStatsAccess.Level.DEVICE, myUid());
+            final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS);
+            mapped.recordHistory(template, myUid(), SET_ALL, TAG_NONE, HOUR_IN_MILLIS,
+                    4 * HOUR_IN_MILLIS, history);
+            assertEquals(3, history.size());
+            assertEquals(expectedHistory.size(), history.size());
+            for (int i = 0; i < history.size(); i++) {
+                final NetworkStatsHistory.Entry expectedBucket =
+                        expectedHistory.getValues(i, null);
+                final NetworkStatsHistory.Entry bucket = history.getValues(i, null);
+                assertEquals(expectedBucket.bucketStart, bucket.bucketStart);
+                assertEntry(expectedBucket.rxBytes, expectedBucket.rxPackets,
+                        expectedBucket.txBytes, expectedBucket.txPackets, bucket);
+            }
+        } finally {
+            mapped.close();
+            testFile.delete();
+        }
+    }
+
     @Test
     public void testAugmentPlan() throws Exception {
         final File testFile =
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reorders a preloaded-classes file using the class initialization times the zygote logs when
+ * preloading, so that the slowest classes are started first when preloading in parallel.
+ *
+ * <p>Classes are written slowest first, by their average time over all the logs given. Classes
+ * without a recorded time, which took less than a millisecond, keep their relative order after
+ * them. Comments at the top of the file are kept, and no class is added or removed.
+ *
+ * <p>Usage: preload-ordering [preloaded-classes] [logcat]... > [new preloaded-classes]
+ */
+class PreloadOrdering {
+
+    /** Matches the lines logged by ClassPreloader.logSlowClasses(). */
+    private static final Pattern DURATION = Pattern.compile(
+            "PreloadClass (\\S+) took to complete: (\\d+)ms");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: preload-ordering [preloaded-classes] [logcat]...");
+            System.exit(1);
+        }
+
+        final List<String> header = new ArrayList<>();
+        final List<String> classes = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(args[0]))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("#") || line.isEmpty()) {
+                    if (classes.isEmpty()) {
+                        header.add(line);
+                    }
+                    continue;
+                }
+                classes.add(line);
+            }
+        }
+
+        final Map<String, long[]> totals = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            try (BufferedReader br = new BufferedReader(new FileReader(args[i]))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    final Matcher m = DURATION.matcher(line);
+                    if (m.find()) {
+                        final long[] total = totals.computeIfAbsent(m.group(1),
+                                k -> new long[2]);
+                        total[0] += Long.parseLong(m.group(2));
+                        total[1]++;
+                    }
+                }
+            }
+        }
+
+        final List<String> timed = new ArrayList<>();
+        final List<String> untimed = new ArrayList<>();
+        for (String cls : classes) {
+            (totals.containsKey(cls) ? timed : untimed).add(cls);
+        }
+        // List.sort is stable, so classes with equal times keep their order.
+        timed.sort((lhs, rhs) -> Double.compare(average(totals.get(rhs)),
+                average(totals.get(lhs))));
+
+        for (String line : header) {
+            System.out.println(line);
+        }
+        for (String cls : timed) {
+            System.out.println(cls);
+        }
+        for (String cls : untimed) {
+            System.out.println(cls);
+        }
+        System.err.println("Ordered " + timed.size() + " timed and " + untimed.size()
+                + " untimed classes.");
+    }
+
+    private static double average(long[] total) {
+        return (double) total[0] / total[1];
+    }
+}